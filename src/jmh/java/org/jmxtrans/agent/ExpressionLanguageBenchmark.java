@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.management.ObjectName;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ExpressionLanguageEngineImpl#resolveExpression} for plain expressions and for expressions evaluated
+ * against an {@link ObjectName}.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ExpressionLanguageBenchmark {
+
+    private ExpressionLanguageEngineImpl expressionLanguageEngine;
+    private ObjectName objectName;
+
+    @Setup
+    public void setUp() throws Exception {
+        expressionLanguageEngine = new ExpressionLanguageEngineImpl();
+        objectName = new ObjectName("java.lang:type=MemoryPool,name=PS Eden Space");
+    }
+
+    @Benchmark
+    public String plainExpression() {
+        return expressionLanguageEngine.resolveExpression("servers.#escaped_hostname#.jvm");
+    }
+
+    @Benchmark
+    public String objectNameExpression() {
+        return expressionLanguageEngine.resolveExpression("jvm.memorypool.%name%.#attribute#.#key#", objectName, "Usage", "used", null);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PerMinuteSummarizerOutputWriter} processing counters and gauges for a set of distinct metrics.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PerMinuteSummarizerBenchmark {
+
+    private static final int METRICS_COUNT = 256;
+
+    private PerMinuteSummarizerOutputWriter outputWriter;
+    private String[] metricNames;
+    private long counter;
+    private long timestamp = System.currentTimeMillis();
+    private int index;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        outputWriter = new PerMinuteSummarizerOutputWriter(new BlackholeOutputWriter(blackhole));
+        metricNames = new String[METRICS_COUNT];
+        for (int i = 0; i < metricNames.length; i++) {
+            metricNames[i] = "tomcat.http-nio-" + (8000 + i) + ".requestCount";
+        }
+    }
+
+    /**
+     * Same steps as {@link PerMinuteSummarizerOutputWriter#writeQueryResult(String, String, Object)} for a counter
+     * but with synthetic timestamps one collect interval apart, two samples of the same counter collected within
+     * the same millisecond would not make sense.
+     */
+    @Benchmark
+    public QueryResult counter() {
+        index = (index + 1) & (METRICS_COUNT - 1);
+        if (index == 0) {
+            timestamp += TimeUnit.SECONDS.toMillis(10);
+        }
+        QueryResult currentResult = new QueryResult(metricNames[index], "counter", counter++, timestamp);
+        QueryResult previousResult = outputWriter.getPreviousQueryResult(currentResult);
+        outputWriter.storeQueryResult(currentResult);
+        return outputWriter.perMinute(currentResult, previousResult);
+    }
+
+    @Benchmark
+    public void gauge() throws IOException {
+        index = (index + 1) & (METRICS_COUNT - 1);
+        outputWriter.writeQueryResult(metricNames[index], "gauge", counter++);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collection of {@link Query queries} against a synthetic {@link MBeanServer} populated with {@link Mock} MBeans,
+ * with and without the {@link MBeanRegistryCache}.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    @Param({"10", "100"})
+    public int mbeanCount;
+
+    @Param({"false", "true"})
+    public boolean mbeanRegistryCache;
+
+    private MBeanServer mbeanServer;
+    private MBeanRegistryCache cache;
+    private OutputWriter outputWriter;
+    private Query simpleAttributeQuery;
+    private Query compositeDataQuery;
+    private Query allAttributesQuery;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws Exception {
+        mbeanServer = MBeanServerFactory.newMBeanServer("benchmark");
+        for (int i = 0; i < mbeanCount; i++) {
+            mbeanServer.registerMBean(new Mock("mock-" + i, 1000L * i), new ObjectName("test:type=Mock,name=mock-" + i));
+        }
+        outputWriter = new BlackholeOutputWriter(blackhole);
+
+        ResultNameStrategyImpl resultNameStrategy = new ResultNameStrategyImpl();
+        resultNameStrategy.postConstruct(Collections.<String, String>emptyMap());
+
+        simpleAttributeQuery = new Query("test:type=Mock,name=*", "CollectionUsageThreshold", resultNameStrategy);
+        compositeDataQuery = new Query("test:type=Mock,name=*", "Usage", "used", null, null, "test.%name%.#attribute#.#key#", resultNameStrategy);
+        allAttributesQuery = new Query("test:type=Mock,name=*", (String) null, resultNameStrategy);
+
+        if (mbeanRegistryCache) {
+            cache = new MBeanRegistryCache(mbeanServer);
+            cache.start();
+            simpleAttributeQuery.setMBeanRegistryCache(cache);
+            compositeDataQuery.setMBeanRegistryCache(cache);
+            allAttributesQuery.setMBeanRegistryCache(cache);
+            cache.addUnregistrationListener(resultNameStrategy);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (cache != null) {
+            cache.stop();
+        }
+    }
+
+    @Benchmark
+    public void simpleAttribute() {
+        simpleAttributeQuery.collectAndExport(mbeanServer, outputWriter);
+    }
+
+    @Benchmark
+    public void compositeDataAttribute() {
+        compositeDataQuery.collectAndExport(mbeanServer, outputWriter);
+    }
+
+    @Benchmark
+    public void allAttributes() {
+        allAttributesQuery.collectAndExport(mbeanServer, outputWriter);
+    }
+}
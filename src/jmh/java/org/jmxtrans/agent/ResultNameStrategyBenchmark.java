@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.management.ObjectName;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ResultNameStrategyImpl#getResultName(Query, ObjectName, String, String, Integer)} with and without the
+ * result name cache, for queries with and without a result alias.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResultNameStrategyBenchmark {
+
+    private static final int OBJECT_NAMES_COUNT = 128;
+
+    @Param({"0", "10000"})
+    public int resultNameCacheMaxSize;
+
+    private ResultNameStrategyImpl resultNameStrategy;
+    private Query aliasedQuery;
+    private Query defaultQuery;
+    private ObjectName[] objectNames;
+    private int index;
+
+    @Setup
+    public void setUp() throws Exception {
+        resultNameStrategy = new ResultNameStrategyImpl();
+        resultNameStrategy.postConstruct(Collections.singletonMap(
+                ResultNameStrategyImpl.SETTING_RESULT_NAME_CACHE_MAX_SIZE, String.valueOf(resultNameCacheMaxSize)));
+
+        aliasedQuery = new Query("Catalina:type=GlobalRequestProcessor,name=*", "requestCount", "tomcat.%name%.#attribute#", resultNameStrategy);
+        defaultQuery = new Query("Catalina:type=GlobalRequestProcessor,name=*", "requestCount", resultNameStrategy);
+
+        objectNames = new ObjectName[OBJECT_NAMES_COUNT];
+        for (int i = 0; i < objectNames.length; i++) {
+            objectNames[i] = new ObjectName("Catalina:type=GlobalRequestProcessor,name=\"http-nio-" + (8000 + i) + "\"");
+        }
+    }
+
+    private ObjectName nextObjectName() {
+        index = (index + 1) & (OBJECT_NAMES_COUNT - 1);
+        return objectNames[index];
+    }
+
+    @Benchmark
+    public String aliasedQuery() {
+        return resultNameStrategy.getResultName(aliasedQuery, nextObjectName(), "requestCount", null, null);
+    }
+
+    @Benchmark
+    public String defaultQuery() {
+        return resultNameStrategy.getResultName(defaultQuery, nextObjectName(), "requestCount", null, null);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.graphite.GraphiteMetricEncoder;
+import org.jmxtrans.agent.graphite.GraphiteMetricMessageBuilder;
+import org.jmxtrans.agent.influxdb.InfluxMetricConverter;
+import org.jmxtrans.agent.influxdb.InfluxTag;
+import org.jmxtrans.agent.statsd.StatsDMetricEncoder;
+import org.jmxtrans.agent.zabbix.ZabbixMetricMessageBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message encoding of the output writers: Graphite plain text, StatsD (plain and DataDog), InfluxDB line protocol
+ * and Zabbix JSON. Network I/O is deliberately left out.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class WriterEncodingBenchmark {
+
+    private static final String METRIC_NAME = "jvm.memorypool.PS_Eden_Space.Usage.used";
+
+    @Param({"long", "double"})
+    public String valueType;
+
+    private Object value;
+    private long timestamp;
+    private GraphiteMetricMessageBuilder graphiteMessageBuilder;
+    private GraphiteMetricEncoder graphiteEncoder;
+    private MetricBatch batch;
+    private ByteBuffer buffer;
+    private StatsDMetricEncoder statsDEncoder;
+    private StatsDMetricEncoder dataDogEncoder;
+    private List<InfluxTag> influxTags;
+    private ZabbixMetricMessageBuilder zabbixMessageBuilder;
+
+    @Setup
+    public void setUp() {
+        value = "long".equals(valueType) ? (Object) 87359488L : (Object) 0.8734;
+        timestamp = System.currentTimeMillis();
+        graphiteMessageBuilder = new GraphiteMetricMessageBuilder("servers.benchmark.");
+        graphiteEncoder = new GraphiteMetricEncoder("servers.benchmark.", 10000);
+        batch = new MetricBatch.Builder().add(METRIC_NAME, null, value, false).build(timestamp);
+        buffer = ByteBuffer.allocate(1024);
+
+        // only parse the settings, postConstruct() would open a datagram channel
+        Map<String, String> settings = new HashMap<>();
+        settings.put(StatsDOutputWriter.SETTING_ROOT_PREFIX, "benchmark");
+        StatsDOutputWriter statsDOutputWriter = new StatsDOutputWriter();
+        statsDOutputWriter.parseTagsAndMetricsNamePrefix(settings);
+        statsDEncoder = statsDOutputWriter.newMetricEncoder(10000);
+
+        settings.put(StatsDOutputWriter.SETTINGS_STATSD_TYPE, StatsDOutputWriter.STATSD_DATADOG);
+        settings.put(StatsDOutputWriter.SETTINGS_TAGS, "env:bench,service:agent");
+        StatsDOutputWriter dataDogOutputWriter = new StatsDOutputWriter();
+        dataDogOutputWriter.parseTagsAndMetricsNamePrefix(settings);
+        dataDogEncoder = dataDogOutputWriter.newMetricEncoder(10000);
+
+        influxTags = InfluxMetricConverter.tagsFromCommaSeparatedString("host=localhost,env=bench");
+        zabbixMessageBuilder = new ZabbixMetricMessageBuilder("benchmark-host");
+    }
+
+    @Benchmark
+    public String graphite() {
+        return graphiteMessageBuilder.buildMessage(METRIC_NAME, value, timestamp);
+    }
+
+    @Benchmark
+    public ByteBuffer graphiteEncoder() {
+        buffer.clear();
+        graphiteEncoder.encode(buffer, batch, 0, timestamp);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer statsD() {
+        buffer.clear();
+        statsDEncoder.encode(buffer, METRIC_NAME, "g", value);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer statsDDataDog() {
+        buffer.clear();
+        dataDogEncoder.encode(buffer, METRIC_NAME, "g", value);
+        return buffer;
+    }
+
+    @Benchmark
+    public String influxLineProtocol() {
+        return InfluxMetricConverter.convertToInfluxMetric("jvm_memorypool_used,pool=PS_Eden_Space", value, influxTags, timestamp).toInfluxFormat();
+    }
+
+    @Benchmark
+    public String zabbixJson() {
+        return zabbixMessageBuilder.buildMessage(METRIC_NAME, value, timestamp);
+    }
+}
@@ -29,6 +29,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import static org.jmxtrans.agent.util.ConfigurationUtils.getString;
@@ -49,6 +50,7 @@ public abstract class AbstractOutputWriter implements OutputWriter {
     private Level debugLevel = Level.FINE;
     private Level traceLevel = Level.FINER;
     private Level infoLevel = Level.INFO;
+    private final AtomicLong bytesSentCounter = new AtomicLong();
 
     @Override
     public void postConstruct(@Nonnull Map<String, String> settings) {
@@ -90,6 +92,20 @@ public abstract class AbstractOutputWriter implements OutputWriter {
     @Override
     public abstract void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException;
 
+    /**
+     * Record the bytes sent to the backend, to be called by the writers that send the results over the network.
+     */
+    protected void incrementBytesSent(long bytes) {
+        bytesSentCounter.addAndGet(bytes);
+    }
+
+    /**
+     * @return number of bytes sent to the backend since the creation of the writer, {@code 0} if the writer doesn't track it
+     */
+    public long getBytesSentCount() {
+        return bytesSentCounter.get();
+    }
+
     /**
      * To workaround the complex configuration of java.util.logging, we tweak the level for "debug style" messages
      * using the {@value #SETTING_LOG_LEVEL} initialization parameter.
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.time.DurationHistogram;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a {@link JmxTransExporter}, see {@link AgentMetricsMXBean}.
+ *
+ * The cycle metrics are recorded by the exporter, the collector and writer metrics are read on demand from the
+ * {@link TimeTrackingCollector}s and from the decorators of the output writers
+ * ({@link OutputWritersChain}, {@link AsyncOutputWriterDecorator}, {@link OutputWriterCircuitBreakerDecorator}) and
+ * from the writers that expose their own metrics ({@link OutputWriterMetrics}).
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    public final static ObjectName OBJECT_NAME;
+
+    static {
+        try {
+            OBJECT_NAME = new ObjectName("org.jmxtrans.agent:type=AgentMetrics");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final JmxTransExporter exporter;
+    private final DurationHistogram cycleDurations = new DurationHistogram();
+    private final AtomicLong resultsCounter = new AtomicLong();
+    private volatile long lastCycleResultsCount;
+
+    public AgentMetrics(@Nonnull JmxTransExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    /**
+     * @param durationNanos duration of the collection and of the export of the cycle
+     * @param resultsCount  number of results exported by the cycle
+     */
+    public void onCycleCompleted(long durationNanos, int resultsCount) {
+        cycleDurations.record(durationNanos);
+        resultsCounter.addAndGet(resultsCount);
+        lastCycleResultsCount = resultsCount;
+    }
+
+    /**
+     * Write the agent metrics on the given {@code outputWriter}, named {@code prefix + metric}, e.g.
+     * {@code jmxtrans.agent.cycleDurationP99InMicros} or {@code jmxtrans.agent.writers.GraphitePlainTextTcpOutputWriter-0.bytesSent}.
+     */
+    public void writeTo(@Nonnull OutputWriter outputWriter, @Nonnull String prefix) throws IOException {
+        outputWriter.writeQueryResult(prefix + "cycles", "counter", getCycleCount());
+        outputWriter.writeQueryResult(prefix + "lastCycleDurationInMicros", "gauge", getLastCycleDurationInMicros());
+        outputWriter.writeQueryResult(prefix + "cycleDurationP99InMicros", "gauge", getCycleDurationP99InMicros());
+        outputWriter.writeQueryResult(prefix + "results", "counter", getResultsCount());
+        outputWriter.writeQueryResult(prefix + "abandonedCollections", "counter", getAbandonedCollectionsCount());
+        outputWriter.writeQueryResult(prefix + "skippedCollections", "counter", getSkippedCollectionsCount());
+        outputWriter.writeQueryResult(prefix + "skippedTicks", "counter", getSkippedTicksCount());
+        for (WriterMetrics writer : getWriters()) {
+            String writerPrefix = prefix + "writers." + writer.name + ".";
+            outputWriter.writeQueryResult(writerPrefix + "writeDurationInMicros", "counter", writer.getWriteDurationInMicros());
+            outputWriter.writeQueryResult(writerPrefix + "flushDurationInMicros", "counter", writer.getFlushDurationInMicros());
+            outputWriter.writeQueryResult(writerPrefix + "results", "counter", writer.getResultsCount());
+            outputWriter.writeQueryResult(writerPrefix + "bytesSent", "counter", writer.getBytesSent());
+            outputWriter.writeQueryResult(writerPrefix + "droppedResults", "counter", writer.getDroppedResultsCount());
+            outputWriter.writeQueryResult(writerPrefix + "droppedCycles", "counter", writer.getDroppedCyclesCount());
+            outputWriter.writeQueryResult(writerPrefix + "circuitBreakerClosed", "gauge",
+                    writer.circuitBreaker == null || writer.circuitBreaker.getState() == OutputWriterCircuitBreakerDecorator.State.CLOSED ? 1 : 0);
+            if (writer.metrics != null) {
+                for (Map.Entry<String, Long> entry : writer.metrics.getCounters().entrySet()) {
+                    outputWriter.writeQueryResult(writerPrefix + entry.getKey(), "counter", entry.getValue());
+                }
+                for (Map.Entry<String, Long> entry : writer.metrics.getGauges().entrySet()) {
+                    outputWriter.writeQueryResult(writerPrefix + entry.getKey(), "gauge", entry.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getCycleCount() {
+        return cycleDurations.getCount();
+    }
+
+    @Override
+    public long getLastCycleDurationInMicros() {
+        return toMicros(cycleDurations.getLastNanos());
+    }
+
+    @Override
+    public long getMeanCycleDurationInMicros() {
+        return toMicros(cycleDurations.getMeanNanos());
+    }
+
+    @Override
+    public long getMaxCycleDurationInMicros() {
+        return toMicros(cycleDurations.getMaxNanos());
+    }
+
+    @Override
+    public long getCycleDurationP50InMicros() {
+        return toMicros(cycleDurations.getPercentileNanos(50));
+    }
+
+    @Override
+    public long getCycleDurationP99InMicros() {
+        return toMicros(cycleDurations.getPercentileNanos(99));
+    }
+
+    @Override
+    public SortedMap<Long, Long> getCycleDurationHistogram() {
+        SortedMap<Long, Long> result = new TreeMap<>();
+        for (Map.Entry<Long, Long> entry : cycleDurations.getBucketCounts().entrySet()) {
+            long upperBoundInMicros = entry.getKey() == Long.MAX_VALUE ? Long.MAX_VALUE : toMicros(entry.getKey());
+            Long count = result.get(upperBoundInMicros);
+            result.put(upperBoundInMicros, count == null ? entry.getValue() : count + entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public long getResultsCount() {
+        return resultsCounter.get();
+    }
+
+    @Override
+    public long getLastCycleResultsCount() {
+        return lastCycleResultsCount;
+    }
+
+    @Override
+    public long getAbandonedCollectionsCount() {
+        return exporter.getAbandonedCollectionsCount();
+    }
+
+    @Override
+    public long getSkippedCollectionsCount() {
+        return exporter.getSkippedCollectionsCount();
+    }
+
+    @Override
+    public long getSkippedTicksCount() {
+        return exporter.getSkippedTicksCount();
+    }
+
+    @Override
+    public long getAttributeNamesCacheHits() {
+        MBeanRegistryCache mbeanRegistryCache = exporter.getMBeanRegistryCache();
+        return mbeanRegistryCache == null ? 0 : mbeanRegistryCache.getAttributeNamesCacheHits();
+    }
+
+    @Override
+    public long getAttributeNamesCacheMisses() {
+        MBeanRegistryCache mbeanRegistryCache = exporter.getMBeanRegistryCache();
+        return mbeanRegistryCache == null ? 0 : mbeanRegistryCache.getAttributeNamesCacheMisses();
+    }
+
+    @Override
+    public Map<String, Long> getCollectorsMeanCollectDurationInMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        List<TimeTrackingCollector> collectors = exporter.getCollectors();
+        for (int i = 0; i < collectors.size(); i++) {
+            TimeTrackingCollector collector = collectors.get(i);
+            long collectionsCount = collector.getCollectionsCount();
+            result.put(collectorName(i, collector), collectionsCount == 0 ? 0 : toMicros(collector.getTotalCollectDurationNanos() / collectionsCount));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCollectorsMaxCollectDurationInMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        List<TimeTrackingCollector> collectors = exporter.getCollectors();
+        for (int i = 0; i < collectors.size(); i++) {
+            TimeTrackingCollector collector = collectors.get(i);
+            result.put(collectorName(i, collector), toMicros(collector.getMaxCollectDurationNanos()));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getCollectorsTimeoutsCount() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        List<TimeTrackingCollector> collectors = exporter.getCollectors();
+        for (int i = 0; i < collectors.size(); i++) {
+            TimeTrackingCollector collector = collectors.get(i);
+            result.put(collectorName(i, collector), collector.getTimeoutsCount());
+        }
+        return result;
+    }
+
+    @Nonnull
+    private static String collectorName(int index, @Nonnull TimeTrackingCollector collector) {
+        return index + " " + collector.getCollector();
+    }
+
+    @Override
+    public Map<String, Long> getWritersWriteDurationInMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (WriterMetrics writer : getWriters()) {
+            result.put(writer.name, writer.getWriteDurationInMicros());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWritersFlushDurationInMicros() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (WriterMetrics writer : getWriters()) {
+            result.put(writer.name, writer.getFlushDurationInMicros());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWritersResultsCount() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (WriterMetrics writer : getWriters()) {
+            result.put(writer.name, writer.getResultsCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWritersBytesSent() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (WriterMetrics writer : getWriters()) {
+            result.put(writer.name, writer.getBytesSent());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWritersDroppedResultsCount() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (WriterMetrics writer : getWriters()) {
+            result.put(writer.name, writer.getDroppedResultsCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWritersDroppedCyclesCount() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (WriterMetrics writer : getWriters()) {
+            result.put(writer.name, writer.getDroppedCyclesCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, String> getWritersCircuitBreakerState() {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (WriterMetrics writer : getWriters()) {
+            result.put(writer.name, writer.circuitBreaker == null ? "" : writer.circuitBreaker.getState().name());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWritersMetrics() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (WriterMetrics writer : getWriters()) {
+            if (writer.metrics != null) {
+                for (Map.Entry<String, Long> entry : writer.metrics.getCounters().entrySet()) {
+                    result.put(writer.name + "." + entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry<String, Long> entry : writer.metrics.getGauges().entrySet()) {
+                    result.put(writer.name + "." + entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the configured output writers, unwrapped from their chain and decorators
+     */
+    @Nonnull
+    List<WriterMetrics> getWriters() {
+        OutputWriter outputWriter = exporter.getOutputWriter();
+        if (outputWriter == null) {
+            return Collections.emptyList();
+        }
+        List<WriterMetrics> result = new ArrayList<>();
+        if (outputWriter instanceof OutputWritersChain) {
+            OutputWritersChain chain = (OutputWritersChain) outputWriter;
+            List<OutputWritersChain.Lane> lanes = chain.getLanes();
+            for (int i = 0; i < chain.outputWriters.size(); i++) {
+                result.add(new WriterMetrics(i, chain.outputWriters.get(i), lanes.isEmpty() ? null : lanes.get(i)));
+            }
+        } else {
+            result.add(new WriterMetrics(0, outputWriter, null));
+        }
+        return result;
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.MICROSECONDS.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "AgentMetrics{" +
+                "cycleDurations=" + cycleDurations +
+                ", resultsCount=" + getResultsCount() +
+                '}';
+    }
+
+    static class WriterMetrics {
+        final String name;
+        final OutputWriter writer;
+        @Nullable
+        final OutputWritersChain.Lane lane;
+        @Nullable
+        final AsyncOutputWriterDecorator async;
+        @Nullable
+        final OutputWriterCircuitBreakerDecorator circuitBreaker;
+        @Nullable
+        final OutputWriterMetrics metrics;
+
+        WriterMetrics(int index, @Nonnull OutputWriter outputWriter, @Nullable OutputWritersChain.Lane lane) {
+            this.lane = lane;
+            OutputWriter writer = outputWriter;
+            AsyncOutputWriterDecorator async = null;
+            OutputWriterCircuitBreakerDecorator circuitBreaker = null;
+            if (writer instanceof AsyncOutputWriterDecorator) {
+                async = (AsyncOutputWriterDecorator) writer;
+                writer = async.delegate;
+            }
+            if (writer instanceof OutputWriterCircuitBreakerDecorator) {
+                circuitBreaker = (OutputWriterCircuitBreakerDecorator) writer;
+                writer = circuitBreaker.delegate;
+            }
+            this.async = async;
+            this.circuitBreaker = circuitBreaker;
+            this.writer = writer;
+            this.metrics = writer instanceof OutputWriterMetrics ? (OutputWriterMetrics) writer : null;
+            String className = writer.getClass().getName();
+            this.name = className.substring(className.lastIndexOf('.') + 1) + "-" + index;
+        }
+
+        long getWriteDurationInMicros() {
+            return circuitBreaker == null ? 0 : toMicros(circuitBreaker.getWriteDurationNanos());
+        }
+
+        long getFlushDurationInMicros() {
+            return circuitBreaker == null ? 0 : toMicros(circuitBreaker.getFlushDurationNanos());
+        }
+
+        long getResultsCount() {
+            return circuitBreaker == null ? 0 : circuitBreaker.getWrittenResultsCount();
+        }
+
+        long getBytesSent() {
+            return writer instanceof AbstractOutputWriter ? ((AbstractOutputWriter) writer).getBytesSentCount() : 0;
+        }
+
+        long getDroppedResultsCount() {
+            return async == null ? 0 : async.getDroppedCount();
+        }
+
+        long getDroppedCyclesCount() {
+            long droppedCycles = lane == null ? 0 : lane.getDroppedCycles();
+            DiskSpool spool = circuitBreaker == null ? null : circuitBreaker.getSpool();
+            if (spool != null) {
+                droppedCycles += spool.getDroppedBatches() + spool.getExpiredBatches();
+            }
+            return droppedCycles;
+        }
+    }
+}
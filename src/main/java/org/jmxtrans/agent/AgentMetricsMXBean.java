@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Self-monitoring of the {@link JmxTransExporter}: time spent per collection cycle, per collector and per output
+ * writer, volume of results emitted and drops. Registered as {@link AgentMetrics#OBJECT_NAME}.
+ *
+ * Durations are in microseconds. Collectors are identified by their declaration index and description, output writers
+ * by their class name and declaration index.
+ */
+public interface AgentMetricsMXBean {
+
+    long getCycleCount();
+
+    long getLastCycleDurationInMicros();
+
+    long getMeanCycleDurationInMicros();
+
+    long getMaxCycleDurationInMicros();
+
+    long getCycleDurationP50InMicros();
+
+    long getCycleDurationP99InMicros();
+
+    /**
+     * @return number of cycles indexed by the upper bound of their duration bucket, in microseconds
+     */
+    SortedMap<Long, Long> getCycleDurationHistogram();
+
+    long getResultsCount();
+
+    long getLastCycleResultsCount();
+
+    long getAbandonedCollectionsCount();
+
+    /**
+     * @return collections skipped because the previous abandoned collection of their collector was still running
+     */
+    long getSkippedCollectionsCount();
+
+    long getSkippedTicksCount();
+
+    long getAttributeNamesCacheHits();
+
+    long getAttributeNamesCacheMisses();
+
+    Map<String, Long> getCollectorsMeanCollectDurationInMicros();
+
+    Map<String, Long> getCollectorsMaxCollectDurationInMicros();
+
+    Map<String, Long> getCollectorsTimeoutsCount();
+
+    Map<String, Long> getWritersWriteDurationInMicros();
+
+    Map<String, Long> getWritersFlushDurationInMicros();
+
+    Map<String, Long> getWritersResultsCount();
+
+    Map<String, Long> getWritersBytesSent();
+
+    /**
+     * @return results dropped by the asynchronous writers because their queue was full
+     */
+    Map<String, Long> getWritersDroppedResultsCount();
+
+    /**
+     * @return cycles dropped because the writer was too slow or because its spool was full or expired
+     */
+    Map<String, Long> getWritersDroppedCyclesCount();
+
+    Map<String, String> getWritersCircuitBreakerState();
+
+    /**
+     * @return metrics exposed by the output writers themselves (see {@link OutputWriterMetrics}), indexed by
+     * {@code <writer>.<metric>}, e.g. {@code InfluxDbOutputWriter-0.requestRetries}
+     */
+    Map<String, Long> getWritersMetrics();
+}
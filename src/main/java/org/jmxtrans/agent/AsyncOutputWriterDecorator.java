@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+import static org.jmxtrans.agent.util.ConfigurationUtils.getInt;
+import static org.jmxtrans.agent.util.ConfigurationUtils.getString;
+
+/**
+ * Decouples the collection from the I/O of the decorated {@link OutputWriter}: the results are copied in a bounded,
+ * preallocated ring buffer of slots and written to the delegate by a dedicated I/O thread, so that a slow or
+ * unavailable backend does not extend the collections.
+ *
+ * The capacity ({@code asyncQueueCapacity}) is a number of results: a {@link MetricBatch} takes a single slot but
+ * reserves {@link MetricBatch#size()} results of the capacity, it is handed over as is to the delegate, preserving its
+ * timestamp. When the capacity is exhausted, the {@link OverflowPolicy} drops the oldest slots, drops the new slot or
+ * blocks the collection until the I/O thread frees enough capacity. Cycle markers ({@link #preCollect()} /
+ * {@link #postCollect()}) share the ring buffer with the results without counting as results; the I/O thread
+ * re-creates the missing markers if some of them have been dropped.
+ *
+ * Enabled by the {@code async} setting of an {@code <outputWriter>}.
+ */
+public class AsyncOutputWriterDecorator implements BatchOutputWriter {
+
+    public final static String SETTING_ASYNC = "async";
+    public final static String SETTING_QUEUE_CAPACITY = "asyncQueueCapacity";
+    public final static int SETTING_QUEUE_CAPACITY_DEFAULT_VALUE = 10000;
+    public final static String SETTING_OVERFLOW_POLICY = "asyncOverflowPolicy";
+    public final static String SETTING_OVERFLOW_POLICY_DEFAULT_VALUE = "dropOldest";
+    public final static String SETTING_SHUTDOWN_TIMEOUT_IN_MILLIS = "asyncShutdownTimeoutInMillis";
+    public final static int SETTING_SHUTDOWN_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 5000;
+    /**
+     * Max number of slots copied by the I/O thread each time it takes the lock.
+     */
+    private final static int DRAIN_BATCH_SIZE = 256;
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, DROP_NEWEST, BLOCK;
+
+        /**
+         * @param value {@code dropOldest}, {@code dropNewest} or {@code block}, case insensitive
+         */
+        @Nonnull
+        public static OverflowPolicy parse(@Nonnull String value) {
+            String normalizedValue = value.trim().replace("_", "");
+            for (OverflowPolicy overflowPolicy : values()) {
+                if (overflowPolicy.name().replace("_", "").equalsIgnoreCase(normalizedValue)) {
+                    return overflowPolicy;
+                }
+            }
+            throw new IllegalArgumentException("Invalid overflow policy '" + value + "', 'dropOldest', 'dropNewest' or 'block' expected");
+        }
+    }
+
+    private static final byte KIND_PRE_COLLECT = 0;
+    private static final byte KIND_QUERY_RESULT = 1;
+    private static final byte KIND_INVOCATION_RESULT = 2;
+    private static final byte KIND_POST_COLLECT = 3;
+    private static final byte KIND_BATCH = 4;
+
+    protected final Logger logger;
+    protected final OutputWriter delegate;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicLong droppedCounter = new AtomicLong();
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private long shutdownTimeoutInMillis = SETTING_SHUTDOWN_TIMEOUT_IN_MILLIS_DEFAULT_VALUE;
+    private Slot[] slots;
+    /**
+     * Index of the oldest slot, guarded by {@link #lock}.
+     */
+    private int head;
+    /**
+     * Number of used slots, guarded by {@link #lock}.
+     */
+    private int count;
+    /**
+     * Number of results of the used slots, guarded by {@link #lock}.
+     */
+    private int pendingResults;
+    private volatile boolean stopped;
+    private Thread ioThread;
+
+    public AsyncOutputWriterDecorator(@Nonnull OutputWriter delegate) {
+        this.delegate = delegate;
+        logger = Logger.getLogger(delegate.getClass().getName() + "Async");
+    }
+
+    @Override
+    public void postConstruct(@Nonnull Map<String, String> settings) {
+        int capacity = getInt(settings, SETTING_QUEUE_CAPACITY, SETTING_QUEUE_CAPACITY_DEFAULT_VALUE);
+        if (capacity < 2) {
+            throw new IllegalArgumentException("'" + SETTING_QUEUE_CAPACITY + "' must be >= 2, was: " + capacity);
+        }
+        overflowPolicy = OverflowPolicy.parse(getString(settings, SETTING_OVERFLOW_POLICY, SETTING_OVERFLOW_POLICY_DEFAULT_VALUE));
+        shutdownTimeoutInMillis = getInt(settings, SETTING_SHUTDOWN_TIMEOUT_IN_MILLIS, SETTING_SHUTDOWN_TIMEOUT_IN_MILLIS_DEFAULT_VALUE);
+        slots = new Slot[capacity];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+        delegate.postConstruct(settings);
+
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "jmxtrans-agent-async-" + delegate.getClass().getSimpleName());
+        ioThread.setDaemon(true);
+        ioThread.start();
+        logger.fine("Started " + this);
+    }
+
+    /**
+     * Stop accepting results, give the I/O thread {@code asyncShutdownTimeoutInMillis} to write the pending slots and
+     * destroy the delegate.
+     */
+    @Override
+    public void preDestroy() {
+        stopped = true;
+        lock.lock();
+        try {
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (ioThread != null) {
+            try {
+                ioThread.join(shutdownTimeoutInMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (ioThread.isAlive()) {
+                logger.warning("I/O thread did not complete within " + shutdownTimeoutInMillis + "ms, " + getQueueDepth() + " pending results are lost");
+                ioThread.interrupt();
+            }
+        }
+        delegate.preDestroy();
+    }
+
+    @Override
+    public void preCollect() throws IOException {
+        enqueue(KIND_PRE_COLLECT, null, null, null, 0);
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+        enqueue(KIND_QUERY_RESULT, metricName, metricType, value, 1);
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        enqueue(KIND_INVOCATION_RESULT, invocationName, null, value, 1);
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        enqueue(KIND_POST_COLLECT, null, null, null, 0);
+    }
+
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        enqueue(KIND_BATCH, null, null, batch, batch.size());
+    }
+
+    /**
+     * @param results number of results of the slot, {@code 0} for the cycle markers
+     */
+    private void enqueue(byte kind, @Nullable String name, @Nullable String type, @Nullable Object value, int results) throws IOException {
+        if (stopped) {
+            droppedCounter.addAndGet(results);
+            return;
+        }
+        lock.lock();
+        try {
+            if (results > slots.length) {
+                droppedCounter.addAndGet(results);
+                logger.warning("Drop batch of " + results + " results, more than '" + SETTING_QUEUE_CAPACITY + "' (" + slots.length + ")");
+                return;
+            }
+            if (!hasCapacityFor(results)) {
+                switch (overflowPolicy) {
+                    case DROP_NEWEST:
+                        droppedCounter.addAndGet(results);
+                        return;
+                    case DROP_OLDEST:
+                        while (!hasCapacityFor(results)) {
+                            Slot oldest = slots[head];
+                            droppedCounter.addAndGet(oldest.results);
+                            pendingResults -= oldest.results;
+                            oldest.clear();
+                            head = (head + 1) % slots.length;
+                            count--;
+                        }
+                        break;
+                    case BLOCK:
+                        while (!hasCapacityFor(results) && !stopped) {
+                            notFull.await();
+                        }
+                        if (stopped) {
+                            droppedCounter.addAndGet(results);
+                            return;
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Unsupported overflow policy " + overflowPolicy);
+                }
+            }
+            slots[(head + count) % slots.length].set(kind, name, type, value, results);
+            count++;
+            pendingResults += results;
+            notEmpty.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedCounter.addAndGet(results);
+            throw new IOException("Interrupted waiting for a free slot", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Guarded by {@link #lock}.
+     */
+    private boolean hasCapacityFor(int results) {
+        return count < slots.length && pendingResults + results <= slots.length;
+    }
+
+    private void drainLoop() {
+        Slot[] drained = new Slot[Math.min(DRAIN_BATCH_SIZE, slots.length)];
+        for (int i = 0; i < drained.length; i++) {
+            drained[i] = new Slot();
+        }
+        boolean inCycle = false;
+        while (true) {
+            int drainedCount = 0;
+            lock.lock();
+            try {
+                while (count == 0 && !stopped) {
+                    notEmpty.await();
+                }
+                if (count == 0) {
+                    // stopped and fully drained
+                    break;
+                }
+                while (count > 0 && drainedCount < drained.length) {
+                    Slot slot = slots[head];
+                    drained[drainedCount++].set(slot.kind, slot.name, slot.type, slot.value, slot.results);
+                    pendingResults -= slot.results;
+                    slot.clear();
+                    head = (head + 1) % slots.length;
+                    count--;
+                }
+                notFull.signalAll();
+            } catch (InterruptedException e) {
+                logger.fine("I/O thread interrupted, stop");
+                break;
+            } finally {
+                lock.unlock();
+            }
+            for (int i = 0; i < drainedCount; i++) {
+                inCycle = write(drained[i], inCycle);
+                drained[i].clear();
+            }
+        }
+        if (inCycle) {
+            write(KIND_POST_COLLECT, null, null, null);
+        }
+    }
+
+    /**
+     * @return {@code true} if a cycle is opened on the delegate after this slot
+     */
+    private boolean write(@Nonnull Slot slot, boolean inCycle) {
+        switch (slot.kind) {
+            case KIND_PRE_COLLECT:
+                if (inCycle) {
+                    // POST_COLLECT dropped
+                    write(KIND_POST_COLLECT, null, null, null);
+                }
+                write(KIND_PRE_COLLECT, null, null, null);
+                return true;
+            case KIND_POST_COLLECT:
+                if (!inCycle) {
+                    // PRE_COLLECT dropped
+                    write(KIND_PRE_COLLECT, null, null, null);
+                }
+                write(KIND_POST_COLLECT, null, null, null);
+                return false;
+            case KIND_BATCH:
+                if (inCycle) {
+                    // POST_COLLECT dropped
+                    write(KIND_POST_COLLECT, null, null, null);
+                }
+                write(KIND_BATCH, null, null, slot.value);
+                return false;
+            default:
+                if (!inCycle) {
+                    write(KIND_PRE_COLLECT, null, null, null);
+                }
+                write(slot.kind, slot.name, slot.type, slot.value);
+                return true;
+        }
+    }
+
+    private void write(byte kind, @Nullable String name, @Nullable String type, @Nullable Object value) {
+        try {
+            switch (kind) {
+                case KIND_PRE_COLLECT:
+                    delegate.preCollect();
+                    break;
+                case KIND_QUERY_RESULT:
+                    delegate.writeQueryResult(name, type, value);
+                    break;
+                case KIND_INVOCATION_RESULT:
+                    delegate.writeInvocationResult(name, value);
+                    break;
+                case KIND_POST_COLLECT:
+                    delegate.postCollect();
+                    break;
+                case KIND_BATCH:
+                    // writeBatch() on batch writers, preCollect() / results / postCollect() on the others
+                    ((MetricBatch) value).writeTo(delegate);
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported slot kind " + kind);
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Ignore exception writing on " + delegate, e);
+        }
+    }
+
+    /**
+     * @return number of results waiting to be written by the I/O thread
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pendingResults;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return max number of results waiting to be written by the I/O thread
+     */
+    public int getQueueCapacity() {
+        return slots == null ? 0 : slots.length;
+    }
+
+    /**
+     * @return number of results dropped because the capacity was exhausted or the writer stopped
+     */
+    public long getDroppedCount() {
+        return droppedCounter.get();
+    }
+
+    @Nonnull
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncOutputWriterDecorator{" +
+                "delegate=" + delegate +
+                ", capacity=" + getQueueCapacity() +
+                ", overflowPolicy=" + overflowPolicy +
+                '}';
+    }
+
+    /**
+     * Mutable, reused, result or cycle marker.
+     */
+    private static class Slot {
+        byte kind;
+        String name;
+        String type;
+        Object value;
+        int results;
+
+        void set(byte kind, String name, String type, Object value, int results) {
+            this.kind = kind;
+            this.name = name;
+            this.type = type;
+            this.value = value;
+            this.results = results;
+        }
+
+        void clear() {
+            name = null;
+            type = null;
+            value = null;
+            results = 0;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * {@link OutputWriter} that receives all the results of a collection at once, as a {@link MetricBatch}.
+ *
+ * The {@link JmxTransExporter} invokes {@link #writeBatch(MetricBatch)} once per collection instead of
+ * {@link #preCollect()}, {@link #writeQueryResult(String, String, Object)}, {@link #writeInvocationResult(String, Object)}
+ * and {@link #postCollect()}. Implementations should keep supporting the per result methods for the decorators and
+ * writers that don't forward batches.
+ *
+ * @see MetricBatch#writeTo(OutputWriter)
+ */
+public interface BatchOutputWriter extends OutputWriter {
+
+    /**
+     * Write all the results of a collection.
+     *
+     * @param batch the results, in the declaration order of the collectors
+     */
+    void writeBatch(@Nonnull MetricBatch batch) throws IOException;
+}
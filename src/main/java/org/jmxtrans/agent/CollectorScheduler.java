@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.Preconditions2;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the {@link TimeTrackingCollector}s ordered by their next run so that the {@link JmxTransExporter} only wakes up
+ * when a collector is actually due, instead of ticking at the greatest common divisor of all the collect intervals.
+ *
+ * Optionally:
+ * <ul>
+ * <li>spreads the first run of the collectors sharing the same collect interval evenly over this interval so that
+ * they don't all fire at the same time,</li>
+ * <li>adds a random jitter to each collect interval,</li>
+ * <li>aligns the runs on the wall clock: a collector with a collect interval {@code i} runs at fixed rate at the
+ * multiples of {@code i} since the epoch (plus its spread phase), so that all the hosts collect at the same instants.
+ * When a collection overruns the next tick, the {@link OverrunPolicy} either skips the missed ticks or runs them
+ * back to back. The jitter is ignored.</li>
+ * </ul>
+ *
+ * Times are expressed in the time base of {@link #currentMillis()}: {@link TimeTrackingCollector#currentMillis()}
+ * or, when aligned, {@link System#currentTimeMillis()}.
+ */
+public class CollectorScheduler {
+
+    /**
+     * When aligned, a wall clock set back by more than this threshold reschedules all the collectors.
+     */
+    static final long WALL_CLOCK_SET_BACK_THRESHOLD_MILLIS = 1000;
+
+    /**
+     * What to do with the wall clock aligned ticks missed because a collection lasted longer than the collect interval.
+     */
+    public enum OverrunPolicy {
+        /**
+         * Skip the missed ticks and run at the next tick to come.
+         */
+        SKIP,
+        /**
+         * Run the missed ticks one after the other until the collector is back on schedule.
+         */
+        CATCH_UP;
+
+        /**
+         * @param value {@code skip} or {@code catchUp}, case insensitive
+         */
+        @Nonnull
+        public static OverrunPolicy parse(@Nonnull String value) {
+            String normalizedValue = value.trim().replace("_", "");
+            for (OverrunPolicy overrunPolicy : values()) {
+                if (overrunPolicy.name().replace("_", "").equalsIgnoreCase(normalizedValue)) {
+                    return overrunPolicy;
+                }
+            }
+            throw new IllegalArgumentException("Invalid overrun policy '" + value + "', 'skip' or 'catchUp' expected");
+        }
+    }
+
+    private final PriorityQueue<TimeTrackingCollector> queue;
+    private final Map<TimeTrackingCollector, Integer> declarationIndexes = new IdentityHashMap<>();
+    private final List<TimeTrackingCollector> collectors;
+    private final boolean spreadCollectors;
+    private final long jitterMillis;
+    private final boolean aligned;
+    private final OverrunPolicy overrunPolicy;
+    /**
+     * Offset of the wall clock aligned ticks of each collector (see spreading).
+     */
+    private final Map<TimeTrackingCollector, Long> phases = new IdentityHashMap<>();
+    private final AtomicLong skippedTicksCounter = new AtomicLong();
+    private final Random random = new Random();
+    private long lastTickMillis = Long.MIN_VALUE;
+    private long lastPollMillis = Long.MIN_VALUE;
+
+    /**
+     * @param collectors       the collectors in their declaration order
+     * @param spreadCollectors spread the first runs of the collectors sharing the same collect interval
+     * @param jitterMillis     max random delay added to each collect interval, {@code 0} to disable jitter
+     */
+    public CollectorScheduler(@Nonnull List<TimeTrackingCollector> collectors, boolean spreadCollectors, long jitterMillis) {
+        this(collectors, spreadCollectors, jitterMillis, false, OverrunPolicy.SKIP);
+    }
+
+    /**
+     * @param collectors       the collectors in their declaration order
+     * @param spreadCollectors spread the first runs of the collectors sharing the same collect interval
+     * @param jitterMillis     max random delay added to each collect interval, {@code 0} to disable jitter
+     * @param aligned          run the collectors at fixed rate, on the wall clock multiples of their collect interval
+     * @param overrunPolicy    policy for the aligned ticks missed because of a too long collection
+     */
+    public CollectorScheduler(@Nonnull List<TimeTrackingCollector> collectors, boolean spreadCollectors, long jitterMillis,
+                              boolean aligned, @Nonnull OverrunPolicy overrunPolicy) {
+        if (jitterMillis < 0) {
+            throw new IllegalArgumentException("jitterMillis must be >= 0, was: " + jitterMillis);
+        }
+        this.collectors = new ArrayList<>(collectors);
+        this.spreadCollectors = spreadCollectors;
+        this.jitterMillis = jitterMillis;
+        this.aligned = aligned;
+        this.overrunPolicy = Preconditions2.checkNotNull(overrunPolicy, "overrunPolicy");
+        this.queue = new PriorityQueue<>(Math.max(1, collectors.size()), new Comparator<TimeTrackingCollector>() {
+            @Override
+            public int compare(TimeTrackingCollector c1, TimeTrackingCollector c2) {
+                int result = Long.compare(c1.getNextRunMillis(), c2.getNextRunMillis());
+                return result == 0 ? Integer.compare(declarationIndexes.get(c1), declarationIndexes.get(c2)) : result;
+            }
+        });
+        for (int i = 0; i < this.collectors.size(); i++) {
+            declarationIndexes.put(this.collectors.get(i), i);
+        }
+        // until started, the collectors which have never run are due immediately
+        queue.addAll(this.collectors);
+    }
+
+    /**
+     * @return the current time in the time base of this scheduler
+     */
+    public long currentMillis() {
+        return aligned ? System.currentTimeMillis() : TimeTrackingCollector.currentMillis();
+    }
+
+    /**
+     * Schedule the first run of all the collectors.
+     *
+     * Without spreading, all the collectors are first run together after half of the shortest collect interval.
+     * With spreading, the {@code n} collectors sharing the collect interval {@code i} are first run at
+     * {@code i/2n, 3i/2n, 5i/2n...}.
+     * When aligned, these delays are offsets from the wall clock multiples of the collect interval and
+     * the collectors first run at the next aligned tick.
+     */
+    public synchronized void start(long nowMillis) {
+        queue.clear();
+        phases.clear();
+        if (spreadCollectors) {
+            Map<Long, List<TimeTrackingCollector>> collectorsByInterval = new LinkedHashMap<>();
+            for (TimeTrackingCollector collector : collectors) {
+                List<TimeTrackingCollector> sameIntervalCollectors = collectorsByInterval.get(collector.getCollectIntervalMillis());
+                if (sameIntervalCollectors == null) {
+                    sameIntervalCollectors = new ArrayList<>();
+                    collectorsByInterval.put(collector.getCollectIntervalMillis(), sameIntervalCollectors);
+                }
+                sameIntervalCollectors.add(collector);
+            }
+            for (Map.Entry<Long, List<TimeTrackingCollector>> entry : collectorsByInterval.entrySet()) {
+                long interval = entry.getKey();
+                List<TimeTrackingCollector> sameIntervalCollectors = entry.getValue();
+                int count = sameIntervalCollectors.size();
+                for (int i = 0; i < count; i++) {
+                    long phaseMillis = interval * (2 * i + 1) / (2 * count);
+                    phases.put(sameIntervalCollectors.get(i), phaseMillis);
+                    sameIntervalCollectors.get(i).scheduleFirstRun(nowMillis, phaseMillis);
+                }
+            }
+        } else {
+            long shortestInterval = Long.MAX_VALUE;
+            for (TimeTrackingCollector collector : collectors) {
+                shortestInterval = Math.min(shortestInterval, collector.getCollectIntervalMillis());
+            }
+            for (TimeTrackingCollector collector : collectors) {
+                if (aligned) {
+                    phases.put(collector, 0L);
+                } else {
+                    collector.scheduleFirstRun(nowMillis, shortestInterval / 2);
+                }
+            }
+        }
+        if (aligned) {
+            for (TimeTrackingCollector collector : collectors) {
+                collector.setNextRunMillis(nextAlignedTick(collector, nowMillis));
+            }
+        }
+        queue.addAll(collectors);
+    }
+
+    /**
+     * @return the first aligned tick of the given collector at or after {@code nowMillis}
+     */
+    private long nextAlignedTick(@Nonnull TimeTrackingCollector collector, long nowMillis) {
+        long interval = collector.getCollectIntervalMillis();
+        if (interval <= 0) {
+            return nowMillis;
+        }
+        Long phase = phases.get(collector);
+        long phaseMillis = phase == null ? 0 : phase;
+        long elapsedInInterval = (nowMillis - phaseMillis) % interval;
+        if (elapsedInInterval < 0) {
+            elapsedInInterval += interval;
+        }
+        return elapsedInInterval == 0 ? nowMillis : nowMillis - elapsedInInterval + interval;
+    }
+
+    /**
+     * Schedule the next aligned run of a collector which is run for its tick {@code tickMillis}.
+     */
+    private void scheduleNextAlignedRun(@Nonnull TimeTrackingCollector collector, long tickMillis, long nowMillis) {
+        long interval = collector.getCollectIntervalMillis();
+        if (tickMillis == Long.MIN_VALUE || interval <= 0) {
+            // never scheduled (scheduler not started)
+            collector.setNextRunMillis(nextAlignedTick(collector, nowMillis + 1));
+            return;
+        }
+        long nextRunMillis = tickMillis + interval;
+        if (nextRunMillis <= nowMillis && overrunPolicy == OverrunPolicy.SKIP) {
+            long missedTicks = (nowMillis - tickMillis) / interval;
+            skippedTicksCounter.addAndGet(missedTicks);
+            nextRunMillis = tickMillis + (missedTicks + 1) * interval;
+        }
+        collector.setNextRunMillis(nextRunMillis);
+    }
+
+    /**
+     * Remove the collectors that are due at {@code nowMillis} from the queue, mark them as run and schedule their next run.
+     *
+     * @return the due collectors, in their declaration order
+     */
+    @Nonnull
+    public synchronized List<TimeTrackingCollector> pollDueCollectors(long nowMillis) {
+        if (aligned) {
+            if (lastPollMillis != Long.MIN_VALUE && nowMillis < lastPollMillis - WALL_CLOCK_SET_BACK_THRESHOLD_MILLIS) {
+                // the wall clock has been set back, the scheduled ticks are too far in the future
+                start(nowMillis);
+            }
+            lastPollMillis = nowMillis;
+            lastTickMillis = Long.MIN_VALUE;
+        }
+        List<TimeTrackingCollector> dueCollectors = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().getNextRunMillis() <= nowMillis) {
+            dueCollectors.add(queue.poll());
+        }
+        for (TimeTrackingCollector collector : dueCollectors) {
+            if (aligned) {
+                long tickMillis = collector.getNextRunMillis();
+                lastTickMillis = tickMillis == Long.MIN_VALUE ? nowMillis : Math.max(lastTickMillis, tickMillis);
+                scheduleNextAlignedRun(collector, tickMillis, nowMillis);
+            } else {
+                collector.startRunIfDue(nowMillis, nextJitterMillis());
+            }
+            queue.add(collector);
+        }
+        if (dueCollectors.size() > 1) {
+            Collections.sort(dueCollectors, new Comparator<TimeTrackingCollector>() {
+                @Override
+                public int compare(TimeTrackingCollector c1, TimeTrackingCollector c2) {
+                    return Integer.compare(declarationIndexes.get(c1), declarationIndexes.get(c2));
+                }
+            });
+        }
+        return dueCollectors;
+    }
+
+    /**
+     * Postpone the next run of the given collector to {@code nextRunMillis} (e.g. to quarantine it).
+     * When aligned, the run is postponed to the first aligned tick at or after {@code nextRunMillis}.
+     * Does nothing if the collector is already scheduled later.
+     */
+    public synchronized void postpone(@Nonnull TimeTrackingCollector collector, long nextRunMillis) {
+        if (aligned) {
+            nextRunMillis = nextAlignedTick(collector, nextRunMillis);
+        }
+        if (collector.getNextRunMillis() >= nextRunMillis || !queue.remove(collector)) {
+            return;
+        }
+        collector.setNextRunMillis(nextRunMillis);
+        queue.add(collector);
+    }
+
+    /**
+     * @return when aligned, the latest aligned tick run by the last {@link #pollDueCollectors(long)}, to be used as the
+     * timestamp of the collection; {@link Long#MIN_VALUE} if not aligned or if no collector was due
+     */
+    public synchronized long getLastTickMillis() {
+        return lastTickMillis;
+    }
+
+    /**
+     * @return number of aligned ticks skipped because of too long collections (see {@link OverrunPolicy#SKIP})
+     */
+    public long getSkippedTicksCount() {
+        return skippedTicksCounter.get();
+    }
+
+    public boolean isAligned() {
+        return aligned;
+    }
+
+    /**
+     * @return the next time a collector is due or {@link Long#MAX_VALUE} if there is no collector
+     */
+    public synchronized long getNextRunMillis() {
+        return queue.isEmpty() ? Long.MAX_VALUE : queue.peek().getNextRunMillis();
+    }
+
+    private long nextJitterMillis() {
+        return jitterMillis == 0 ? 0 : (long) (random.nextDouble() * jitterMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "CollectorScheduler{" +
+                "collectors=" + collectors.size() +
+                ", spreadCollectors=" + spreadCollectors +
+                ", jitterMillis=" + jitterMillis +
+                ", aligned=" + aligned +
+                (aligned ? ", overrunPolicy=" + overrunPolicy + ", skippedTicks=" + skippedTicksCounter : "") +
+                '}';
+    }
+}
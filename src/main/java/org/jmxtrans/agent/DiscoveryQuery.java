@@ -110,7 +110,7 @@ public class DiscoveryQuery extends Query
 
         try
         {
-            Set<ObjectName> objectNames = mbeanServer.queryNames(objectName, null);
+            Set<ObjectName> objectNames = queryNames(mbeanServer);
 
             String discoveryResult = formatDiscoveryValue(objectNames);
 
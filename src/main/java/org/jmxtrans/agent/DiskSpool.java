@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.logging.Level;
+
+/**
+ * Store-and-forward spool of {@link MetricBatch}es backed by memory-mapped segment files of {@code segmentSizeInBytes}.
+ *
+ * Batches are appended at the tail of the newest segment and read back from the head of the oldest one, in the order
+ * they have been appended (i.e. in the order of their timestamp). The spool is capped by size, the oldest segment is
+ * deleted when a new segment would exceed {@code maxSizeInBytes}, and by age, batches older than {@code maxAgeInMillis}
+ * are discarded instead of being read.
+ *
+ * Each segment starts with a header holding the offset of the next record to read, so that a spool directory can be
+ * reloaded after a restart. A record is {@code [int length][long timestamp][int size][samples]}, a zero length marks the
+ * end of the written records (segment files are created zero filled).
+ *
+ * The segments are unmapped by {@link #close()} so that the spool directory can be reopened; on JVMs where the
+ * segments cannot be unmapped explicitly, they are released when their buffer is garbage collected.
+ *
+ * Thread safe.
+ */
+public class DiskSpool {
+
+    private final static String SEGMENT_FILE_SUFFIX = ".spool";
+    private final static int HEADER_SIZE = 8;
+    private final static int RECORD_LENGTH_SIZE = 4;
+
+    private final static byte FLAG_INVOCATION_RESULT = 1;
+    private final static byte FLAG_TYPE = 2;
+
+    private final static byte VALUE_NULL = 0;
+    private final static byte VALUE_LONG = 1;
+    private final static byte VALUE_INTEGER = 2;
+    private final static byte VALUE_DOUBLE = 3;
+    private final static byte VALUE_FLOAT = 4;
+    private final static byte VALUE_BOOLEAN = 5;
+    private final static byte VALUE_STRING = 6;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final File directory;
+    private final int segmentSizeInBytes;
+    private final long maxSizeInBytes;
+    private final long maxAgeInMillis;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(1024);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private long nextSegmentId;
+    private long spooledBatches;
+    private long droppedBatches;
+    private long expiredBatches;
+    private long pendingBatches;
+    /**
+     * Length of the record returned by the last {@link #peek()}, {@code -1} if none.
+     */
+    private int peekedRecordLength = -1;
+    private boolean closed;
+
+    /**
+     * @param directory          directory of the segment files, created if needed, existing segments are reloaded
+     * @param segmentSizeInBytes size of each memory-mapped segment file
+     * @param maxSizeInBytes     max cumulated size of the segment files
+     * @param maxAgeInMillis     age after which the spooled batches are discarded, {@code 0} to keep them
+     */
+    public DiskSpool(@Nonnull File directory, int segmentSizeInBytes, long maxSizeInBytes, long maxAgeInMillis) throws IOException {
+        if (segmentSizeInBytes <= HEADER_SIZE + RECORD_LENGTH_SIZE) {
+            throw new IllegalArgumentException("segmentSizeInBytes is too small: " + segmentSizeInBytes);
+        }
+        if (maxSizeInBytes < segmentSizeInBytes) {
+            throw new IllegalArgumentException("maxSizeInBytes (" + maxSizeInBytes + ") must be >= segmentSizeInBytes (" + segmentSizeInBytes + ")");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory.getAbsolutePath());
+        }
+        this.directory = directory;
+        this.segmentSizeInBytes = segmentSizeInBytes;
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.maxAgeInMillis = maxAgeInMillis;
+        loadSegments();
+    }
+
+    private void loadSegments() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            long id;
+            try {
+                id = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_FILE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                logger.warning("Ignore unexpected file " + file.getAbsolutePath());
+                continue;
+            }
+            if (file.length() != segmentSizeInBytes) {
+                logger.warning("Delete segment " + file.getAbsolutePath() + " of unexpected size " + file.length());
+                delete(file);
+                continue;
+            }
+            Segment segment = new Segment(id, file);
+            segment.recover();
+            segments.addLast(segment);
+            pendingBatches += segment.pendingBatches;
+            nextSegmentId = id + 1;
+        }
+        if (pendingBatches > 0) {
+            logger.info("Reloaded " + pendingBatches + " spooled batches from " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return {@code false} if the batch is too big for a segment
+     */
+    public synchronized boolean append(@Nonnull MetricBatch batch) throws IOException {
+        if (closed) {
+            throw new IOException("Spool " + directory.getAbsolutePath() + " is closed");
+        }
+        recordBytes.reset();
+        record.writeInt(0); // length, set below
+        record.writeLong(batch.getTimestampInMillis());
+        record.writeInt(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            String type = batch.getType(i);
+            record.writeByte((batch.isInvocationResult(i) ? FLAG_INVOCATION_RESULT : 0) | (type == null ? 0 : FLAG_TYPE));
+            writeString(batch.getName(i));
+            if (type != null) {
+                writeString(type);
+            }
+            writeValue(batch.getValue(i));
+        }
+        record.flush();
+        int length = recordBytes.size();
+        if (length + RECORD_LENGTH_SIZE > segmentSizeInBytes - HEADER_SIZE) {
+            droppedBatches++;
+            logger.warning("Drop batch of " + batch.size() + " metrics, " + length + " bytes exceed the segment size " + segmentSizeInBytes);
+            return false;
+        }
+        byte[] bytes = recordBytes.toByteArray();
+        ByteBuffer.wrap(bytes).putInt(0, length - RECORD_LENGTH_SIZE);
+
+        Segment tail = segments.peekLast();
+        // keep room for the end of records marker
+        if (tail == null || tail.writeOffset + length + RECORD_LENGTH_SIZE > segmentSizeInBytes) {
+            tail = newSegment();
+        }
+        tail.buffer.position(tail.writeOffset);
+        tail.buffer.put(bytes);
+        tail.writeOffset += length;
+        tail.pendingBatches++;
+        pendingBatches++;
+        spooledBatches++;
+        return true;
+    }
+
+    private void writeString(@Nonnull String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        record.writeInt(bytes.length);
+        record.write(bytes);
+    }
+
+    private void writeValue(@Nullable Object value) throws IOException {
+        if (value == null) {
+            record.writeByte(VALUE_NULL);
+        } else if (value instanceof Long) {
+            record.writeByte(VALUE_LONG);
+            record.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            record.writeByte(VALUE_INTEGER);
+            record.writeInt((Integer) value);
+        } else if (value instanceof Double) {
+            record.writeByte(VALUE_DOUBLE);
+            record.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            record.writeByte(VALUE_FLOAT);
+            record.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            record.writeByte(VALUE_BOOLEAN);
+            record.writeBoolean((Boolean) value);
+        } else {
+            record.writeByte(VALUE_STRING);
+            writeString(value.toString());
+        }
+    }
+
+    @Nonnull
+    private Segment newSegment() throws IOException {
+        while (!segments.isEmpty() && (segments.size() + 1L) * segmentSizeInBytes > maxSizeInBytes) {
+            Segment oldest = segments.removeFirst();
+            if (oldest.pendingBatches > 0) {
+                logger.warning("Spool is full, drop " + oldest.pendingBatches + " batches of " + oldest.file.getName());
+            }
+            droppedBatches += oldest.pendingBatches;
+            pendingBatches -= oldest.pendingBatches;
+            // the peeked batch may have been dropped
+            peekedRecordLength = -1;
+            delete(oldest.file);
+        }
+        File file = new File(directory, String.format("%019d", nextSegmentId) + SEGMENT_FILE_SUFFIX);
+        Segment segment = new Segment(nextSegmentId, file);
+        nextSegmentId++;
+        segment.buffer.putInt(0, HEADER_SIZE);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * @return the oldest pending batch, without removing it from the spool (see {@link #commit()}), {@code null} if the
+     * spool is empty. Expired batches are discarded.
+     */
+    @Nullable
+    public synchronized MetricBatch peek() {
+        while (true) {
+            Segment head = headSegmentWithPendingBatches();
+            if (head == null) {
+                peekedRecordLength = -1;
+                return null;
+            }
+            ByteBuffer buffer = head.buffer.duplicate();
+            buffer.position(head.readOffset);
+            int length = buffer.getInt();
+            long timestamp = buffer.getLong();
+            if (maxAgeInMillis > 0 && timestamp < System.currentTimeMillis() - maxAgeInMillis) {
+                expiredBatches++;
+                head.consume(RECORD_LENGTH_SIZE + length);
+                pendingBatches--;
+                continue;
+            }
+            int size = buffer.getInt();
+            MetricBatch.Builder builder = new MetricBatch.Builder(Math.max(size, 1));
+            for (int i = 0; i < size; i++) {
+                byte flags = buffer.get();
+                String name = readString(buffer);
+                String type = (flags & FLAG_TYPE) == 0 ? null : readString(buffer);
+                builder.add(name, type, readValue(buffer), (flags & FLAG_INVOCATION_RESULT) != 0);
+            }
+            peekedRecordLength = RECORD_LENGTH_SIZE + length;
+            return builder.build(timestamp);
+        }
+    }
+
+    /**
+     * Remove from the spool the batch returned by the last {@link #peek()}.
+     */
+    public synchronized void commit() {
+        if (peekedRecordLength == -1) {
+            return;
+        }
+        Segment head = headSegmentWithPendingBatches();
+        if (head != null) {
+            head.consume(peekedRecordLength);
+            pendingBatches--;
+        }
+        peekedRecordLength = -1;
+    }
+
+    /**
+     * Delete the fully read segments, except the one being written.
+     *
+     * @return the oldest segment that has pending batches, {@code null} if none
+     */
+    @Nullable
+    private Segment headSegmentWithPendingBatches() {
+        while (true) {
+            Segment head = segments.peekFirst();
+            if (head == null) {
+                return null;
+            } else if (head.pendingBatches > 0) {
+                return head;
+            } else if (head == segments.peekLast()) {
+                return null;
+            } else {
+                segments.removeFirst();
+                delete(head.file);
+            }
+        }
+    }
+
+    @Nonnull
+    private static String readString(@Nonnull ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    private static Object readValue(@Nonnull ByteBuffer buffer) {
+        byte kind = buffer.get();
+        switch (kind) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_LONG:
+                return buffer.getLong();
+            case VALUE_INTEGER:
+                return buffer.getInt();
+            case VALUE_DOUBLE:
+                return buffer.getDouble();
+            case VALUE_FLOAT:
+                return buffer.getFloat();
+            case VALUE_BOOLEAN:
+                return buffer.get() != 0;
+            case VALUE_STRING:
+                return readString(buffer);
+            default:
+                throw new IllegalStateException("Corrupted spool, unexpected value kind " + kind);
+        }
+    }
+
+    /**
+     * Flush and unmap the segments, the pending batches are kept in the segment files to be reloaded.
+     * The spool can no longer be used.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        peekedRecordLength = -1;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            unmap(segment.buffer);
+        }
+        // the buffers must no longer be accessed
+        segments.clear();
+    }
+
+    private void delete(@Nonnull File file) {
+        if (!file.delete()) {
+            logger.warning("Failure to delete " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Release the mapping of the given buffer without waiting for its garbage collection (required on Windows to delete
+     * or map again the file). There is no public API for this: use {@code sun.misc.Unsafe#invokeCleaner} (Java 9+) or
+     * the cleaner of the {@code DirectByteBuffer} (Java 8 and before). Best effort.
+     */
+    private void unmap(@Nonnull MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception | LinkageError e) {
+            logger.log(Level.FINE, "Failure to unmap spool segment, it will be released when garbage collected", e);
+        }
+    }
+
+    /**
+     * @return number of batches waiting to be read
+     */
+    public synchronized long getPendingBatches() {
+        return pendingBatches;
+    }
+
+    public synchronized long getSpooledBatches() {
+        return spooledBatches;
+    }
+
+    /**
+     * @return number of batches discarded because the spool was full or because they were too big for a segment
+     */
+    public synchronized long getDroppedBatches() {
+        return droppedBatches;
+    }
+
+    /**
+     * @return number of batches discarded because they were older than {@code maxAgeInMillis}
+     */
+    public synchronized long getExpiredBatches() {
+        return expiredBatches;
+    }
+
+    /**
+     * @return size of the segment files
+     */
+    public synchronized long getSizeInBytes() {
+        return (long) segments.size() * segmentSizeInBytes;
+    }
+
+    /**
+     * @return age of the oldest pending batch, {@code 0} if the spool is empty
+     */
+    public synchronized long getReplayLagInMillis() {
+        Segment head = headSegmentWithPendingBatches();
+        if (head == null) {
+            return 0;
+        }
+        long timestamp = head.buffer.getLong(head.readOffset + RECORD_LENGTH_SIZE);
+        return Math.max(0, System.currentTimeMillis() - timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return "DiskSpool{" +
+                "directory=" + directory +
+                ", segmentSizeInBytes=" + segmentSizeInBytes +
+                ", maxSizeInBytes=" + maxSizeInBytes +
+                ", maxAgeInMillis=" + maxAgeInMillis +
+                '}';
+    }
+
+    private class Segment {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        int readOffset = HEADER_SIZE;
+        int writeOffset = HEADER_SIZE;
+        int pendingBatches;
+
+        Segment(long id, @Nonnull File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(segmentSizeInBytes);
+                // the mapping remains valid after the channel is closed
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeInBytes);
+            }
+        }
+
+        /**
+         * Restore the read and write offsets of a reloaded segment.
+         */
+        void recover() {
+            readOffset = buffer.getInt(0);
+            if (readOffset < HEADER_SIZE || readOffset > segmentSizeInBytes) {
+                logger.warning("Invalid read offset " + readOffset + " in " + file.getAbsolutePath() + ", replay the whole segment");
+                readOffset = HEADER_SIZE;
+            }
+            int offset = HEADER_SIZE;
+            int pendingBatches = 0;
+            try {
+                while (offset + RECORD_LENGTH_SIZE <= segmentSizeInBytes) {
+                    int length = buffer.getInt(offset);
+                    if (length <= 0 || offset + RECORD_LENGTH_SIZE + length > segmentSizeInBytes) {
+                        break;
+                    }
+                    if (offset >= readOffset) {
+                        pendingBatches++;
+                    }
+                    offset += RECORD_LENGTH_SIZE + length;
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                logger.warning("Truncated segment " + file.getAbsolutePath());
+            }
+            writeOffset = offset;
+            readOffset = Math.min(readOffset, writeOffset);
+            this.pendingBatches = pendingBatches;
+        }
+
+        void consume(int recordLength) {
+            readOffset += recordLength;
+            pendingBatches--;
+            buffer.putInt(0, readOffset);
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{" +
+                    "id=" + id +
+                    ", readOffset=" + readOffset +
+                    ", writeOffset=" + writeOffset +
+                    ", pendingBatches=" + pendingBatches +
+                    '}';
+        }
+    }
+}
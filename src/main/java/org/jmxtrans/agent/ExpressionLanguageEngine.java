@@ -19,4 +19,25 @@ public interface ExpressionLanguageEngine {
 
     @Nonnull
     String resolveExpression(@Nonnull String expression, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position);
+
+    /**
+     * Parse the given expression once so that it can be evaluated many times without being parsed again,
+     * the '#' based keywords with a static value (e.g. <code>#hostname#</code>) are resolved at compilation time.
+     *
+     * @param expression the expression to compile (e.g. <code>"tomcat.#hostname#.%name%.#attribute#"</code>)
+     * @throws IllegalStateException if the expression is invalid
+     */
+    @Nonnull
+    CompiledExpression compileExpression(@Nonnull String expression);
+
+    /**
+     * Expression compiled by {@link #compileExpression(String)}.
+     */
+    interface CompiledExpression {
+        /**
+         * @return the resolved expression, same as {@link #resolveExpression(String, ObjectName, String, String, Integer)}
+         */
+        @Nonnull
+        String evaluate(@Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position);
+    }
 }
@@ -23,6 +23,7 @@
  */
 package org.jmxtrans.agent;
 
+import org.jmxtrans.agent.util.Preconditions2;
 import org.jmxtrans.agent.util.StringUtils2;
 import org.jmxtrans.agent.util.logging.Logger;
 
@@ -30,8 +31,13 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.management.ObjectName;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 
 /**
@@ -74,6 +80,14 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
     @Nonnull
     private Map<String, Function> functionsByName = new HashMap<>();
 
+    /**
+     * The expressions compiled by {@link #resolveExpression(String, ObjectName, String, String, Integer)}, cleared when
+     * an evaluator is registered.
+     */
+    private final ConcurrentMap<String, CompiledExpression> compiledExpressions = new ConcurrentHashMap<>();
+
+    private final List<RegistrationListener> registrationListeners = new CopyOnWriteArrayList<>();
+
     /**
      * Replace all the '#' based keywords (e.g. <code>#hostname#</code>) by their value.
      *
@@ -123,8 +137,26 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
 
     @Nonnull
     public String resolveExpression(@Nonnull String expression, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+        CompiledExpression compiledExpression = compiledExpressions.get(expression);
+        if (compiledExpression == null) {
+            compiledExpression = compileExpression(expression);
+            compiledExpressions.put(expression, compiledExpression);
+        }
+        String result = compiledExpression.evaluate(exactObjectName, attribute, compositeDataKey, position);
+        if (logger.isLoggable(Level.FINEST))
+            logger.log(Level.FINEST, "resolveExpression(" + expression + ", " + exactObjectName + "): " + result);
+        return result;
+    }
 
-        StringBuilder result = new StringBuilder(expression.length());
+    /**
+     * Compile the expression in a list of segments: literals (including the pre-rendered {@link StaticFunction}s),
+     * '%' based ObjectName key properties and '#' based functions.
+     */
+    @Nonnull
+    @Override
+    public CompiledExpression compileExpression(@Nonnull String expression) {
+        List<Segment> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
 
         int pos = 0;
         while (pos < expression.length()) {
@@ -135,12 +167,8 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
                 if (endingSeparatorPosition == -1) {
                     throw new IllegalStateException("Invalid expression '" + expression + "', no ending '%' after beginning '%' at position " + beginningSeparatorPosition);
                 }
-                String objectNameKey = expression.substring(beginningSeparatorPosition + 1, endingSeparatorPosition);
-                String value = exactObjectName.getKeyProperty(objectNameKey);
-                if (value == null) {
-                    value = "null";
-                }
-                StringUtils2.appendEscapedNonAlphaNumericChars(value, result);
+                addLiteralSegment(literal, segments);
+                segments.add(new KeyPropertySegment(expression.substring(beginningSeparatorPosition + 1, endingSeparatorPosition)));
                 pos = endingSeparatorPosition + 1;
             } else if (c == '#') {
                 int beginningSeparatorPosition = pos;
@@ -150,30 +178,30 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
                 }
                 String functionName = expression.substring(beginningSeparatorPosition + 1, endingSeparatorPosition);
                 Function function = functionsByName.get(functionName);
-                String value;
                 if (function == null) {
-                    value = "#unsupported_expression#";
                     logger.info("Unsupported expression '" + functionName + "'");
+                    StringUtils2.appendEscapedNonAlphaNumericChars("#unsupported_expression#", false, literal);
+                } else if (function.getClass() == StaticFunction.class) {
+                    StringUtils2.appendEscapedNonAlphaNumericChars(((StaticFunction) function).value, false, literal);
                 } else {
-                    try {
-                        value = function.evaluate(exactObjectName, attribute, compositeDataKey, position);
-                    } catch (Exception e) {
-                        value = "#expression_error#";
-                        logger.log(Level.WARNING, "Error evaluating expression '" + compositeDataKey + "'", e);
-                    }
+                    addLiteralSegment(literal, segments);
+                    segments.add(new FunctionSegment(functionName, function));
                 }
-                StringUtils2.appendEscapedNonAlphaNumericChars(value, false, result);
                 pos = endingSeparatorPosition + 1;
-
             } else {
-                result.append(c);
+                literal.append(c);
                 pos++;
             }
         }
-        if (logger.isLoggable(Level.FINEST))
-            logger.log(Level.FINEST, "resolveExpression(" + expression + ", " + exactObjectName + "): " + result);
+        addLiteralSegment(literal, segments);
+        return new CompiledExpressionImpl(expression, segments.toArray(new Segment[segments.size()]));
+    }
 
-        return result.toString();
+    private void addLiteralSegment(@Nonnull StringBuilder literal, @Nonnull List<Segment> segments) {
+        if (literal.length() > 0) {
+            segments.add(new LiteralSegment(literal.toString()));
+            literal.setLength(0);
+        }
     }
 
     /**
@@ -181,6 +209,129 @@ public class ExpressionLanguageEngineImpl implements ExpressionLanguageEngine {
      */
     public void registerExpressionEvaluator(@Nonnull String expression, @Nonnull Function evaluator) {
         functionsByName.put(expression, evaluator);
+        compiledExpressions.clear();
+        for (RegistrationListener registrationListener : registrationListeners) {
+            registrationListener.onExpressionEvaluatorRegistered(expression);
+        }
+    }
+
+    /**
+     * @param registrationListener notified when an expression evaluator is registered, e.g. to invalidate the
+     *                             expressions compiled before
+     */
+    public void addRegistrationListener(@Nonnull RegistrationListener registrationListener) {
+        registrationListeners.add(Preconditions2.checkNotNull(registrationListener, "registrationListener"));
+    }
+
+    private class CompiledExpressionImpl implements CompiledExpression {
+        private final String expression;
+        private final Segment[] segments;
+        /**
+         * Initial capacity of the {@link StringBuilder}: the length of the literals plus a few chars per dynamic segment.
+         */
+        private final int estimatedLength;
+
+        CompiledExpressionImpl(@Nonnull String expression, @Nonnull Segment[] segments) {
+            this.expression = expression;
+            this.segments = segments;
+            int estimatedLength = 0;
+            for (Segment segment : segments) {
+                estimatedLength += segment instanceof LiteralSegment ? ((LiteralSegment) segment).value.length() : 16;
+            }
+            this.estimatedLength = estimatedLength;
+        }
+
+        @Nonnull
+        @Override
+        public String evaluate(@Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+            if (segments.length == 1 && segments[0] instanceof LiteralSegment) {
+                return ((LiteralSegment) segments[0]).value;
+            }
+            StringBuilder result = new StringBuilder(estimatedLength);
+            for (Segment segment : segments) {
+                segment.appendTo(result, exactObjectName, attribute, compositeDataKey, position);
+            }
+            return result.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "CompiledExpression{" +
+                    "expression='" + expression + '\'' +
+                    '}';
+        }
+    }
+
+    private interface Segment {
+        void appendTo(@Nonnull StringBuilder result, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position);
+    }
+
+    /**
+     * Already escaped text.
+     */
+    private static class LiteralSegment implements Segment {
+        final String value;
+
+        LiteralSegment(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public void appendTo(@Nonnull StringBuilder result, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+            result.append(value);
+        }
+    }
+
+    /**
+     * '%' based variable mapped to an ObjectName key property.
+     */
+    private static class KeyPropertySegment implements Segment {
+        final String key;
+
+        KeyPropertySegment(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void appendTo(@Nonnull StringBuilder result, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+            String value = exactObjectName.getKeyProperty(key);
+            if (value == null) {
+                value = "null";
+            }
+            StringUtils2.appendEscapedNonAlphaNumericChars(value, result);
+        }
+    }
+
+    /**
+     * '#' based function evaluated for each result.
+     */
+    private class FunctionSegment implements Segment {
+        final String functionName;
+        final Function function;
+
+        FunctionSegment(String functionName, Function function) {
+            this.functionName = functionName;
+            this.function = function;
+        }
+
+        @Override
+        public void appendTo(@Nonnull StringBuilder result, @Nonnull ObjectName exactObjectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+            String value;
+            try {
+                value = function.evaluate(exactObjectName, attribute, compositeDataKey, position);
+            } catch (Exception e) {
+                value = "#expression_error#";
+                logger.log(Level.WARNING, "Error evaluating expression '" + functionName + "'", e);
+            }
+            StringUtils2.appendEscapedNonAlphaNumericChars(value, false, result);
+        }
+    }
+
+    /**
+     * Listener of the registration of expression evaluators, used to invalidate the compiled expressions.
+     */
+    public interface RegistrationListener {
+        void onExpressionEvaluatorRegistered(@Nonnull String expression);
     }
 
     public interface Function {
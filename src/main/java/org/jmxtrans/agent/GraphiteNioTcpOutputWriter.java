@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import static org.jmxtrans.agent.graphite.GraphiteOutputWriterCommonSettings.*;
+import static org.jmxtrans.agent.util.ConfigurationUtils.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jmxtrans.agent.graphite.GraphiteMetricEncoder;
+import org.jmxtrans.agent.util.StringUtils2;
+import org.jmxtrans.agent.util.collect.ConsistentHashRing;
+import org.jmxtrans.agent.util.io.IoUtils;
+import org.jmxtrans.agent.util.net.HostAndPort;
+import org.jmxtrans.agent.util.net.UnixDomainSockets;
+
+/**
+ * Output to several Graphite Carbon relays (plain text protocol on TCP) with non blocking {@link SocketChannel}s.
+ *
+ * Metric names are sharded across the relays with a {@link ConsistentHashRing}. The lines of a collection are
+ * encoded in per relay buffers and sent at the end of the collection with gathering writes, all relays being
+ * written concurrently: a slow relay doesn't delay the others. When a relay fails (connection refused, I/O error or
+ * {@code socket.writeTimeoutInMillis} elapsed), its unsent lines are rerouted to the next relays of the ring and
+ * the relay is skipped for {@code relayRetryIntervalInMillis}.
+ */
+public class GraphiteNioTcpOutputWriter extends AbstractOutputWriter implements BatchOutputWriter {
+
+    public final static String SETTING_RELAYS = "relays";
+    public final static String SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS = "socket.connectTimeoutInMillis";
+    public final static int SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 500;
+    public final static String SETTING_SOCKET_WRITE_TIMEOUT_IN_MILLIS = "socket.writeTimeoutInMillis";
+    public final static int SETTING_SOCKET_WRITE_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 1000;
+    public final static String SETTING_RELAY_RETRY_INTERVAL_IN_MILLIS = "relayRetryIntervalInMillis";
+    public final static int SETTING_RELAY_RETRY_INTERVAL_IN_MILLIS_DEFAULT_VALUE = 30000;
+    public final static String SETTING_VIRTUAL_NODES_PER_RELAY = "virtualNodesPerRelay";
+    public final static int SETTING_VIRTUAL_NODES_PER_RELAY_DEFAULT_VALUE = 128;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static int CHUNK_SIZE_IN_BYTES = 8192;
+
+    private Relay[] relays;
+    private ConsistentHashRing<HostAndPort> ring;
+    private GraphiteMetricEncoder encoder;
+    private int metricPathPrefixLength;
+    private Selector selector;
+    private long connectTimeoutInNanos;
+    private long writeTimeoutInNanos;
+    private long relayRetryIntervalInNanos;
+    private int droppedLinesInCycle;
+    private long reroutedLinesCount;
+    private long droppedLinesCount;
+
+    @Override
+    public void postConstruct(Map<String, String> settings) {
+        super.postConstruct(settings);
+
+        List<HostAndPort> relayHostAndPorts = parseRelays(settings);
+        relays = new Relay[relayHostAndPorts.size()];
+        for (int i = 0; i < relays.length; i++) {
+            if (relayHostAndPorts.get(i).isUnixDomainSocket()) {
+                UnixDomainSockets.checkSupported();
+            }
+            relays[i] = new Relay(relayHostAndPorts.get(i));
+        }
+        ring = new ConsistentHashRing<>(relayHostAndPorts, getInt(settings, SETTING_VIRTUAL_NODES_PER_RELAY, SETTING_VIRTUAL_NODES_PER_RELAY_DEFAULT_VALUE));
+        encoder = newMetricEncoder(settings);
+        metricPathPrefixLength = encoder.getPrefix().getBytes(UTF_8).length;
+        connectTimeoutInNanos = TimeUnit.MILLISECONDS.toNanos(getInt(settings, SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS, SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE));
+        writeTimeoutInNanos = TimeUnit.MILLISECONDS.toNanos(getInt(settings, SETTING_SOCKET_WRITE_TIMEOUT_IN_MILLIS, SETTING_SOCKET_WRITE_TIMEOUT_IN_MILLIS_DEFAULT_VALUE));
+        relayRetryIntervalInNanos = TimeUnit.MILLISECONDS.toNanos(getInt(settings, SETTING_RELAY_RETRY_INTERVAL_IN_MILLIS, SETTING_RELAY_RETRY_INTERVAL_IN_MILLIS_DEFAULT_VALUE));
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException("Exception opening selector", e);
+        }
+
+        logger.log(getInfoLevel(), "GraphiteNioTcpOutputWriter is configured with relays=" + relayHostAndPorts + ", metricPathPrefix=" + encoder.getPrefix() +
+                ", socketConnectTimeoutInMillis=" + TimeUnit.NANOSECONDS.toMillis(connectTimeoutInNanos) +
+                ", socketWriteTimeoutInMillis=" + TimeUnit.NANOSECONDS.toMillis(writeTimeoutInNanos) +
+                ", relayRetryIntervalInMillis=" + TimeUnit.NANOSECONDS.toMillis(relayRetryIntervalInNanos));
+    }
+
+    /**
+     * Comma separated list of {@code host:port} in the {@code relays} setting, {@code host} and {@code port} otherwise.
+     */
+    @Nonnull
+    static List<HostAndPort> parseRelays(@Nonnull Map<String, String> settings) {
+        String relaysSetting = getString(settings, SETTING_RELAYS, null);
+        if (StringUtils2.isNullOrEmpty(relaysSetting)) {
+            return Arrays.asList(getHostAndPort(settings));
+        }
+        List<HostAndPort> result = new ArrayList<>();
+        for (String relay : StringUtils2.delimitedStringToList(relaysSetting)) {
+            int separator = relay.lastIndexOf(':');
+            if (separator == -1 || relay.endsWith("]") || UnixDomainSockets.isUnixDomainSocketUri(relay)) {
+                result.add(new HostAndPort(relay, SETTING_PORT_DEFAULT_VALUE));
+            } else {
+                String host = relay.substring(0, separator);
+                if (host.startsWith("[") && host.endsWith("]")) {
+                    host = host.substring(1, host.length() - 1);
+                }
+                result.add(new HostAndPort(host, Integer.parseInt(relay.substring(separator + 1))));
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("Invalid '" + SETTING_RELAYS + "' setting: '" + relaysSetting + "'");
+        }
+        return result;
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        writeQueryResult(invocationName, null, value);
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String type, @Nullable Object value) throws IOException {
+        long timestampInSeconds = TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        Relay relay = route(metricName, System.nanoTime());
+        if (relay == null) {
+            droppedLinesInCycle++;
+            return;
+        }
+        ByteBuffer chunk = relay.currentChunk();
+        int start = chunk.position();
+        if (!encoder.encode(chunk, metricName, value, timestampInSeconds)) {
+            chunk = relay.nextChunk();
+            start = 0;
+            while (!encoder.encode(chunk, metricName, value, timestampInSeconds)) {
+                chunk = relay.growCurrentChunk();
+            }
+        }
+        logEncodedMessageIfTraceLoggable(relay, chunk, start);
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        flush();
+    }
+
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        long timestampInSeconds = TimeUnit.SECONDS.convert(batch.getTimestampInMillis(), TimeUnit.MILLISECONDS);
+        long now = System.nanoTime();
+        for (int i = 0; i < batch.size(); i++) {
+            Relay relay = route(batch.getName(i), now);
+            if (relay == null) {
+                droppedLinesInCycle++;
+                continue;
+            }
+            ByteBuffer chunk = relay.currentChunk();
+            int start = chunk.position();
+            if (!encoder.encode(chunk, batch, i, timestampInSeconds)) {
+                chunk = relay.nextChunk();
+                start = 0;
+                while (!encoder.encode(chunk, batch, i, timestampInSeconds)) {
+                    chunk = relay.growCurrentChunk();
+                }
+            }
+            logEncodedMessageIfTraceLoggable(relay, chunk, start);
+        }
+        flush();
+    }
+
+    private void logEncodedMessageIfTraceLoggable(Relay relay, ByteBuffer chunk, int start) {
+        if (logger.isLoggable(getTraceLevel())) {
+            // exclude the trailing newline
+            String msg = new String(chunk.array(), start, chunk.position() - start - 1, UTF_8);
+            logger.log(getTraceLevel(), "Send '" + msg + "' to " + relay.hostAndPort);
+        }
+    }
+
+    /**
+     * @return the first available relay of the preference list of the given metric, {@code null} if all the relays
+     * are unavailable
+     */
+    @Nullable
+    private Relay route(@Nonnull String metricName, long now) {
+        for (int index : ring.getPreferenceList(metricName)) {
+            Relay relay = relays[index];
+            if (relay.isAvailable(now)) {
+                return relay;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send the pending lines of all the relays, concurrently, rerouting the lines of the relays that fail.
+     */
+    private void flush() throws IOException {
+        long now = System.nanoTime();
+        for (Relay relay : relays) {
+            relay.deadlineInNanos = now + writeTimeoutInNanos;
+        }
+        while (true) {
+            boolean waiting = false;
+            long nextDeadlineInNanos = Long.MAX_VALUE;
+            for (Relay relay : relays) {
+                if (!relay.hasPendingData()) {
+                    continue;
+                }
+                try {
+                    if (relay.channel == null) {
+                        connect(relay, now);
+                    }
+                    if (relay.channel.isConnectionPending()) {
+                        if (!relay.channel.finishConnect()) {
+                            if (now - relay.deadlineInNanos >= 0) {
+                                throw new SocketTimeoutException("Timeout connecting to " + relay.hostAndPort);
+                            }
+                            relay.key.interestOps(SelectionKey.OP_CONNECT);
+                            waiting = true;
+                            nextDeadlineInNanos = Math.min(nextDeadlineInNanos, relay.deadlineInNanos - now);
+                            continue;
+                        }
+                        relay.deadlineInNanos = now + writeTimeoutInNanos;
+                    }
+                    incrementBytesSent(relay.write());
+                    if (relay.hasPendingData()) {
+                        if (now - relay.deadlineInNanos >= 0) {
+                            throw new SocketTimeoutException("Timeout writing to " + relay.hostAndPort);
+                        }
+                        relay.key.interestOps(SelectionKey.OP_WRITE);
+                        waiting = true;
+                        nextDeadlineInNanos = Math.min(nextDeadlineInNanos, relay.deadlineInNanos - now);
+                    } else {
+                        relay.key.interestOps(0);
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Exception sending to Graphite relay " + relay.hostAndPort + ", unsent lines are rerouted to the next relays and " +
+                            relay.hostAndPort + " is skipped for " + TimeUnit.NANOSECONDS.toMillis(relayRetryIntervalInNanos) + "ms", e);
+                    fail(relay, now);
+                    // the lines of the failed relay may have been rerouted to relays already flushed
+                    waiting = true;
+                    nextDeadlineInNanos = 0;
+                }
+            }
+            if (!waiting) {
+                break;
+            }
+            if (nextDeadlineInNanos > 0) {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDeadlineInNanos)));
+                selector.selectedKeys().clear();
+            }
+            now = System.nanoTime();
+        }
+
+        int droppedLines = droppedLinesInCycle;
+        droppedLinesInCycle = 0;
+        if (droppedLines > 0) {
+            droppedLinesCount += droppedLines;
+            throw new IOException("No Graphite relay available among " + ring.getNodes() + ", " + droppedLines + " results dropped");
+        }
+    }
+
+    private void connect(Relay relay, long now) throws IOException {
+        boolean unixDomainSocket = relay.hostAndPort.isUnixDomainSocket();
+        SocketChannel channel = unixDomainSocket ? UnixDomainSockets.openSocketChannel() : SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (unixDomainSocket) {
+                channel.connect(UnixDomainSockets.newSocketAddress(relay.hostAndPort.getUnixDomainSocketPath()));
+            } else {
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                channel.connect(new InetSocketAddress(relay.hostAndPort.getHost(), relay.hostAndPort.getPort()));
+            }
+            relay.key = channel.register(selector, 0);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(channel);
+            throw e;
+        } catch (UnresolvedAddressException e) {
+            IoUtils.closeQuietly(channel);
+            throw new UnknownHostException(relay.hostAndPort.getHost());
+        }
+        relay.channel = channel;
+        relay.deadlineInNanos = now + connectTimeoutInNanos;
+    }
+
+    /**
+     * Close the connection to the given relay, mark it unavailable and reroute its unsent lines.
+     */
+    private void fail(@Nonnull Relay relay, long now) {
+        relay.close();
+        relay.retryAtInNanos = now + relayRetryIntervalInNanos;
+        relay.retryScheduled = true;
+
+        for (int i = relay.readChunk; i < relay.chunkCount; i++) {
+            byte[] lines = relay.chunks[i].array();
+            int end = relay.chunks[i].position();
+            int start = 0;
+            if (i == relay.readChunk) {
+                // resend the partially sent line, if any
+                start = relay.views[i].position();
+                while (start > 0 && lines[start - 1] != '\n') {
+                    start--;
+                }
+            }
+            while (start < end) {
+                int nameEnd = start;
+                while (lines[nameEnd] != ' ') {
+                    nameEnd++;
+                }
+                int lineEnd = nameEnd;
+                while (lines[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                lineEnd++;
+                String metricName = new String(lines, start + metricPathPrefixLength, nameEnd - start - metricPathPrefixLength, UTF_8);
+                Relay target = route(metricName, now);
+                if (target == null) {
+                    droppedLinesInCycle++;
+                } else {
+                    if (!target.hasPendingData()) {
+                        target.deadlineInNanos = now + writeTimeoutInNanos;
+                    }
+                    target.append(lines, start, lineEnd - start);
+                    reroutedLinesCount++;
+                }
+                start = lineEnd;
+            }
+        }
+        relay.reset();
+    }
+
+    @Override
+    public void preDestroy() {
+        super.preDestroy();
+        if (relays != null) {
+            for (Relay relay : relays) {
+                relay.close();
+            }
+        }
+        IoUtils.closeQuietly(selector);
+    }
+
+    /**
+     * @return number of lines sent to another relay than their owner because of a failure during the collection
+     */
+    public long getReroutedLinesCount() {
+        return reroutedLinesCount;
+    }
+
+    /**
+     * @return number of results dropped because no relay was available
+     */
+    public long getDroppedLinesCount() {
+        return droppedLinesCount;
+    }
+
+    @Override
+    public String toString() {
+        return "GraphiteNioTcpOutputWriter{" +
+                "relays=" + (ring == null ? null : ring.getNodes()) +
+                ", metricPathPrefix='" + (encoder == null ? null : encoder.getPrefix()) + '\'' +
+                '}';
+    }
+
+    /**
+     * Connection to a relay and lines pending for this relay, encoded in chunks written with a single gathering write.
+     * Lines never span two chunks. {@link #chunks} are written by the encoder, their {@link #views} (sharing the
+     * same content) are read by the channel.
+     */
+    private static class Relay {
+        final HostAndPort hostAndPort;
+        ByteBuffer[] chunks = new ByteBuffer[4];
+        ByteBuffer[] views = new ByteBuffer[4];
+        int chunkCount = 1;
+        int readChunk;
+        SocketChannel channel;
+        SelectionKey key;
+        long deadlineInNanos;
+        long retryAtInNanos;
+        boolean retryScheduled;
+
+        Relay(HostAndPort hostAndPort) {
+            this.hostAndPort = hostAndPort;
+            chunks[0] = ByteBuffer.allocate(CHUNK_SIZE_IN_BYTES);
+            views[0] = chunks[0].duplicate();
+        }
+
+        boolean isAvailable(long now) {
+            if (retryScheduled && now - retryAtInNanos >= 0) {
+                retryScheduled = false;
+            }
+            return !retryScheduled;
+        }
+
+        ByteBuffer currentChunk() {
+            return chunks[chunkCount - 1];
+        }
+
+        ByteBuffer nextChunk() {
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+                views = Arrays.copyOf(views, views.length * 2);
+            }
+            if (chunks[chunkCount] == null) {
+                chunks[chunkCount] = ByteBuffer.allocate(CHUNK_SIZE_IN_BYTES);
+                views[chunkCount] = chunks[chunkCount].duplicate();
+            } else {
+                chunks[chunkCount].clear();
+                views[chunkCount].clear();
+            }
+            chunkCount++;
+            return currentChunk();
+        }
+
+        /**
+         * Replace the current chunk, that must be empty, by a larger one.
+         */
+        ByteBuffer growCurrentChunk() {
+            int current = chunkCount - 1;
+            chunks[current] = ByteBuffer.allocate(chunks[current].capacity() * 2);
+            views[current] = chunks[current].duplicate();
+            return chunks[current];
+        }
+
+        void append(byte[] src, int offset, int length) {
+            ByteBuffer chunk = currentChunk();
+            if (chunk.remaining() < length) {
+                chunk = nextChunk();
+                while (chunk.remaining() < length) {
+                    chunk = growCurrentChunk();
+                }
+            }
+            chunk.put(src, offset, length);
+        }
+
+        boolean hasPendingData() {
+            return readChunk < chunkCount - 1 || views[readChunk].position() < chunks[readChunk].position();
+        }
+
+        /**
+         * Gathering write of the pending chunks.
+         *
+         * @return number of bytes written
+         */
+        long write() throws IOException {
+            for (int i = readChunk; i < chunkCount; i++) {
+                views[i].limit(chunks[i].position());
+            }
+            long written = channel.write(views, readChunk, chunkCount - readChunk);
+            while (readChunk < chunkCount - 1 && !views[readChunk].hasRemaining()) {
+                readChunk++;
+            }
+            if (!hasPendingData()) {
+                reset();
+            }
+            return written;
+        }
+
+        void reset() {
+            chunkCount = 1;
+            readChunk = 0;
+            chunks[0].clear();
+            views[0].clear();
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+                key = null;
+            }
+            IoUtils.closeQuietly(channel);
+            channel = null;
+        }
+    }
+}
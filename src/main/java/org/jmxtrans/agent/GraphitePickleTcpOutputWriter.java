@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import static org.jmxtrans.agent.graphite.GraphiteOutputWriterCommonSettings.*;
+import static org.jmxtrans.agent.util.ConfigurationUtils.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jmxtrans.agent.graphite.GraphitePickleEncoder;
+import org.jmxtrans.agent.graphite.GraphiteTcpConnection;
+import org.jmxtrans.agent.util.net.HostAndPort;
+
+/**
+ * Output to Graphite Carbon with the pickle protocol on TCP, cheaper to ingest for Carbon than the plain text
+ * protocol.
+ *
+ * The results of a collection are sent in frames of at most {@code maxBatchSize} metrics. The results which
+ * values are not numeric are skipped.
+ *
+ * @see GraphitePickleEncoder
+ */
+public class GraphitePickleTcpOutputWriter extends AbstractOutputWriter implements BatchOutputWriter {
+
+    public final static String SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS = "socket.connectTimeoutInMillis";
+    public final static int SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 500;
+    public final static String SETTING_MAX_BATCH_SIZE = "maxBatchSize";
+    public final static int SETTING_MAX_BATCH_SIZE_DEFAULT_VALUE = 500;
+
+    protected HostAndPort graphiteServerHostAndPort;
+    private GraphiteTcpConnection graphiteConnection;
+    private int socketConnectTimeoutInMillis = SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE;
+    private int maxBatchSize = SETTING_MAX_BATCH_SIZE_DEFAULT_VALUE;
+    private GraphitePickleEncoder encoder;
+
+    @Override
+    public void postConstruct(Map<String, String> settings) {
+        super.postConstruct(settings);
+
+        graphiteServerHostAndPort = new HostAndPort(
+                getString(settings, SETTING_HOST),
+                getInt(settings, SETTING_PORT, SETTING_PICKLE_PORT_DEFAULT_VALUE));
+        encoder = new GraphitePickleEncoder(getConfiguredMetricPrefixOrNull(settings));
+        socketConnectTimeoutInMillis = getInt(settings,
+                SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS,
+                SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE);
+        graphiteConnection = new GraphiteTcpConnection(graphiteServerHostAndPort, socketConnectTimeoutInMillis);
+        maxBatchSize = getInt(settings, SETTING_MAX_BATCH_SIZE, SETTING_MAX_BATCH_SIZE_DEFAULT_VALUE);
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("'" + SETTING_MAX_BATCH_SIZE + "' must be > 0, was: " + maxBatchSize);
+        }
+
+        logger.log(getInfoLevel(), "GraphitePickleTcpOutputWriter is configured with " + graphiteServerHostAndPort + ", metricPathPrefix=" + encoder.getPrefix() +
+                ", socketConnectTimeoutInMillis=" + socketConnectTimeoutInMillis + ", maxBatchSize=" + maxBatchSize);
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        writeQueryResult(invocationName, null, value);
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String type, @Nullable Object value) throws IOException {
+        long timestampInSeconds = TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        if (!encoder.add(metricName, value, timestampInSeconds)) {
+            logSkippedResult(metricName, value);
+            return;
+        }
+        if (encoder.getFrameSize() >= maxBatchSize) {
+            sendFrame();
+        }
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+        if (encoder.getFrameSize() > 0) {
+            sendFrame();
+        }
+        if (!graphiteConnection.isOpen()) {
+            return;
+        }
+        try {
+            graphiteConnection.getOutputStream().flush();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Exception flushing the stream to " + graphiteServerHostAndPort, e);
+            releaseGraphiteConnection();
+            throw e;
+        }
+    }
+
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        long timestampInSeconds = TimeUnit.SECONDS.convert(batch.getTimestampInMillis(), TimeUnit.MILLISECONDS);
+        for (int i = 0; i < batch.size(); i++) {
+            if (!encoder.add(batch, i, timestampInSeconds)) {
+                logSkippedResult(batch.getName(i), batch.getValue(i));
+                continue;
+            }
+            if (encoder.getFrameSize() >= maxBatchSize) {
+                sendFrame();
+            }
+        }
+        postCollect();
+    }
+
+    private void logSkippedResult(String metricName, Object value) {
+        if (logger.isLoggable(getDebugLevel())) {
+            logger.log(getDebugLevel(), "Skip non numeric value of '" + metricName + "': " + value);
+        }
+    }
+
+    private void sendFrame() throws IOException {
+        int frameSize = encoder.getFrameSize();
+        ByteBuffer frame = encoder.finishFrame();
+        try {
+            OutputStream out = graphiteConnection.getOutputStream();
+            if (logger.isLoggable(getTraceLevel())) {
+                logger.log(getTraceLevel(), "Send pickle frame of " + frameSize + " metrics (" + frame.limit() + " bytes) to " + graphiteServerHostAndPort);
+            }
+            out.write(frame.array(), 0, frame.limit());
+            incrementBytesSent(frame.limit());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Exception sending pickle frame of " + frameSize + " metrics to " + graphiteServerHostAndPort, e);
+            releaseGraphiteConnection();
+            throw e;
+        }
+    }
+
+    private void releaseGraphiteConnection() {
+        if (graphiteConnection != null) {
+            graphiteConnection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GraphitePickleTcpOutputWriter{" +
+                ", " + graphiteServerHostAndPort +
+                ", metricPathPrefix='" + encoder.getPrefix() + '\'' +
+                '}';
+    }
+
+    @Override
+    public void preDestroy() {
+        super.preDestroy();
+        releaseGraphiteConnection();
+    }
+}
@@ -29,33 +29,35 @@ import static org.jmxtrans.agent.util.ConfigurationUtils.*;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 
-import org.jmxtrans.agent.graphite.GraphiteMetricMessageBuilder;
-import org.jmxtrans.agent.util.io.IoUtils;
+import org.jmxtrans.agent.graphite.GraphiteMetricEncoder;
+import org.jmxtrans.agent.graphite.GraphiteTcpConnection;
 import org.jmxtrans.agent.util.net.HostAndPort;
 
 /**
+ * Metrics are encoded by a {@link GraphiteMetricEncoder} in a reusable buffer that is written to the socket when it
+ * is full and at the end of each collection.
+ *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter implements OutputWriter {
+public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter implements BatchOutputWriter {
 
     public final static String SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS = "socket.connectTimeoutInMillis";
     public final static int SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE = 500;
 
     private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static int BUFFER_SIZE_IN_BYTES = 8192;
     protected HostAndPort graphiteServerHostAndPort;
-    private Socket socket;
-    private Writer writer;
+    private GraphiteTcpConnection graphiteConnection;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE_IN_BYTES);
     private int socketConnectTimeoutInMillis = SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE;
-    private GraphiteMetricMessageBuilder messageBuilder;
+    private GraphiteMetricEncoder encoder;
 
     @Override
     public void postConstruct(Map<String, String> settings) {
@@ -64,12 +66,13 @@ public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter imple
         graphiteServerHostAndPort = new HostAndPort(
                 getString(settings, SETTING_HOST),
                 getInt(settings, SETTING_PORT, SETTING_PORT_DEFAULT_VALUE));
-        messageBuilder = new GraphiteMetricMessageBuilder(getConfiguredMetricPrefixOrNull(settings));
+        encoder = newMetricEncoder(settings);
         socketConnectTimeoutInMillis = getInt(settings,
                 SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS,
                 SETTING_SOCKET_CONNECT_TIMEOUT_IN_MILLIS_DEFAULT_VALUE);
+        graphiteConnection = new GraphiteTcpConnection(graphiteServerHostAndPort, socketConnectTimeoutInMillis);
 
-        logger.log(getInfoLevel(), "GraphitePlainTextTcpOutputWriter is configured with " + graphiteServerHostAndPort + ", metricPathPrefix=" + messageBuilder.getPrefix() +
+        logger.log(getInfoLevel(), "GraphitePlainTextTcpOutputWriter is configured with " + graphiteServerHostAndPort + ", metricPathPrefix=" + encoder.getPrefix() +
                 ", socketConnectTimeoutInMillis=" + socketConnectTimeoutInMillis);
     }
 
@@ -80,64 +83,83 @@ public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter imple
 
     @Override
     public void writeQueryResult(@Nonnull String metricName, @Nullable String type, @Nullable Object value) throws IOException {
-        String msg = messageBuilder.buildMessage(metricName, value, TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS));
+        long timestampInSeconds = TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
         try {
-            ensureGraphiteConnection();
-            if (logger.isLoggable(getTraceLevel())) {
-                logger.log(getTraceLevel(), "Send '" + msg + "' to " + graphiteServerHostAndPort);
+            graphiteConnection.getOutputStream();
+            int start = buffer.position();
+            if (!encoder.encode(buffer, metricName, value, timestampInSeconds)) {
+                flushBuffer();
+                start = 0;
+                while (!encoder.encode(buffer, metricName, value, timestampInSeconds)) {
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                }
             }
-            writer.write(msg + "\n");
+            logEncodedMessageIfTraceLoggable(start);
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Exception sending '" + msg + "' to " + graphiteServerHostAndPort, e);
+            logger.log(Level.WARNING, "Exception sending '" + metricName + "' to " + graphiteServerHostAndPort, e);
             releaseGraphiteConnection();
             throw e;
         }
     }
 
-    private void releaseGraphiteConnection() {
-        IoUtils.closeQuietly(writer);
-        IoUtils.closeQuietly(socket);
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        long timestampInSeconds = TimeUnit.SECONDS.convert(batch.getTimestampInMillis(), TimeUnit.MILLISECONDS);
+        try {
+            graphiteConnection.getOutputStream();
+            for (int i = 0; i < batch.size(); i++) {
+                int start = buffer.position();
+                if (!encoder.encode(buffer, batch, i, timestampInSeconds)) {
+                    flushBuffer();
+                    start = 0;
+                    while (!encoder.encode(buffer, batch, i, timestampInSeconds)) {
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                    }
+                }
+                logEncodedMessageIfTraceLoggable(start);
+            }
+            flushBuffer();
+            graphiteConnection.getOutputStream().flush();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Exception sending " + batch.size() + " results to " + graphiteServerHostAndPort, e);
+            releaseGraphiteConnection();
+            throw e;
+        }
     }
 
-    private void ensureGraphiteConnection() throws IOException {
-        boolean socketIsValid;
-        try {
-            socketIsValid = socket != null &&
-                    socket.isConnected()
-                    && socket.isBound()
-                    && !socket.isClosed()
-                    && !socket.isInputShutdown()
-                    && !socket.isOutputShutdown();
-        } catch (Exception e) {
-            socketIsValid = false;
+    private void logEncodedMessageIfTraceLoggable(int start) {
+        if (logger.isLoggable(getTraceLevel())) {
+            // exclude the trailing newline
+            String msg = new String(buffer.array(), start, buffer.position() - start - 1, UTF_8);
+            logger.log(getTraceLevel(), "Send '" + msg + "' to " + graphiteServerHostAndPort);
         }
-        if (!socketIsValid) {
-            writer = null;
-            try {
-                socket = new Socket();
-                socket.setKeepAlive(true);
-                socket.connect(
-                        new InetSocketAddress(graphiteServerHostAndPort.getHost(), graphiteServerHostAndPort.getPort()),
-                        socketConnectTimeoutInMillis);
-            } catch (IOException e) {
-                ConnectException ce = new ConnectException("Exception connecting to " + graphiteServerHostAndPort);
-                ce.initCause(e);
-                throw ce;
-            }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() == 0) {
+            return;
         }
-        if (writer == null) {
-            writer = new OutputStreamWriter(socket.getOutputStream(), UTF_8);
+        graphiteConnection.getOutputStream().write(buffer.array(), 0, buffer.position());
+        incrementBytesSent(buffer.position());
+        buffer.clear();
+    }
+
+    private void releaseGraphiteConnection() {
+        buffer.clear();
+        if (graphiteConnection != null) {
+            graphiteConnection.close();
         }
     }
 
     @Override
     public void postCollect() throws IOException {
-        if (writer == null) {
+        if (!graphiteConnection.isOpen()) {
             return;
         }
 
         try {
-            writer.flush();
+            flushBuffer();
+            graphiteConnection.getOutputStream().flush();
         } catch (IOException e) {
             logger.log(Level.WARNING, "Exception flushing the stream to " + graphiteServerHostAndPort, e);
             releaseGraphiteConnection();
@@ -149,7 +171,7 @@ public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter imple
     public String toString() {
         return "GraphitePlainTextTcpOutputWriter{" +
                 ", " + graphiteServerHostAndPort +
-                ", metricPathPrefix='" + messageBuilder.getPrefix() + '\'' +
+                ", metricPathPrefix='" + encoder.getPrefix() + '\'' +
                 '}';
     }
     
@@ -160,6 +182,6 @@ public class GraphitePlainTextTcpOutputWriter extends AbstractOutputWriter imple
     }
     
     String getMetricPathPrefix() {
-        return messageBuilder.getPrefix();
+        return encoder.getPrefix();
     }
 }
@@ -24,44 +24,69 @@
 package org.jmxtrans.agent;
 
 import static org.jmxtrans.agent.graphite.GraphiteOutputWriterCommonSettings.*;
+import static org.jmxtrans.agent.util.ConfigurationUtils.*;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
-import org.jmxtrans.agent.graphite.GraphiteMetricMessageBuilder;
+import javax.annotation.Nonnull;
+
+import org.jmxtrans.agent.graphite.GraphiteMetricEncoder;
+import org.jmxtrans.agent.util.CachingReference;
 import org.jmxtrans.agent.util.net.HostAndPort;
 import org.jmxtrans.agent.util.time.Clock;
 import org.jmxtrans.agent.util.time.SystemCurrentTimeMillisClock;
 
 /**
  * Output writer for writing to Graphite using UDP.
+ *
+ * As many lines as fit in {@code maxPacketSizeInBytes} are packed in each datagram, the last datagram of a
+ * collection is sent on {@link #postCollect()}.
  * 
  * @author Kristoffer Erlandsson
  */
-public class GraphiteUdpOutputWriter extends AbstractOutputWriter {
+public class GraphiteUdpOutputWriter extends AbstractOutputWriter implements BatchOutputWriter {
+
+    /**
+     * Max size of the payload of a datagram. The default value fits in an Ethernet frame (MTU of 1500 bytes) with
+     * the IPv6 and UDP headers. A line larger than this size is sent in its own datagram.
+     */
+    public final static String SETTING_MAX_PACKET_SIZE_IN_BYTES = "maxPacketSizeInBytes";
+    public final static int SETTING_MAX_PACKET_SIZE_IN_BYTES_DEFAULT_VALUE = 1432;
 
     final static Charset CHARSET_FOR_UDP_PACKET = Charset.forName("UTF-8");
     private HostAndPort graphiteServerHostAndPort;
     private UdpMessageSender messageSender;
     private Clock clock;
-    private GraphiteMetricMessageBuilder messageBuilder;
+    private GraphiteMetricEncoder encoder;
+    private ByteBuffer packet;
 
     @Override
     public void postConstruct(Map<String, String> settings) {
         super.postConstruct(settings);
         graphiteServerHostAndPort = getHostAndPort(settings);
-        messageBuilder = new GraphiteMetricMessageBuilder(getConfiguredMetricPrefixOrNull(settings));
+        if (graphiteServerHostAndPort.isUnixDomainSocket()) {
+            throw new IllegalArgumentException("Unix domain datagram sockets are not supported by the JVM, use the "
+                    + GraphitePlainTextTcpOutputWriter.class.getSimpleName() + " for " + graphiteServerHostAndPort.getHost());
+        }
+        encoder = newMetricEncoder(settings);
+        int maxPacketSizeInBytes = getInt(settings, SETTING_MAX_PACKET_SIZE_IN_BYTES, SETTING_MAX_PACKET_SIZE_IN_BYTES_DEFAULT_VALUE);
+        if (maxPacketSizeInBytes <= 0) {
+            throw new IllegalArgumentException("'" + SETTING_MAX_PACKET_SIZE_IN_BYTES + "' must be > 0, was: " + maxPacketSizeInBytes);
+        }
+        packet = ByteBuffer.allocate(maxPacketSizeInBytes);
         messageSender = new UdpMessageSender(graphiteServerHostAndPort);
         clock = new SystemCurrentTimeMillisClock();
         logger.log(getInfoLevel(), "GraphiteUdpOutputWriter is configured with " + graphiteServerHostAndPort
-                + ", metricPathPrefix=" + messageBuilder.getPrefix());
+                + ", metricPathPrefix=" + encoder.getPrefix() + ", maxPacketSizeInBytes=" + maxPacketSizeInBytes);
     }
 
     @Override
@@ -70,27 +95,82 @@ public class GraphiteUdpOutputWriter extends AbstractOutputWriter {
     }
 
     @Override
-    public void writeQueryResult(String metricName, String metricType, Object value) throws IOException {
-        String msg = messageBuilder.buildMessage(metricName, value, TimeUnit.SECONDS.convert(clock.getCurrentTimeMillis(), TimeUnit.MILLISECONDS));
-        logMessageIfTraceLoggable(msg);
-        tryWriteMsg(msg + "\n");
+    public synchronized void writeQueryResult(String metricName, String metricType, Object value) throws IOException {
+        long timestampInSeconds = TimeUnit.SECONDS.convert(clock.getCurrentTimeMillis(), TimeUnit.MILLISECONDS);
+        int start = packet.position();
+        if (!encoder.encode(packet, metricName, value, timestampInSeconds)) {
+            tryWritePacket();
+            start = 0;
+            if (!encoder.encode(packet, metricName, value, timestampInSeconds)) {
+                writeOversizedMessage(metricName, value, timestampInSeconds);
+                return;
+            }
+        }
+        logMessageIfTraceLoggable(packet, start);
+    }
+
+    @Override
+    public synchronized void postCollect() throws IOException {
+        tryWritePacket();
+    }
+
+    @Override
+    public synchronized void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        long timestampInSeconds = TimeUnit.SECONDS.convert(batch.getTimestampInMillis(), TimeUnit.MILLISECONDS);
+        for (int i = 0; i < batch.size(); i++) {
+            int start = packet.position();
+            if (!encoder.encode(packet, batch, i, timestampInSeconds)) {
+                tryWritePacket();
+                start = 0;
+                if (!encoder.encode(packet, batch, i, timestampInSeconds)) {
+                    writeOversizedMessage(batch.getName(i), batch.getValue(i), timestampInSeconds);
+                    continue;
+                }
+            }
+            logMessageIfTraceLoggable(packet, start);
+        }
+        tryWritePacket();
     }
 
-    private void logMessageIfTraceLoggable(String msg) {
+    private void writeOversizedMessage(String metricName, Object value, long timestampInSeconds) throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(packet.capacity() * 2);
+        while (!encoder.encode(message, metricName, value, timestampInSeconds)) {
+            message = ByteBuffer.allocate(message.capacity() * 2);
+        }
+        logMessageIfTraceLoggable(message, 0);
+        tryWrite(message);
+    }
+
+    private void logMessageIfTraceLoggable(ByteBuffer buffer, int start) {
         if (logger.isLoggable(getTraceLevel())) {
-            logger.log(getTraceLevel(), "Send '" + msg + "' to " + graphiteServerHostAndPort);
+            logger.log(getTraceLevel(), "Send '" + toStringWithoutTrailingNewline(buffer, start) + "' to " + graphiteServerHostAndPort);
+        }
+    }
+
+    private void tryWritePacket() throws IOException {
+        if (packet.position() == 0) {
+            return;
+        }
+        try {
+            tryWrite(packet);
+        } finally {
+            packet.clear();
         }
     }
 
-    private void tryWriteMsg(String msg) throws IOException {
+    private void tryWrite(ByteBuffer message) throws IOException {
         try {
-            messageSender.send(msg);
+            incrementBytesSent(messageSender.send(message.array(), message.position()));
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Exception sending '" + msg + "' to " + graphiteServerHostAndPort, e);
+            logger.log(Level.WARNING, "Exception sending '" + toStringWithoutTrailingNewline(message, 0) + "' to " + graphiteServerHostAndPort, e);
             throw e;
         }
     }
 
+    private String toStringWithoutTrailingNewline(ByteBuffer buffer, int start) {
+        return new String(buffer.array(), start, buffer.position() - start - 1, CHARSET_FOR_UDP_PACKET);
+    }
+
     @Override
     public void preDestroy() {
         super.preDestroy();
@@ -103,7 +183,7 @@ public class GraphiteUdpOutputWriter extends AbstractOutputWriter {
     public String toString() {
         return "GraphiteUdpOutputWriter{" +
                 ", " + graphiteServerHostAndPort +
-                ", metricPathPrefix='" + messageBuilder.getPrefix() + "'" +
+                ", metricPathPrefix='" + encoder.getPrefix() + "'" +
                 "}";
     }
 
@@ -115,26 +195,42 @@ public class GraphiteUdpOutputWriter extends AbstractOutputWriter {
     private static class UdpMessageSender {
 
         private final DatagramSocket clientSocket;
-        private final HostAndPort hostAndPort;
-
-        public UdpMessageSender(HostAndPort hostAndPort) {
-            this.hostAndPort = hostAndPort;
+        private final DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+        /**
+         * Using a {@link CachingReference} instead of a raw {@link InetSocketAddress} allows to handle a change
+         * of the IP address of the Graphite server without resolving it for each datagram.
+         */
+        private final CachingReference<InetSocketAddress> addressReference;
+
+        public UdpMessageSender(final HostAndPort hostAndPort) {
             try {
                 clientSocket = new DatagramSocket();
             } catch (SocketException e) {
                 throw new RuntimeException("Failed to create DatagramSocket", e);
             }
+            addressReference = new CachingReference<InetSocketAddress>(30, TimeUnit.SECONDS) {
+                @Nonnull
+                @Override
+                protected InetSocketAddress newObject() {
+                    return new InetSocketAddress(hostAndPort.getHost(), hostAndPort.getPort());
+                }
+            };
         }
 
-        public void send(String msg) throws IOException {
-            DatagramPacket packetToSend = createUdpPacket(msg);
-            clientSocket.send(packetToSend);
-        }
-
-        private DatagramPacket createUdpPacket(String msg) throws SocketException {
-            byte[] messageBytes = msg.getBytes(CHARSET_FOR_UDP_PACKET);
-            InetSocketAddress adress = new InetSocketAddress(hostAndPort.getHost(), hostAndPort.getPort());
-            return new DatagramPacket(messageBytes, messageBytes.length, adress);
+        /**
+         * @return number of bytes sent
+         */
+        public int send(byte[] message, int length) throws IOException {
+            packet.setData(message, 0, length);
+            try {
+                packet.setSocketAddress(addressReference.get());
+                clientSocket.send(packet);
+            } catch (IOException | IllegalArgumentException e) {
+                // resolve the address again on the next datagram, it may have changed
+                addressReference.purge();
+                throw e;
+            }
+            return length;
         }
 
         public void close() {
@@ -55,6 +55,11 @@ public class Invocation implements Collector {
     private final Logger logger = Logger.getLogger(getClass().getName());
     @Nullable
     private Integer collectInterval;
+    @Nullable
+    private Integer collectTimeoutInMillis;
+
+    @Nullable
+    private volatile MBeanRegistryCache mbeanRegistryCache;
 
     public Invocation(@Nullable String objectName, @Nonnull String operationName, @Nonnull Object[] params, @Nonnull String[] signature, @Nullable String resultAlias,
             @Nullable Integer collectInterval, @Nullable String type) {
@@ -72,7 +77,7 @@ public class Invocation implements Collector {
     }
 
     private void invoke(MBeanServer mbeanServer, OutputWriter outputWriter) {
-        Set<ObjectName> objectNames = mbeanServer.queryNames(objectName, null);
+        Set<ObjectName> objectNames = MBeanRegistryCache.queryNames(mbeanRegistryCache, mbeanServer, objectName);
         for (ObjectName on : objectNames) {
             try {
                 Object result = mbeanServer.invoke(on, operationName, params, signature);
@@ -104,4 +109,27 @@ public class Invocation implements Collector {
     public Integer getCollectIntervalOverrideOrNull() {
         return collectInterval;
     }
+
+    @Nullable
+    public Integer getCollectTimeoutInMillisOverrideOrNull() {
+        return collectTimeoutInMillis;
+    }
+
+    /**
+     * @param collectTimeoutInMillis max duration of a collection before it is abandoned, {@code 0} for no timeout,
+     *                               {@code null} to use {@link JmxTransExporterConfiguration#getCollectTimeoutInMillis()}
+     */
+    public void setCollectTimeoutInMillis(@Nullable Integer collectTimeoutInMillis) {
+        if (collectTimeoutInMillis != null && collectTimeoutInMillis < 0) {
+            throw new IllegalArgumentException("collectTimeoutInMillis must be >= 0, was: " + collectTimeoutInMillis);
+        }
+        this.collectTimeoutInMillis = collectTimeoutInMillis;
+    }
+
+    /**
+     * @param mbeanRegistryCache cache used to resolve the {@link #objectName}, {@code null} to scan the MBean registry on each invocation
+     */
+    public void setMBeanRegistryCache(@Nullable MBeanRegistryCache mbeanRegistryCache) {
+        this.mbeanRegistryCache = mbeanRegistryCache;
+    }
 }
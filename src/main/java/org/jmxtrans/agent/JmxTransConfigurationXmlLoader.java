@@ -35,6 +35,7 @@ import java.util.regex.Pattern;
 
 import org.jmxtrans.agent.properties.NoPropertiesSourcePropertiesLoader;
 import org.jmxtrans.agent.properties.PropertiesLoader;
+import org.jmxtrans.agent.util.ConfigurationUtils;
 import org.jmxtrans.agent.util.Preconditions2;
 import org.jmxtrans.agent.util.PropertyPlaceholderResolver;
 import org.jmxtrans.agent.util.io.IoRuntimeException;
@@ -55,6 +56,7 @@ import javax.annotation.Nonnull;
 public class JmxTransConfigurationXmlLoader implements JmxTransConfigurationLoader {
 
     private static final String COLLECT_INTERVAL_NAME = "collectIntervalInSeconds";
+    private static final String COLLECT_TIMEOUT_NAME = "collectTimeoutInMillis";
     private static final Pattern ATTRIBUTE_SPLIT_PATTERN = Pattern.compile("\\s*,\\s*");
     private Logger logger = Logger.getLogger(getClass().getName());
     private final PropertiesLoader propertiesLoader;
@@ -117,6 +119,46 @@ public class JmxTransConfigurationXmlLoader implements JmxTransConfigurationLoad
         if (reloadConfigInterval != null) {
             jmxTransExporterConfiguration.withConfigReloadInterval(reloadConfigInterval);
         }
+        Integer collectorThreads = getIntegerElementValueOrNullIfNotSet(rootElement, "collectorThreads", resolver);
+        if (collectorThreads != null) {
+            jmxTransExporterConfiguration.withCollectorThreads(collectorThreads);
+        }
+        Boolean spreadCollectors = getBooleanElementValueOrNullIfNotSet(rootElement, "spreadCollectors", resolver);
+        if (spreadCollectors != null) {
+            jmxTransExporterConfiguration.withSpreadCollectors(spreadCollectors);
+        }
+        Integer collectJitterInMillis = getIntegerElementValueOrNullIfNotSet(rootElement, "collectJitterInMillis", resolver);
+        if (collectJitterInMillis != null) {
+            jmxTransExporterConfiguration.withCollectJitterInMillis(collectJitterInMillis);
+        }
+        Boolean alignCollections = getBooleanElementValueOrNullIfNotSet(rootElement, "alignCollections", resolver);
+        if (alignCollections != null) {
+            jmxTransExporterConfiguration.withAlignCollections(alignCollections);
+        }
+        String collectionOverrunPolicy = getStringElementValueOrNullIfNotSet(rootElement, "collectionOverrunPolicy", resolver);
+        if (collectionOverrunPolicy != null) {
+            jmxTransExporterConfiguration.withCollectionOverrunPolicy(CollectorScheduler.OverrunPolicy.parse(collectionOverrunPolicy));
+        }
+        Integer collectTimeoutInMillis = getIntegerElementValueOrNullIfNotSet(rootElement, COLLECT_TIMEOUT_NAME, resolver);
+        if (collectTimeoutInMillis != null) {
+            jmxTransExporterConfiguration.withCollectTimeoutInMillis(collectTimeoutInMillis);
+        }
+        Boolean cacheObjectNames = getBooleanElementValueOrNullIfNotSet(rootElement, "cacheObjectNames", resolver);
+        if (cacheObjectNames != null) {
+            jmxTransExporterConfiguration.withCacheObjectNames(cacheObjectNames);
+        }
+        Integer mbeanInfoCacheTimeToLiveInSeconds = getIntegerElementValueOrNullIfNotSet(rootElement, "mbeanInfoCacheTimeToLiveInSeconds", resolver);
+        if (mbeanInfoCacheTimeToLiveInSeconds != null) {
+            jmxTransExporterConfiguration.withMBeanInfoCacheTimeToLiveInSeconds(mbeanInfoCacheTimeToLiveInSeconds);
+        }
+        Boolean registerAgentMetricsMBean = getBooleanElementValueOrNullIfNotSet(rootElement, "registerAgentMetricsMBean", resolver);
+        if (registerAgentMetricsMBean != null) {
+            jmxTransExporterConfiguration.withRegisterAgentMetricsMBean(registerAgentMetricsMBean);
+        }
+        String agentMetricsPrefix = getStringElementValueOrNullIfNotSet(rootElement, "agentMetricsPrefix", resolver);
+        if (agentMetricsPrefix != null) {
+            jmxTransExporterConfiguration.withAgentMetricsPrefix(agentMetricsPrefix);
+        }
 
         buildResultNameStrategy(rootElement, jmxTransExporterConfiguration, resolver);
         buildInvocations(rootElement, jmxTransExporterConfiguration);
@@ -169,6 +211,29 @@ public class JmxTransConfigurationXmlLoader implements JmxTransConfigurationLoad
         }
     }
 
+    private Boolean getBooleanElementValueOrNullIfNotSet(Element rootElement, String elementName, PropertyPlaceholderResolver placeholderResolver) {
+        String stringValue = getStringElementValueOrNullIfNotSet(rootElement, elementName, placeholderResolver);
+        if (stringValue == null) {
+            return null;
+        }
+        if (!"true".equalsIgnoreCase(stringValue) && !"false".equalsIgnoreCase(stringValue)) {
+            throw new IllegalStateException("Invalid <" + elementName + "> value '" + stringValue + "', boolean expected");
+        }
+        return Boolean.valueOf(stringValue);
+    }
+
+    private String getStringElementValueOrNullIfNotSet(Element rootElement, String elementName, PropertyPlaceholderResolver placeholderResolver) {
+        NodeList nodeList = rootElement.getElementsByTagName(elementName);
+        if (nodeList.getLength() == 0) {
+            return null;
+        }
+        if (nodeList.getLength() > 1) {
+            logger.warning("More than 1 <" + elementName + "> element found (" + nodeList.getLength() + "), use latest");
+        }
+        Element element = (Element) nodeList.item(nodeList.getLength() - 1);
+        return placeholderResolver.resolveString(element.getTextContent()).trim();
+    }
+
     private void buildQueries(Element rootElement, JmxTransExporterConfiguration configuration) {
         NodeList queries = rootElement.getElementsByTagName("query");
         for (int i = 0; i < queries.getLength(); i++) {
@@ -189,6 +254,7 @@ public class JmxTransConfigurationXmlLoader implements JmxTransConfigurationLoad
             Integer collectInterval = intAttributeOrNull(queryElement, COLLECT_INTERVAL_NAME);
 
             configuration.withQuery(objectName, attributes, key, position, type, resultAlias, collectInterval);
+            last(configuration.getQueries()).setCollectTimeoutInMillis(intAttributeOrNull(queryElement, COLLECT_TIMEOUT_NAME));
         }
     }
     
@@ -212,6 +278,7 @@ public class JmxTransConfigurationXmlLoader implements JmxTransConfigurationLoad
             Integer collectInterval = intAttributeOrNull(queryElement, COLLECT_INTERVAL_NAME);
 
             configuration.withDiscoveryQuery(objectName, attributes, key, position, type, resultAlias, collectInterval);
+            last(configuration.getQueries()).setCollectTimeoutInMillis(intAttributeOrNull(queryElement, COLLECT_TIMEOUT_NAME));
         }
     }    
 
@@ -248,9 +315,14 @@ public class JmxTransConfigurationXmlLoader implements JmxTransConfigurationLoad
             Integer collectInterval = intAttributeOrNull(invocationElement, COLLECT_INTERVAL_NAME);
 
             configuration.withInvocation(objectName, operation, resultAlias, collectInterval, type);
+            last(configuration.getInvocations()).setCollectTimeoutInMillis(intAttributeOrNull(invocationElement, COLLECT_TIMEOUT_NAME));
         }
     }
 
+    private static <T> T last(List<T> list) {
+        return list.get(list.size() - 1);
+    }
+
     private Integer intAttributeOrNull(Element element, String attributeName) {
         String value = element.getAttribute(attributeName);
         if (value.isEmpty()) {
@@ -321,6 +393,9 @@ public class JmxTransConfigurationXmlLoader implements JmxTransConfigurationLoad
                     settings.put(settingElement.getNodeName(), settingWithFunctionsApplied);
                 }
                 outputWriter = new OutputWriterCircuitBreakerDecorator(outputWriter);
+                if (ConfigurationUtils.getBoolean(settings, AsyncOutputWriterDecorator.SETTING_ASYNC, false)) {
+                    outputWriter = new AsyncOutputWriterDecorator(outputWriter);
+                }
                 outputWriter.postConstruct(settings);
                 outputWriters.add(outputWriter);
             } catch (Exception e) {
@@ -337,7 +412,9 @@ public class JmxTransConfigurationXmlLoader implements JmxTransConfigurationLoad
                 configuration.withOutputWriter(outputWriters.get(0));
                 break;
             default:
-                configuration.withOutputWriter(new OutputWritersChain(outputWriters));
+                Integer maxPendingCycles = getIntegerElementValueOrNullIfNotSet(rootElement, "outputWritersMaxPendingCycles", placeholderResolver);
+                configuration.withOutputWriter(new OutputWritersChain(outputWriters,
+                        maxPendingCycles == null ? OutputWritersChain.DEFAULT_MAX_PENDING_CYCLES : maxPendingCycles));
         }
     }
 
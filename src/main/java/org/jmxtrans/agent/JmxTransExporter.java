@@ -23,22 +23,32 @@
  */
 package org.jmxtrans.agent;
 
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
-import java.math.BigInteger;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
+import javax.annotation.Nullable;
+import javax.management.JMException;
 import javax.management.MBeanServer;
 
-import org.jmxtrans.agent.util.GcdCalculator;
 import org.jmxtrans.agent.util.logging.Logger;
 
 /**
@@ -57,13 +67,50 @@ public class JmxTransExporter {
             return thread;
         }
     };
-    private ScheduledExecutorService scheduledExecutorService;
+    private ThreadFactory collectorThreadFactory = new ThreadFactory() {
+        final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setDaemon(true);
+            thread.setName("jmxtrans-agent-collector-" + counter.incrementAndGet());
+            return thread;
+        }
+    };
+    private volatile ScheduledExecutorService scheduledExecutorService;
+    /**
+     * {@code null} if the collectors are run sequentially by the exporter thread (see {@link JmxTransExporterConfiguration#getCollectorThreads()}
+     * and {@link JmxTransExporterConfiguration#getCollectTimeoutInMillis()}).
+     */
+    private ThreadPoolExecutor collectorExecutorService;
+    private final AtomicLong abandonedCollectionsCounter = new AtomicLong();
+    private final AtomicLong skippedCollectionsCounter = new AtomicLong();
+    private final AgentMetrics agentMetrics = new AgentMetrics(this);
+    /**
+     * {@code true} if {@link #agentMetrics} has been registered by this exporter.
+     */
+    private boolean agentMetricsRegistered;
     private MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
-    private ScheduledFuture scheduledFuture;
+    /**
+     * {@code null} if ObjectNames are not cached (see {@link JmxTransExporterConfiguration#isCacheObjectNames()}).
+     */
+    private volatile MBeanRegistryCache mbeanRegistryCache;
+    private volatile ScheduledFuture scheduledFuture;
     private JmxTransConfigurationLoader configLoader;
     private volatile JmxTransExporterConfiguration config;
     private volatile List<TimeTrackingCollector> collectors;
-    private volatile long runIntervalMillis;
+    private volatile CollectorScheduler collectorScheduler;
+    private final Runnable collectionTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                collectAndExport();
+            } finally {
+                scheduleNextCollection();
+            }
+        }
+    };
 
     public JmxTransExporter(JmxTransConfigurationLoader configLoader) {
         this.configLoader = configLoader;
@@ -73,41 +120,56 @@ public class JmxTransExporter {
     private void loadNewConfiguration() {
         this.config = configLoader.loadConfiguration();
         logger.finest("Configuration loaded: " + config);
+        this.mbeanRegistryCache = config.isCacheObjectNames()
+                ? new MBeanRegistryCache(mbeanServer, config.getMBeanInfoCacheTimeToLiveInSeconds(), TimeUnit.SECONDS)
+                : null;
+        if (mbeanRegistryCache != null && config.getResultNameStrategy() instanceof MBeanRegistryCache.UnregistrationListener) {
+            mbeanRegistryCache.addUnregistrationListener((MBeanRegistryCache.UnregistrationListener) config.getResultNameStrategy());
+        }
+        for (Query query : config.getQueries()) {
+            query.setMBeanRegistryCache(mbeanRegistryCache);
+        }
+        for (Invocation invocation : config.getInvocations()) {
+            invocation.setMBeanRegistryCache(mbeanRegistryCache);
+        }
         this.collectors = createTimeTrackingCollectors();
-        this.runIntervalMillis = calculateRunIntervalMillis();
+        this.collectorScheduler = new CollectorScheduler(collectors, config.isSpreadCollectors(), config.getCollectJitterInMillis(),
+                config.isAlignCollections(), config.getCollectionOverrunPolicy());
     }
 
 
     private List<TimeTrackingCollector> createTimeTrackingCollectors() {
         List<TimeTrackingCollector> newCollectors = new ArrayList<>();
         for (Query q : config.getQueries()) {
-            TimeTrackingCollector timeTrackingCollector = createTimeTrackingCollector(q, q.getCollectIntervalOverrideOrNull());
+            TimeTrackingCollector timeTrackingCollector = createTimeTrackingCollector(q, q.getCollectIntervalOverrideOrNull(), q.getCollectTimeoutInMillisOverrideOrNull());
             newCollectors.add(timeTrackingCollector);
         }
         for (Invocation i : config.getInvocations()) {
-            TimeTrackingCollector timeTrackingCollector = createTimeTrackingCollector(i, i.getCollectIntervalOverrideOrNull());
+            TimeTrackingCollector timeTrackingCollector = createTimeTrackingCollector(i, i.getCollectIntervalOverrideOrNull(), i.getCollectTimeoutInMillisOverrideOrNull());
             newCollectors.add(timeTrackingCollector);
         }
         return newCollectors;
     }
 
-    private TimeTrackingCollector createTimeTrackingCollector(Collector collector, Integer collectIntervalOverride) {
+    private TimeTrackingCollector createTimeTrackingCollector(Collector collector, Integer collectIntervalOverride, Integer collectTimeoutInMillisOverride) {
         int actualCollectInterval = collectIntervalOverride != null ? collectIntervalOverride : config.getCollectInterval();
-        TimeTrackingCollector timeTrackingCollector = new TimeTrackingCollector(collector, TimeUnit.MILLISECONDS.convert(actualCollectInterval, config.getCollectIntervalTimeUnit()));
+        int actualCollectTimeoutInMillis = collectTimeoutInMillisOverride != null ? collectTimeoutInMillisOverride : config.getCollectTimeoutInMillis();
+        TimeTrackingCollector timeTrackingCollector = new TimeTrackingCollector(collector,
+                TimeUnit.MILLISECONDS.convert(actualCollectInterval, config.getCollectIntervalTimeUnit()), actualCollectTimeoutInMillis);
         return timeTrackingCollector;
     }
 
-    private long calculateRunIntervalMillis() {
-        // Use the greatest common divisor of the collect intervals to get period in which we need to collect
-        if (collectors.isEmpty()) {
-            // Ensure that we trigger runs even if there are no queries so that config refresh works.
-            return config.getCollectInterval();
-        }
-        List<Long> collectIntervals = new ArrayList<>();
-        for (TimeTrackingCollector c : collectors) {
-            collectIntervals.add(c.getCollectIntervalMillis());
+    /**
+     * @return {@code true} if at least one collector has a timeout, timeouts can only be enforced running the collectors
+     * in the collector threads
+     */
+    private boolean hasCollectTimeouts() {
+        for (TimeTrackingCollector collector : collectors) {
+            if (collector.getCollectTimeoutMillis() > 0) {
+                return true;
+            }
         }
-        return GcdCalculator.gcd(collectIntervals);
+        return false;
     }
 
     public void start() {
@@ -120,17 +182,26 @@ public class JmxTransExporter {
         if (scheduledExecutorService != null || scheduledFuture != null)
             throw new IllegalArgumentException("Exporter is already started: scheduledExecutorService=" + scheduledExecutorService + ", scheduledFuture=" + scheduledFuture);
 
-        scheduledExecutorService = Executors.newScheduledThreadPool(1, threadFactory);
+        ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = new ScheduledThreadPoolExecutor(1, threadFactory);
+        // the collection task reschedules itself, don't run it once the exporter is stopped
+        scheduledThreadPoolExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduledExecutorService = scheduledThreadPoolExecutor;
+        if (config.getCollectorThreads() > 1 || hasCollectTimeouts()) {
+            collectorExecutorService = new ThreadPoolExecutor(config.getCollectorThreads(), config.getCollectorThreads(),
+                    0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), collectorThreadFactory);
+        }
 
         if (config.getResultNameStrategy() == null)
             throw new IllegalStateException("resultNameStrategy is not defined, jmxTransExporter is not properly initialised");
 
-        scheduledFuture = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
-            @Override
-            public void run() {
-                collectAndExport();
-            }
-        }, runIntervalMillis / 2, runIntervalMillis, TimeUnit.MILLISECONDS);
+        if (mbeanRegistryCache != null) {
+            mbeanRegistryCache.start();
+        }
+        if (config.isRegisterAgentMetricsMBean()) {
+            registerAgentMetrics();
+        }
+        collectorScheduler.start(collectorScheduler.currentMillis());
+        scheduleNextCollection();
 
         if (config.getConfigReloadInterval() >= 0) {
             Runnable runnable = new Runnable() {
@@ -187,12 +258,24 @@ public class JmxTransExporter {
 
         // wait for stop
         try {
-            scheduledExecutorService.awaitTermination(runIntervalMillis, TimeUnit.MILLISECONDS);
+            scheduledExecutorService.awaitTermination(config.getCollectInterval(), config.getCollectIntervalTimeUnit());
 
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
         }
         scheduledExecutorService = null;
+        // the collection task may have rescheduled itself while stopping
+        scheduledFuture = null;
+
+        if (collectorExecutorService != null) {
+            collectorExecutorService.shutdown();
+            collectorExecutorService = null;
+        }
+
+        if (mbeanRegistryCache != null) {
+            mbeanRegistryCache.stop();
+        }
+        unregisterAgentMetrics();
 
         config.getOutputWriter().preDestroy();
 
@@ -200,23 +283,281 @@ public class JmxTransExporter {
 
     }
 
+    /**
+     * Schedule the next collection when the next collector is due. Does nothing if the exporter is stopped or if there is no collector.
+     */
+    private void scheduleNextCollection() {
+        ScheduledExecutorService scheduledExecutorService = this.scheduledExecutorService;
+        long nextRunMillis = collectorScheduler.getNextRunMillis();
+        if (scheduledExecutorService == null || scheduledExecutorService.isShutdown() || nextRunMillis == Long.MAX_VALUE) {
+            return;
+        }
+        long delayMillis = Math.max(0, nextRunMillis - collectorScheduler.currentMillis());
+        try {
+            scheduledFuture = scheduledExecutorService.schedule(collectionTask, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.finer("Exporter is stopping, don't schedule next collection");
+        }
+    }
+
+    /**
+     * Run the collectors that are due and export their results.
+     *
+     * The results are gathered in a {@link MetricBatch} handed to the {@link OutputWriter} once all the collectors have
+     * run (see {@link MetricBatch#writeTo(OutputWriter)}).
+     * If {@link JmxTransExporterConfiguration#getCollectorThreads()} is greater than 1, the collectors run concurrently
+     * but the results are still in the declaration order of the collectors.
+     */
     protected void collectAndExport() {
         OutputWriter outputWriter = config.getOutputWriter();
+        ThreadPoolExecutor collectorExecutorService = this.collectorExecutorService;
         try {
-            outputWriter.preCollect();
-            for (TimeTrackingCollector collector : collectors) {
-                try {
-                    collector.collectIfEnoughTimeHasPassed(mbeanServer, outputWriter);
-                } catch (Exception e) {
-                    logger.log(Level.WARNING, "Ignore exception collecting with collector " + collector, e);
+            long startNanos = System.nanoTime();
+            long timestampInMillis = System.currentTimeMillis();
+            MetricBatch.Builder batchBuilder = new MetricBatch.Builder();
+            List<TimeTrackingCollector> dueCollectors = collectorScheduler.pollDueCollectors(collectorScheduler.currentMillis());
+            if (collectorScheduler.isAligned()) {
+                if (dueCollectors.isEmpty()) {
+                    // woken up before the tick, e.g. wall clock adjusted
+                    return;
+                }
+                // all the hosts report the same timestamp for the same tick
+                timestampInMillis = collectorScheduler.getLastTickMillis();
+            }
+            if (collectorExecutorService == null) {
+                for (TimeTrackingCollector collector : dueCollectors) {
+                    try {
+                        collector.collect(mbeanServer, batchBuilder);
+                    } catch (Exception e) {
+                        logger.log(Level.WARNING, "Ignore exception collecting with collector " + collector, e);
+                    }
                 }
+            } else {
+                collectConcurrently(collectorExecutorService, dueCollectors, batchBuilder);
             }
-            outputWriter.postCollect();
+            String agentMetricsPrefix = config.getAgentMetricsPrefix();
+            if (agentMetricsPrefix != null) {
+                // metrics of the previous cycles
+                agentMetrics.writeTo(batchBuilder, agentMetricsPrefix);
+            }
+            MetricBatch batch = batchBuilder.build(timestampInMillis);
+            batch.writeTo(outputWriter);
+            agentMetrics.onCycleCompleted(System.nanoTime() - startNanos, batch.size());
         } catch (Exception e) {
             logger.log(Level.WARNING, "Ignore exception flushing metrics ", e);
         }
     }
 
+    private void collectConcurrently(ThreadPoolExecutor collectorExecutorService, List<TimeTrackingCollector> dueCollectors, OutputWriter outputWriter) throws IOException {
+        List<CollectorTask> tasks = new ArrayList<>();
+        List<Future<QueryResultsBuffer>> futures = new ArrayList<>();
+        for (TimeTrackingCollector collector : dueCollectors) {
+            if (collector.isRunning()) {
+                // an abandoned collection of this collector is still hung, don't pile up threads on it
+                logger.warning("Skip collector " + collector + ", its previous collection is still running");
+                skippedCollectionsCounter.incrementAndGet();
+                onCollectionTimeout(collector);
+                tasks.add(null);
+                futures.add(null);
+                continue;
+            }
+            CollectorTask task = new CollectorTask(collector, collectorExecutorService);
+            tasks.add(task);
+            futures.add(collectorExecutorService.submit(task));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Future<QueryResultsBuffer> future = futures.get(i);
+            if (future == null) {
+                continue;
+            }
+            CollectorTask task = tasks.get(i);
+            QueryResultsBuffer buffer;
+            try {
+                buffer = awaitCollection(task, future);
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "Ignore exception collecting with collector " + task.collector, e.getCause());
+                continue;
+            } catch (TimeoutException e) {
+                logger.warning("Abandon collector " + task.collector + " for this collection, it did not complete within " +
+                        task.collector.getCollectTimeoutMillis() + "ms");
+                task.abandon();
+                future.cancel(true);
+                abandonedCollectionsCounter.incrementAndGet();
+                onCollectionTimeout(task.collector);
+                continue;
+            } catch (InterruptedException e) {
+                // exporter is stopping, abandon this collection
+                Thread.currentThread().interrupt();
+                for (Future<QueryResultsBuffer> f : futures) {
+                    if (f != null) {
+                        f.cancel(true);
+                    }
+                }
+                return;
+            }
+            task.collector.onCollectionCompleted();
+            buffer.flushTo(outputWriter);
+        }
+    }
+
+    /**
+     * Wait for the given collection, the timeout of the collector starts when the collection actually starts in a
+     * collector thread.
+     *
+     * @throws TimeoutException if the collection did not complete within the timeout of the collector
+     */
+    private QueryResultsBuffer awaitCollection(CollectorTask task, Future<QueryResultsBuffer> future) throws ExecutionException, InterruptedException, TimeoutException {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(task.collector.getCollectTimeoutMillis());
+        if (timeoutNanos == 0) {
+            return future.get();
+        }
+        while (true) {
+            long startNanos = task.startNanos;
+            long waitNanos;
+            if (startNanos == 0) {
+                // not started yet, all the collector threads are busy
+                waitNanos = timeoutNanos;
+            } else {
+                waitNanos = startNanos + timeoutNanos - System.nanoTime();
+                if (waitNanos <= 0 && !future.isDone()) {
+                    throw new TimeoutException();
+                }
+            }
+            try {
+                return future.get(Math.max(waitNanos, 1), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // check the deadline again, the collection may have started while waiting
+            }
+        }
+    }
+
+    private void onCollectionTimeout(TimeTrackingCollector collector) {
+        long quarantineMillis = collector.onCollectionTimeout();
+        if (quarantineMillis > 0) {
+            logger.warning("Quarantine collector " + collector + " for " + quarantineMillis + "ms after " +
+                    "repeated timeouts (" + collector.getTimeoutsCount() + " timeouts so far)");
+            collectorScheduler.postpone(collector, collectorScheduler.currentMillis() + quarantineMillis);
+        }
+    }
+
+    /**
+     * Grow or shrink the collector threads pool, a thread hung in an abandoned collection is replaced by a new one
+     * until the collection eventually completes.
+     */
+    private static void resizeCollectorExecutorService(ThreadPoolExecutor collectorExecutorService, int delta) {
+        synchronized (collectorExecutorService) {
+            if (delta > 0) {
+                collectorExecutorService.setMaximumPoolSize(collectorExecutorService.getMaximumPoolSize() + delta);
+                collectorExecutorService.setCorePoolSize(collectorExecutorService.getCorePoolSize() + delta);
+            } else {
+                collectorExecutorService.setCorePoolSize(collectorExecutorService.getCorePoolSize() + delta);
+                collectorExecutorService.setMaximumPoolSize(collectorExecutorService.getMaximumPoolSize() + delta);
+            }
+        }
+    }
+
+    private void registerAgentMetrics() {
+        try {
+            mbeanServer.registerMBean(agentMetrics, AgentMetrics.OBJECT_NAME);
+            agentMetricsRegistered = true;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Failure to register " + AgentMetrics.OBJECT_NAME + ", another agent may be running", e);
+        }
+    }
+
+    private void unregisterAgentMetrics() {
+        if (!agentMetricsRegistered) {
+            return;
+        }
+        try {
+            mbeanServer.unregisterMBean(AgentMetrics.OBJECT_NAME);
+        } catch (JMException e) {
+            logger.log(Level.FINE, "Failure to unregister " + AgentMetrics.OBJECT_NAME, e);
+        }
+        agentMetricsRegistered = false;
+    }
+
+    /**
+     * @return the self-monitoring metrics of this exporter
+     */
+    public AgentMetrics getAgentMetrics() {
+        return agentMetrics;
+    }
+
+    List<TimeTrackingCollector> getCollectors() {
+        return collectors;
+    }
+
+    @Nullable
+    MBeanRegistryCache getMBeanRegistryCache() {
+        return mbeanRegistryCache;
+    }
+
+    OutputWriter getOutputWriter() {
+        return config.getOutputWriter();
+    }
+
+    /**
+     * @return number of wall clock aligned ticks skipped because of too long collections, see {@link JmxTransExporterConfiguration#isAlignCollections()}
+     */
+    public long getSkippedTicksCount() {
+        return collectorScheduler.getSkippedTicksCount();
+    }
+
+    /**
+     * @return number of collections abandoned because they did not complete within the timeout of their collector
+     */
+    public long getAbandonedCollectionsCount() {
+        return abandonedCollectionsCounter.get();
+    }
+
+    /**
+     * @return number of collections skipped because the previous abandoned collection of their collector was still running
+     */
+    public long getSkippedCollectionsCount() {
+        return skippedCollectionsCounter.get();
+    }
+
+    private class CollectorTask implements Callable<QueryResultsBuffer> {
+        private static final int RUNNING = 0;
+        private static final int COMPLETED = 1;
+        private static final int ABANDONED = 2;
+
+        final TimeTrackingCollector collector;
+        final ThreadPoolExecutor collectorExecutorService;
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+        volatile long startNanos;
+
+        CollectorTask(TimeTrackingCollector collector, ThreadPoolExecutor collectorExecutorService) {
+            this.collector = collector;
+            this.collectorExecutorService = collectorExecutorService;
+        }
+
+        @Override
+        public QueryResultsBuffer call() throws Exception {
+            startNanos = System.nanoTime();
+            try {
+                QueryResultsBuffer buffer = new QueryResultsBuffer();
+                collector.collect(mbeanServer, buffer);
+                return buffer;
+            } finally {
+                if (!state.compareAndSet(RUNNING, COMPLETED)) {
+                    // the thread that replaced this one while it was hung is no longer needed
+                    resizeCollectorExecutorService(collectorExecutorService, -1);
+                }
+            }
+        }
+
+        /**
+         * Abandon this collection and, if it is still running, add a collector thread to replace the hung one.
+         */
+        void abandon() {
+            if (state.compareAndSet(RUNNING, ABANDONED)) {
+                resizeCollectorExecutorService(collectorExecutorService, 1);
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "JmxTransExporter{" +
@@ -30,6 +30,7 @@ import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import org.jmxtrans.agent.util.Preconditions2;
 import org.w3c.dom.Document;
 
 /**
@@ -55,6 +56,16 @@ public class JmxTransExporterConfiguration {
     protected int collectInterval = 10;
     protected TimeUnit collectIntervalTimeUnit = TimeUnit.SECONDS;
     private int configReloadInterval = -1; // -1 == never (0 = check very often, < 10ms between checks)
+    private int collectorThreads = 1; // 1 == collectors are run sequentially by the exporter thread
+    private boolean spreadCollectors = false;
+    private int collectJitterInMillis = 0;
+    private boolean cacheObjectNames = true;
+    private boolean alignCollections = false;
+    private CollectorScheduler.OverrunPolicy collectionOverrunPolicy = CollectorScheduler.OverrunPolicy.SKIP;
+    private int collectTimeoutInMillis = 0; // 0 == collectors have no timeout
+    private int mbeanInfoCacheTimeToLiveInSeconds = 0; // 0 == evicted only when the MBean is unregistered
+    private boolean registerAgentMetricsMBean = true;
+    private String agentMetricsPrefix = null; // null == agent metrics are not exported
     private Document document;
 
     /**
@@ -100,6 +111,105 @@ public class JmxTransExporterConfiguration {
         return this;
     }
 
+    /**
+     * @param collectorThreads number of threads used to run the collectors of a collection cycle concurrently,
+     *                         {@code 1} to run them sequentially in the exporter thread.
+     */
+    public JmxTransExporterConfiguration withCollectorThreads(int collectorThreads) {
+        if (collectorThreads < 1) {
+            throw new IllegalArgumentException("collectorThreads must be >= 1, was: " + collectorThreads);
+        }
+        this.collectorThreads = collectorThreads;
+        return this;
+    }
+
+    /**
+     * @param spreadCollectors spread the runs of the collectors sharing the same collect interval over this interval
+     *                         instead of running them all at the same time.
+     */
+    public JmxTransExporterConfiguration withSpreadCollectors(boolean spreadCollectors) {
+        this.spreadCollectors = spreadCollectors;
+        return this;
+    }
+
+    /**
+     * @param collectJitterInMillis max random delay added to the collect interval of each collector run, {@code 0} to disable.
+     */
+    public JmxTransExporterConfiguration withCollectJitterInMillis(int collectJitterInMillis) {
+        if (collectJitterInMillis < 0) {
+            throw new IllegalArgumentException("collectJitterInMillis must be >= 0, was: " + collectJitterInMillis);
+        }
+        this.collectJitterInMillis = collectJitterInMillis;
+        return this;
+    }
+
+    /**
+     * @param cacheObjectNames cache the {@link javax.management.ObjectName}s resolved by the queries and invocations,
+     *                         see {@link MBeanRegistryCache}.
+     */
+    public JmxTransExporterConfiguration withCacheObjectNames(boolean cacheObjectNames) {
+        this.cacheObjectNames = cacheObjectNames;
+        return this;
+    }
+
+    /**
+     * @param alignCollections run the collections at fixed rate, on the wall clock multiples of the collect intervals,
+     *                         see {@link CollectorScheduler}.
+     */
+    public JmxTransExporterConfiguration withAlignCollections(boolean alignCollections) {
+        this.alignCollections = alignCollections;
+        return this;
+    }
+
+    /**
+     * @param collectionOverrunPolicy what to do with the aligned ticks missed because of a too long collection
+     */
+    public JmxTransExporterConfiguration withCollectionOverrunPolicy(@Nonnull CollectorScheduler.OverrunPolicy collectionOverrunPolicy) {
+        this.collectionOverrunPolicy = Preconditions2.checkNotNull(collectionOverrunPolicy, "collectionOverrunPolicy");
+        return this;
+    }
+
+    /**
+     * @param collectTimeoutInMillis default max duration of a query or invocation collection before it is abandoned for
+     *                               this collection, {@code 0} for no timeout.
+     */
+    public JmxTransExporterConfiguration withCollectTimeoutInMillis(int collectTimeoutInMillis) {
+        if (collectTimeoutInMillis < 0) {
+            throw new IllegalArgumentException("collectTimeoutInMillis must be >= 0, was: " + collectTimeoutInMillis);
+        }
+        this.collectTimeoutInMillis = collectTimeoutInMillis;
+        return this;
+    }
+
+    /**
+     * @param mbeanInfoCacheTimeToLiveInSeconds time to live of the attribute names cached for the queries without attribute,
+     *                                          {@code 0} to evict them only when the MBean is unregistered.
+     */
+    public JmxTransExporterConfiguration withMBeanInfoCacheTimeToLiveInSeconds(int mbeanInfoCacheTimeToLiveInSeconds) {
+        if (mbeanInfoCacheTimeToLiveInSeconds < 0) {
+            throw new IllegalArgumentException("mbeanInfoCacheTimeToLiveInSeconds must be >= 0, was: " + mbeanInfoCacheTimeToLiveInSeconds);
+        }
+        this.mbeanInfoCacheTimeToLiveInSeconds = mbeanInfoCacheTimeToLiveInSeconds;
+        return this;
+    }
+
+    /**
+     * @param registerAgentMetricsMBean register the {@link AgentMetricsMXBean} of the exporter in the platform MBean server
+     */
+    public JmxTransExporterConfiguration withRegisterAgentMetricsMBean(boolean registerAgentMetricsMBean) {
+        this.registerAgentMetricsMBean = registerAgentMetricsMBean;
+        return this;
+    }
+
+    /**
+     * @param agentMetricsPrefix prefix of the names of the agent metrics exported with the collected results,
+     *                           {@code null} to not export them
+     */
+    public JmxTransExporterConfiguration withAgentMetricsPrefix(@Nullable String agentMetricsPrefix) {
+        this.agentMetricsPrefix = agentMetricsPrefix;
+        return this;
+    }
+
     public List<Query> getQueries() {
         return queries;
     }
@@ -133,6 +243,16 @@ public class JmxTransExporterConfiguration {
                 ", collectInterval=" + collectInterval +
                 " " + collectIntervalTimeUnit +
                 ", configReloadInterval=" + configReloadInterval +
+                ", collectorThreads=" + collectorThreads +
+                ", spreadCollectors=" + spreadCollectors +
+                ", collectJitterInMillis=" + collectJitterInMillis +
+                ", alignCollections=" + alignCollections +
+                ", collectionOverrunPolicy=" + collectionOverrunPolicy +
+                ", collectTimeoutInMillis=" + collectTimeoutInMillis +
+                ", cacheObjectNames=" + cacheObjectNames +
+                ", mbeanInfoCacheTimeToLiveInSeconds=" + mbeanInfoCacheTimeToLiveInSeconds +
+                ", registerAgentMetricsMBean=" + registerAgentMetricsMBean +
+                ", agentMetricsPrefix=" + agentMetricsPrefix +
                 '}';
     }
 
@@ -140,6 +260,48 @@ public class JmxTransExporterConfiguration {
         return configReloadInterval;
     }
 
+    public int getCollectorThreads() {
+        return collectorThreads;
+    }
+
+    public boolean isSpreadCollectors() {
+        return spreadCollectors;
+    }
+
+    public int getCollectJitterInMillis() {
+        return collectJitterInMillis;
+    }
+
+    public boolean isAlignCollections() {
+        return alignCollections;
+    }
+
+    @Nonnull
+    public CollectorScheduler.OverrunPolicy getCollectionOverrunPolicy() {
+        return collectionOverrunPolicy;
+    }
+
+    public int getCollectTimeoutInMillis() {
+        return collectTimeoutInMillis;
+    }
+
+    public boolean isCacheObjectNames() {
+        return cacheObjectNames;
+    }
+
+    public int getMBeanInfoCacheTimeToLiveInSeconds() {
+        return mbeanInfoCacheTimeToLiveInSeconds;
+    }
+
+    public boolean isRegisterAgentMetricsMBean() {
+        return registerAgentMetricsMBean;
+    }
+
+    @Nullable
+    public String getAgentMetricsPrefix() {
+        return agentMetricsPrefix;
+    }
+
     public Document getDocument() {
         return document;
     }
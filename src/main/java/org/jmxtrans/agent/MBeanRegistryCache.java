@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.Preconditions2;
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.relation.MBeanServerNotificationFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Cache of the {@link ObjectName}s matching the patterns of the queries and invocations, kept up to date listening to the
+ * registration and unregistration notifications of the {@link MBeanServerDelegate}.
+ *
+ * Once warmed up, resolving the {@link ObjectName}s of a query does not scan the MBean registry anymore
+ * ({@link MBeanServer#queryNames(ObjectName, javax.management.QueryExp)} is costly on servers with tens of thousands of MBeans).
+ *
+ * Also caches the attribute names of the MBeans collected by the queries without attribute
+ * ({@link MBeanServer#getMBeanInfo(ObjectName)} is costly for many dynamic MBeans). Cached attribute names are evicted
+ * when the MBean is unregistered and, optionally, after a time to live for the dynamic MBeans whose attributes change.
+ *
+ * If the listener can not be registered, the cache is disabled and all the lookups are delegated to the {@link MBeanServer}.
+ */
+public class MBeanRegistryCache implements NotificationListener {
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final MBeanServer mbeanServer;
+    private final ConcurrentMap<ObjectName, Set<ObjectName>> objectNamesByPattern = new ConcurrentHashMap<>();
+    /**
+     * Incremented on each registration / unregistration, used to detect changes while scanning the registry.
+     */
+    private final AtomicLong registryModificationsCounter = new AtomicLong();
+    private final ConcurrentMap<ObjectName, CachedAttributeNames> attributeNamesByObjectName = new ConcurrentHashMap<>();
+    /**
+     * {@code 0} if the cached attribute names never expire.
+     */
+    private final long attributeNamesTimeToLiveInNanos;
+    private final AtomicLong attributeNamesCacheHits = new AtomicLong();
+    private final AtomicLong attributeNamesCacheMisses = new AtomicLong();
+    private final List<UnregistrationListener> unregistrationListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean listening;
+
+    public MBeanRegistryCache(@Nonnull MBeanServer mbeanServer) {
+        this(mbeanServer, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param attributeNamesTimeToLive time to live of the cached attribute names, {@code 0} to evict them only when the MBean is unregistered
+     */
+    public MBeanRegistryCache(@Nonnull MBeanServer mbeanServer, long attributeNamesTimeToLive, @Nonnull TimeUnit attributeNamesTimeToLiveUnit) {
+        this.mbeanServer = Preconditions2.checkNotNull(mbeanServer, "mbeanServer");
+        if (attributeNamesTimeToLive < 0) {
+            throw new IllegalArgumentException("attributeNamesTimeToLive must be >= 0, was: " + attributeNamesTimeToLive);
+        }
+        this.attributeNamesTimeToLiveInNanos = attributeNamesTimeToLiveUnit.toNanos(attributeNamesTimeToLive);
+    }
+
+    /**
+     * Resolve the given {@code objectName} with the {@code cache} if it is bound to the given {@code mbeanServer},
+     * otherwise with {@link MBeanServer#queryNames(ObjectName, javax.management.QueryExp)}.
+     */
+    @Nonnull
+    public static Set<ObjectName> queryNames(@Nullable MBeanRegistryCache cache, @Nonnull MBeanServer mbeanServer, @Nullable ObjectName objectName) {
+        if (cache != null && cache.getMBeanServer() == mbeanServer) {
+            return cache.queryNames(objectName);
+        }
+        return mbeanServer.queryNames(objectName, null);
+    }
+
+    /**
+     * Get the attribute names of the given MBean with the {@code cache} if it is bound to the given {@code mbeanServer},
+     * otherwise with {@link MBeanServer#getMBeanInfo(ObjectName)}.
+     */
+    @Nonnull
+    public static List<String> getAttributeNames(@Nullable MBeanRegistryCache cache, @Nonnull MBeanServer mbeanServer, @Nonnull ObjectName objectName)
+            throws IntrospectionException, InstanceNotFoundException, ReflectionException {
+        if (cache != null && cache.getMBeanServer() == mbeanServer) {
+            return cache.getAttributeNames(objectName);
+        }
+        return readAttributeNames(mbeanServer, objectName);
+    }
+
+    /**
+     * Start listening to the registration and unregistration of MBeans.
+     */
+    public void start() {
+        MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+        try {
+            mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+            listening = true;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failure to listen to MBeans registrations, ObjectNames will not be cached", e);
+        }
+    }
+
+    public void stop() {
+        if (listening) {
+            listening = false;
+            try {
+                mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Ignore exception removing MBeans registrations listener", e);
+            }
+        }
+        objectNamesByPattern.clear();
+        attributeNamesByObjectName.clear();
+    }
+
+    /**
+     * @param objectName the {@link ObjectName} or pattern to resolve, {@code null} for all the MBeans
+     * @return the registered {@link ObjectName}s matching the given {@code objectName}
+     * @see MBeanServer#queryNames(ObjectName, javax.management.QueryExp)
+     */
+    @Nonnull
+    public Set<ObjectName> queryNames(@Nullable ObjectName objectName) {
+        ObjectName pattern = objectName == null ? ObjectName.WILDCARD : objectName;
+        if (!listening) {
+            return mbeanServer.queryNames(pattern, null);
+        }
+        Set<ObjectName> objectNames = objectNamesByPattern.get(pattern);
+        if (objectNames != null) {
+            return Collections.unmodifiableSet(objectNames);
+        }
+
+        long registryModificationsBeforeScan = registryModificationsCounter.get();
+        Set<ObjectName> scannedObjectNames = mbeanServer.queryNames(pattern, null);
+        objectNames = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+        objectNames.addAll(scannedObjectNames);
+        objectNamesByPattern.put(pattern, objectNames);
+        if (registryModificationsCounter.get() != registryModificationsBeforeScan) {
+            // a MBean has been (un)registered during the scan, the result may be stale: don't cache it
+            objectNamesByPattern.remove(pattern, objectNames);
+        }
+        return Collections.unmodifiableSet(objectNames);
+    }
+
+    /**
+     * @param objectName name of a registered MBean (not a pattern)
+     * @return the names of the attributes of the given MBean
+     * @see MBeanServer#getMBeanInfo(ObjectName)
+     */
+    @Nonnull
+    public List<String> getAttributeNames(@Nonnull ObjectName objectName) throws IntrospectionException, InstanceNotFoundException, ReflectionException {
+        if (!listening) {
+            // can not be evicted on unregistration, don't cache
+            attributeNamesCacheMisses.incrementAndGet();
+            return readAttributeNames(mbeanServer, objectName);
+        }
+        CachedAttributeNames cachedAttributeNames = attributeNamesByObjectName.get(objectName);
+        long nowInNanos = System.nanoTime();
+        if (cachedAttributeNames != null && !cachedAttributeNames.isExpired(nowInNanos)) {
+            attributeNamesCacheHits.incrementAndGet();
+            return cachedAttributeNames.attributeNames;
+        }
+        attributeNamesCacheMisses.incrementAndGet();
+        long registryModificationsBeforeRead = registryModificationsCounter.get();
+        List<String> attributeNames = readAttributeNames(mbeanServer, objectName);
+        CachedAttributeNames newCachedAttributeNames = new CachedAttributeNames(attributeNames,
+                attributeNamesTimeToLiveInNanos == 0 ? Long.MAX_VALUE : nowInNanos + attributeNamesTimeToLiveInNanos);
+        attributeNamesByObjectName.put(objectName, newCachedAttributeNames);
+        if (registryModificationsCounter.get() != registryModificationsBeforeRead) {
+            // the MBean may have been unregistered during the read: don't cache it
+            attributeNamesByObjectName.remove(objectName, newCachedAttributeNames);
+        }
+        return attributeNames;
+    }
+
+    @Nonnull
+    private static List<String> readAttributeNames(@Nonnull MBeanServer mbeanServer, @Nonnull ObjectName objectName)
+            throws IntrospectionException, InstanceNotFoundException, ReflectionException {
+        MBeanAttributeInfo[] attributeInfos = mbeanServer.getMBeanInfo(objectName).getAttributes();
+        List<String> attributeNames = new ArrayList<>(attributeInfos.length);
+        for (MBeanAttributeInfo attributeInfo : attributeInfos) {
+            attributeNames.add(attributeInfo.getName());
+        }
+        return Collections.unmodifiableList(attributeNames);
+    }
+
+    /**
+     * @return number of {@link #getAttributeNames(ObjectName)} calls served by the cache
+     */
+    public long getAttributeNamesCacheHits() {
+        return attributeNamesCacheHits.get();
+    }
+
+    /**
+     * @return number of {@link #getAttributeNames(ObjectName)} calls that required a {@link MBeanServer#getMBeanInfo(ObjectName)}
+     */
+    public long getAttributeNamesCacheMisses() {
+        return attributeNamesCacheMisses.get();
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!(notification instanceof MBeanServerNotification)) {
+            return;
+        }
+        registryModificationsCounter.incrementAndGet();
+        ObjectName mbeanName = ((MBeanServerNotification) notification).getMBeanName();
+        if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            for (Map.Entry<ObjectName, Set<ObjectName>> entry : objectNamesByPattern.entrySet()) {
+                if (entry.getKey().apply(mbeanName)) {
+                    entry.getValue().add(mbeanName);
+                }
+            }
+        } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            for (Set<ObjectName> objectNames : objectNamesByPattern.values()) {
+                objectNames.remove(mbeanName);
+            }
+            attributeNamesByObjectName.remove(mbeanName);
+            for (UnregistrationListener unregistrationListener : unregistrationListeners) {
+                try {
+                    unregistrationListener.onMBeanUnregistered(mbeanName);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Exception notifying " + unregistrationListener + " of the unregistration of " + mbeanName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notify the given listener of the MBeans unregistered while this cache is started.
+     */
+    public void addUnregistrationListener(@Nonnull UnregistrationListener unregistrationListener) {
+        unregistrationListeners.add(Preconditions2.checkNotNull(unregistrationListener, "unregistrationListener"));
+    }
+
+    @Nonnull
+    public MBeanServer getMBeanServer() {
+        return mbeanServer;
+    }
+
+    @Override
+    public String toString() {
+        return "MBeanRegistryCache{" +
+                "listening=" + listening +
+                ", cachedPatterns=" + objectNamesByPattern.size() +
+                ", cachedAttributeNames=" + attributeNamesByObjectName.size() +
+                ", attributeNamesCacheHits=" + attributeNamesCacheHits +
+                ", attributeNamesCacheMisses=" + attributeNamesCacheMisses +
+                '}';
+    }
+
+    /**
+     * Listener of the unregistration of MBeans, used to evict the data associated to them.
+     */
+    public interface UnregistrationListener {
+        void onMBeanUnregistered(@Nonnull ObjectName objectName);
+    }
+
+    private static class CachedAttributeNames {
+        final List<String> attributeNames;
+        final long expirationInNanos;
+
+        CachedAttributeNames(List<String> attributeNames, long expirationInNanos) {
+            this.attributeNames = attributeNames;
+            this.expirationInNanos = expirationInNanos;
+        }
+
+        boolean isExpired(long nowInNanos) {
+            return expirationInNanos != Long.MAX_VALUE && nowInNanos - expirationInNanos >= 0;
+        }
+    }
+}
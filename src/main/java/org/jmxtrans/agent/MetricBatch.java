@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.Preconditions2;
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Immutable results of a collection, stored in columns: names, types, a primitive {@code long} and {@code double}
+ * value column and a side column for the non numeric values. All the results share the timestamp of the collection.
+ *
+ * {@link Long}, {@link Integer} and {@link Double} values are stored in the primitive columns, other values
+ * (e.g. {@link Float}, {@link java.math.BigDecimal}, {@link String}, {@link Boolean}) are kept as is in the side column
+ * so that {@link #getValue(int)} returns a value formatted like the collected one.
+ *
+ * @see BatchOutputWriter
+ */
+public final class MetricBatch {
+
+    private final static Logger logger = Logger.getLogger(MetricBatch.class.getName());
+
+    private static final byte KIND_OBJECT = 0;
+    private static final byte KIND_LONG = 1;
+    private static final byte KIND_INTEGER = 2;
+    private static final byte KIND_DOUBLE = 3;
+
+    private final long timestampInMillis;
+    private final int size;
+    private final String[] names;
+    private final String[] types;
+    private final boolean[] invocationResults;
+    private final byte[] kinds;
+    private final long[] longValues;
+    private final double[] doubleValues;
+    private final Object[] objectValues;
+
+    private MetricBatch(long timestampInMillis, @Nonnull Builder builder) {
+        this.timestampInMillis = timestampInMillis;
+        this.size = builder.size;
+        this.names = Arrays.copyOf(builder.names, size);
+        this.types = Arrays.copyOf(builder.types, size);
+        this.invocationResults = Arrays.copyOf(builder.invocationResults, size);
+        this.kinds = Arrays.copyOf(builder.kinds, size);
+        this.longValues = Arrays.copyOf(builder.longValues, size);
+        this.doubleValues = Arrays.copyOf(builder.doubleValues, size);
+        this.objectValues = Arrays.copyOf(builder.objectValues, size);
+    }
+
+    /**
+     * @return the time of the collection, in milliseconds since the epoch
+     */
+    public long getTimestampInMillis() {
+        return timestampInMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the metric name of a query result or the invocation name of an invocation result
+     */
+    @Nonnull
+    public String getName(int index) {
+        checkIndex(index);
+        return names[index];
+    }
+
+    /**
+     * @return the metric type, see {@link Query#type}, always {@code null} for invocation results
+     */
+    @Nullable
+    public String getType(int index) {
+        checkIndex(index);
+        return types[index];
+    }
+
+    /**
+     * @return {@code true} if the result was written with {@link OutputWriter#writeInvocationResult(String, Object)}
+     */
+    public boolean isInvocationResult(int index) {
+        checkIndex(index);
+        return invocationResults[index];
+    }
+
+    /**
+     * @return {@code true} if the value is an integral number available with {@link #getLongValue(int)}
+     */
+    public boolean isLongValue(int index) {
+        checkIndex(index);
+        return kinds[index] == KIND_LONG || kinds[index] == KIND_INTEGER;
+    }
+
+    public long getLongValue(int index) {
+        if (!isLongValue(index)) {
+            throw new IllegalStateException("Value of '" + names[index] + "' is not an integral number");
+        }
+        return longValues[index];
+    }
+
+    /**
+     * @return {@code true} if the value is a {@link Double} available with {@link #getDoubleValue(int)}
+     */
+    public boolean isDoubleValue(int index) {
+        checkIndex(index);
+        return kinds[index] == KIND_DOUBLE;
+    }
+
+    public double getDoubleValue(int index) {
+        if (!isDoubleValue(index)) {
+            throw new IllegalStateException("Value of '" + names[index] + "' is not a double");
+        }
+        return doubleValues[index];
+    }
+
+    /**
+     * @return the value as it was written, boxing the primitive values
+     */
+    @Nullable
+    public Object getValue(int index) {
+        checkIndex(index);
+        switch (kinds[index]) {
+            case KIND_LONG:
+                return longValues[index];
+            case KIND_INTEGER:
+                return (int) longValues[index];
+            case KIND_DOUBLE:
+                return doubleValues[index];
+            default:
+                return objectValues[index];
+        }
+    }
+
+    /**
+     * Write this batch on the given {@code outputWriter}: {@link BatchOutputWriter#writeBatch(MetricBatch)} for a
+     * {@link BatchOutputWriter}, otherwise {@link OutputWriter#preCollect()}, one write per result and
+     * {@link OutputWriter#postCollect()}. The exceptions writing a result are logged and ignored,
+     * {@link OutputWriter#postCollect()} is always invoked.
+     */
+    public void writeTo(@Nonnull OutputWriter outputWriter) throws IOException {
+        if (outputWriter instanceof BatchOutputWriter) {
+            ((BatchOutputWriter) outputWriter).writeBatch(this);
+            return;
+        }
+        outputWriter.preCollect();
+        try {
+            for (int i = 0; i < size; i++) {
+                try {
+                    writeResultTo(outputWriter, i);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Ignore exception writing " + names[i] + " on " + outputWriter, e);
+                }
+            }
+        } finally {
+            outputWriter.postCollect();
+        }
+    }
+
+    /**
+     * Write the results of this batch one by one, without {@link OutputWriter#preCollect()} and
+     * {@link OutputWriter#postCollect()}.
+     */
+    void writeResultsTo(@Nonnull OutputWriter outputWriter) throws IOException {
+        for (int i = 0; i < size; i++) {
+            writeResultTo(outputWriter, i);
+        }
+    }
+
+    void writeResultTo(@Nonnull OutputWriter outputWriter, int index) throws IOException {
+        if (invocationResults[index]) {
+            outputWriter.writeInvocationResult(names[index], getValue(index));
+        } else {
+            outputWriter.writeQueryResult(names[index], types[index], getValue(index));
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MetricBatch{" +
+                "timestampInMillis=" + timestampInMillis +
+                ", size=" + size +
+                '}';
+    }
+
+    /**
+     * {@link OutputWriter} that collects the results written by the collectors to build a {@link MetricBatch}.
+     * Not thread safe.
+     */
+    public static class Builder implements OutputWriter {
+        private int size;
+        private String[] names;
+        private String[] types;
+        private boolean[] invocationResults;
+        private byte[] kinds;
+        private long[] longValues;
+        private double[] doubleValues;
+        private Object[] objectValues;
+
+        public Builder() {
+            this(64);
+        }
+
+        public Builder(int initialCapacity) {
+            Preconditions2.checkArgument(initialCapacity > 0, "initialCapacity must be > 0");
+            names = new String[initialCapacity];
+            types = new String[initialCapacity];
+            invocationResults = new boolean[initialCapacity];
+            kinds = new byte[initialCapacity];
+            longValues = new long[initialCapacity];
+            doubleValues = new double[initialCapacity];
+            objectValues = new Object[initialCapacity];
+        }
+
+        @Nonnull
+        public Builder add(@Nonnull String name, @Nullable String type, @Nullable Object value, boolean invocationResult) {
+            Preconditions2.checkNotNull(name, "name");
+            if (size == names.length) {
+                int newCapacity = names.length * 2;
+                names = Arrays.copyOf(names, newCapacity);
+                types = Arrays.copyOf(types, newCapacity);
+                invocationResults = Arrays.copyOf(invocationResults, newCapacity);
+                kinds = Arrays.copyOf(kinds, newCapacity);
+                longValues = Arrays.copyOf(longValues, newCapacity);
+                doubleValues = Arrays.copyOf(doubleValues, newCapacity);
+                objectValues = Arrays.copyOf(objectValues, newCapacity);
+            }
+            names[size] = name;
+            types[size] = type;
+            invocationResults[size] = invocationResult;
+            if (value instanceof Long) {
+                kinds[size] = KIND_LONG;
+                longValues[size] = (Long) value;
+            } else if (value instanceof Integer) {
+                kinds[size] = KIND_INTEGER;
+                longValues[size] = (Integer) value;
+            } else if (value instanceof Double) {
+                kinds[size] = KIND_DOUBLE;
+                doubleValues[size] = (Double) value;
+            } else {
+                kinds[size] = KIND_OBJECT;
+                objectValues[size] = value;
+            }
+            size++;
+            return this;
+        }
+
+        /**
+         * @param timestampInMillis time of the collection, in milliseconds since the epoch
+         */
+        @Nonnull
+        public MetricBatch build(long timestampInMillis) {
+            return new MetricBatch(timestampInMillis, this);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void postConstruct(@Nonnull Map<String, String> settings) {
+        }
+
+        @Override
+        public void preDestroy() {
+        }
+
+        @Override
+        public void preCollect() throws IOException {
+        }
+
+        @Override
+        public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+            add(metricName, metricType, value, false);
+        }
+
+        @Override
+        public void postCollect() throws IOException {
+        }
+
+        @Override
+        public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+            add(invocationName, null, value, true);
+        }
+    }
+}
@@ -29,6 +29,11 @@ import java.io.IOException;
 import java.util.Map;
 
 /**
+ * <p>Threading contract: the {@link JmxTransExporter} invokes the methods of an {@code OutputWriter} from a single thread
+ * at a time. The results of a collection are buffered and delivered sequentially, in the declaration order of the
+ * collectors, between {@link #preCollect()} and {@link #postCollect()} (or at once to a {@link BatchOutputWriter}).
+ * Implementations don't have to be thread safe.</p>
+ *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
 public interface OutputWriter {
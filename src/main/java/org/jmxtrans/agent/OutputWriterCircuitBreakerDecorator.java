@@ -27,26 +27,146 @@ import org.jmxtrans.agent.util.logging.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.File;
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import static org.jmxtrans.agent.util.ConfigurationUtils.getBoolean;
+import static org.jmxtrans.agent.util.ConfigurationUtils.getInt;
+import static org.jmxtrans.agent.util.ConfigurationUtils.getLong;
+import static org.jmxtrans.agent.util.ConfigurationUtils.getString;
 
 /**
+ * Circuit breaker of the decorated {@link OutputWriter}, see {@link State}.
+ *
+ * The circuit is opened after {@code circuitBreakerMaxFailures} consecutive failures or when the
+ * {@code circuitBreakerLatencyPercentile} of the write time of the last {@code circuitBreakerLatencyWindowSize} cycles
+ * exceeds {@code circuitBreakerLatencyThresholdInMillis}, the percentile being evaluated as soon as
+ * {@code circuitBreakerLatencyMinSamples} cycles have been written. It stays open {@code circuitBreakerDisableDurationInMillis},
+ * doubled on each consecutive trip up to {@code circuitBreakerMaxDisableDurationInMillis}, then a single probe cycle
+ * is written (half-open state) to decide whether the circuit is closed or opened again.
+ *
+ * When a {@code spoolDirectory} is configured and the delegate is a {@link BatchOutputWriter}, the results received while
+ * the circuit is open are appended to a {@link DiskSpool} and replayed by a background thread, in the collection
+ * order and at most at {@code spoolReplayRateInMetricsPerSecond}, once the writer is re-enabled. The replayed batches
+ * keep the timestamp of their collection.
+ *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
+public class OutputWriterCircuitBreakerDecorator implements BatchOutputWriter {
     public final static String SETTING_ENABLED = "enabled";
+    public final static String SETTING_MAX_FAILURES = "circuitBreakerMaxFailures";
+    public final static int SETTING_MAX_FAILURES_DEFAULT_VALUE = 5;
+    public final static String SETTING_DISABLE_DURATION_IN_MILLIS = "circuitBreakerDisableDurationInMillis";
+    public final static long SETTING_DISABLE_DURATION_IN_MILLIS_DEFAULT_VALUE = 60 * 1000;
+    public final static String SETTING_MAX_DISABLE_DURATION_IN_MILLIS = "circuitBreakerMaxDisableDurationInMillis";
+    public final static long SETTING_MAX_DISABLE_DURATION_IN_MILLIS_DEFAULT_VALUE = 15 * 60 * 1000;
+    public final static String SETTING_LATENCY_THRESHOLD_IN_MILLIS = "circuitBreakerLatencyThresholdInMillis";
+    public final static String SETTING_LATENCY_PERCENTILE = "circuitBreakerLatencyPercentile";
+    public final static int SETTING_LATENCY_PERCENTILE_DEFAULT_VALUE = 99;
+    public final static String SETTING_LATENCY_WINDOW_SIZE = "circuitBreakerLatencyWindowSize";
+    public final static int SETTING_LATENCY_WINDOW_SIZE_DEFAULT_VALUE = 100;
+    public final static String SETTING_LATENCY_MIN_SAMPLES = "circuitBreakerLatencyMinSamples";
+    public final static int SETTING_LATENCY_MIN_SAMPLES_DEFAULT_VALUE = 20;
+    public final static String SETTING_SPOOL_DIRECTORY = "spoolDirectory";
+    public final static String SETTING_SPOOL_SEGMENT_SIZE_IN_BYTES = "spoolSegmentSizeInBytes";
+    public final static int SETTING_SPOOL_SEGMENT_SIZE_IN_BYTES_DEFAULT_VALUE = 4 * 1024 * 1024;
+    public final static String SETTING_SPOOL_MAX_SIZE_IN_BYTES = "spoolMaxSizeInBytes";
+    public final static long SETTING_SPOOL_MAX_SIZE_IN_BYTES_DEFAULT_VALUE = 64 * 1024 * 1024;
+    public final static String SETTING_SPOOL_MAX_AGE_IN_SECONDS = "spoolMaxAgeInSeconds";
+    public final static long SETTING_SPOOL_MAX_AGE_IN_SECONDS_DEFAULT_VALUE = 3600;
+    public final static String SETTING_SPOOL_REPLAY_RATE = "spoolReplayRateInMetricsPerSecond";
+    public final static int SETTING_SPOOL_REPLAY_RATE_DEFAULT_VALUE = 1000;
+    /**
+     * Pause of the replay thread when there is nothing to replay.
+     */
+    private final static long SPOOL_IDLE_PAUSE_IN_MILLIS = 1000;
+    /**
+     * Pause of the replay thread when a live cycle is in progress or when a replay failed.
+     */
+    private final static long SPOOL_RETRY_PAUSE_IN_MILLIS = 10;
+
     protected final Logger logger;
     protected final OutputWriter delegate;
     private boolean enabled = true;
-    private int maxFailures = 5;
-    private long disableDurationInMillis = 60 * 1000;
+    private int maxFailures = SETTING_MAX_FAILURES_DEFAULT_VALUE;
+    private long disableDurationInMillis = SETTING_DISABLE_DURATION_IN_MILLIS_DEFAULT_VALUE;
+    private long maxDisableDurationInMillis = SETTING_MAX_DISABLE_DURATION_IN_MILLIS_DEFAULT_VALUE;
     private AtomicInteger failuresCounter = new AtomicInteger();
-    private long disabledUntil = 0;
+    private volatile long disabledUntil = 0;
+    private volatile State state = State.CLOSED;
+    /**
+     * Number of times the circuit has been opened since it was last closed, guarded by {@code this}.
+     */
+    private int consecutiveTrips;
+    private long latencyThresholdInNanos;
+    private int latencyPercentile = SETTING_LATENCY_PERCENTILE_DEFAULT_VALUE;
+    /**
+     * Write durations of the last cycles, guarded by {@code this}.
+     */
+    private long[] cycleLatenciesInNanos = new long[SETTING_LATENCY_WINDOW_SIZE_DEFAULT_VALUE];
+    private long[] sortedCycleLatenciesInNanos = new long[SETTING_LATENCY_WINDOW_SIZE_DEFAULT_VALUE];
+    private int cycleLatenciesIndex;
+    private int cycleLatenciesCount;
+    /**
+     * Number of cycles required to evaluate the percentile, at most the window size.
+     */
+    private int latencyMinSamples = SETTING_LATENCY_MIN_SAMPLES_DEFAULT_VALUE;
+    /**
+     * Time spent in the delegate in the current per-metric cycle.
+     */
+    private long cycleLatencyInNanos;
+    private final AtomicLong openedCounter = new AtomicLong();
+    private final AtomicLong latencyTripsCounter = new AtomicLong();
+    private final AtomicLong halfOpenedCounter = new AtomicLong();
+    private final AtomicLong closedCounter = new AtomicLong();
+    private final AtomicLong writeDurationNanosCounter = new AtomicLong();
+    private final AtomicLong flushDurationNanosCounter = new AtomicLong();
+    private final AtomicLong writtenResultsCounter = new AtomicLong();
+
+    @Nullable
+    private DiskSpool spool;
+    private int spoolReplayRateInMetricsPerSecond;
+    private Thread spoolReplayThread;
+    private volatile boolean stopped;
+    /**
+     * Serializes the writes of the live results and of the replayed batches on the delegate.
+     */
+    private final Object delegateLock = new Object();
+    /**
+     * {@code true} between {@link #preCollect()} and {@link #postCollect()}, guarded by {@link #delegateLock}, replayed
+     * batches must not be inserted in a live cycle.
+     */
+    private boolean liveCycleInProgress;
+    /**
+     * Results received by the per-metric methods while the circuit is open, spooled on {@link #postCollect()}.
+     */
+    @Nullable
+    private MetricBatch.Builder spooledCycle;
+    private long spooledCycleTimestampInMillis;
+    private final AtomicLong replayedBatchesCounter = new AtomicLong();
+
+    public enum State {
+        /**
+         * Results are written to the delegate.
+         */
+        CLOSED,
+        /**
+         * Results are discarded (or spooled) until {@code disabledUntil}.
+         */
+        OPEN,
+        /**
+         * A single probe cycle is written to the delegate: the circuit is closed if it succeeds in time and opened
+         * again otherwise.
+         */
+        HALF_OPEN
+    }
 
     public OutputWriterCircuitBreakerDecorator(OutputWriter delegate) {
         this.delegate = delegate;
@@ -56,21 +176,87 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
     @Override
     public void postConstruct(Map<String, String> settings) {
         enabled = getBoolean(settings, SETTING_ENABLED, true);
+        maxFailures = getInt(settings, SETTING_MAX_FAILURES, SETTING_MAX_FAILURES_DEFAULT_VALUE);
+        disableDurationInMillis = getLong(settings, SETTING_DISABLE_DURATION_IN_MILLIS, SETTING_DISABLE_DURATION_IN_MILLIS_DEFAULT_VALUE);
+        maxDisableDurationInMillis = Math.max(disableDurationInMillis,
+                getLong(settings, SETTING_MAX_DISABLE_DURATION_IN_MILLIS, SETTING_MAX_DISABLE_DURATION_IN_MILLIS_DEFAULT_VALUE));
+        latencyThresholdInNanos = TimeUnit.NANOSECONDS.convert(getLong(settings, SETTING_LATENCY_THRESHOLD_IN_MILLIS, 0), TimeUnit.MILLISECONDS);
+        latencyPercentile = getInt(settings, SETTING_LATENCY_PERCENTILE, SETTING_LATENCY_PERCENTILE_DEFAULT_VALUE);
+        if (latencyPercentile <= 0 || latencyPercentile > 100) {
+            throw new IllegalArgumentException("'" + SETTING_LATENCY_PERCENTILE + "' must be in ]0, 100], was: " + latencyPercentile);
+        }
+        int latencyWindowSize = getInt(settings, SETTING_LATENCY_WINDOW_SIZE, SETTING_LATENCY_WINDOW_SIZE_DEFAULT_VALUE);
+        if (latencyWindowSize <= 0) {
+            throw new IllegalArgumentException("'" + SETTING_LATENCY_WINDOW_SIZE + "' must be > 0, was: " + latencyWindowSize);
+        }
+        int latencyMinSamples = getInt(settings, SETTING_LATENCY_MIN_SAMPLES, SETTING_LATENCY_MIN_SAMPLES_DEFAULT_VALUE);
+        if (latencyMinSamples <= 0) {
+            throw new IllegalArgumentException("'" + SETTING_LATENCY_MIN_SAMPLES + "' must be > 0, was: " + latencyMinSamples);
+        }
+        this.latencyMinSamples = Math.min(latencyMinSamples, latencyWindowSize);
+        cycleLatenciesInNanos = new long[latencyWindowSize];
+        sortedCycleLatenciesInNanos = new long[latencyWindowSize];
         delegate.postConstruct(settings);
+
+        String spoolDirectory = getString(settings, SETTING_SPOOL_DIRECTORY, null);
+        if (spoolDirectory != null && !spoolDirectory.trim().isEmpty()) {
+            if (delegate instanceof BatchOutputWriter) {
+                try {
+                    spool = new DiskSpool(new File(spoolDirectory.trim()),
+                            getInt(settings, SETTING_SPOOL_SEGMENT_SIZE_IN_BYTES, SETTING_SPOOL_SEGMENT_SIZE_IN_BYTES_DEFAULT_VALUE),
+                            getLong(settings, SETTING_SPOOL_MAX_SIZE_IN_BYTES, SETTING_SPOOL_MAX_SIZE_IN_BYTES_DEFAULT_VALUE),
+                            TimeUnit.MILLISECONDS.convert(getLong(settings, SETTING_SPOOL_MAX_AGE_IN_SECONDS, SETTING_SPOOL_MAX_AGE_IN_SECONDS_DEFAULT_VALUE), TimeUnit.SECONDS));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Exception creating spool in " + spoolDirectory, e);
+                }
+                spoolReplayRateInMetricsPerSecond = getInt(settings, SETTING_SPOOL_REPLAY_RATE, SETTING_SPOOL_REPLAY_RATE_DEFAULT_VALUE);
+                spoolReplayThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        replaySpool();
+                    }
+                }, "jmxtrans-agent-spool-replay-" + delegate.getClass().getSimpleName());
+                spoolReplayThread.setDaemon(true);
+                spoolReplayThread.start();
+                logger.info("Spool results in " + spool + " when the writer is disabled");
+            } else {
+                logger.warning("Ignore '" + SETTING_SPOOL_DIRECTORY + "', " + delegate.getClass().getName() +
+                        " does not implement " + BatchOutputWriter.class.getName() + " and cannot replay results with their timestamp");
+            }
+        }
     }
 
     @Override
     public void preDestroy() {
+        stopped = true;
+        if (spoolReplayThread != null) {
+            spoolReplayThread.interrupt();
+            try {
+                spoolReplayThread.join(SPOOL_IDLE_PAUSE_IN_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (spool != null) {
+            spool.close();
+        }
         delegate.preDestroy();
     }
 
     @Override
     public void preCollect() throws IOException {
         if (isDisabled()) {
+            startSpooledCycle();
             return;
         }
         try {
-            delegate.preCollect();
+            synchronized (delegateLock) {
+                liveCycleInProgress = true;
+                long startNanos = System.nanoTime();
+                delegate.preCollect();
+                cycleLatencyInNanos = System.nanoTime() - startNanos;
+            }
+            writeDurationNanosCounter.addAndGet(cycleLatencyInNanos);
             incrementOutputWriterSuccess();
         } catch (RuntimeException e) {
             incrementOutputWriterFailures();
@@ -84,10 +270,20 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
     @Override
     public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
         if (isDisabled()) {
+            if (isSpooling()) {
+                getSpooledCycle().add(metricName, metricType, value, false);
+            }
             return;
         }
         try {
-            delegate.writeQueryResult(metricName, metricType, value);
+            synchronized (delegateLock) {
+                long startNanos = System.nanoTime();
+                delegate.writeQueryResult(metricName, metricType, value);
+                long durationNanos = System.nanoTime() - startNanos;
+                cycleLatencyInNanos += durationNanos;
+                writeDurationNanosCounter.addAndGet(durationNanos);
+            }
+            writtenResultsCounter.incrementAndGet();
             incrementOutputWriterSuccess();
         } catch (RuntimeException e) {
             incrementOutputWriterFailures();
@@ -101,10 +297,20 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
     @Override
     public void writeInvocationResult(String invocationName, Object value) throws IOException {
         if (isDisabled()) {
+            if (isSpooling()) {
+                getSpooledCycle().add(invocationName, null, value, true);
+            }
             return;
         }
         try {
-            delegate.writeInvocationResult(invocationName, value);
+            synchronized (delegateLock) {
+                long startNanos = System.nanoTime();
+                delegate.writeInvocationResult(invocationName, value);
+                long durationNanos = System.nanoTime() - startNanos;
+                cycleLatencyInNanos += durationNanos;
+                writeDurationNanosCounter.addAndGet(durationNanos);
+            }
+            writtenResultsCounter.incrementAndGet();
             incrementOutputWriterSuccess();
         } catch (RuntimeException e) {
             incrementOutputWriterFailures();
@@ -117,12 +323,28 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
 
     @Override
     public void postCollect() throws IOException {
+        if (spooledCycle != null) {
+            MetricBatch batch = spooledCycle.build(spooledCycleTimestampInMillis);
+            spooledCycle = null;
+            spool(batch);
+        }
         if (isDisabled()) {
+            synchronized (delegateLock) {
+                liveCycleInProgress = false;
+            }
             return;
         }
         try {
-            delegate.postCollect();
+            synchronized (delegateLock) {
+                liveCycleInProgress = false;
+                long startNanos = System.nanoTime();
+                delegate.postCollect();
+                long durationNanos = System.nanoTime() - startNanos;
+                cycleLatencyInNanos += durationNanos;
+                flushDurationNanosCounter.addAndGet(durationNanos);
+            }
             incrementOutputWriterSuccess();
+            onCycleCompleted(cycleLatencyInNanos);
         } catch (RuntimeException e) {
             incrementOutputWriterFailures();
             throw e;
@@ -132,31 +354,202 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
         }
     }
 
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        if (isDisabled()) {
+            spool(batch);
+            return;
+        }
+        try {
+            long latencyInNanos;
+            int writtenResults = 0;
+            int failedResults = 0;
+            synchronized (delegateLock) {
+                long startNanos = System.nanoTime();
+                if (delegate instanceof BatchOutputWriter) {
+                    ((BatchOutputWriter) delegate).writeBatch(batch);
+                    writtenResults = batch.size();
+                    latencyInNanos = System.nanoTime() - startNanos;
+                    writeDurationNanosCounter.addAndGet(latencyInNanos);
+                } else {
+                    // same semantics as MetricBatch#writeTo(): a failing result doesn't prevent the following results
+                    // and the postCollect(), unless the failures open the circuit
+                    delegate.preCollect();
+                    long flushStartNanos;
+                    try {
+                        for (int i = 0; i < batch.size() && state != State.OPEN; i++) {
+                            try {
+                                batch.writeResultTo(delegate, i);
+                                writtenResults++;
+                            } catch (IOException | RuntimeException e) {
+                                failedResults++;
+                                incrementOutputWriterFailures();
+                                logger.log(Level.WARNING, "Ignore exception writing " + batch.getName(i) + " on " + delegate, e);
+                            }
+                        }
+                    } finally {
+                        flushStartNanos = System.nanoTime();
+                        delegate.postCollect();
+                    }
+                    latencyInNanos = System.nanoTime() - startNanos;
+                    writeDurationNanosCounter.addAndGet(flushStartNanos - startNanos);
+                    flushDurationNanosCounter.addAndGet(latencyInNanos - (flushStartNanos - startNanos));
+                }
+            }
+            writtenResultsCounter.addAndGet(writtenResults);
+            if (failedResults == 0) {
+                incrementOutputWriterSuccess();
+                onCycleCompleted(latencyInNanos);
+            }
+        } catch (RuntimeException e) {
+            incrementOutputWriterFailures();
+            throw e;
+        } catch (IOException e) {
+            incrementOutputWriterFailures();
+            throw e;
+        }
+    }
+
+    /**
+     * Results are spooled while the circuit is open, never when the writer is disabled by configuration.
+     */
+    private boolean isSpooling() {
+        return spool != null && enabled;
+    }
+
+    private void startSpooledCycle() {
+        if (isSpooling()) {
+            spooledCycle = null;
+            getSpooledCycle();
+        }
+    }
+
+    @Nonnull
+    private MetricBatch.Builder getSpooledCycle() {
+        if (spooledCycle == null) {
+            spooledCycle = new MetricBatch.Builder();
+            spooledCycleTimestampInMillis = System.currentTimeMillis();
+        }
+        return spooledCycle;
+    }
+
+    private void spool(@Nonnull MetricBatch batch) {
+        if (!isSpooling() || batch.size() == 0) {
+            return;
+        }
+        try {
+            spool.append(batch);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failure to spool " + batch.size() + " metrics", e);
+        }
+    }
+
+    /**
+     * Loop of the replay thread: write the spooled batches on the delegate while it is enabled, pacing the writes to
+     * {@link #spoolReplayRateInMetricsPerSecond}.
+     */
+    private void replaySpool() {
+        DiskSpool spool = this.spool;
+        while (!stopped) {
+            try {
+                MetricBatch batch = null;
+                // don't use the replay as the probe of a half-open circuit
+                if (enabled && state == State.CLOSED) {
+                    batch = spool.peek();
+                }
+                if (batch == null) {
+                    Thread.sleep(SPOOL_IDLE_PAUSE_IN_MILLIS);
+                    continue;
+                }
+                boolean replayed = false;
+                synchronized (delegateLock) {
+                    if (!liveCycleInProgress) {
+                        try {
+                            ((BatchOutputWriter) delegate).writeBatch(batch);
+                            replayed = true;
+                        } catch (IOException | RuntimeException e) {
+                            incrementOutputWriterFailures();
+                            logger.log(Level.FINE, "Failure to replay spooled batch, retry later", e);
+                        }
+                    }
+                }
+                if (replayed) {
+                    spool.commit();
+                    replayedBatchesCounter.incrementAndGet();
+                    incrementOutputWriterSuccess();
+                    if (spoolReplayRateInMetricsPerSecond > 0) {
+                        Thread.sleep(TimeUnit.MILLISECONDS.convert(batch.size(), TimeUnit.SECONDS) / spoolReplayRateInMetricsPerSecond);
+                    }
+                } else {
+                    Thread.sleep(SPOOL_RETRY_PAUSE_IN_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Ignore exception replaying spool", e);
+            }
+        }
+    }
+
+    /**
+     * @return the spool of the results received while the writer is disabled, {@code null} if not configured
+     */
+    @Nullable
+    public DiskSpool getSpool() {
+        return spool;
+    }
+
+    public long getReplayedBatchesCount() {
+        return replayedBatchesCounter.get();
+    }
+
+    /**
+     * @return age of the oldest batch waiting to be replayed, {@code 0} if none
+     */
+    public long getReplayLagInMillis() {
+        return spool == null ? 0 : spool.getReplayLagInMillis();
+    }
+
+    /**
+     * Side effect: moves an {@link State#OPEN} circuit to {@link State#HALF_OPEN} once its disable duration is
+     * elapsed, the caller is then expected to write the probe cycle.
+     */
     public boolean isDisabled() {
         if (!enabled) {
             logger.finer("OutputWriter is globally disabled");
             return true;
-        } else if (disabledUntil == 0) {
-            logger.finer("OutputWriter is not temporarily disabled");
-            return false;
-        } else if (disabledUntil < System.currentTimeMillis()) {
-            logger.fine("re-enable OutputWriter");
-            // reset counter
-            disabledUntil = 0;
-            return false;
-        } else {
-            if (logger.isLoggable(Level.FINE))
-                logger.fine("OutputWriter is disabled until " + new Timestamp(disabledUntil));
-            return true;
+        }
+        switch (state) {
+            case CLOSED:
+            case HALF_OPEN:
+                return false;
+            default:
+                if (disabledUntil >= System.currentTimeMillis()) {
+                    if (logger.isLoggable(Level.FINE))
+                        logger.fine("OutputWriter is disabled until " + new Timestamp(disabledUntil));
+                    return true;
+                }
+                halfOpen();
+                return false;
+        }
+    }
+
+    private synchronized void halfOpen() {
+        if (state == State.OPEN) {
+            logger.fine("Half-open circuit, write a probe cycle");
+            state = State.HALF_OPEN;
+            halfOpenedCounter.incrementAndGet();
         }
     }
 
     public void incrementOutputWriterFailures() {
+        if (state == State.HALF_OPEN) {
+            open("Probe cycle failed");
+            return;
+        }
         int failuresCount = failuresCounter.incrementAndGet();
         if (failuresCount >= maxFailures) {
-            disabledUntil = System.currentTimeMillis() + disableDurationInMillis;
-            failuresCounter.set(0);
-            logger.warning("Too many exceptions, disable writer until " + new Timestamp(disabledUntil));
+            open("Too many exceptions");
         }
     }
 
@@ -166,4 +559,118 @@ public class OutputWriterCircuitBreakerDecorator implements OutputWriter {
             failuresCounter.set(0);
         }
     }
+
+    /**
+     * Close a half-open circuit or open the circuit if the write of the cycles is too slow.
+     */
+    private synchronized void onCycleCompleted(long latencyInNanos) {
+        cycleLatenciesInNanos[cycleLatenciesIndex] = latencyInNanos;
+        cycleLatenciesIndex = (cycleLatenciesIndex + 1) % cycleLatenciesInNanos.length;
+        cycleLatenciesCount = Math.min(cycleLatenciesCount + 1, cycleLatenciesInNanos.length);
+
+        if (state == State.HALF_OPEN) {
+            if (latencyThresholdInNanos > 0 && latencyInNanos > latencyThresholdInNanos) {
+                latencyTripsCounter.incrementAndGet();
+                open("Probe cycle too slow (" + TimeUnit.MILLISECONDS.convert(latencyInNanos, TimeUnit.NANOSECONDS) + "ms)");
+            } else {
+                logger.info("Probe cycle succeeded, re-enable OutputWriter");
+                state = State.CLOSED;
+                consecutiveTrips = 0;
+                closedCounter.incrementAndGet();
+            }
+        } else if (state == State.CLOSED && latencyThresholdInNanos > 0 && cycleLatenciesCount >= latencyMinSamples) {
+            long percentileInNanos = getLatencyPercentileInNanos();
+            if (percentileInNanos > latencyThresholdInNanos) {
+                latencyTripsCounter.incrementAndGet();
+                open("p" + latencyPercentile + " write time (" + TimeUnit.MILLISECONDS.convert(percentileInNanos, TimeUnit.NANOSECONDS) +
+                        "ms) exceeds " + TimeUnit.MILLISECONDS.convert(latencyThresholdInNanos, TimeUnit.NANOSECONDS) + "ms");
+            }
+        }
+    }
+
+    /**
+     * Open the circuit for {@code disableDurationInMillis}, doubled on each consecutive trip up to
+     * {@code maxDisableDurationInMillis}.
+     */
+    private synchronized void open(@Nonnull String reason) {
+        consecutiveTrips++;
+        long disableDurationInMillis = this.disableDurationInMillis << Math.min(consecutiveTrips - 1, 30);
+        if (disableDurationInMillis <= 0 || disableDurationInMillis > maxDisableDurationInMillis) {
+            disableDurationInMillis = maxDisableDurationInMillis;
+        }
+        disabledUntil = System.currentTimeMillis() + disableDurationInMillis;
+        state = State.OPEN;
+        failuresCounter.set(0);
+        // a fresh window after re-enabling
+        cycleLatenciesCount = 0;
+        openedCounter.incrementAndGet();
+        logger.warning(reason + ", disable writer until " + new Timestamp(disabledUntil));
+    }
+
+    /**
+     * @return the {@code circuitBreakerLatencyPercentile} of the write time of the last cycles, {@code 0} if none
+     */
+    public synchronized long getLatencyPercentileInNanos() {
+        if (cycleLatenciesCount == 0) {
+            return 0;
+        }
+        System.arraycopy(cycleLatenciesInNanos, 0, sortedCycleLatenciesInNanos, 0, cycleLatenciesCount);
+        Arrays.sort(sortedCycleLatenciesInNanos, 0, cycleLatenciesCount);
+        int index = (int) Math.ceil(latencyPercentile / 100.0 * cycleLatenciesCount) - 1;
+        return sortedCycleLatenciesInNanos[Math.max(index, 0)];
+    }
+
+    /**
+     * @return time spent writing the results in the delegate, {@link #postCollect()} excluded
+     */
+    public long getWriteDurationNanos() {
+        return writeDurationNanosCounter.get();
+    }
+
+    /**
+     * @return time spent in the {@link #postCollect()} of the delegate, where most writers flush their buffers
+     */
+    public long getFlushDurationNanos() {
+        return flushDurationNanosCounter.get();
+    }
+
+    /**
+     * @return number of live results written to the delegate
+     */
+    public long getWrittenResultsCount() {
+        return writtenResultsCounter.get();
+    }
+
+    @Nonnull
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return number of transitions to {@link State#OPEN}
+     */
+    public long getOpenedCount() {
+        return openedCounter.get();
+    }
+
+    /**
+     * @return number of transitions to {@link State#OPEN} caused by a slow write
+     */
+    public long getLatencyTripsCount() {
+        return latencyTripsCounter.get();
+    }
+
+    /**
+     * @return number of transitions to {@link State#HALF_OPEN}
+     */
+    public long getHalfOpenedCount() {
+        return halfOpenedCounter.get();
+    }
+
+    /**
+     * @return number of transitions from {@link State#HALF_OPEN} to {@link State#CLOSED}
+     */
+    public long getClosedCount() {
+        return closedCounter.get();
+    }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+
+/**
+ * {@link OutputWriter} exposing its own metrics (requests, packets...), reported by the {@link AgentMetrics} with the
+ * metrics of the decorators wrapping it.
+ *
+ * Metrics are indexed by their name (e.g. {@code requestRetries}), relative to the writer.
+ */
+public interface OutputWriterMetrics {
+
+    /**
+     * @return the metrics which only increase (e.g. number of retried requests)
+     */
+    @Nonnull
+    Map<String, Long> getCounters();
+
+    /**
+     * @return the metrics which are a current value (e.g. duration of the requests)
+     */
+    @Nonnull
+    Map<String, Long> getGauges();
+}
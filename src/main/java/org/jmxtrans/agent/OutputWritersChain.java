@@ -23,28 +23,113 @@
  */
 package org.jmxtrans.agent;
 
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
 /**
+ * Dispatch the results to several {@link OutputWriter}s.
+ *
+ * By default ({@link #DEFAULT_MAX_PENDING_CYCLES}), the writers are invoked one after the other by the collection
+ * thread. When {@code maxPendingCycles > 0}, each writer gets its own {@link Lane}: a single thread that writes the collection
+ * cycles one after the other, so that the writers receive the cycles concurrently, each one in the collection order,
+ * and a slow writer only delays itself. A lane buffers at most {@code maxPendingCycles} cycles, the cycles submitted to
+ * a full lane are dropped for this writer.
+ *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class OutputWritersChain extends AbstractOutputWriter implements OutputWriter {
+public class OutputWritersChain extends AbstractOutputWriter implements BatchOutputWriter {
+
+    /**
+     * Synchronous writes, the concurrent lanes are opt-in.
+     */
+    public final static int DEFAULT_MAX_PENDING_CYCLES = 0;
+    /**
+     * Time given to each lane to write its pending cycles on {@link #preDestroy()}.
+     */
+    private final static long SHUTDOWN_TIMEOUT_IN_MILLIS = 5000;
 
     protected final List<OutputWriter> outputWriters;
+    /**
+     * Empty when the results are written synchronously.
+     */
+    private final List<Lane> lanes;
+    /**
+     * Results written with {@link #writeQueryResult(String, String, Object)} /
+     * {@link #writeInvocationResult(String, Object)} in concurrent mode, dispatched on {@link #postCollect()}.
+     */
+    private MetricBatch.Builder currentCycle;
+    private long currentCycleTimestampInMillis;
 
+    /**
+     * Synchronous chain.
+     */
     public OutputWritersChain() {
         outputWriters = new ArrayList<>();
+        lanes = Collections.emptyList();
     }
 
+    /**
+     * Synchronous chain.
+     */
     public OutputWritersChain(List<OutputWriter> outputWriters) {
+        this(outputWriters, DEFAULT_MAX_PENDING_CYCLES);
+    }
+
+    /**
+     * @param maxPendingCycles max number of cycles buffered for each writer, {@code 0} to write synchronously with the
+     *                         collection thread.
+     */
+    public OutputWritersChain(List<OutputWriter> outputWriters, int maxPendingCycles) {
+        if (maxPendingCycles < 0) {
+            throw new IllegalArgumentException("maxPendingCycles must be >= 0, was: " + maxPendingCycles);
+        }
         this.outputWriters = new ArrayList<>(outputWriters.size());
         this.outputWriters.addAll(outputWriters);
+        if (maxPendingCycles == 0) {
+            lanes = Collections.emptyList();
+        } else {
+            List<Lane> lanes = new ArrayList<>(outputWriters.size());
+            for (OutputWriter outputWriter : outputWriters) {
+                lanes.add(new Lane(outputWriter, maxPendingCycles));
+            }
+            this.lanes = Collections.unmodifiableList(lanes);
+        }
+    }
+
+    public boolean isConcurrent() {
+        return !lanes.isEmpty();
+    }
+
+    /**
+     * @return the lanes of the writers, empty if the chain is synchronous
+     */
+    @Nonnull
+    public List<Lane> getLanes() {
+        return lanes;
     }
 
     @Override
     public void writeQueryResult(String metricName, String type, Object value) throws IOException {
+        if (isConcurrent()) {
+            synchronized (this) {
+                getCurrentCycle().add(metricName, type, value, false);
+            }
+            return;
+        }
         for (OutputWriter outputWriter : outputWriters) {
             outputWriter.writeQueryResult(metricName, type, value);
         }
@@ -52,13 +137,41 @@ public class OutputWritersChain extends AbstractOutputWriter implements OutputWr
 
     @Override
     public void writeInvocationResult(String invocationName, Object value) throws IOException {
+        if (isConcurrent()) {
+            synchronized (this) {
+                getCurrentCycle().add(invocationName, null, value, true);
+            }
+            return;
+        }
         for (OutputWriter outputWriter : outputWriters) {
             outputWriter.writeInvocationResult(invocationName, value);
         }
     }
 
+    /**
+     * Hand the batch to each writer, as a batch for the {@link BatchOutputWriter}s.
+     */
+    @Override
+    public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        if (isConcurrent()) {
+            for (Lane lane : lanes) {
+                lane.submit(batch);
+            }
+            return;
+        }
+        for (OutputWriter outputWriter : outputWriters) {
+            batch.writeTo(outputWriter);
+        }
+    }
+
     @Override
     public void preDestroy() {
+        for (Lane lane : lanes) {
+            lane.shutdown();
+        }
+        for (Lane lane : lanes) {
+            lane.awaitTermination(SHUTDOWN_TIMEOUT_IN_MILLIS);
+        }
         for (OutputWriter outputWriter : outputWriters) {
             outputWriter.preDestroy();
         }
@@ -66,6 +179,15 @@ public class OutputWritersChain extends AbstractOutputWriter implements OutputWr
 
     @Override
     public void postCollect() throws IOException {
+        if (isConcurrent()) {
+            MetricBatch batch;
+            synchronized (this) {
+                batch = getCurrentCycle().build(currentCycleTimestampInMillis);
+                currentCycle = null;
+            }
+            writeBatch(batch);
+            return;
+        }
         for (OutputWriter outputWriter : outputWriters) {
             outputWriter.postCollect();
         }
@@ -73,8 +195,154 @@ public class OutputWritersChain extends AbstractOutputWriter implements OutputWr
 
     @Override
     public void preCollect() throws IOException {
+        if (isConcurrent()) {
+            synchronized (this) {
+                currentCycle = null;
+                getCurrentCycle();
+            }
+            return;
+        }
         for (OutputWriter outputWriter : outputWriters) {
             outputWriter.preCollect();
         }
     }
+
+    /**
+     * Must be called holding the lock on {@code this}.
+     */
+    @Nonnull
+    private MetricBatch.Builder getCurrentCycle() {
+        if (currentCycle == null) {
+            currentCycle = new MetricBatch.Builder();
+            currentCycleTimestampInMillis = System.currentTimeMillis();
+        }
+        return currentCycle;
+    }
+
+    @Override
+    public String toString() {
+        return "OutputWritersChain{" +
+                "outputWriters=" + outputWriters +
+                ", concurrent=" + isConcurrent() +
+                '}';
+    }
+
+    /**
+     * Dedicated thread and bounded backlog of cycles of an {@link OutputWriter}, with its delivery metrics.
+     */
+    public static class Lane {
+        private final static AtomicInteger LANE_COUNTER = new AtomicInteger();
+        private final Logger logger;
+        private final OutputWriter outputWriter;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong deliveredCycles = new AtomicLong();
+        private final AtomicLong droppedCycles = new AtomicLong();
+        private final AtomicLong totalDeliveryLatencyInNanos = new AtomicLong();
+        private volatile long lastDeliveryLatencyInNanos;
+        private volatile long maxDeliveryLatencyInNanos;
+
+        Lane(@Nonnull final OutputWriter outputWriter, int maxPendingCycles) {
+            this.outputWriter = outputWriter;
+            this.logger = Logger.getLogger(OutputWritersChain.class.getName());
+            this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxPendingCycles), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = Executors.defaultThreadFactory().newThread(r);
+                    thread.setDaemon(true);
+                    thread.setName("jmxtrans-agent-writer-" + LANE_COUNTER.incrementAndGet());
+                    return thread;
+                }
+            });
+        }
+
+        void submit(@Nonnull final MetricBatch batch) {
+            final long submittedAtNanos = System.nanoTime();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            batch.writeTo(outputWriter);
+                        } catch (Exception e) {
+                            logger.log(Level.WARNING, "Ignore exception writing on " + outputWriter, e);
+                        } finally {
+                            onDelivered(System.nanoTime() - submittedAtNanos);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                long droppedCycles = this.droppedCycles.incrementAndGet();
+                if (droppedCycles == 1 || droppedCycles % 100 == 0) {
+                    logger.warning("Writer " + outputWriter + " is too slow, " + droppedCycles + " cycles dropped so far");
+                }
+            }
+        }
+
+        private void onDelivered(long latencyInNanos) {
+            // single writer thread: no need of a compare and set
+            lastDeliveryLatencyInNanos = latencyInNanos;
+            if (latencyInNanos > maxDeliveryLatencyInNanos) {
+                maxDeliveryLatencyInNanos = latencyInNanos;
+            }
+            totalDeliveryLatencyInNanos.addAndGet(latencyInNanos);
+            deliveredCycles.incrementAndGet();
+        }
+
+        void shutdown() {
+            executor.shutdown();
+        }
+
+        void awaitTermination(long timeoutInMillis) {
+            try {
+                if (!executor.awaitTermination(timeoutInMillis, TimeUnit.MILLISECONDS)) {
+                    logger.warning("Writer " + outputWriter + " did not write its " + getPendingCycles() + " pending cycles within " + timeoutInMillis + "ms");
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Nonnull
+        public OutputWriter getOutputWriter() {
+            return outputWriter;
+        }
+
+        public int getPendingCycles() {
+            return executor.getQueue().size();
+        }
+
+        public long getDeliveredCycles() {
+            return deliveredCycles.get();
+        }
+
+        public long getDroppedCycles() {
+            return droppedCycles.get();
+        }
+
+        /**
+         * @return time between the end of the collection and the end of the write of the last delivered cycle
+         */
+        public long getLastDeliveryLatencyInNanos() {
+            return lastDeliveryLatencyInNanos;
+        }
+
+        public long getMaxDeliveryLatencyInNanos() {
+            return maxDeliveryLatencyInNanos;
+        }
+
+        public long getTotalDeliveryLatencyInNanos() {
+            return totalDeliveryLatencyInNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Lane{" +
+                    "outputWriter=" + outputWriter +
+                    ", pendingCycles=" + getPendingCycles() +
+                    ", deliveredCycles=" + getDeliveredCycles() +
+                    ", droppedCycles=" + getDroppedCycles() +
+                    '}';
+        }
+    }
 }
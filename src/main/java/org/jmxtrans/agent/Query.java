@@ -51,7 +51,7 @@ public class Query implements Collector {
     protected final ObjectName objectName;
 
     /**
-     * The attribute(s) to retrieve ({@link MBeanServer#getAttribute(javax.management.ObjectName, String)})
+     * The attribute(s) to retrieve ({@link MBeanServer#getAttributes(javax.management.ObjectName, String[])})
      * 
      * If empty, will fetch all attributes of the MBean.
      */
@@ -82,6 +82,12 @@ public class Query implements Collector {
     @Nullable
     private Integer collectInterval;
 
+    @Nullable
+    private Integer collectTimeoutInMillis;
+
+    @Nullable
+    private volatile MBeanRegistryCache mbeanRegistryCache;
+
     /**
      * @see #Query(String, String, String, Integer, String, String, ResultNameStrategy)
      */
@@ -161,19 +167,62 @@ public class Query implements Collector {
         if (resultNameStrategy == null)
             throw new IllegalStateException("resultNameStrategy is not defined, query object is not properly initialized");
 
-        Set<ObjectName> objectNames = mbeanServer.queryNames(objectName, null);
+        Set<ObjectName> objectNames = queryNames(mbeanServer);
 
         for (ObjectName on : objectNames) {
             collectAndExportForObjectName(mbeanServer, outputWriter, on);
         }
     }
 
+    /**
+     * @return the {@link ObjectName}s matching the {@link #objectName} of this query, resolved with the
+     * {@link MBeanRegistryCache} if any.
+     */
+    protected Set<ObjectName> queryNames(@Nonnull MBeanServer mbeanServer) {
+        return MBeanRegistryCache.queryNames(mbeanRegistryCache, mbeanServer, objectName);
+    }
+
     private void collectAndExportForObjectName(MBeanServer mbeanServer, OutputWriter outputWriter, ObjectName on) {
-        for (String attribute : resolveAttributes(mbeanServer, on)) {
-            collectAndExportAttribute(mbeanServer, outputWriter, on, attribute);
+        List<String> resolvedAttributes = resolveAttributes(mbeanServer, on);
+        if (resolvedAttributes.isEmpty()) {
+            return;
+        }
+        Map<String, Object> valuesByAttribute = fetchAttributeValues(mbeanServer, on, resolvedAttributes);
+        for (String attribute : resolvedAttributes) {
+            Object attributeValue;
+            if (valuesByAttribute.containsKey(attribute)) {
+                attributeValue = valuesByAttribute.get(attribute);
+            } else {
+                // not returned by the bulk read, fetch it individually to get the cause of the failure
+                try {
+                    attributeValue = mbeanServer.getAttribute(on, attribute);
+                } catch (Exception ex) {
+                    logger.warning("Failed to fetch attribute for '" + on + "'#" + attribute + ", exception: " + ex.getMessage());
+                    continue;
+                }
+            }
+            collectAndExportAttribute(outputWriter, on, attribute, attributeValue);
         }
     }
 
+    /**
+     * Fetch the given attributes with a single {@link MBeanServer#getAttributes(ObjectName, String[])} call.
+     *
+     * @return the successfully read values indexed by attribute name, attributes that could not be read are missing.
+     */
+    private Map<String, Object> fetchAttributeValues(MBeanServer mbeanServer, ObjectName on, List<String> attributes) {
+        Map<String, Object> valuesByAttribute = new HashMap<>();
+        try {
+            AttributeList attributeList = mbeanServer.getAttributes(on, attributes.toArray(new String[attributes.size()]));
+            for (Attribute attribute : attributeList.asList()) {
+                valuesByAttribute.put(attribute.getName(), attribute.getValue());
+            }
+        } catch (Exception ex) {
+            if (logger.isLoggable(Level.FINE))
+                logger.log(Level.FINE, "Failed to fetch attributes " + attributes + " for '" + on + "', fall back to attribute per attribute fetch", ex);
+        }
+        return valuesByAttribute;
+    }
 
     private List<String> resolveAttributes(MBeanServer mbeanServer, ObjectName on) {
         if (attributes.isEmpty()) {
@@ -183,28 +232,17 @@ public class Query implements Collector {
     }
 
     private List<String> findAllAttributes(MBeanServer mbeanServer, ObjectName on) {
-        List<String> resolvedAttributes = new ArrayList<>();
         // Null or empty attribute specified, collect all attributes
         try {
-            for (MBeanAttributeInfo mBeanAttributeInfo : mbeanServer.getMBeanInfo(on).getAttributes()) {
-                resolvedAttributes.add(mBeanAttributeInfo.getName());
-            }
+            return MBeanRegistryCache.getAttributeNames(mbeanRegistryCache, mbeanServer, on);
         } catch (IntrospectionException | InstanceNotFoundException | ReflectionException e) {
             logger.log(Level.WARNING, "Error when finding attributes for ObjectName " + on + ", all attributes will not be collected", e);
+            return Collections.emptyList();
         }
-        return resolvedAttributes;
     }
 
-    private void collectAndExportAttribute(MBeanServer mbeanServer, OutputWriter outputWriter, ObjectName objectName, String attribute) {
+    private void collectAndExportAttribute(OutputWriter outputWriter, ObjectName objectName, String attribute, Object attributeValue) {
         try {
-            Object attributeValue = null;
-            try {
-                attributeValue = mbeanServer.getAttribute(objectName, attribute);
-            } catch (Exception ex) {
-                logger.warning("Failed to fetch attribute for '" + objectName + "'#" + attribute + ", exception: " + ex.getMessage());
-                return;
-            }
-
             Object value;
             if (attributeValue instanceof CompositeData) {
                 CompositeData compositeData = (CompositeData) attributeValue;
@@ -333,4 +371,27 @@ public class Query implements Collector {
     public Integer getCollectIntervalOverrideOrNull() {
         return collectInterval;
     }
+
+    @Nullable
+    public Integer getCollectTimeoutInMillisOverrideOrNull() {
+        return collectTimeoutInMillis;
+    }
+
+    /**
+     * @param collectTimeoutInMillis max duration of a collection before it is abandoned, {@code 0} for no timeout,
+     *                               {@code null} to use {@link JmxTransExporterConfiguration#getCollectTimeoutInMillis()}
+     */
+    public void setCollectTimeoutInMillis(@Nullable Integer collectTimeoutInMillis) {
+        if (collectTimeoutInMillis != null && collectTimeoutInMillis < 0) {
+            throw new IllegalArgumentException("collectTimeoutInMillis must be >= 0, was: " + collectTimeoutInMillis);
+        }
+        this.collectTimeoutInMillis = collectTimeoutInMillis;
+    }
+
+    /**
+     * @param mbeanRegistryCache cache used to resolve the {@link #objectName}, {@code null} to scan the MBean registry on each collection
+     */
+    public void setMBeanRegistryCache(@Nullable MBeanRegistryCache mbeanRegistryCache) {
+        this.mbeanRegistryCache = mbeanRegistryCache;
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link OutputWriter} that keeps the results written by a single {@link Collector} in memory so that they can be
+ * replayed later, from another thread, on the actual {@link OutputWriter}.
+ *
+ * Used by the {@link JmxTransExporter} when collectors are run concurrently: each collector writes in its own buffer
+ * and the buffers are flushed sequentially, in the declaration order of the collectors, by the exporter thread.
+ * Not thread safe, a buffer must be used by a single collector at a time.
+ */
+class QueryResultsBuffer implements OutputWriter {
+
+    private final List<BufferedResult> results = new ArrayList<>();
+
+    @Override
+    public void postConstruct(@Nonnull Map<String, String> settings) {
+    }
+
+    @Override
+    public void preDestroy() {
+    }
+
+    @Override
+    public void preCollect() throws IOException {
+    }
+
+    @Override
+    public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+        results.add(new BufferedResult(false, metricName, metricType, value));
+    }
+
+    @Override
+    public void postCollect() throws IOException {
+    }
+
+    @Override
+    public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+        results.add(new BufferedResult(true, invocationName, null, value));
+    }
+
+    /**
+     * Replay the buffered results on the given {@code outputWriter} and clear this buffer.
+     */
+    public void flushTo(@Nonnull OutputWriter outputWriter) throws IOException {
+        try {
+            for (BufferedResult result : results) {
+                if (result.invocation) {
+                    outputWriter.writeInvocationResult(result.name, result.value);
+                } else {
+                    outputWriter.writeQueryResult(result.name, result.type, result.value);
+                }
+            }
+        } finally {
+            results.clear();
+        }
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    private static class BufferedResult {
+        final boolean invocation;
+        final String name;
+        final String type;
+        final Object value;
+
+        BufferedResult(boolean invocation, String name, String type, Object value) {
+            this.invocation = invocation;
+            this.name = name;
+            this.type = type;
+            this.value = value;
+        }
+    }
+}
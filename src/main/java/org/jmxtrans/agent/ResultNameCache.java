@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache of the result names built by a {@link ResultNameStrategy}, indexed by {@link ObjectName} so that the
+ * names of an unregistered MBean can be evicted at once.
+ *
+ * Lookups use a per thread mutable key and don't allocate. Once {@code maxSize} names are cached, the cache is
+ * cleared before caching a new name, so that it keeps adapting to the MBeans that come and go even when the
+ * unregistrations are not notified (e.g. {@code cacheObjectNames=false}).
+ */
+class ResultNameCache {
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final ConcurrentMap<ObjectName, ConcurrentMap<Key, String>> resultNamesByObjectName = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean maxSizeReachedLogged = new AtomicBoolean();
+    private final AtomicInteger clearsCounter = new AtomicInteger();
+    private final int maxSize;
+    private final ThreadLocal<Key> lookupKey = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+            return new Key();
+        }
+    };
+
+    ResultNameCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Nullable
+    public String get(@Nonnull Query query, @Nonnull ObjectName objectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+        ConcurrentMap<Key, String> resultNames = resultNamesByObjectName.get(objectName);
+        if (resultNames == null) {
+            return null;
+        }
+        Key key = lookupKey.get();
+        key.set(query, attribute, compositeDataKey, position);
+        try {
+            return resultNames.get(key);
+        } finally {
+            key.set(null, null, null, null);
+        }
+    }
+
+    public void put(@Nonnull Query query, @Nonnull ObjectName objectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position,
+                    @Nonnull String resultName) {
+        if (size.get() >= maxSize) {
+            clearIfFull();
+        }
+        ConcurrentMap<Key, String> resultNames = resultNamesByObjectName.get(objectName);
+        if (resultNames == null) {
+            ConcurrentMap<Key, String> newResultNames = new ConcurrentHashMap<>();
+            resultNames = resultNamesByObjectName.putIfAbsent(objectName, newResultNames);
+            if (resultNames == null) {
+                resultNames = newResultNames;
+            }
+        }
+        Key key = new Key();
+        key.set(query, attribute, compositeDataKey, position);
+        if (resultNames.putIfAbsent(key, resultName) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Evict the result names of the given MBean.
+     */
+    public void evict(@Nonnull ObjectName objectName) {
+        ConcurrentMap<Key, String> resultNames = resultNamesByObjectName.remove(objectName);
+        if (resultNames != null) {
+            size.addAndGet(-resultNames.size());
+        }
+    }
+
+    private synchronized void clearIfFull() {
+        if (size.get() < maxSize) {
+            // cleared by another thread
+            return;
+        }
+        if (maxSizeReachedLogged.compareAndSet(false, true)) {
+            logger.info("Result names cache is full (" + maxSize + " names), clear it");
+        }
+        resultNamesByObjectName.clear();
+        size.set(0);
+        clearsCounter.incrementAndGet();
+    }
+
+    public void clear() {
+        resultNamesByObjectName.clear();
+        size.set(0);
+        maxSizeReachedLogged.set(false);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return number of times the cache has been cleared because it was full
+     */
+    public int getClearsCount() {
+        return clearsCounter.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultNameCache{" +
+                "size=" + size +
+                ", maxSize=" + maxSize +
+                '}';
+    }
+
+    /**
+     * The {@link Query} is compared by identity, the {@link ObjectName} is the key of the enclosing map.
+     */
+    private static class Key {
+        private Query query;
+        private String attribute;
+        private String compositeDataKey;
+        private Integer position;
+        private int hashCode;
+
+        void set(Query query, String attribute, String compositeDataKey, Integer position) {
+            this.query = query;
+            this.attribute = attribute;
+            this.compositeDataKey = compositeDataKey;
+            this.position = position;
+            int result = System.identityHashCode(query);
+            result = 31 * result + (attribute == null ? 0 : attribute.hashCode());
+            result = 31 * result + (compositeDataKey == null ? 0 : compositeDataKey.hashCode());
+            result = 31 * result + (position == null ? 0 : position.hashCode());
+            this.hashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return query == other.query &&
+                    Objects.equals(attribute, other.attribute) &&
+                    Objects.equals(compositeDataKey, other.compositeDataKey) &&
+                    Objects.equals(position, other.position);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -23,6 +23,7 @@
  */
 package org.jmxtrans.agent;
 
+import org.jmxtrans.agent.util.ConfigurationUtils;
 import org.jmxtrans.agent.util.StringUtils2;
 import org.jmxtrans.agent.util.logging.Logger;
 
@@ -33,6 +34,8 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 
 /**
@@ -92,28 +95,62 @@ import java.util.logging.Level;
  * </tr>
  * </table>
  *
+ * Built names are cached (see {@link #getResultNameCacheMaxSize()}); the names of an unregistered MBean are evicted
+ * when the strategy is registered on a {@link MBeanRegistryCache}.
+ *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
-public class ResultNameStrategyImpl implements ResultNameStrategy {
+public class ResultNameStrategyImpl implements ResultNameStrategy, MBeanRegistryCache.UnregistrationListener,
+        ExpressionLanguageEngineImpl.RegistrationListener {
+
+    public static final String SETTING_RESULT_NAME_CACHE_MAX_SIZE = "resultNameCacheMaxSize";
+    public static final int SETTING_RESULT_NAME_CACHE_MAX_SIZE_DEFAULT_VALUE = 10000;
 
     protected final Logger logger = Logger.getLogger(getClass().getName());
 
     private ExpressionLanguageEngine expressionLanguageEngine;
 
+    /**
+     * The {@link Query#getResultAlias()} compiled by the {@link #expressionLanguageEngine}, cleared when an expression
+     * evaluator is registered.
+     */
+    private final ConcurrentMap<String, ExpressionLanguageEngine.CompiledExpression> compiledResultAliases = new ConcurrentHashMap<>();
+
+    /**
+     * {@code null} if result names are not cached.
+     */
+    @Nullable
+    private volatile ResultNameCache resultNameCache = new ResultNameCache(SETTING_RESULT_NAME_CACHE_MAX_SIZE_DEFAULT_VALUE);
+
     /**
      * Create with default expression language engine.
      */
     public ResultNameStrategyImpl() {
-        expressionLanguageEngine = new ExpressionLanguageEngineImpl();
+        this(new ExpressionLanguageEngineImpl());
 	}
 
     public ResultNameStrategyImpl(ExpressionLanguageEngine expressionLanguageEngine) {
         this.expressionLanguageEngine = expressionLanguageEngine;
+        listenToRegistrations(expressionLanguageEngine);
 	}
 
     @Nonnull
     @Override
-    public String getResultName(@Nonnull Query query, @Nonnull ObjectName objectName, @Nonnull String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+    public String getResultName(@Nonnull Query query, @Nonnull ObjectName objectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
+        ResultNameCache resultNameCache = this.resultNameCache;
+        if (resultNameCache == null) {
+            return buildResultName(query, objectName, attribute, compositeDataKey, position);
+        }
+        String result = resultNameCache.get(query, objectName, attribute, compositeDataKey, position);
+        if (result == null) {
+            result = buildResultName(query, objectName, attribute, compositeDataKey, position);
+            resultNameCache.put(query, objectName, attribute, compositeDataKey, position, result);
+        }
+        return result;
+    }
+
+    @Nonnull
+    protected String buildResultName(@Nonnull Query query, @Nonnull ObjectName objectName, @Nullable String attribute, @Nullable String compositeDataKey, @Nullable Integer position) {
         String result;
         if (query.getResultAlias() == null) {
             result = escapeObjectName(objectName);
@@ -125,11 +162,21 @@ public class ResultNameStrategyImpl implements ResultNameStrategy {
                 result += "_" + position;
             }
         } else {
-            result = expressionLanguageEngine.resolveExpression(query.getResultAlias(), objectName, attribute, compositeDataKey, position);
+            result = getCompiledResultAlias(query.getResultAlias()).evaluate(objectName, attribute, compositeDataKey, position);
         }
         return result;
     }
 
+    @Nonnull
+    protected ExpressionLanguageEngine.CompiledExpression getCompiledResultAlias(@Nonnull String resultAlias) {
+        ExpressionLanguageEngine.CompiledExpression compiledResultAlias = compiledResultAliases.get(resultAlias);
+        if (compiledResultAlias == null) {
+            compiledResultAlias = expressionLanguageEngine.compileExpression(resultAlias);
+            compiledResultAliases.put(resultAlias, compiledResultAlias);
+        }
+        return compiledResultAlias;
+    }
+
     /**
      * Transforms an {@linkplain javax.management.ObjectName} into a plain {@linkplain String} only composed of ('a' to 'Z', 'A' to 'Z', '_').
      *
@@ -161,9 +208,56 @@ public class ResultNameStrategyImpl implements ResultNameStrategy {
 
     public void setExpressionLanguageEngine(ExpressionLanguageEngine expressionLanguageEngine) {
         this.expressionLanguageEngine = expressionLanguageEngine;
+        listenToRegistrations(expressionLanguageEngine);
+        clearCompiledResultAliases();
     }
 
-    public void postConstruct(@Nonnull Map<String, String> settings) {
+    @Override
+    public void onExpressionEvaluatorRegistered(@Nonnull String expression) {
+        clearCompiledResultAliases();
+    }
 
+    private void listenToRegistrations(ExpressionLanguageEngine expressionLanguageEngine) {
+        if (expressionLanguageEngine instanceof ExpressionLanguageEngineImpl) {
+            ((ExpressionLanguageEngineImpl) expressionLanguageEngine).addRegistrationListener(this);
+        }
+    }
+
+    /**
+     * Clear the compiled result aliases and the result names built with them.
+     */
+    private void clearCompiledResultAliases() {
+        compiledResultAliases.clear();
+        ResultNameCache resultNameCache = this.resultNameCache;
+        if (resultNameCache != null) {
+            resultNameCache.clear();
+        }
+    }
+
+    /**
+     * @return the maximum number of cached result names, {@code 0} if result names are not cached
+     */
+    public int getResultNameCacheMaxSize() {
+        ResultNameCache resultNameCache = this.resultNameCache;
+        return resultNameCache == null ? 0 : resultNameCache.getMaxSize();
+    }
+
+    /**
+     * Evict the cached result names of the unregistered MBean.
+     */
+    @Override
+    public void onMBeanUnregistered(@Nonnull ObjectName objectName) {
+        ResultNameCache resultNameCache = this.resultNameCache;
+        if (resultNameCache != null) {
+            resultNameCache.evict(objectName);
+        }
+    }
+
+    public void postConstruct(@Nonnull Map<String, String> settings) {
+        int resultNameCacheMaxSize = ConfigurationUtils.getInt(settings, SETTING_RESULT_NAME_CACHE_MAX_SIZE, SETTING_RESULT_NAME_CACHE_MAX_SIZE_DEFAULT_VALUE);
+        if (resultNameCacheMaxSize < 0) {
+            throw new IllegalArgumentException("'" + SETTING_RESULT_NAME_CACHE_MAX_SIZE + "' must be >= 0, was: " + resultNameCacheMaxSize);
+        }
+        this.resultNameCache = resultNameCacheMaxSize == 0 ? null : new ResultNameCache(resultNameCacheMaxSize);
     }
 }
@@ -24,9 +24,13 @@
 package org.jmxtrans.agent;
 
 import java.nio.Buffer;
+import org.jmxtrans.agent.statsd.StatsDMetricEncoder;
 import org.jmxtrans.agent.util.CachingReference;
 import org.jmxtrans.agent.util.ConfigurationUtils;
+import org.jmxtrans.agent.util.StandardCharsets2;
 import org.jmxtrans.agent.util.StringUtils2;
+import org.jmxtrans.agent.util.io.IoUtils;
+import org.jmxtrans.agent.util.net.UnixDomainSockets;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
@@ -34,26 +38,53 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
-public class StatsDOutputWriter extends AbstractOutputWriter implements OutputWriter {
+/**
+ * Output to StatsD over UDP.
+ *
+ * The lines are packed in datagrams of at most {@code maxPacketSizeInBytes}, a line is never split across two
+ * datagrams and each datagram is sent with a single {@link DatagramChannel#send(ByteBuffer, java.net.SocketAddress)}.
+ * The last datagram of a collection is sent at the end of the collection. The lines that don't fit in a datagram are
+ * rejected.
+ *
+ * The {@code host} can also be a {@code unix:///path/to/socket} URI (Java 16+). The JVM does not support Unix domain
+ * datagram sockets, the datagrams are then written on a Unix domain stream socket: prefixed by their length as a
+ * 32 bits little endian integer for DogStatsD, as newline separated lines for the other flavours.
+ */
+public class StatsDOutputWriter extends AbstractOutputWriter implements BatchOutputWriter, OutputWriterMetrics {
 
     public final static String SETTING_HOST = "host";
     public final static String SETTING_PORT = "port";
     public final static String SETTING_ROOT_PREFIX = "metricName";
+    /**
+     * Former name of {@link #SETTING_MAX_PACKET_SIZE_IN_BYTES}.
+     */
     public final static String SETTING_BUFFER_SIZE = "bufferSize";
-    private final static int SETTING_DEFAULT_BUFFER_SIZE = 1024;
+    public final static String SETTING_MAX_PACKET_SIZE_IN_BYTES = "maxPacketSizeInBytes";
+    public final static int SETTING_MAX_PACKET_SIZE_IN_BYTES_DEFAULT_VALUE = 1432;
+    /**
+     * Max payload of a UDP datagram over IPv4.
+     */
+    private final static int MAX_UDP_PAYLOAD_SIZE_IN_BYTES = 65507;
     public final static String SETTINGS_STATSD_TYPE = "statsd";
     public final static String STATSD_DATADOG = "dd";
     public final static String STATSD_SYSDIG = "sysdig";
     public final static String SETTINGS_TAGS = "tags";
+    public final static String SETTING_METRIC_NAME_CACHE_MAX_SIZE = "metricNameCacheMaxSize";
+    private final static int SETTING_DEFAULT_METRIC_NAME_CACHE_MAX_SIZE = 10000;
     protected List<Tag> tags;
 
     private ByteBuffer sendBuffer;
+    private StatsDMetricEncoder encoder;
     protected String metricNamePrefix;
     protected String statsType;
     /**
@@ -61,6 +92,17 @@ public class StatsDOutputWriter extends AbstractOutputWriter implements OutputWr
      */
     private CachingReference<InetSocketAddress> addressReference;
     private DatagramChannel channel;
+    private String target;
+    private String unixDomainSocketPath;
+    private SocketChannel unixDomainSocketChannel;
+    private final ByteBuffer[] unixDomainSocketFrame = {ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN), null};
+
+    private final AtomicLong sentPacketsCounter = new AtomicLong();
+    private final AtomicLong rejectedLinesCounter = new AtomicLong();
+    private int currentFlushPacketsCount;
+    private long currentFlushBytesCount;
+    private volatile int lastFlushPacketsCount;
+    private volatile long lastFlushBytesCount;
 
     protected synchronized void parseTagsAndMetricsNamePrefix(Map<String, String> settings) {
         statsType = ConfigurationUtils.getString(settings, SETTINGS_STATSD_TYPE, "statsd");
@@ -83,30 +125,59 @@ public class StatsDOutputWriter extends AbstractOutputWriter implements OutputWr
         super.postConstruct(settings);
 
         final String host = ConfigurationUtils.getString(settings, SETTING_HOST);
-        final Integer port = ConfigurationUtils.getInt(settings, SETTING_PORT);
+        final Integer port = UnixDomainSockets.isUnixDomainSocketUri(host) ? null : ConfigurationUtils.getInt(settings, SETTING_PORT);
         this.parseTagsAndMetricsNamePrefix(settings);
 
-        if (port == null || StringUtils2.isNullOrEmpty(host)) {
+        if (StringUtils2.isNullOrEmpty(host) || (port == null && !UnixDomainSockets.isUnixDomainSocketUri(host))) {
             throw new RuntimeException("Host and/or port cannot be null");
         }
 
-        int bufferSize = ConfigurationUtils.getInt(settings, SETTING_BUFFER_SIZE, SETTING_DEFAULT_BUFFER_SIZE);
-        sendBuffer = ByteBuffer.allocate(bufferSize);
+        int maxPacketSizeInBytes = ConfigurationUtils.getInt(settings, SETTING_MAX_PACKET_SIZE_IN_BYTES,
+                ConfigurationUtils.getInt(settings, SETTING_BUFFER_SIZE, SETTING_MAX_PACKET_SIZE_IN_BYTES_DEFAULT_VALUE));
+        if (maxPacketSizeInBytes <= 0 || maxPacketSizeInBytes > MAX_UDP_PAYLOAD_SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("'" + SETTING_MAX_PACKET_SIZE_IN_BYTES + "' must be in ]0, "
+                    + MAX_UDP_PAYLOAD_SIZE_IN_BYTES + "], was: " + maxPacketSizeInBytes);
+        }
+        sendBuffer = ByteBuffer.allocateDirect(maxPacketSizeInBytes);
+        encoder = newMetricEncoder(ConfigurationUtils.getInt(settings, SETTING_METRIC_NAME_CACHE_MAX_SIZE, SETTING_DEFAULT_METRIC_NAME_CACHE_MAX_SIZE));
 
-        addressReference = new CachingReference<InetSocketAddress>(30, TimeUnit.SECONDS) {
-            @Nonnull
-            @Override
-            protected InetSocketAddress newObject() {
-                return new InetSocketAddress(host, port);
+        if (UnixDomainSockets.isUnixDomainSocketUri(host)) {
+            UnixDomainSockets.checkSupported();
+            unixDomainSocketPath = UnixDomainSockets.getPath(host);
+            target = host;
+        } else {
+            addressReference = new CachingReference<InetSocketAddress>(30, TimeUnit.SECONDS) {
+                @Nonnull
+                @Override
+                protected InetSocketAddress newObject() {
+                    return new InetSocketAddress(host, port);
+                }
+            };
+            try {
+                channel = DatagramChannel.open();
+            } catch (IOException e) {
+                throw new RuntimeException("Exception opening datagram channel", e);
             }
-        };
-        try {
-            channel = DatagramChannel.open();
-        } catch (IOException e) {
-            throw new RuntimeException("Exception opening datagram channel", e);
+            target = host + ":" + port;
         }
 
-        logger.info(String.format("StatsDOutputWriter[host=%s, port=%d, metricNamePrefix=%s]", host, port, metricNamePrefix));
+        logger.info(String.format("StatsDOutputWriter[target=%s, metricNamePrefix=%s, maxPacketSizeInBytes=%d]",
+                target, metricNamePrefix, maxPacketSizeInBytes));
+    }
+
+    /**
+     * Encode once the prefix and the tags of the configured StatsD flavour.
+     */
+    protected StatsDMetricEncoder newMetricEncoder(int metricNameCacheMaxSize) {
+        if (statsType.equals(STATSD_DATADOG)) {
+            String joinedTags = StringUtils2.join(Tag.convertTagsToStrings(tags), ",");
+            return new StatsDMetricEncoder(metricNamePrefix, "", "|#" + joinedTags, metricNameCacheMaxSize);
+        } else if (statsType.equals(STATSD_SYSDIG)) {
+            String joinedTags = StringUtils2.join(Tag.convertTagsToStrings(tags), ",");
+            return new StatsDMetricEncoder(metricNamePrefix, "#" + joinedTags, "", metricNameCacheMaxSize);
+        } else {
+            return new StatsDMetricEncoder(metricNamePrefix, "", "", metricNameCacheMaxSize);
+        }
     }
 
     protected String getHostName() {
@@ -122,9 +193,10 @@ public class StatsDOutputWriter extends AbstractOutputWriter implements OutputWr
     }
 
     @Override
-    public void postCollect() throws IOException {
+    public synchronized void postCollect() throws IOException {
         // Ensure data flush
         flush();
+        endOfCollection();
     }
 
     @Override
@@ -132,95 +204,74 @@ public class StatsDOutputWriter extends AbstractOutputWriter implements OutputWr
         writeQueryResult(invocationName, null, value);
     }
 
-    protected synchronized String buildMetricsString(String metricName, String metricType,
-        String strValue) {
-        //DataDog statsd with tags (https://docs.datadoghq.com/guides/dogstatsd/),
-        // metric.name:value|type|@sample_rate|#tag1:value,tag2
-        //Sysdig metric tags (https://support.sysdig.com/hc/en-us/articles/204376099-Metrics-integrations-StatsD-)
-        // enqueued_messages#users,country=italy:10|c
-        StringBuilder sb = new StringBuilder();
-        String type = "gauge".equalsIgnoreCase(metricType) || "g".equalsIgnoreCase(metricType) ? "g" : "c";
-        if (statsType.equals(STATSD_DATADOG)) {
-            sb.append(metricNamePrefix)
-                    .append(".")
-                    .append(metricName)
-                    .append(":")
-                    .append(strValue)
-                    .append("|")
-                    .append(type)
-                    .append("|#")
-                    .append(StringUtils2.join(Tag.convertTagsToStrings(tags), ","))
-                    .append("\n");
-        } else if (statsType.equals(STATSD_SYSDIG)) {
-            sb.append(metricNamePrefix)
-                    .append(".")
-                    .append(metricName)
-                    .append("#")
-                    .append(StringUtils2.join(Tag.convertTagsToStrings(tags), ","))
-                    .append(":")
-                    .append(strValue)
-                    .append("|")
-                    .append(type)
-                    .append("\n");
-        } else {
-            sb.append(metricNamePrefix)
-                    .append(".")
-                    .append(metricName)
-                    .append(":")
-                    .append(strValue)
-                    .append("|")
-                    .append(type)
-                    .append("\n");
-        }
-        return sb.toString();
-    }
-
     @Override
     public synchronized void writeQueryResult(String metricName, String metricType, Object value) throws IOException
     {
-        // statsd expects a number value for the metric.
-        //
-        // skip if value's string representation equals to "NaN" or "INF", which are meaningless values to statsd.
-        // passing the invalid values down will trigger error in downstream parsing applications.
-        String strValue = String.valueOf(value);
-        if (strValue.equals("NaN") || strValue.equals("INF")) {
+        if (!StatsDMetricEncoder.isValidValue(value)) {
             return;
         }
-        String outputMessage = this.buildMetricsString(metricName, metricType, strValue);
-
-        if (logger.isLoggable(getDebugLevel())) {
-            logger.log(getDebugLevel(), "Sending msg: " + outputMessage);
+        int start = sendBuffer.position();
+        if (!encoder.encode(sendBuffer, metricName, metricType, value)) {
+            flush();
+            start = sendBuffer.position();
+            if (!encoder.encode(sendBuffer, metricName, metricType, value)) {
+                rejectLine(metricName);
+                return;
+            }
         }
-        doSend(outputMessage);
+        logMessageIfDebugLoggable(start);
     }
 
-    protected synchronized boolean doSend(String stat) {
-        try {
-            final byte[] data = stat.getBytes("utf-8");
-
-            // If we're going to go past the threshold of the buffer then flush.
-            // the +1 is for the potential '\n' in multi_metrics below
-            if (sendBuffer.remaining() < (data.length + 1)) {
+    @Override
+    public synchronized void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.isDoubleValue(i) ? Double.isNaN(batch.getDoubleValue(i))
+                    : !batch.isLongValue(i) && !StatsDMetricEncoder.isValidValue(batch.getValue(i))) {
+                continue;
+            }
+            int start = sendBuffer.position();
+            if (!encoder.encode(sendBuffer, batch, i)) {
                 flush();
+                start = sendBuffer.position();
+                if (!encoder.encode(sendBuffer, batch, i)) {
+                    rejectLine(batch.getName(i));
+                    continue;
+                }
             }
+            logMessageIfDebugLoggable(start);
+        }
+        flush();
+        endOfCollection();
+    }
 
-            if (sendBuffer.remaining() < (data.length + 1)) {
-                logger.warning("Given data too big (" + data.length + "bytes) for the buffer size (" + sendBuffer.remaining() + "bytes), skip it: "
-                        + StringUtils2.abbreviate(stat, 20));
-            }
+    private void rejectLine(String metricName) {
+        rejectedLinesCounter.incrementAndGet();
+        logger.warning("Given data too big for the max packet size (" + sendBuffer.capacity() + "bytes), skip it: "
+                + StringUtils2.abbreviate(metricName, 20));
+    }
 
-            sendBuffer.put(data); // append the data
-            return true;
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, String.format(
-                    "Could not send stat %s to host %s:%d", sendBuffer.toString(), addressReference.get().getHostName(),
-                    addressReference.get().getPort()), e);
-            return false;
+    private void endOfCollection() {
+        lastFlushPacketsCount = currentFlushPacketsCount;
+        lastFlushBytesCount = currentFlushBytesCount;
+        currentFlushPacketsCount = 0;
+        currentFlushBytesCount = 0;
+        if (logger.isLoggable(getDebugLevel())) {
+            logger.log(getDebugLevel(), "Sent " + lastFlushPacketsCount + " packets, " + lastFlushBytesCount + " bytes");
         }
     }
 
+    private void logMessageIfDebugLoggable(int start) {
+        if (logger.isLoggable(getDebugLevel())) {
+            ByteBuffer message = sendBuffer.duplicate();
+            ((Buffer) message).position(start).limit(sendBuffer.position());
+            logger.log(getDebugLevel(), "Sending msg: " + StandardCharsets2.UTF_8.decode(message));
+        }
+    }
+
+    /**
+     * Send the pending lines in one datagram.
+     */
     public synchronized boolean flush() {
-        InetSocketAddress address = addressReference.get();
         try {
             final int sizeOfBuffer = sendBuffer.position();
 
@@ -230,7 +281,12 @@ public class StatsDOutputWriter extends AbstractOutputWriter implements OutputWr
 
             // send and reset the buffer
             ((Buffer)sendBuffer).flip();
-            final int nbSentBytes = channel.send(sendBuffer, address);
+            final int nbSentBytes = unixDomainSocketPath == null ?
+                    send(sendBuffer, addressReference.get()) : sendToUnixDomainSocket(sendBuffer);
+            incrementBytesSent(nbSentBytes);
+            sentPacketsCounter.incrementAndGet();
+            currentFlushPacketsCount++;
+            currentFlushBytesCount += nbSentBytes;
             sendBuffer.limit(sendBuffer.capacity());
             sendBuffer.rewind();
 
@@ -238,19 +294,94 @@ public class StatsDOutputWriter extends AbstractOutputWriter implements OutputWr
                 return true;
             } else {
                 logger.log(Level.SEVERE, String.format(
-                        "Could not send entirely stat %s to host %s:%d. Only sent %d bytes out of %d bytes",
-                        sendBuffer.toString(),
-                        address.getHostName(), address.getPort(), nbSentBytes, sizeOfBuffer));
+                        "Could not send entirely stat %s to %s. Only sent %d bytes out of %d bytes",
+                        sendBuffer.toString(), target, nbSentBytes, sizeOfBuffer));
                 return false;
             }
         } catch (IOException | RuntimeException e) { // RuntimeException can by BufferOverflowException...
-            addressReference.purge();
+            if (addressReference != null) {
+                addressReference.purge();
+            }
+            IoUtils.closeQuietly(unixDomainSocketChannel);
+            unixDomainSocketChannel = null;
             logger.log(Level.SEVERE,
-                    String.format("Could not send stat %s to host %s:%d", sendBuffer.toString(), address.getHostName(),
-                            address.getPort()), e);
+                    String.format("Could not send stat %s to %s", sendBuffer.toString(), target), e);
             sendBuffer.clear();
             return false;
         }
     }
 
+    protected int send(ByteBuffer buffer, InetSocketAddress address) throws IOException {
+        return channel.send(buffer, address);
+    }
+
+    private int sendToUnixDomainSocket(ByteBuffer packet) throws IOException {
+        if (unixDomainSocketChannel == null || !unixDomainSocketChannel.isConnected()) {
+            unixDomainSocketChannel = UnixDomainSockets.connect(unixDomainSocketPath);
+        }
+        int length = packet.remaining();
+        if (statsType.equals(STATSD_DATADOG)) {
+            ByteBuffer header = unixDomainSocketFrame[0];
+            header.clear();
+            header.putInt(length);
+            ((Buffer) header).flip();
+            unixDomainSocketFrame[1] = packet;
+            while (packet.hasRemaining()) {
+                unixDomainSocketChannel.write(unixDomainSocketFrame);
+            }
+        } else {
+            while (packet.hasRemaining()) {
+                unixDomainSocketChannel.write(packet);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized void preDestroy() {
+        super.preDestroy();
+        IoUtils.closeQuietly(unixDomainSocketChannel);
+        IoUtils.closeQuietly(channel);
+    }
+
+    public long getSentPacketsCount() {
+        return sentPacketsCounter.get();
+    }
+
+    /**
+     * @return number of lines skipped because they don't fit in a datagram of {@code maxPacketSizeInBytes}
+     */
+    public long getRejectedLinesCount() {
+        return rejectedLinesCounter.get();
+    }
+
+    /**
+     * @return number of datagrams sent for the last collection
+     */
+    public int getLastFlushPacketsCount() {
+        return lastFlushPacketsCount;
+    }
+
+    /**
+     * @return number of bytes sent for the last collection
+     */
+    public long getLastFlushBytesCount() {
+        return lastFlushBytesCount;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("packets", getSentPacketsCount());
+        counters.put("rejectedLines", getRejectedLinesCount());
+        return counters;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> gauges = new LinkedHashMap<>();
+        gauges.put("lastFlushPackets", (long) getLastFlushPacketsCount());
+        gauges.put("lastFlushBytes", getLastFlushBytesCount());
+        return gauges;
+    }
 }
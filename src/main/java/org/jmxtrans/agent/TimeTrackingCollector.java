@@ -24,39 +24,200 @@
 package org.jmxtrans.agent;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanServer;
 
 /**
- * Collector that keeps track of when it was last run and which interval it needs to be run at.
+ * Collector that keeps track of when it has to be run next and which interval it needs to be run at.
  * 
  * @author Kristoffer Erlandsson
  */
 public class TimeTrackingCollector {
+    /**
+     * Number of consecutive timeouts after which the collector is quarantined.
+     */
+    static final int QUARANTINE_THRESHOLD = 3;
+    /**
+     * The quarantine doubles with each new consecutive timeout, up to {@code 2^MAX_QUARANTINE_EXPONENT} collect intervals.
+     */
+    static final int MAX_QUARANTINE_EXPONENT = 5;
+
     private Collector collector;
-    private long lastRun = Long.MIN_VALUE;
+    private long nextRunMillis = Long.MIN_VALUE;
     private long collectIntervalMillis;
+    /**
+     * {@code 0} if the collector has no timeout.
+     */
+    private long collectTimeoutMillis;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong timeoutsCounter = new AtomicLong();
+    private final AtomicLong collectionsCounter = new AtomicLong();
+    private final AtomicLong totalCollectDurationNanos = new AtomicLong();
+    private volatile long lastCollectDurationNanos;
+    private volatile long maxCollectDurationNanos;
+    private int consecutiveTimeouts;
 
-    private static long currentMillis() {
+    static long currentMillis() {
         // Use nanoTime to ensure that events such as daylight savings do not affect the duration calculation.
         return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
     }
 
     public TimeTrackingCollector(Collector collector, long collectIntervalMillis) {
+        this(collector, collectIntervalMillis, 0);
+    }
+
+    /**
+     * @param collectTimeoutMillis max duration of a collection before it is abandoned, {@code 0} for no timeout
+     */
+    public TimeTrackingCollector(Collector collector, long collectIntervalMillis, long collectTimeoutMillis) {
+        if (collectTimeoutMillis < 0) {
+            throw new IllegalArgumentException("collectTimeoutMillis must be >= 0, was: " + collectTimeoutMillis);
+        }
         this.collector = collector;
         this.collectIntervalMillis = collectIntervalMillis;
+        this.collectTimeoutMillis = collectTimeoutMillis;
     }
 
     public void collectIfEnoughTimeHasPassed(MBeanServer mbeanServer, OutputWriter outputWriter) {
-        long currentMillis = currentMillis();
-        if (currentMillis >= lastRun + collectIntervalMillis) {
-            lastRun = currentMillis;
+        if (startRunIfEnoughTimeHasPassed()) {
+            collect(mbeanServer, outputWriter);
+        }
+    }
+
+    /**
+     * Marks the collector as run if its collect interval has elapsed since the last run.
+     * The caller is then responsible for invoking {@link #collect(MBeanServer, OutputWriter)}.
+     *
+     * @return {@code true} if the collector is due and must be run
+     */
+    public boolean startRunIfEnoughTimeHasPassed() {
+        return startRunIfDue(currentMillis(), 0);
+    }
+
+    /**
+     * @param nowMillis    current time as returned by {@link #currentMillis()}
+     * @param jitterMillis extra delay added to the collect interval before the next run
+     * @return {@code true} if the collector is due and must be run
+     */
+    boolean startRunIfDue(long nowMillis, long jitterMillis) {
+        if (nowMillis >= nextRunMillis) {
+            nextRunMillis = nowMillis + collectIntervalMillis + jitterMillis;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Schedule the first run of this collector {@code phaseMillis} after {@code nowMillis}.
+     */
+    void scheduleFirstRun(long nowMillis, long phaseMillis) {
+        nextRunMillis = nowMillis + phaseMillis;
+    }
+
+    void setNextRunMillis(long nextRunMillis) {
+        this.nextRunMillis = nextRunMillis;
+    }
+
+    /**
+     * @return next time this collector is due, in the time base of {@link #currentMillis()}
+     */
+    long getNextRunMillis() {
+        return nextRunMillis;
+    }
+
+    public void collect(MBeanServer mbeanServer, OutputWriter outputWriter) {
+        running.set(true);
+        long startNanos = System.nanoTime();
+        try {
             collector.collectAndExport(mbeanServer, outputWriter);
+        } finally {
+            long durationNanos = System.nanoTime() - startNanos;
+            // a collector is not run concurrently with itself
+            lastCollectDurationNanos = durationNanos;
+            if (durationNanos > maxCollectDurationNanos) {
+                maxCollectDurationNanos = durationNanos;
+            }
+            totalCollectDurationNanos.addAndGet(durationNanos);
+            collectionsCounter.incrementAndGet();
+            running.set(false);
         }
     }
 
+    /**
+     * @return {@code true} if a collection is in progress, possibly an abandoned one that is still hung
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Record a collection that completed before its timeout.
+     */
+    void onCollectionCompleted() {
+        consecutiveTimeouts = 0;
+    }
+
+    /**
+     * Record a collection abandoned because it did not complete before its timeout.
+     *
+     * @return the duration of the quarantine of this collector, {@code 0} if it is not quarantined
+     */
+    long onCollectionTimeout() {
+        timeoutsCounter.incrementAndGet();
+        consecutiveTimeouts++;
+        if (consecutiveTimeouts < QUARANTINE_THRESHOLD) {
+            return 0;
+        }
+        return collectIntervalMillis << Math.min(consecutiveTimeouts - QUARANTINE_THRESHOLD + 1, MAX_QUARANTINE_EXPONENT);
+    }
+
     public long getCollectIntervalMillis() {
         return collectIntervalMillis;
     }
 
+    public long getCollectTimeoutMillis() {
+        return collectTimeoutMillis;
+    }
+
+    /**
+     * @return number of collections abandoned because of the timeout since the creation of this collector
+     */
+    public long getTimeoutsCount() {
+        return timeoutsCounter.get();
+    }
+
+    /**
+     * @return number of completed collections, including the ones completed after they have been abandoned
+     */
+    public long getCollectionsCount() {
+        return collectionsCounter.get();
+    }
+
+    public long getTotalCollectDurationNanos() {
+        return totalCollectDurationNanos.get();
+    }
+
+    public long getLastCollectDurationNanos() {
+        return lastCollectDurationNanos;
+    }
+
+    public long getMaxCollectDurationNanos() {
+        return maxCollectDurationNanos;
+    }
+
+    public Collector getCollector() {
+        return collector;
+    }
+
+    @Override
+    public String toString() {
+        return "TimeTrackingCollector{" +
+                "collector=" + collector +
+                ", collectIntervalMillis=" + collectIntervalMillis +
+                (collectTimeoutMillis == 0 ? "" : ", collectTimeoutMillis=" + collectTimeoutMillis) +
+                '}';
+    }
+
 }
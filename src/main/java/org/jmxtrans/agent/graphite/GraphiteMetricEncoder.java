@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.graphite;
+
+import static org.jmxtrans.agent.util.io.ByteBufferUtils.*;
+
+import org.jmxtrans.agent.MetricBatch;
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes metrics in the Graphite plain text format ({@code <prefix><name> <value> <timestamp>\n}) directly in a
+ * {@link ByteBuffer}, without the intermediate {@link String}s of {@link GraphiteMetricMessageBuilder}.
+ *
+ * The bytes of the prefix are computed once and the encoded metric names are cached (up to
+ * {@code metricNameCacheMaxSize} names, the names of the steady state collections are cached first). Integral
+ * numbers and decimal numbers in the range [10^-3, 10^7) are formatted without allocation, the other values fall
+ * back on their {@code toString()} representation.
+ *
+ * @see GraphiteMetricMessageBuilder
+ */
+@NotThreadSafe
+public class GraphiteMetricEncoder {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static int MAX_TIMESTAMP_LENGTH = 20;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final String metricPathPrefix;
+    private final byte[] metricPathPrefixBytes;
+    private final int metricNameCacheMaxSize;
+    private final Map<String, byte[]> encodedMetricNames = new HashMap<>();
+    private boolean metricNameCacheFullLogged;
+
+    /**
+     * @param configuredMetricPathPrefix Prefix to add to the metric keys. May be null, in which case servers.your_hostname will be used.
+     * @param metricNameCacheMaxSize     max number of encoded metric names to cache, 0 to disable the cache
+     */
+    public GraphiteMetricEncoder(@Nullable String configuredMetricPathPrefix, int metricNameCacheMaxSize) {
+        this.metricPathPrefix = GraphiteMetricMessageBuilder.buildMetricPathPrefix(configuredMetricPathPrefix);
+        this.metricPathPrefixBytes = metricPathPrefix.getBytes(UTF_8);
+        this.metricNameCacheMaxSize = metricNameCacheMaxSize;
+    }
+
+    /**
+     * Encode the given metric, including the trailing newline.
+     *
+     * @return {@code false} if the {@code buffer} is too small, the {@code buffer} is then left unchanged
+     */
+    public boolean encode(@Nonnull ByteBuffer buffer, @Nonnull String metricName, @Nullable Object value, long timestampInSeconds) {
+        byte[] name = encodeMetricName(metricName);
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return encode(buffer, name, ((Number) value).longValue(), timestampInSeconds);
+        } else if (value instanceof Double) {
+            return encode(buffer, name, (Double) value, false, timestampInSeconds);
+        } else if (value instanceof Float) {
+            return encode(buffer, name, (Float) value, true, timestampInSeconds);
+        } else if (value instanceof Boolean) {
+            return encode(buffer, name, (Boolean) value ? 1 : 0, timestampInSeconds);
+        }
+        byte[] encodedValue = String.valueOf(value).getBytes(UTF_8);
+        if (buffer.remaining() < lineLength(name, encodedValue.length)) {
+            return false;
+        }
+        putMetricName(buffer, name);
+        buffer.put(encodedValue);
+        putTimestamp(buffer, timestampInSeconds);
+        return true;
+    }
+
+    /**
+     * Encode the result at the given {@code index} of the {@code batch}, including the trailing newline. Primitive
+     * values are encoded without being boxed.
+     *
+     * @return {@code false} if the {@code buffer} is too small, the {@code buffer} is then left unchanged
+     */
+    public boolean encode(@Nonnull ByteBuffer buffer, @Nonnull MetricBatch batch, int index, long timestampInSeconds) {
+        if (batch.isLongValue(index)) {
+            return encode(buffer, encodeMetricName(batch.getName(index)), batch.getLongValue(index), timestampInSeconds);
+        } else if (batch.isDoubleValue(index)) {
+            return encode(buffer, encodeMetricName(batch.getName(index)), batch.getDoubleValue(index), false, timestampInSeconds);
+        }
+        return encode(buffer, batch.getName(index), batch.getValue(index), timestampInSeconds);
+    }
+
+    private boolean encode(ByteBuffer buffer, byte[] name, long value, long timestampInSeconds) {
+        if (buffer.remaining() < lineLength(name, MAX_NUMBER_LENGTH)) {
+            return false;
+        }
+        putMetricName(buffer, name);
+        putLong(buffer, value);
+        putTimestamp(buffer, timestampInSeconds);
+        return true;
+    }
+
+    private boolean encode(ByteBuffer buffer, byte[] name, double value, boolean floatPrecision, long timestampInSeconds) {
+        if (buffer.remaining() < lineLength(name, MAX_NUMBER_LENGTH)) {
+            return false;
+        }
+        putMetricName(buffer, name);
+        putDouble(buffer, value, floatPrecision);
+        putTimestamp(buffer, timestampInSeconds);
+        return true;
+    }
+
+    private int lineLength(byte[] name, int valueLength) {
+        // <prefix><name> <value> <timestamp>\n
+        return metricPathPrefixBytes.length + name.length + 1 + valueLength + 1 + MAX_TIMESTAMP_LENGTH + 1;
+    }
+
+    private void putMetricName(ByteBuffer buffer, byte[] name) {
+        buffer.put(metricPathPrefixBytes);
+        buffer.put(name);
+        buffer.put((byte) ' ');
+    }
+
+    private void putTimestamp(ByteBuffer buffer, long timestampInSeconds) {
+        buffer.put((byte) ' ');
+        putLong(buffer, timestampInSeconds);
+        buffer.put((byte) '\n');
+    }
+
+    @Nonnull
+    private byte[] encodeMetricName(@Nonnull String metricName) {
+        byte[] encoded = encodedMetricNames.get(metricName);
+        if (encoded != null) {
+            return encoded;
+        }
+        encoded = metricName.getBytes(UTF_8);
+        if (encodedMetricNames.size() < metricNameCacheMaxSize) {
+            encodedMetricNames.put(metricName, encoded);
+        } else if (metricNameCacheMaxSize > 0 && !metricNameCacheFullLogged) {
+            metricNameCacheFullLogged = true;
+            logger.info("Graphite metric names cache is full (" + metricNameCacheMaxSize + " names), new metric names are no longer cached");
+        }
+        return encoded;
+    }
+
+    public String getPrefix() {
+        return metricPathPrefix;
+    }
+
+    public int getMetricNameCacheSize() {
+        return encodedMetricNames.size();
+    }
+}
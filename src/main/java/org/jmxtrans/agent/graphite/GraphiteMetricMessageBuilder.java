@@ -59,7 +59,7 @@ public class GraphiteMetricMessageBuilder {
     /**
      * {@link java.net.InetAddress#getLocalHost()} may not be known at JVM startup when the process is launched as a Linux service.
      */
-    private static String buildMetricPathPrefix(String configuredMetricPathPrefix) {
+    static String buildMetricPathPrefix(@Nullable String configuredMetricPathPrefix) {
         if (configuredMetricPathPrefix != null) {
             return configuredMetricPathPrefix;
         }
@@ -37,7 +37,10 @@ public class GraphiteOutputWriterCommonSettings {
     public static final String SETTING_HOST = "host";
     public static final String SETTING_PORT = "port";
     public static final int SETTING_PORT_DEFAULT_VALUE = 2003;
+    public static final int SETTING_PICKLE_PORT_DEFAULT_VALUE = 2004;
     public static final String SETTING_NAME_PREFIX = "namePrefix";
+    public static final String SETTING_METRIC_NAME_CACHE_MAX_SIZE = "metricNameCacheMaxSize";
+    public static final int SETTING_METRIC_NAME_CACHE_MAX_SIZE_DEFAULT_VALUE = 10000;
     
     private GraphiteOutputWriterCommonSettings(){}
     
@@ -49,4 +52,12 @@ public class GraphiteOutputWriterCommonSettings {
     public static String getConfiguredMetricPrefixOrNull(Map<String, String> settings) {
         return getString(settings, SETTING_NAME_PREFIX, null);
     }
+
+    public static GraphiteMetricEncoder newMetricEncoder(Map<String, String> settings) {
+        int metricNameCacheMaxSize = getInt(settings, SETTING_METRIC_NAME_CACHE_MAX_SIZE, SETTING_METRIC_NAME_CACHE_MAX_SIZE_DEFAULT_VALUE);
+        if (metricNameCacheMaxSize < 0) {
+            throw new IllegalArgumentException("'" + SETTING_METRIC_NAME_CACHE_MAX_SIZE + "' must be >= 0, was: " + metricNameCacheMaxSize);
+        }
+        return new GraphiteMetricEncoder(getConfiguredMetricPrefixOrNull(settings), metricNameCacheMaxSize);
+    }
 }
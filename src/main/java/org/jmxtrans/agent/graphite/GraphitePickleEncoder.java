@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.graphite;
+
+import org.jmxtrans.agent.MetricBatch;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes metrics in frames of the Graphite Carbon pickle protocol: a 4 bytes big endian length followed by a
+ * list of {@code (path, (timestamp, value))} tuples serialized with the pickle protocol 2.
+ *
+ * Only the few opcodes needed by such a list are emitted. Integral values are encoded as integers, the other
+ * numbers as floats and the non numeric values are skipped as Carbon would reject them.
+ *
+ * @see <a href="https://graphite.readthedocs.io/en/latest/feeding-carbon.html#the-pickle-protocol">The pickle protocol</a>
+ */
+@NotThreadSafe
+public class GraphitePickleEncoder {
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final static byte PROTO = (byte) 0x80;
+    private final static byte EMPTY_LIST = ']';
+    private final static byte MARK = '(';
+    private final static byte BINUNICODE = 'X';
+    private final static byte BININT = 'J';
+    private final static byte LONG1 = (byte) 0x8a;
+    private final static byte BINFLOAT = 'G';
+    private final static byte TUPLE2 = (byte) 0x86;
+    private final static byte APPENDS = 'e';
+    private final static byte STOP = '.';
+
+    /**
+     * Max size of an encoded tuple, excluding the path.
+     */
+    private final static int MAX_TUPLE_SIZE = 40;
+
+    private final String metricPathPrefix;
+    private final byte[] metricPathPrefixBytes;
+    private ByteBuffer frame = ByteBuffer.allocate(64 * 1024);
+    private int frameSize;
+
+    /**
+     * @param configuredMetricPathPrefix Prefix to add to the metric keys. May be null, in which case servers.your_hostname will be used.
+     */
+    public GraphitePickleEncoder(@Nullable String configuredMetricPathPrefix) {
+        this.metricPathPrefix = GraphiteMetricMessageBuilder.buildMetricPathPrefix(configuredMetricPathPrefix);
+        this.metricPathPrefixBytes = metricPathPrefix.getBytes(UTF_8);
+    }
+
+    /**
+     * Add the given metric to the current frame.
+     *
+     * @return {@code false} if the value is not numeric and has been skipped
+     */
+    public boolean add(@Nonnull String metricName, @Nullable Object value, long timestampInSeconds) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            addLong(metricName, ((Number) value).longValue(), timestampInSeconds);
+        } else if (value instanceof Number) {
+            addDouble(metricName, ((Number) value).doubleValue(), timestampInSeconds);
+        } else if (value instanceof Boolean) {
+            addLong(metricName, (Boolean) value ? 1 : 0, timestampInSeconds);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add the result at the given {@code index} of the {@code batch} to the current frame.
+     *
+     * @return {@code false} if the value is not numeric and has been skipped
+     */
+    public boolean add(@Nonnull MetricBatch batch, int index, long timestampInSeconds) {
+        if (batch.isLongValue(index)) {
+            addLong(batch.getName(index), batch.getLongValue(index), timestampInSeconds);
+            return true;
+        } else if (batch.isDoubleValue(index)) {
+            addDouble(batch.getName(index), batch.getDoubleValue(index), timestampInSeconds);
+            return true;
+        }
+        return add(batch.getName(index), batch.getValue(index), timestampInSeconds);
+    }
+
+    private void addLong(String metricName, long value, long timestampInSeconds) {
+        startTuple(metricName, timestampInSeconds);
+        putInteger(value);
+        endTuple();
+    }
+
+    private void addDouble(String metricName, double value, long timestampInSeconds) {
+        startTuple(metricName, timestampInSeconds);
+        frame.put(BINFLOAT);
+        frame.putDouble(value); // big endian
+        endTuple();
+    }
+
+    private void startTuple(String metricName, long timestampInSeconds) {
+        byte[] name = metricName.getBytes(UTF_8);
+        if (frameSize == 0) {
+            frame.clear();
+            frame.putInt(0); // length, set by finishFrame()
+            frame.put(PROTO).put((byte) 2);
+            frame.put(EMPTY_LIST);
+            frame.put(MARK);
+        }
+        ensureRemaining(metricPathPrefixBytes.length + name.length + MAX_TUPLE_SIZE);
+        frame.put(BINUNICODE);
+        putLittleEndianInt(metricPathPrefixBytes.length + name.length);
+        frame.put(metricPathPrefixBytes);
+        frame.put(name);
+        putInteger(timestampInSeconds);
+    }
+
+    private void endTuple() {
+        frame.put(TUPLE2); // (timestamp, value)
+        frame.put(TUPLE2); // (path, (timestamp, value))
+        frameSize++;
+    }
+
+    private void putInteger(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            frame.put(BININT);
+            putLittleEndianInt((int) value);
+        } else {
+            frame.put(LONG1);
+            frame.put((byte) 8);
+            for (int i = 0; i < 8; i++) {
+                frame.put((byte) (value >>> (8 * i)));
+            }
+        }
+    }
+
+    private void putLittleEndianInt(int value) {
+        frame.put((byte) value);
+        frame.put((byte) (value >>> 8));
+        frame.put((byte) (value >>> 16));
+        frame.put((byte) (value >>> 24));
+    }
+
+    private void ensureRemaining(int length) {
+        // keep room for APPENDS and STOP
+        if (frame.remaining() < length + 2) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(frame.capacity() * 2, frame.position() + length + 2));
+            frame.flip();
+            larger.put(frame);
+            frame = larger;
+        }
+    }
+
+    /**
+     * @return number of metrics in the current frame
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Terminate the current frame. The returned buffer, from position 0 to its limit, is only valid until the next
+     * {@code add()}.
+     */
+    @Nonnull
+    public ByteBuffer finishFrame() {
+        if (frameSize == 0) {
+            throw new IllegalStateException("Empty frame");
+        }
+        frame.put(APPENDS);
+        frame.put(STOP);
+        frame.putInt(0, frame.position() - 4);
+        frame.flip();
+        frameSize = 0;
+        return frame;
+    }
+
+    public String getPrefix() {
+        return metricPathPrefix;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.graphite;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import org.jmxtrans.agent.util.io.IoUtils;
+import org.jmxtrans.agent.util.net.HostAndPort;
+import org.jmxtrans.agent.util.net.UnixDomainSockets;
+
+/**
+ * Lazily (re)connected stream to a Graphite Carbon server on TCP or on a unix domain socket
+ * ({@code unix:///path/to/socket}), shared by the TCP Graphite output writers. Not thread safe.
+ */
+public class GraphiteTcpConnection {
+
+    private final HostAndPort hostAndPort;
+    private final int connectTimeoutInMillis;
+    private Socket socket;
+    private SocketChannel unixDomainSocketChannel;
+    private OutputStream out;
+
+    /**
+     * @throws IllegalStateException if {@code hostAndPort} is a unix domain socket and the JVM does not support them
+     */
+    public GraphiteTcpConnection(@Nonnull HostAndPort hostAndPort, int connectTimeoutInMillis) {
+        this.hostAndPort = hostAndPort;
+        this.connectTimeoutInMillis = connectTimeoutInMillis;
+        if (hostAndPort.isUnixDomainSocket()) {
+            UnixDomainSockets.checkSupported();
+        }
+    }
+
+    /**
+     * @return the stream of the connection, connected again if the socket is no longer valid
+     * @throws ConnectException if the connection fails
+     */
+    @Nonnull
+    public OutputStream getOutputStream() throws IOException {
+        boolean socketIsValid;
+        if (hostAndPort.isUnixDomainSocket()) {
+            socketIsValid = unixDomainSocketChannel != null && unixDomainSocketChannel.isConnected();
+        } else {
+            try {
+                socketIsValid = socket != null &&
+                        socket.isConnected()
+                        && socket.isBound()
+                        && !socket.isClosed()
+                        && !socket.isInputShutdown()
+                        && !socket.isOutputShutdown();
+            } catch (Exception e) {
+                socketIsValid = false;
+            }
+        }
+        if (!socketIsValid) {
+            out = null;
+            try {
+                if (hostAndPort.isUnixDomainSocket()) {
+                    unixDomainSocketChannel = UnixDomainSockets.connect(hostAndPort.getUnixDomainSocketPath());
+                } else {
+                    socket = new Socket();
+                    socket.setKeepAlive(true);
+                    socket.connect(new InetSocketAddress(hostAndPort.getHost(), hostAndPort.getPort()), connectTimeoutInMillis);
+                }
+            } catch (IOException e) {
+                ConnectException ce = new ConnectException("Exception connecting to " + hostAndPort);
+                ce.initCause(e);
+                throw ce;
+            }
+        }
+        if (out == null) {
+            out = hostAndPort.isUnixDomainSocket() ?
+                    Channels.newOutputStream(unixDomainSocketChannel) : socket.getOutputStream();
+        }
+        return out;
+    }
+
+    /**
+     * @return {@code true} if a stream has been opened since the connection was last closed
+     */
+    public boolean isOpen() {
+        return out != null;
+    }
+
+    public void close() {
+        out = null;
+        IoUtils.closeQuietly(socket);
+        IoUtils.closeQuietly(unixDomainSocketChannel);
+    }
+
+    @Nonnull
+    public HostAndPort getHostAndPort() {
+        return hostAndPort;
+    }
+
+    @Override
+    public String toString() {
+        return "GraphiteTcpConnection{" +
+                hostAndPort +
+                ", open=" + isOpen() +
+                '}';
+    }
+}
@@ -26,33 +26,64 @@ package org.jmxtrans.agent.influxdb;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import org.jmxtrans.agent.AbstractOutputWriter;
+import org.jmxtrans.agent.BatchOutputWriter;
+import org.jmxtrans.agent.MetricBatch;
+import org.jmxtrans.agent.OutputWriterMetrics;
 import org.jmxtrans.agent.util.ConfigurationUtils;
 import org.jmxtrans.agent.util.StandardCharsets2;
+import org.jmxtrans.agent.util.io.CountingOutputStream;
 import org.jmxtrans.agent.util.io.IoRuntimeException;
 import org.jmxtrans.agent.util.io.IoUtils;
 import org.jmxtrans.agent.util.time.Clock;
+import org.jmxtrans.agent.util.time.DurationHistogram;
 import org.jmxtrans.agent.util.time.SystemCurrentTimeMillisClock;
 
 import static org.jmxtrans.agent.util.ConfigurationUtils.getBoolean;
 
 /**
  * Output writer for InfluxDb.
+ *
+ * The line protocol is streamed in the request body (chunked transfer encoding, gzip compressed unless {@code gzip} is
+ * {@code false}) without building the whole body in memory. The responses are fully read so that the JVM keeps the
+ * HTTP connections alive and reuses them from one collection to the next.
+ *
+ * The points of a collection are sent in requests of at most {@code maxPointsPerRequest} points, up to
+ * {@code maxConcurrentRequests} requests being in flight at the same time. The requests that fail with a 5xx, 408 or
+ * 429 status code or an I/O error (e.g. a timeout) are retried up to {@code maxRetries} times with an exponential
+ * backoff, within a budget of {@code retryBudgetPerCollection} retries shared by all the requests of a collection. The
+ * requests rejected with another 4xx status code (bad data) are not retried.
+ *
+ * The points of a {@link MetricBatch} (e.g. replayed from a spool) are timestamped with the time of its collection.
  * 
  * @author Kristoffer Erlandsson
  */
-public class InfluxDbOutputWriter extends AbstractOutputWriter {
+public class InfluxDbOutputWriter extends AbstractOutputWriter implements BatchOutputWriter, OutputWriterMetrics {
 
     private URL url;
     private String database;
@@ -65,7 +96,27 @@ public class InfluxDbOutputWriter extends AbstractOutputWriter {
     private int readTimeoutMillis;
     private final Clock clock;
     private boolean enabled;
+    private boolean gzip;
     public final static String SETTING_ENABLED = "enabled";
+    public final static String SETTING_GZIP = "gzip";
+    public final static String SETTING_MAX_POINTS_PER_REQUEST = "maxPointsPerRequest";
+    public final static String SETTING_MAX_CONCURRENT_REQUESTS = "maxConcurrentRequests";
+    public final static String SETTING_MAX_RETRIES = "maxRetries";
+    public final static String SETTING_RETRY_BUDGET_PER_COLLECTION = "retryBudgetPerCollection";
+    public final static String SETTING_RETRY_INITIAL_BACKOFF_MILLIS = "retryInitialBackoffMillis";
+    public final static String SETTING_RETRY_MAX_BACKOFF_MILLIS = "retryMaxBackoffMillis";
+    private final static int STREAMING_CHUNK_SIZE_IN_BYTES = 8192;
+    private int maxPointsPerRequest;
+    private int maxRetries;
+    private int retryBudgetPerCollection;
+    private long retryInitialBackoffMillis;
+    private long retryMaxBackoffMillis;
+    private ExecutorService executor; // Null if requests are not concurrent
+    private final DurationHistogram requestsDuration = new DurationHistogram();
+    private final AtomicLong sentRequestsCounter = new AtomicLong();
+    private final AtomicLong retriesCounter = new AtomicLong();
+    private final AtomicLong rejectedRequestsCounter = new AtomicLong();
+    private final AtomicLong failedRequestsCounter = new AtomicLong();
 
     public InfluxDbOutputWriter() {
         this.clock = new SystemCurrentTimeMillisClock();
@@ -90,6 +141,32 @@ public class InfluxDbOutputWriter extends AbstractOutputWriter {
         tags = InfluxMetricConverter.tagsFromCommaSeparatedString(tagsStr);
         connectTimeoutMillis = ConfigurationUtils.getInt(settings, "connectTimeoutMillis", 3000);
         readTimeoutMillis = ConfigurationUtils.getInt(settings, "readTimeoutMillis", 5000);
+        gzip = getBoolean(settings, SETTING_GZIP, true);
+        maxPointsPerRequest = ConfigurationUtils.getInt(settings, SETTING_MAX_POINTS_PER_REQUEST, 5000);
+        int maxConcurrentRequests = ConfigurationUtils.getInt(settings, SETTING_MAX_CONCURRENT_REQUESTS, 2);
+        maxRetries = ConfigurationUtils.getInt(settings, SETTING_MAX_RETRIES, 3);
+        retryBudgetPerCollection = ConfigurationUtils.getInt(settings, SETTING_RETRY_BUDGET_PER_COLLECTION, 10);
+        retryInitialBackoffMillis = ConfigurationUtils.getInt(settings, SETTING_RETRY_INITIAL_BACKOFF_MILLIS, 100);
+        retryMaxBackoffMillis = ConfigurationUtils.getInt(settings, SETTING_RETRY_MAX_BACKOFF_MILLIS, 2000);
+        if (maxPointsPerRequest <= 0) {
+            throw new IllegalArgumentException("'" + SETTING_MAX_POINTS_PER_REQUEST + "' must be > 0, was: " + maxPointsPerRequest);
+        }
+        if (maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("'" + SETTING_MAX_CONCURRENT_REQUESTS + "' must be > 0, was: " + maxConcurrentRequests);
+        }
+        if (enabled && maxConcurrentRequests > 1) {
+            executor = Executors.newFixedThreadPool(maxConcurrentRequests, new ThreadFactory() {
+                final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = Executors.defaultThreadFactory().newThread(r);
+                    thread.setDaemon(true);
+                    thread.setName("jmxtrans-agent-influxdb-" + counter.incrementAndGet());
+                    return thread;
+                }
+            });
+        }
         url = parseUrlStr(getWriteEndpointForUrlStr(urlStr));
         logger.log(getInfoLevel(), "InfluxDbOutputWriter is configured with url=" + urlStr
                 + ", database=" + database
@@ -97,7 +174,12 @@ public class InfluxDbOutputWriter extends AbstractOutputWriter {
                 + ", password=" + (password != null ? "****" : null)
                 + ", tags=" + tagsStr
                 + ", connectTimeoutMills=" + connectTimeoutMillis
-                + ", readTimeoutMillis=" + readTimeoutMillis);
+                + ", readTimeoutMillis=" + readTimeoutMillis
+                + ", gzip=" + gzip
+                + ", maxPointsPerRequest=" + maxPointsPerRequest
+                + ", maxConcurrentRequests=" + maxConcurrentRequests
+                + ", maxRetries=" + maxRetries
+                + ", retryBudgetPerCollection=" + retryBudgetPerCollection);
     }
 
     private String getWriteEndpointForUrlStr(String urlStr) {
@@ -145,35 +227,144 @@ public class InfluxDbOutputWriter extends AbstractOutputWriter {
     @Override
     public void postCollect() throws IOException {
         if(!enabled) return;
-        String body = convertMetricsToLines(batchedMetrics);
+        List<InfluxMetric> metrics = batchedMetrics;
+        batchedMetrics = new ArrayList<>();
+        writeMetrics(metrics);
+    }
+
+    @Override
+    public void writeBatch(MetricBatch batch) throws IOException {
+        if(!enabled) return;
+        List<InfluxMetric> metrics = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            metrics.add(InfluxMetricConverter.convertToInfluxMetric(batch.getName(i), batch.getValue(i), tags,
+                    batch.getTimestampInMillis()));
+        }
+        writeMetrics(metrics);
+    }
+
+    /**
+     * Send the points of a collection in requests of at most {@link #maxPointsPerRequest} points.
+     */
+    private void writeMetrics(List<InfluxMetric> metrics) throws IOException {
         if (logger.isLoggable(getTraceLevel())) {
-            logger.log(getTraceLevel(), "Sending to influx (" + url + "):\n" + body);
+            logger.log(getTraceLevel(), "Sending to influx (" + url + "):\n" + convertMetricsToLines(metrics));
+        }
+        final AtomicInteger retryBudget = new AtomicInteger(retryBudgetPerCollection);
+        List<Exception> failures = new ArrayList<>();
+        int requestsCount = (metrics.size() + maxPointsPerRequest - 1) / maxPointsPerRequest;
+        if (executor == null || requestsCount <= 1) {
+            for (int i = 0; i < metrics.size(); i += maxPointsPerRequest) {
+                try {
+                    sendMetricsWithRetries(metrics.subList(i, Math.min(i + maxPointsPerRequest, metrics.size())), retryBudget);
+                } catch (IOException | RuntimeException e) {
+                    failures.add(e);
+                }
+            }
+        } else {
+            List<Future<Void>> futures = new ArrayList<>(requestsCount);
+            for (int i = 0; i < metrics.size(); i += maxPointsPerRequest) {
+                final List<InfluxMetric> requestMetrics = metrics.subList(i, Math.min(i + maxPointsPerRequest, metrics.size()));
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        sendMetricsWithRetries(requestMetrics, retryBudget);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (Future<Void> f : futures) {
+                        f.cancel(true);
+                    }
+                    throw new InterruptedIOException("Interrupted while sending metrics to '" + url + "'");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    failures.add((Exception) cause);
+                }
+            }
+        }
+        if (!failures.isEmpty()) {
+            IOException e = new IOException("Failed to send " + failures.size() + " of " + requestsCount
+                    + " requests to '" + url + "': " + failures.get(0).toString(), failures.get(0));
+            for (int i = 1; i < failures.size(); i++) {
+                e.addSuppressed(failures.get(i));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Retry the I/O errors and the retryable status codes with an exponential backoff, within the given retry budget.
+     */
+    private void sendMetricsWithRetries(List<InfluxMetric> metrics, AtomicInteger retryBudget) throws IOException {
+        long startNanos = System.nanoTime();
+        long backoffMillis = retryInitialBackoffMillis;
+        for (int retry = 0; ; retry++) {
+            try {
+                sendMetrics(metrics);
+                requestsDuration.record(System.nanoTime() - startNanos);
+                sentRequestsCounter.incrementAndGet();
+                return;
+            } catch (IOException e) {
+                if (e instanceof InfluxDbHttpException && !((InfluxDbHttpException) e).isRetryable()) {
+                    rejectedRequestsCounter.incrementAndGet();
+                    failedRequestsCounter.incrementAndGet();
+                    throw e;
+                }
+                if (retry >= maxRetries || retryBudget.getAndDecrement() <= 0) {
+                    failedRequestsCounter.incrementAndGet();
+                    throw e;
+                }
+                retriesCounter.incrementAndGet();
+                logger.log(getInfoLevel(), "Retry in " + backoffMillis + "ms to send " + metrics.size() + " metrics: " + e.toString());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while retrying to send metrics to '" + url + "'");
+                }
+                backoffMillis = Math.min(backoffMillis * 2, retryMaxBackoffMillis);
+            } catch (RuntimeException e) {
+                failedRequestsCounter.incrementAndGet();
+                throw e;
+            }
         }
-        batchedMetrics.clear();
-        sendMetrics(body);
     }
 
-    private void sendMetrics(String body) throws IOException {
+    private void sendMetrics(List<InfluxMetric> metrics) throws IOException {
         HttpURLConnection conn = createAndConfigureConnection();
         try {
-            sendMetrics(body, conn);
+            sendMetrics(metrics, conn);
+        } catch (InfluxDbHttpException e) {
+            IoUtils.closeQuietly(conn);
+            throw e;
         } catch (IOException e) {
+            // don't let the JVM reuse a connection in an unknown state
+            IoUtils.closeQuietly(conn);
             throw new IOException("Exception sending metrics to '" + conn.getURL() + "': " + e.toString(), e);
         } catch (RuntimeException e) {
-            throw new RuntimeException("Exception sending metrics to '" + conn.getURL() + "': " + e.toString(), e);
-        } finally {
             IoUtils.closeQuietly(conn);
+            throw new RuntimeException("Exception sending metrics to '" + conn.getURL() + "': " + e.toString(), e);
         }
     }
 
-    private void sendMetrics(String body, HttpURLConnection conn) throws IOException {
-        writeMetrics(conn, body);
+    private void sendMetrics(List<InfluxMetric> metrics, HttpURLConnection conn) throws IOException {
+        writeMetrics(conn, metrics);
         int responseCode = conn.getResponseCode();
         if (responseCode / 100 != 2) {
-            throw new RuntimeException("Failed to write metrics, response code: " + responseCode
-                    + ", response message: " + conn.getResponseMessage());
+            String response = readResponse(conn.getErrorStream());
+            throw new InfluxDbHttpException("Failed to write metrics to '" + conn.getURL() + "', response code: " + responseCode
+                    + ", response message: " + conn.getResponseMessage() + ", response: " + response, responseCode);
         }
-        String response = readResponse(conn);
+        String response = readResponse(conn.getInputStream());
         if (logger.isLoggable(getTraceLevel())) {
             logger.log(getTraceLevel(), "Response from influx: " + response);
         }
@@ -197,20 +388,37 @@ public class InfluxDbOutputWriter extends AbstractOutputWriter {
         }
     }
 
-    private void writeMetrics(HttpURLConnection conn, String body)
+    private void writeMetrics(HttpURLConnection conn, List<InfluxMetric> metrics)
             throws IOException {
-        byte[] toSendBytes = body.getBytes(StandardCharsets2.UTF_8);
-        conn.setRequestProperty("Content-Length", Integer.toString(toSendBytes.length));
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(toSendBytes);
-            os.flush();
+        conn.setChunkedStreamingMode(STREAMING_CHUNK_SIZE_IN_BYTES);
+        if (gzip) {
+            conn.setRequestProperty("Content-Encoding", "gzip");
         }
+        CountingOutputStream countingOutputStream = new CountingOutputStream(conn.getOutputStream());
+        OutputStream os = gzip ? new GZIPOutputStream(countingOutputStream, STREAMING_CHUNK_SIZE_IN_BYTES) : countingOutputStream;
+        try (Writer writer = new OutputStreamWriter(os, StandardCharsets2.UTF_8)) {
+            for (Iterator<InfluxMetric> it = metrics.iterator(); it.hasNext();) {
+                writer.write(it.next().toInfluxFormat());
+                if (it.hasNext()) {
+                    writer.write('\n');
+                }
+            }
+        }
+        incrementBytesSent(countingOutputStream.getCount());
     }
 
-    private String readResponse(HttpURLConnection conn) throws IOException, UnsupportedEncodingException {
+    /**
+     * Read the whole response so that the connection can be reused.
+     */
+    private String readResponse(InputStream is) throws IOException, UnsupportedEncodingException {
+        if (is == null) {
+            return "";
+        }
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (InputStream is = conn.getInputStream()) {
+        try {
             IoUtils.copy(is, baos);
+        } finally {
+            is.close();
         }
         String response = new String(baos.toByteArray(), "UTF-8");
         return response;
@@ -237,4 +445,58 @@ public class InfluxDbOutputWriter extends AbstractOutputWriter {
         return sb.toString();
     }
 
+    @Override
+    public void preDestroy() {
+        super.preDestroy();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return duration of the requests, retries included
+     */
+    public DurationHistogram getRequestsDuration() {
+        return requestsDuration;
+    }
+
+    public long getSentRequestsCount() {
+        return sentRequestsCounter.get();
+    }
+
+    public long getRetriesCount() {
+        return retriesCounter.get();
+    }
+
+    /**
+     * @return requests rejected with a non retryable 4xx status code
+     */
+    public long getRejectedRequestsCount() {
+        return rejectedRequestsCounter.get();
+    }
+
+    /**
+     * @return requests abandoned, rejected requests included
+     */
+    public long getFailedRequestsCount() {
+        return failedRequestsCounter.get();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("requests", getSentRequestsCount());
+        counters.put("requestRetries", getRetriesCount());
+        counters.put("rejectedRequests", getRejectedRequestsCount());
+        counters.put("failedRequests", getFailedRequestsCount());
+        return counters;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> gauges = new LinkedHashMap<>();
+        gauges.put("meanRequestDurationInMicros", TimeUnit.NANOSECONDS.toMicros(requestsDuration.getMeanNanos()));
+        gauges.put("requestDurationP99InMicros", TimeUnit.NANOSECONDS.toMicros(requestsDuration.getPercentileNanos(99)));
+        return gauges;
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.statsd;
+
+import static org.jmxtrans.agent.util.io.ByteBufferUtils.*;
+
+import org.jmxtrans.agent.MetricBatch;
+import org.jmxtrans.agent.util.StandardCharsets2;
+import org.jmxtrans.agent.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes metrics in the StatsD line format ({@code <prefix>.<name><nameSuffix>:<value>|<type><typeSuffix>\n})
+ * directly in a {@link ByteBuffer}.
+ *
+ * The suffixes carry the static tags of the StatsD flavours:
+ * <ul>
+ *     <li>plain StatsD: no suffix, {@code metric.name:value|type}</li>
+ *     <li>DataDog (https://docs.datadoghq.com/guides/dogstatsd/): {@code metric.name:value|type|#tag1:value,tag2}</li>
+ *     <li>Sysdig (https://support.sysdig.com/hc/en-us/articles/204376099-Metrics-integrations-StatsD-):
+ *     {@code metric.name#tag1=value,tag2:value|type}</li>
+ * </ul>
+ * The prefix and suffixes are encoded once and the encoded metric names are cached (up to
+ * {@code metricNameCacheMaxSize} names). Integral numbers and decimal numbers in the range [10^-3, 10^7) are formatted
+ * without allocation, the other values fall back on their {@code toString()} representation.
+ */
+@NotThreadSafe
+public class StatsDMetricEncoder {
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final byte[] metricNamePrefixBytes;
+    private final byte[] metricNameSuffixBytes;
+    private final byte[] metricTypeSuffixBytes;
+    private final int metricNameCacheMaxSize;
+    private final Map<String, byte[]> encodedMetricNames = new HashMap<>();
+    private boolean metricNameCacheFullLogged;
+
+    /**
+     * @param metricNamePrefix       prefix of the metric names, followed by a {@code '.'}
+     * @param metricNameSuffix       appended to the metric names (Sysdig tags)
+     * @param metricTypeSuffix       appended to the metric types (DataDog tags)
+     * @param metricNameCacheMaxSize max number of encoded metric names to cache, 0 to disable the cache
+     */
+    public StatsDMetricEncoder(@Nonnull String metricNamePrefix, @Nonnull String metricNameSuffix,
+                               @Nonnull String metricTypeSuffix, int metricNameCacheMaxSize) {
+        this.metricNamePrefixBytes = (metricNamePrefix + ".").getBytes(StandardCharsets2.UTF_8);
+        this.metricNameSuffixBytes = metricNameSuffix.getBytes(StandardCharsets2.UTF_8);
+        this.metricTypeSuffixBytes = metricTypeSuffix.getBytes(StandardCharsets2.UTF_8);
+        this.metricNameCacheMaxSize = metricNameCacheMaxSize;
+    }
+
+    /**
+     * StatsD expects a number value for the metric. Values whose string representation equals to "NaN" or "INF" are
+     * meaningless to StatsD and trigger errors in the downstream parsing applications.
+     *
+     * @return {@code false} if the given value must not be sent
+     */
+    public static boolean isValidValue(@Nullable Object value) {
+        if (value instanceof Double) {
+            return !((Double) value).isNaN();
+        } else if (value instanceof Float) {
+            return !((Float) value).isNaN();
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return true;
+        }
+        String strValue = String.valueOf(value);
+        return !(strValue.equals("NaN") || strValue.equals("INF"));
+    }
+
+    /**
+     * Encode the given metric, including the trailing newline. The metric type is {@code g} for the {@code gauge}
+     * and {@code g} types, {@code c} otherwise.
+     *
+     * @return {@code false} if the {@code buffer} is too small, the {@code buffer} is then left unchanged
+     */
+    public boolean encode(@Nonnull ByteBuffer buffer, @Nonnull String metricName, @Nullable String metricType, @Nullable Object value) {
+        byte[] name = encodeMetricName(metricName);
+        byte type = encodeMetricType(metricType);
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return encode(buffer, name, type, ((Number) value).longValue());
+        } else if (value instanceof Double) {
+            return encode(buffer, name, type, (Double) value, false);
+        } else if (value instanceof Float) {
+            return encode(buffer, name, type, (Float) value, true);
+        }
+        byte[] encodedValue = String.valueOf(value).getBytes(StandardCharsets2.UTF_8);
+        if (buffer.remaining() < lineLength(name, encodedValue.length)) {
+            return false;
+        }
+        putMetricName(buffer, name);
+        buffer.put(encodedValue);
+        putMetricType(buffer, type);
+        return true;
+    }
+
+    /**
+     * Encode the result at the given {@code index} of the {@code batch}, including the trailing newline. Primitive
+     * values are encoded without being boxed.
+     *
+     * @return {@code false} if the {@code buffer} is too small, the {@code buffer} is then left unchanged
+     */
+    public boolean encode(@Nonnull ByteBuffer buffer, @Nonnull MetricBatch batch, int index) {
+        if (batch.isLongValue(index)) {
+            return encode(buffer, encodeMetricName(batch.getName(index)), encodeMetricType(batch.getType(index)), batch.getLongValue(index));
+        } else if (batch.isDoubleValue(index)) {
+            return encode(buffer, encodeMetricName(batch.getName(index)), encodeMetricType(batch.getType(index)), batch.getDoubleValue(index), false);
+        }
+        return encode(buffer, batch.getName(index), batch.getType(index), batch.getValue(index));
+    }
+
+    private boolean encode(ByteBuffer buffer, byte[] name, byte type, long value) {
+        if (buffer.remaining() < lineLength(name, MAX_NUMBER_LENGTH)) {
+            return false;
+        }
+        putMetricName(buffer, name);
+        putLong(buffer, value);
+        putMetricType(buffer, type);
+        return true;
+    }
+
+    private boolean encode(ByteBuffer buffer, byte[] name, byte type, double value, boolean floatPrecision) {
+        if (buffer.remaining() < lineLength(name, MAX_NUMBER_LENGTH)) {
+            return false;
+        }
+        putMetricName(buffer, name);
+        putDouble(buffer, value, floatPrecision);
+        putMetricType(buffer, type);
+        return true;
+    }
+
+    private int lineLength(byte[] name, int valueLength) {
+        // <prefix>.<name><nameSuffix>:<value>|<type><typeSuffix>\n
+        return metricNamePrefixBytes.length + name.length + metricNameSuffixBytes.length + 1 + valueLength + 2
+                + metricTypeSuffixBytes.length + 1;
+    }
+
+    private void putMetricName(ByteBuffer buffer, byte[] name) {
+        buffer.put(metricNamePrefixBytes);
+        buffer.put(name);
+        buffer.put(metricNameSuffixBytes);
+        buffer.put((byte) ':');
+    }
+
+    private void putMetricType(ByteBuffer buffer, byte type) {
+        buffer.put((byte) '|');
+        buffer.put(type);
+        buffer.put(metricTypeSuffixBytes);
+        buffer.put((byte) '\n');
+    }
+
+    private static byte encodeMetricType(@Nullable String metricType) {
+        return "gauge".equalsIgnoreCase(metricType) || "g".equalsIgnoreCase(metricType) ? (byte) 'g' : (byte) 'c';
+    }
+
+    @Nonnull
+    private byte[] encodeMetricName(@Nonnull String metricName) {
+        byte[] encoded = encodedMetricNames.get(metricName);
+        if (encoded != null) {
+            return encoded;
+        }
+        encoded = metricName.getBytes(StandardCharsets2.UTF_8);
+        if (encodedMetricNames.size() < metricNameCacheMaxSize) {
+            encodedMetricNames.put(metricName, encoded);
+        } else if (metricNameCacheMaxSize > 0 && !metricNameCacheFullLogged) {
+            metricNameCacheFullLogged = true;
+            logger.info("StatsD metric names cache is full (" + metricNameCacheMaxSize + " names), new metric names are no longer cached");
+        }
+        return encoded;
+    }
+
+    public int getMetricNameCacheSize() {
+        return encodedMetricNames.size();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util.collect;
+
+import org.jmxtrans.agent.util.Preconditions2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Consistent hashing of keys on a fixed list of nodes, each node being placed {@code virtualNodesPerNode} times on the
+ * ring (at the hash of {@code node.toString() + "-" + i}).
+ *
+ * The distinct nodes found clockwise from each position of the ring are computed upfront: looking up the owner of
+ * a key, or the next node when the owner is unavailable, does not allocate.
+ */
+@Immutable
+public class ConsistentHashRing<T> {
+
+    private final List<T> nodes;
+    private final int[] positions;
+    /**
+     * For each position of the ring, the indices of the distinct nodes found clockwise from this position.
+     */
+    private final int[][] preferenceLists;
+
+    public ConsistentHashRing(@Nonnull List<T> nodes, int virtualNodesPerNode) {
+        Preconditions2.checkArgument(!nodes.isEmpty(), "nodes can not be empty");
+        Preconditions2.checkArgument(virtualNodesPerNode > 0, "virtualNodesPerNode must be > 0, was " + virtualNodesPerNode);
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+
+        final int size = nodes.size() * virtualNodesPerNode;
+        final int[] hashes = new int[size];
+        final int[] owners = new int[size];
+        Integer[] order = new Integer[size];
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < virtualNodesPerNode; i++) {
+                int position = node * virtualNodesPerNode + i;
+                hashes[position] = hash(nodes.get(node) + "-" + i);
+                owners[position] = node;
+                order[position] = position;
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                int result = Integer.compare(hashes[o1], hashes[o2]);
+                return result == 0 ? Integer.compare(owners[o1], owners[o2]) : result;
+            }
+        });
+
+        positions = new int[size];
+        int[] sortedOwners = new int[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = hashes[order[i]];
+            sortedOwners[i] = owners[order[i]];
+        }
+        preferenceLists = new int[size][];
+        for (int i = 0; i < size; i++) {
+            int[] preferenceList = new int[nodes.size()];
+            boolean[] seen = new boolean[nodes.size()];
+            int count = 0;
+            for (int j = 0; j < size && count < preferenceList.length; j++) {
+                int owner = sortedOwners[(i + j) % size];
+                if (!seen[owner]) {
+                    seen[owner] = true;
+                    preferenceList[count++] = owner;
+                }
+            }
+            preferenceLists[i] = preferenceList;
+        }
+    }
+
+    /**
+     * @return the indices (in the list given to the constructor) of all the nodes, starting with the owner of the
+     * given key and followed by the nodes to fall back on, in ring order. The returned array must not be modified.
+     */
+    @Nonnull
+    public int[] getPreferenceList(@Nonnull String key) {
+        int position = Arrays.binarySearch(positions, hash(key));
+        if (position < 0) {
+            position = -position - 1;
+        }
+        return preferenceLists[position == positions.length ? 0 : position];
+    }
+
+    /**
+     * @return the node owning the given key
+     */
+    @Nonnull
+    public T getNode(@Nonnull String key) {
+        return nodes.get(getPreferenceList(key)[0]);
+    }
+
+    @Nonnull
+    public List<T> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * {@link String#hashCode()} (cached by the {@link String}) spread with the finalizer of MurmurHash3 so that
+     * similar keys land on distant positions of the ring.
+     */
+    public static int hash(@Nonnull String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "ConsistentHashRing{" +
+                "nodes=" + nodes +
+                ", positions=" + positions.length +
+                '}';
+    }
+}
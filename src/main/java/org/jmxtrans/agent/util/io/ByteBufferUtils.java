@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util.io;
+
+import org.jmxtrans.agent.util.StandardCharsets2;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation free formatting of numbers in a {@link ByteBuffer}, for the text protocols of the output writers.
+ */
+public class ByteBufferUtils {
+
+    /**
+     * Max number of bytes written by {@link #putLong(ByteBuffer, long)} and
+     * {@link #putDouble(ByteBuffer, double, boolean)}, sign and decimal point included.
+     */
+    public final static int MAX_NUMBER_LENGTH = 32;
+
+    private final static long MAX_EXACT_LONG_IN_DOUBLE = 1L << 53;
+    private final static double[] POWERS_OF_TEN = new double[18];
+    static {
+        double power = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+    }
+    private final static byte[] LONG_MIN_VALUE = String.valueOf(Long.MIN_VALUE).getBytes(StandardCharsets2.US_ASCII);
+
+    private ByteBufferUtils() {
+    }
+
+    /**
+     * Write the decimal representation of the given value, like {@link Long#toString(long)}.
+     */
+    public static void putLong(@Nonnull ByteBuffer buffer, long value) {
+        if (value == Long.MIN_VALUE) {
+            buffer.put(LONG_MIN_VALUE);
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int length = 1;
+        for (long remaining = value / 10; remaining != 0; remaining /= 10) {
+            length++;
+        }
+        int start = buffer.position();
+        for (int i = start + length - 1; i >= start; i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(start + length);
+    }
+
+    /**
+     * Write the shortest fixed point representation that parses back to the same {@code double} (or {@code float}
+     * if {@code floatPrecision}), with at least one fractional digit like {@link Double#toString(double)}, for the
+     * values in the range [10^-3, 10^7). The other values are written with {@link Double#toString(double)} (or
+     * {@link Float#toString(float)}).
+     *
+     * {@code m / 10^k} is exact in this range and is the closest {@code double} to the decimal number
+     * {@code m * 10^-k}, which is what {@link Double#parseDouble(String)} returns.
+     */
+    public static void putDouble(@Nonnull ByteBuffer buffer, double value, boolean floatPrecision) {
+        double abs = Math.abs(value);
+        if (abs == 0) {
+            putAscii(buffer, Double.doubleToRawLongBits(value) < 0 ? "-0.0" : "0.0");
+            return;
+        }
+        if (abs >= 1e-3 && abs < 1e7) {
+            for (int scale = 1; scale < POWERS_OF_TEN.length; scale++) {
+                double powerOfTen = POWERS_OF_TEN[scale];
+                long mantissa = Math.round(abs * powerOfTen);
+                if (mantissa >= MAX_EXACT_LONG_IN_DOUBLE) {
+                    break;
+                }
+                double parsed = mantissa / powerOfTen;
+                if (floatPrecision ? (float) parsed == (float) abs : parsed == abs) {
+                    if (value < 0) {
+                        buffer.put((byte) '-');
+                    }
+                    long integralPart = mantissa / (long) powerOfTen;
+                    putLong(buffer, integralPart);
+                    buffer.put((byte) '.');
+                    long fractionalPart = mantissa - integralPart * (long) powerOfTen;
+                    for (int i = scale - 1; i >= 0; i--) {
+                        long power = (long) POWERS_OF_TEN[i];
+                        buffer.put((byte) ('0' + fractionalPart / power));
+                        fractionalPart %= power;
+                    }
+                    return;
+                }
+            }
+        }
+        putAscii(buffer, floatPrecision ? Float.toString((float) value) : Double.toString(value));
+    }
+
+    /**
+     * Write the given string that must only contain ASCII characters.
+     */
+    public static void putAscii(@Nonnull ByteBuffer buffer, @Nonnull String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+}
@@ -24,7 +24,8 @@
 package org.jmxtrans.agent.util.net;
 
 /**
- * Holder for network host and port.
+ * Holder for network host and port. The host can also be a {@code unix:///path/to/socket} URI, the port is then
+ * ignored.
  *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
  */
@@ -48,6 +49,20 @@ public class HostAndPort {
         return port;
     }
 
+    /**
+     * @see UnixDomainSockets
+     */
+    public boolean isUnixDomainSocket() {
+        return UnixDomainSockets.isUnixDomainSocketUri(host);
+    }
+
+    /**
+     * @return the path of the socket file of a {@code unix:///path/to/socket} host
+     */
+    public String getUnixDomainSocketPath() {
+        return UnixDomainSockets.getPath(host);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
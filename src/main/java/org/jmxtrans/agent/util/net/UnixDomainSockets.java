@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util.net;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain stream sockets ({@code unix:///path/to/socket} targets), available since Java 16 through
+ * {@code java.net.UnixDomainSocketAddress}. The JDK classes are loaded by reflection as the agent runs on older JVMs.
+ *
+ * The JDK does not support Unix domain datagram sockets.
+ */
+public class UnixDomainSockets {
+
+    public final static String URI_PREFIX = "unix://";
+
+    @Nullable
+    private final static Method NEW_SOCKET_ADDRESS_METHOD;
+    @Nullable
+    private final static ProtocolFamily UNIX_PROTOCOL_FAMILY;
+
+    static {
+        Method newSocketAddressMethod;
+        ProtocolFamily unixProtocolFamily;
+        try {
+            newSocketAddressMethod = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            unixProtocolFamily = StandardProtocolFamily.valueOf("UNIX");
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalArgumentException e) {
+            newSocketAddressMethod = null;
+            unixProtocolFamily = null;
+        }
+        NEW_SOCKET_ADDRESS_METHOD = newSocketAddressMethod;
+        UNIX_PROTOCOL_FAMILY = unixProtocolFamily;
+    }
+
+    private UnixDomainSockets() {
+    }
+
+    /**
+     * @return {@code true} if the JVM supports Unix domain sockets (Java 16+)
+     */
+    public static boolean isSupported() {
+        return NEW_SOCKET_ADDRESS_METHOD != null;
+    }
+
+    /**
+     * @return {@code true} if the given target is a {@code unix:///path/to/socket} URI
+     */
+    public static boolean isUnixDomainSocketUri(@Nullable String target) {
+        return target != null && target.startsWith(URI_PREFIX);
+    }
+
+    /**
+     * @param uri a {@code unix:///path/to/socket} URI
+     * @return the path of the socket file
+     */
+    @Nonnull
+    public static String getPath(@Nonnull String uri) {
+        if (!isUnixDomainSocketUri(uri) || uri.length() == URI_PREFIX.length()) {
+            throw new IllegalArgumentException("Invalid Unix domain socket URI '" + uri + "', expected " + URI_PREFIX + "/path/to/socket");
+        }
+        return uri.substring(URI_PREFIX.length());
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the JVM does not support Unix domain sockets
+     */
+    @Nonnull
+    public static SocketAddress newSocketAddress(@Nonnull String path) {
+        checkSupported();
+        try {
+            return (SocketAddress) NEW_SOCKET_ADDRESS_METHOD.invoke(null, path);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Open an unconnected Unix domain socket channel, for instance to connect in non blocking mode.
+     *
+     * @throws UnsupportedOperationException if the JVM does not support Unix domain sockets
+     */
+    @Nonnull
+    public static SocketChannel openSocketChannel() throws IOException {
+        checkSupported();
+        try {
+            return (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, UNIX_PROTOCOL_FAMILY);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Open a blocking Unix domain socket channel connected to the given socket file.
+     *
+     * @throws UnsupportedOperationException if the JVM does not support Unix domain sockets
+     */
+    @Nonnull
+    public static SocketChannel connect(@Nonnull String path) throws IOException {
+        // since Java 16, the protocol family of the channel is the one of the given address
+        return SocketChannel.open(newSocketAddress(path));
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the JVM does not support Unix domain sockets
+     */
+    public static void checkSupported() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16+, current version is " + System.getProperty("java.version"));
+        }
+    }
+}
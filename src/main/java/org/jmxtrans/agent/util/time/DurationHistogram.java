@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util.time;
+
+import javax.annotation.Nonnull;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations with power of two buckets: the bucket {@code i} counts the durations in
+ * {@code ]2^(i-1), 2^i]} nanoseconds. Percentiles are approximated by the upper bound of their bucket, capped to the
+ * max recorded duration.
+ */
+public class DurationHistogram {
+
+    private final static int BUCKETS_COUNT = 64;
+
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKETS_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private volatile long lastNanos;
+
+    public void record(long durationNanos) {
+        long nanos = Math.max(durationNanos, 0);
+        bucketCounts.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        lastNanos = nanos;
+        long max;
+        while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    private static int bucketIndex(long nanos) {
+        return nanos <= 1 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(nanos - 1), BUCKETS_COUNT - 1);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    public long getMeanNanos() {
+        long count = this.count.get();
+        return count == 0 ? 0 : totalNanos.get() / count;
+    }
+
+    /**
+     * @param percentile in {@code ]0, 100]}
+     * @return the upper bound of the bucket of the given percentile, {@code 0} if no duration has been recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long count = this.count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long cumulatedCount = 0;
+        for (int i = 0; i < BUCKETS_COUNT; i++) {
+            cumulatedCount += bucketCounts.get(i);
+            if (cumulatedCount >= rank) {
+                return Math.min(1L << i, maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * @return the count of the non empty buckets indexed by their upper bound in nanoseconds
+     */
+    @Nonnull
+    public SortedMap<Long, Long> getBucketCounts() {
+        SortedMap<Long, Long> result = new TreeMap<>();
+        for (int i = 0; i < BUCKETS_COUNT; i++) {
+            long bucketCount = bucketCounts.get(i);
+            if (bucketCount > 0) {
+                result.put(i == BUCKETS_COUNT - 1 ? Long.MAX_VALUE : 1L << i, bucketCount);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DurationHistogram{" +
+                "count=" + getCount() +
+                ", meanNanos=" + getMeanNanos() +
+                ", maxNanos=" + getMaxNanos() +
+                '}';
+    }
+}
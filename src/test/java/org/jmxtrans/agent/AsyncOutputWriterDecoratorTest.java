@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class AsyncOutputWriterDecoratorTest {
+
+    private AsyncOutputWriterDecorator asyncOutputWriter;
+
+    @After
+    public void after() {
+        if (asyncOutputWriter != null) {
+            asyncOutputWriter.preDestroy();
+        }
+    }
+
+    @Test
+    public void results_are_written_in_order_by_the_io_thread() throws Exception {
+        RecordingOutputWriter delegate = new RecordingOutputWriter();
+        asyncOutputWriter = newAsyncOutputWriter(delegate, 16, "dropOldest");
+
+        asyncOutputWriter.preCollect();
+        asyncOutputWriter.writeQueryResult("a", null, 1);
+        asyncOutputWriter.writeInvocationResult("b", 2);
+        asyncOutputWriter.postCollect();
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        builder.writeQueryResult("c", "gauge", 3L);
+        asyncOutputWriter.writeBatch(builder.build(0));
+        asyncOutputWriter.preDestroy();
+        asyncOutputWriter = null;
+
+        assertThat(delegate.events, contains("pre", "a=1", "b=2", "post", "pre", "c=3", "post"));
+        assertThat(delegate.ioThreads, not(hasItem(Thread.currentThread())));
+        assertThat(delegate.destroyed, is(true));
+    }
+
+    @Test
+    public void batches_are_handed_over_to_batch_writers() throws Exception {
+        RecordingBatchOutputWriter delegate = new RecordingBatchOutputWriter();
+        asyncOutputWriter = newAsyncOutputWriter(delegate, 16, "dropOldest");
+
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        builder.writeQueryResult("c", "gauge", 3L);
+        builder.writeQueryResult("d", "gauge", 4.5);
+        MetricBatch batch = builder.build(123456789L);
+        asyncOutputWriter.writeBatch(batch);
+        asyncOutputWriter.preDestroy();
+        asyncOutputWriter = null;
+
+        assertThat(delegate.batches, contains(sameInstance(batch)));
+        assertThat(delegate.batches.get(0).getTimestampInMillis(), is(123456789L));
+        assertThat(delegate.events, empty());
+    }
+
+    @Test
+    public void drop_oldest_keeps_the_most_recent_results() throws Exception {
+        RecordingOutputWriter delegate = new RecordingOutputWriter();
+        asyncOutputWriter = newAsyncOutputWriter(delegate, 4, "dropOldest");
+        blockIoThread(delegate);
+
+        for (int i = 0; i < 10; i++) {
+            asyncOutputWriter.writeQueryResult("m" + i, null, i);
+        }
+        assertThat(asyncOutputWriter.getQueueDepth(), is(4));
+        assertThat(asyncOutputWriter.getDroppedCount(), is(6L));
+
+        delegate.release.countDown();
+        asyncOutputWriter.preDestroy();
+        asyncOutputWriter = null;
+        assertThat(delegate.events, contains("blocking=0", "m6=6", "m7=7", "m8=8", "m9=9", "post"));
+    }
+
+    @Test
+    public void batches_reserve_their_number_of_results() throws Exception {
+        RecordingBatchOutputWriter delegate = new RecordingBatchOutputWriter();
+        asyncOutputWriter = newAsyncOutputWriter(delegate, 4, "dropOldest");
+        blockIoThread(delegate);
+
+        MetricBatch first = newBatch(3);
+        MetricBatch second = newBatch(3);
+        asyncOutputWriter.writeBatch(first);
+        assertThat(asyncOutputWriter.getQueueDepth(), is(3));
+        asyncOutputWriter.writeBatch(second);
+        assertThat(asyncOutputWriter.getQueueDepth(), is(3));
+        assertThat(asyncOutputWriter.getDroppedCount(), is(3L));
+
+        // larger than the capacity
+        asyncOutputWriter.writeBatch(newBatch(5));
+        assertThat(asyncOutputWriter.getQueueDepth(), is(3));
+        assertThat(asyncOutputWriter.getDroppedCount(), is(8L));
+
+        delegate.release.countDown();
+        asyncOutputWriter.preDestroy();
+        asyncOutputWriter = null;
+        assertThat(delegate.batches, contains(sameInstance(second)));
+    }
+
+    @Test
+    public void drop_newest_keeps_the_oldest_results() throws Exception {
+        RecordingOutputWriter delegate = new RecordingOutputWriter();
+        asyncOutputWriter = newAsyncOutputWriter(delegate, 4, "dropNewest");
+        blockIoThread(delegate);
+
+        for (int i = 0; i < 10; i++) {
+            asyncOutputWriter.writeQueryResult("m" + i, null, i);
+        }
+        assertThat(asyncOutputWriter.getQueueDepth(), is(4));
+        assertThat(asyncOutputWriter.getDroppedCount(), is(6L));
+
+        delegate.release.countDown();
+        asyncOutputWriter.preDestroy();
+        asyncOutputWriter = null;
+        assertThat(delegate.events, contains("blocking=0", "m0=0", "m1=1", "m2=2", "m3=3", "post"));
+    }
+
+    @Test
+    public void block_waits_for_a_free_slot() throws Exception {
+        final RecordingOutputWriter delegate = new RecordingOutputWriter();
+        asyncOutputWriter = newAsyncOutputWriter(delegate, 2, "block");
+        blockIoThread(delegate);
+        asyncOutputWriter.writeQueryResult("m0", null, 0);
+        asyncOutputWriter.writeQueryResult("m1", null, 1);
+
+        final CountDownLatch written = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    asyncOutputWriter.writeQueryResult("m2", null, 2);
+                    written.countDown();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        producer.start();
+        assertThat(written.await(100, TimeUnit.MILLISECONDS), is(false));
+
+        delegate.release.countDown();
+        assertThat(written.await(5, TimeUnit.SECONDS), is(true));
+        asyncOutputWriter.preDestroy();
+        asyncOutputWriter = null;
+        assertThat(delegate.events, contains("blocking=0", "m0=0", "m1=1", "m2=2", "post"));
+        assertThat(delegate.events.size(), is(5));
+    }
+
+    @Test
+    public void delegate_exceptions_do_not_stop_the_io_thread() throws Exception {
+        RecordingOutputWriter delegate = new RecordingOutputWriter();
+        asyncOutputWriter = newAsyncOutputWriter(delegate, 16, "block");
+
+        asyncOutputWriter.writeQueryResult("fail", null, 0);
+        asyncOutputWriter.writeQueryResult("m1", null, 1);
+        asyncOutputWriter.preDestroy();
+        asyncOutputWriter = null;
+
+        assertThat(delegate.events, contains("pre", "fail=0", "m1=1", "post"));
+    }
+
+    @Test
+    public void overflow_policy_is_parsed() {
+        assertThat(AsyncOutputWriterDecorator.OverflowPolicy.parse("dropOldest"), is(AsyncOutputWriterDecorator.OverflowPolicy.DROP_OLDEST));
+        assertThat(AsyncOutputWriterDecorator.OverflowPolicy.parse("DROP_NEWEST"), is(AsyncOutputWriterDecorator.OverflowPolicy.DROP_NEWEST));
+        assertThat(AsyncOutputWriterDecorator.OverflowPolicy.parse(" block "), is(AsyncOutputWriterDecorator.OverflowPolicy.BLOCK));
+    }
+
+    private MetricBatch newBatch(int size) {
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        for (int i = 0; i < size; i++) {
+            builder.add("m" + i, null, i, false);
+        }
+        return builder.build(0);
+    }
+
+    /**
+     * Make the I/O thread hang on a first result until {@link RecordingOutputWriter#release} is released.
+     */
+    private void blockIoThread(RecordingOutputWriter delegate) throws Exception {
+        asyncOutputWriter.writeQueryResult("blocking", null, 0);
+        assertThat(delegate.blocking.await(5, TimeUnit.SECONDS), is(true));
+        // the preCollect re-created for the orphan result is not relevant
+        delegate.events.remove("pre");
+    }
+
+    private AsyncOutputWriterDecorator newAsyncOutputWriter(OutputWriter delegate, int capacity, String overflowPolicy) {
+        Map<String, String> settings = new HashMap<>();
+        settings.put(AsyncOutputWriterDecorator.SETTING_QUEUE_CAPACITY, String.valueOf(capacity));
+        settings.put(AsyncOutputWriterDecorator.SETTING_OVERFLOW_POLICY, overflowPolicy);
+        AsyncOutputWriterDecorator asyncOutputWriter = new AsyncOutputWriterDecorator(delegate);
+        asyncOutputWriter.postConstruct(settings);
+        return asyncOutputWriter;
+    }
+
+    public static class RecordingOutputWriter extends AbstractOutputWriter {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> ioThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch blocking = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean destroyed;
+
+        @Override
+        public void preCollect() throws IOException {
+            events.add("pre");
+        }
+
+        @Override
+        public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+            ioThreads.add(Thread.currentThread());
+            events.add(metricName + "=" + value);
+            if ("blocking".equals(metricName)) {
+                blocking.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if ("fail".equals(metricName)) {
+                throw new IOException("Failure");
+            }
+        }
+
+        @Override
+        public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+            events.add(invocationName + "=" + value);
+        }
+
+        @Override
+        public void postCollect() throws IOException {
+            events.add("post");
+        }
+
+        @Override
+        public void preDestroy() {
+            destroyed = true;
+        }
+    }
+
+    public static class RecordingBatchOutputWriter extends RecordingOutputWriter implements BatchOutputWriter {
+        final List<MetricBatch> batches = Collections.synchronizedList(new ArrayList<MetricBatch>());
+
+        @Override
+        public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+            batches.add(batch);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class CollectorSchedulerTest {
+
+    TimeTrackingCollector every10s = newCollector(10000);
+    TimeTrackingCollector every7s = newCollector(7000);
+    TimeTrackingCollector otherEvery10s = newCollector(10000);
+
+    @Test
+    public void wakes_up_only_when_a_collector_is_due() {
+        CollectorScheduler scheduler = new CollectorScheduler(Arrays.asList(every10s, every7s), false, 0);
+        scheduler.start(0);
+
+        // all collectors first run together after half of the shortest interval
+        assertThat(scheduler.getNextRunMillis(), is(3500L));
+        assertThat(scheduler.pollDueCollectors(3499), empty());
+        assertThat(scheduler.pollDueCollectors(3500), contains(every10s, every7s));
+
+        assertThat(scheduler.getNextRunMillis(), is(10500L));
+        assertThat(scheduler.pollDueCollectors(10500), contains(every7s));
+        assertThat(scheduler.getNextRunMillis(), is(13500L));
+        assertThat(scheduler.pollDueCollectors(13500), contains(every10s));
+    }
+
+    @Test
+    public void spreads_collectors_sharing_the_same_interval() {
+        CollectorScheduler scheduler = new CollectorScheduler(Arrays.asList(every10s, every7s, otherEvery10s), true, 0);
+        scheduler.start(0);
+
+        assertThat(scheduler.pollDueCollectors(2500), contains(every10s));
+        assertThat(scheduler.pollDueCollectors(3500), contains(every7s));
+        assertThat(scheduler.pollDueCollectors(7500), contains(otherEvery10s));
+        assertThat(scheduler.pollDueCollectors(10500), contains(every7s));
+        assertThat(scheduler.pollDueCollectors(12500), contains(every10s));
+    }
+
+    @Test
+    public void jitter_delays_the_next_run() {
+        CollectorScheduler scheduler = new CollectorScheduler(Collections.singletonList(every10s), false, 1000);
+        scheduler.start(0);
+
+        assertThat(scheduler.pollDueCollectors(5000), contains(every10s));
+        assertThat(scheduler.getNextRunMillis(), allOf(greaterThanOrEqualTo(15000L), lessThan(16000L)));
+    }
+
+    @Test
+    public void collector_timing_out_repeatedly_is_quarantined_with_backoff() {
+        CollectorScheduler scheduler = new CollectorScheduler(Collections.singletonList(every10s), false, 0);
+        scheduler.start(0);
+        scheduler.pollDueCollectors(5000);
+
+        assertThat(every10s.onCollectionTimeout(), is(0L));
+        assertThat(every10s.onCollectionTimeout(), is(0L));
+        long quarantineMillis = every10s.onCollectionTimeout();
+        assertThat(quarantineMillis, is(20000L));
+        assertThat(every10s.onCollectionTimeout(), is(40000L));
+        assertThat(every10s.getTimeoutsCount(), is(4L));
+
+        scheduler.postpone(every10s, 5000 + quarantineMillis);
+        assertThat(scheduler.pollDueCollectors(15000), empty());
+        assertThat(scheduler.pollDueCollectors(25000), contains(every10s));
+
+        every10s.onCollectionCompleted();
+        assertThat(every10s.onCollectionTimeout(), is(0L));
+    }
+
+    @Test
+    public void aligned_quarantined_collector_comes_back_on_an_aligned_tick() {
+        CollectorScheduler scheduler = new CollectorScheduler(Collections.singletonList(every10s), true, 0,
+                true, CollectorScheduler.OverrunPolicy.SKIP);
+        scheduler.start(0);
+        assertThat(scheduler.pollDueCollectors(5000), contains(every10s));
+
+        // the collection timed out at 6321, quarantined for 20s
+        scheduler.postpone(every10s, 6321 + 20000);
+        assertThat(scheduler.getNextRunMillis(), is(35000L));
+        assertThat(scheduler.pollDueCollectors(34999), empty());
+        assertThat(scheduler.pollDueCollectors(35000), contains(every10s));
+        assertThat(scheduler.getLastTickMillis(), is(35000L));
+        assertThat(scheduler.getNextRunMillis(), is(45000L));
+    }
+
+    @Test
+    public void no_collector_never_wakes_up() {
+        CollectorScheduler scheduler = new CollectorScheduler(Collections.<TimeTrackingCollector>emptyList(), true, 0);
+        scheduler.start(0);
+
+        assertThat(scheduler.getNextRunMillis(), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void aligned_collectors_run_on_the_multiples_of_their_interval() {
+        CollectorScheduler scheduler = new CollectorScheduler(Arrays.asList(every10s, every7s), false, 1000,
+                true, CollectorScheduler.OverrunPolicy.SKIP);
+        scheduler.start(1_000_003_500L);
+
+        assertThat(scheduler.getNextRunMillis(), is(1_000_006_000L)); // 7s tick
+        assertThat(scheduler.pollDueCollectors(1_000_006_012L), contains(every7s));
+        assertThat(scheduler.getLastTickMillis(), is(1_000_006_000L));
+        // fixed rate: the delay of the previous run is not accumulated, jitter is ignored
+        assertThat(every7s.getNextRunMillis(), is(1_000_013_000L));
+        assertThat(scheduler.pollDueCollectors(1_000_010_001L), contains(every10s));
+        assertThat(every10s.getNextRunMillis(), is(1_000_020_000L));
+    }
+
+    @Test
+    public void aligned_collectors_skip_missed_ticks() {
+        CollectorScheduler scheduler = new CollectorScheduler(Collections.singletonList(every10s), false, 0,
+                true, CollectorScheduler.OverrunPolicy.SKIP);
+        scheduler.start(0);
+
+        assertThat(scheduler.pollDueCollectors(0), contains(every10s));
+        // the collection lasted 25s, ticks 10s and 20s are missed
+        assertThat(scheduler.pollDueCollectors(25000), contains(every10s));
+        assertThat(scheduler.getLastTickMillis(), is(10000L));
+        assertThat(scheduler.getNextRunMillis(), is(30000L));
+        assertThat(scheduler.getSkippedTicksCount(), is(1L));
+    }
+
+    @Test
+    public void aligned_collectors_catch_up_missed_ticks() {
+        CollectorScheduler scheduler = new CollectorScheduler(Collections.singletonList(every10s), false, 0,
+                true, CollectorScheduler.OverrunPolicy.CATCH_UP);
+        scheduler.start(0);
+
+        assertThat(scheduler.pollDueCollectors(0), contains(every10s));
+        assertThat(scheduler.pollDueCollectors(25000), contains(every10s));
+        assertThat(scheduler.getLastTickMillis(), is(10000L));
+        assertThat(scheduler.pollDueCollectors(25001), contains(every10s));
+        assertThat(scheduler.getLastTickMillis(), is(20000L));
+        assertThat(scheduler.getNextRunMillis(), is(30000L));
+        assertThat(scheduler.getSkippedTicksCount(), is(0L));
+    }
+
+    @Test
+    public void aligned_spread_collectors_keep_their_phase() {
+        CollectorScheduler scheduler = new CollectorScheduler(Arrays.asList(every10s, otherEvery10s), true, 0,
+                true, CollectorScheduler.OverrunPolicy.SKIP);
+        scheduler.start(12000);
+
+        assertThat(every10s.getNextRunMillis(), is(12500L));
+        assertThat(otherEvery10s.getNextRunMillis(), is(17500L));
+    }
+
+    @Test
+    public void overrun_policy_is_parsed() {
+        assertThat(CollectorScheduler.OverrunPolicy.parse("catchUp"), is(CollectorScheduler.OverrunPolicy.CATCH_UP));
+        assertThat(CollectorScheduler.OverrunPolicy.parse(" SKIP "), is(CollectorScheduler.OverrunPolicy.SKIP));
+    }
+
+    private static TimeTrackingCollector newCollector(long collectIntervalMillis) {
+        return new TimeTrackingCollector(new Collector() {
+            @Override
+            public void collectAndExport(MBeanServer mbeanServer, OutputWriter outputWriter) {
+            }
+        }, collectIntervalMillis);
+    }
+}
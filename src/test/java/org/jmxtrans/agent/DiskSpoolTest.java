@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DiskSpoolTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void batches_are_read_in_the_append_order() throws Exception {
+        DiskSpool spool = new DiskSpool(temporaryFolder.getRoot(), 1024, 4096, 0);
+        spool.append(newBatch(1000L, "a"));
+        spool.append(newBatch(2000L, "b"));
+
+        assertThat(spool.getPendingBatches(), is(2L));
+        MetricBatch batch = spool.peek();
+        assertThat(batch.getTimestampInMillis(), is(1000L));
+        assertThat(batch.getName(0), is("a"));
+        // not committed, read again
+        assertThat(spool.peek().getName(0), is("a"));
+        spool.commit();
+        assertThat(spool.peek().getName(0), is("b"));
+        spool.commit();
+
+        assertThat(spool.peek(), nullValue());
+        assertThat(spool.getPendingBatches(), is(0L));
+        assertThat(spool.getSpooledBatches(), is(2L));
+    }
+
+    @Test
+    public void values_are_restored_with_their_type() throws Exception {
+        DiskSpool spool = new DiskSpool(temporaryFolder.getRoot(), 1024, 4096, 0);
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        builder.writeQueryResult("long", "counter", 12L);
+        builder.writeQueryResult("int", null, 3);
+        builder.writeQueryResult("double", null, 0.5d);
+        builder.writeQueryResult("float", null, 0.25f);
+        builder.writeQueryResult("boolean", null, true);
+        builder.writeQueryResult("string", null, "value");
+        builder.writeInvocationResult("invocation", null);
+        spool.append(builder.build(1000L));
+
+        MetricBatch batch = spool.peek();
+        assertThat(batch.size(), is(7));
+        assertThat(batch.getType(0), is("counter"));
+        assertThat(batch.getValue(0), is((Object) 12L));
+        assertThat(batch.getType(1), nullValue());
+        assertThat(batch.getValue(1), is((Object) 3));
+        assertThat(batch.getValue(2), is((Object) 0.5d));
+        assertThat(batch.getValue(3), is((Object) 0.25f));
+        assertThat(batch.getValue(4), is((Object) true));
+        assertThat(batch.getValue(5), is((Object) "value"));
+        assertThat(batch.isInvocationResult(6), is(true));
+        assertThat(batch.getValue(6), nullValue());
+    }
+
+    @Test
+    public void pending_batches_are_reloaded() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        DiskSpool spool = new DiskSpool(directory, 1024, 4096, 0);
+        spool.append(newBatch(1000L, "a"));
+        spool.append(newBatch(2000L, "b"));
+        spool.peek();
+        spool.commit();
+
+        DiskSpool reloadedSpool = new DiskSpool(directory, 1024, 4096, 0);
+        assertThat(reloadedSpool.getPendingBatches(), is(1L));
+        assertThat(reloadedSpool.peek().getName(0), is("b"));
+        reloadedSpool.append(newBatch(3000L, "c"));
+        reloadedSpool.commit();
+        assertThat(reloadedSpool.peek().getName(0), is("c"));
+    }
+
+    @Test
+    public void closed_spool_is_reopened_on_the_same_directory() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        DiskSpool spool = new DiskSpool(directory, 1024, 4096, 0);
+        spool.append(newBatch(1000L, "a"));
+        spool.append(newBatch(2000L, "b"));
+        spool.peek();
+        spool.commit();
+        spool.close();
+
+        assertThat(spool.peek(), nullValue());
+        try {
+            spool.append(newBatch(3000L, "c"));
+            fail("closed spool must not accept batches");
+        } catch (IOException e) {
+            // expected
+        }
+
+        DiskSpool reopenedSpool = new DiskSpool(directory, 1024, 4096, 0);
+        assertThat(reopenedSpool.getPendingBatches(), is(1L));
+        assertThat(reopenedSpool.peek().getName(0), is("b"));
+        reopenedSpool.commit();
+        reopenedSpool.append(newBatch(3000L, "c"));
+        assertThat(reopenedSpool.peek().getName(0), is("c"));
+        reopenedSpool.close();
+    }
+
+    @Test
+    public void oldest_segment_is_dropped_when_the_spool_is_full() throws Exception {
+        // ~100 bytes per batch, a few batches per segment, 2 segments max
+        DiskSpool spool = new DiskSpool(temporaryFolder.getRoot(), 256, 512, 0);
+        for (int i = 0; i < 20; i++) {
+            spool.append(newBatch(i, "metric-with-a-long-name-to-fill-the-segments-" + i));
+        }
+
+        assertThat(spool.getSizeInBytes(), is(512L));
+        assertThat(spool.getDroppedBatches(), greaterThan(0L));
+        assertThat(spool.getPendingBatches() + spool.getDroppedBatches(), is(20L));
+        assertThat(temporaryFolder.getRoot().list().length, is(2));
+
+        long lastTimestamp = -1;
+        MetricBatch batch;
+        while ((batch = spool.peek()) != null) {
+            assertThat(batch.getTimestampInMillis(), greaterThan(lastTimestamp));
+            lastTimestamp = batch.getTimestampInMillis();
+            spool.commit();
+        }
+        assertThat(lastTimestamp, is(19L));
+    }
+
+    @Test
+    public void batches_older_than_max_age_are_discarded() throws Exception {
+        DiskSpool spool = new DiskSpool(temporaryFolder.getRoot(), 1024, 4096, 60000);
+        long now = System.currentTimeMillis();
+        spool.append(newBatch(now - 120000, "expired"));
+        spool.append(newBatch(now, "recent"));
+
+        assertThat(spool.getReplayLagInMillis(), greaterThanOrEqualTo(120000L));
+        assertThat(spool.peek().getName(0), is("recent"));
+        assertThat(spool.getExpiredBatches(), is(1L));
+        spool.commit();
+        assertThat(spool.getReplayLagInMillis(), is(0L));
+    }
+
+    @Test
+    public void batch_bigger_than_a_segment_is_dropped() throws Exception {
+        DiskSpool spool = new DiskSpool(temporaryFolder.getRoot(), 64, 128, 0);
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        for (int i = 0; i < 10; i++) {
+            builder.writeQueryResult("metric-" + i, null, i);
+        }
+
+        assertThat(spool.append(builder.build(0)), is(false));
+        assertThat(spool.getDroppedBatches(), is(1L));
+        assertThat(spool.peek(), nullValue());
+    }
+
+    private MetricBatch newBatch(long timestamp, String name) throws Exception {
+        MetricBatch.Builder builder = new MetricBatch.Builder(1);
+        builder.writeQueryResult(name, null, timestamp);
+        return builder.build(timestamp);
+    }
+}
@@ -29,6 +29,7 @@ import org.junit.Test;
 import javax.management.ObjectName;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -64,6 +65,19 @@ public class ExpressionLanguageEngineTest {
         assertThat(actual, is("tomcat1.tomcat.datasource.localhost._.jdbc_my-datasource.numActive"));
     }
 
+    @Test
+    public void test_compiled_expression_is_reused_and_invalidated_by_registered_evaluators() throws Exception {
+        ExpressionLanguageEngineImpl engine = new ExpressionLanguageEngineImpl();
+        engine.registerExpressionEvaluator("hostname", new ExpressionLanguageEngineImpl.StaticFunction("tomcat1"));
+        String expression = "#hostname#.%name%.#attribute#";
+
+        assertThat(engine.resolveExpression(expression, new ObjectName("test:name=a"), "count", null, null), is("tomcat1.a.count"));
+        assertThat(engine.resolveExpression(expression, new ObjectName("test:name=b"), "size", null, null), is("tomcat1.b.size"));
+
+        engine.registerExpressionEvaluator("hostname", new ExpressionLanguageEngineImpl.StaticFunction("tomcat2"));
+        assertThat(engine.resolveExpression(expression, new ObjectName("test:name=a"), "count", null, null), is("tomcat2.a.count"));
+    }
+
     /**
      * Systems like Solr may include valuable information in the MXBean domain (ex: Solr core name). Test a function to
      * retrieve that domain.
@@ -120,4 +134,31 @@ public class ExpressionLanguageEngineTest {
         String actual = engine.resolveExpression("#canonical_hostname#");
         assertThat(actual, is("server1.mycompany.com"));
     }
+
+    @Test
+    public void test_compiled_expression_is_reusable() throws Exception {
+        ExpressionLanguageEngine.CompiledExpression compiledExpression = expressionLanguageEngine.compileExpression("#hostname#.gc.%name%.#attribute#");
+
+        String scavenge = compiledExpression.evaluate(new ObjectName("java.lang:type=GarbageCollector,name=PS Scavenge"), "CollectionCount", null, null);
+        String markSweep = compiledExpression.evaluate(new ObjectName("java.lang:type=GarbageCollector,name=PS MarkSweep"), "CollectionTime", null, null);
+
+        assertThat(scavenge, is("tomcat1.gc.PS_Scavenge.CollectionCount"));
+        assertThat(markSweep, is("tomcat1.gc.PS_MarkSweep.CollectionTime"));
+    }
+
+    @Test
+    public void test_compiled_static_expression_is_pre_rendered() throws Exception {
+        ExpressionLanguageEngine.CompiledExpression compiledExpression = expressionLanguageEngine.compileExpression("servers.#canonical_hostname#.#unknown#");
+
+        String first = compiledExpression.evaluate(new ObjectName("java.lang:type=Memory"), "HeapMemoryUsage", "used", null);
+        String second = compiledExpression.evaluate(new ObjectName("java.lang:type=Threading"), "ThreadCount", null, null);
+
+        assertThat(first, is("servers.tomcat1.www.private.mycompany.com._unsupported_expression_"));
+        assertThat(second, sameInstance(first));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_compile_invalid_expression() throws Exception {
+        expressionLanguageEngine.compileExpression("servers.#hostname");
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.jmxtrans.agent.graphite.GraphiteMetricEncoder;
+import org.junit.Test;
+
+public class GraphiteMetricEncoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final GraphiteMetricEncoder encoder = new GraphiteMetricEncoder("foo.", 10);
+
+    @Test
+    public void integralNumbers() {
+        assertThat(encode("bar", 2), equalTo("foo.bar 2 11\n"));
+        assertThat(encode("bar", 0L), equalTo("foo.bar 0 11\n"));
+        assertThat(encode("bar", -1234567890123L), equalTo("foo.bar -1234567890123 11\n"));
+        assertThat(encode("bar", Long.MAX_VALUE), equalTo("foo.bar " + Long.MAX_VALUE + " 11\n"));
+        assertThat(encode("bar", Long.MIN_VALUE), equalTo("foo.bar " + Long.MIN_VALUE + " 11\n"));
+        assertThat(encode("bar", (short) 7), equalTo("foo.bar 7 11\n"));
+    }
+
+    @Test
+    public void booleans() {
+        assertThat(encode("bar", true), equalTo("foo.bar 1 11\n"));
+        assertThat(encode("bar", false), equalTo("foo.bar 0 11\n"));
+    }
+
+    @Test
+    public void decimalNumbersAreFormattedLikeDoubleToString() {
+        double[] values = {0.8734, 3.0, -2.5, 0.001, 0.1 + 0.2, 1234567.125, 9999999.999999, 1.0 / 3, -0.0, 0.0,
+                1e-5, 12345678.9, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY};
+        for (double value : values) {
+            String encoded = encode("bar", value);
+            String encodedValue = encoded.substring("foo.bar ".length(), encoded.length() - " 11\n".length());
+            assertThat(encoded, Double.parseDouble(encodedValue), equalTo(value));
+            assertThat(encodedValue, equalTo(Double.toString(value)));
+        }
+    }
+
+    @Test
+    public void floats() {
+        assertThat(encode("bar", 0.1f), equalTo("foo.bar 0.1 11\n"));
+        assertThat(encode("bar", 1.5e-9f), equalTo("foo.bar " + Float.toString(1.5e-9f) + " 11\n"));
+    }
+
+    @Test
+    public void otherValuesUseToString() {
+        assertThat(encode("bar", "a string"), equalTo("foo.bar a string 11\n"));
+        assertThat(encode("bar", null), equalTo("foo.bar null 11\n"));
+    }
+
+    @Test
+    public void nonAsciiMetricName() {
+        assertThat(encode("température", 1), equalTo("foo.température 1 11\n"));
+    }
+
+    @Test
+    public void batch() {
+        MetricBatch batch = new MetricBatch.Builder()
+                .add("long", null, 12L, false)
+                .add("double", null, 0.5, false)
+                .add("boolean", null, true, true)
+                .build(33000);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        for (int i = 0; i < batch.size(); i++) {
+            assertTrue(encoder.encode(buffer, batch, i, 33));
+        }
+        assertThat(new String(buffer.array(), 0, buffer.position(), UTF_8),
+                equalTo("foo.long 12 33\nfoo.double 0.5 33\nfoo.boolean 1 33\n"));
+    }
+
+    @Test
+    public void bufferIsLeftUnchangedWhenTooSmall() {
+        ByteBuffer buffer = ByteBuffer.allocate(70);
+        assertTrue(encoder.encode(buffer, "bar", 1, 11));
+        int position = buffer.position();
+        assertFalse(encoder.encode(buffer, "bar", 1, 11));
+        assertThat(buffer.position(), is(position));
+    }
+
+    @Test
+    public void metricNameCacheIsBounded() {
+        for (int i = 0; i < 20; i++) {
+            assertThat(encode("bar." + i, i), equalTo("foo.bar." + i + " " + i + " 11\n"));
+        }
+        assertThat(encoder.getMetricNameCacheSize(), is(10));
+    }
+
+    private String encode(String metricName, Object value) {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        assertTrue(encoder.encode(buffer, metricName, value, 11));
+        return new String(buffer.array(), 0, buffer.position(), UTF_8);
+    }
+}
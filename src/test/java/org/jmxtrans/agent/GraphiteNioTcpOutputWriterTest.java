@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hamcrest.Matcher;
+import org.jmxtrans.agent.graphite.GraphiteOutputWriterCommonSettings;
+import org.jmxtrans.agent.util.net.HostAndPort;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class GraphiteNioTcpOutputWriterTest {
+
+    @Rule
+    public TcpLineServer relay1 = new TcpLineServer();
+
+    @Rule
+    public TcpLineServer relay2 = new TcpLineServer();
+
+    private GraphiteNioTcpOutputWriter writer;
+
+    @After
+    public void destroyWriter() {
+        if (writer != null) {
+            writer.preDestroy();
+        }
+    }
+
+    @Test
+    public void metrics_are_sharded_across_relays() throws Exception {
+        writer = newWriter("127.0.0.1:" + relay1.getPort() + ",127.0.0.1:" + relay2.getPort());
+
+        writer.writeBatch(newBatch(200, 33000));
+        assertEventuallyReceived(hasSize(200));
+        assertThat(relay1.getReceivedLines(), not(empty()));
+        assertThat(relay2.getReceivedLines(), not(empty()));
+
+        List<String> firstCycleOfRelay1 = metricNames(relay1.getReceivedLines());
+        writer.writeBatch(newBatch(200, 34000));
+        assertEventuallyReceived(hasSize(400));
+        // each metric is sent to the same relay
+        List<String> relay1Names = metricNames(relay1.getReceivedLines());
+        assertThat(relay1Names.size(), is(2 * firstCycleOfRelay1.size()));
+        assertThat(relay1Names.subList(firstCycleOfRelay1.size(), relay1Names.size()), is(firstCycleOfRelay1));
+        assertThat(writer.getReroutedLinesCount(), is(0L));
+    }
+
+    @Test
+    public void per_result_writes_are_sent_on_post_collect() throws Exception {
+        writer = newWriter("127.0.0.1:" + relay1.getPort() + ",127.0.0.1:" + relay2.getPort());
+        writer.preCollect();
+        for (int i = 0; i < 50; i++) {
+            writer.writeQueryResult("metric." + i, null, i);
+        }
+        writer.writeInvocationResult("invocation", 1.5);
+        writer.postCollect();
+        assertEventuallyReceived(hasSize(51));
+        assertThat(allLines(), hasItem(startsWith("foo.invocation 1.5 ")));
+    }
+
+    @Test
+    public void lines_of_an_unavailable_relay_are_rerouted() throws Exception {
+        writer = newWriter("127.0.0.1:" + relay1.getPort() + ",127.0.0.1:" + relay2.getPort() + ",127.0.0.1:" + closedPort());
+
+        writer.writeBatch(newBatch(300, 33000));
+        assertEventuallyReceived(hasSize(300));
+        assertThat(writer.getReroutedLinesCount(), greaterThan(0L));
+        long rerouted = writer.getReroutedLinesCount();
+
+        // the failed relay is skipped during the retry interval
+        writer.writeBatch(newBatch(300, 34000));
+        assertEventuallyReceived(hasSize(600));
+        assertThat(writer.getReroutedLinesCount(), is(rerouted));
+        assertThat(writer.getDroppedLinesCount(), is(0L));
+    }
+
+    @Test
+    public void results_are_dropped_when_no_relay_is_available() throws Exception {
+        writer = newWriter("127.0.0.1:" + closedPort());
+        try {
+            writer.writeBatch(newBatch(10, 33000));
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(writer.getDroppedLinesCount(), is(10L));
+    }
+
+    @Test
+    public void parse_relays() {
+        Map<String, String> settings = new HashMap<>();
+        settings.put(GraphiteNioTcpOutputWriter.SETTING_RELAYS, "relay-1:2004, relay-2,[::1]:2005");
+        assertThat(GraphiteNioTcpOutputWriter.parseRelays(settings), is(Arrays.asList(
+                new HostAndPort("relay-1", 2004), new HostAndPort("relay-2", 2003), new HostAndPort("::1", 2005))));
+
+        settings.clear();
+        settings.put(GraphiteOutputWriterCommonSettings.SETTING_HOST, "graphite");
+        assertThat(GraphiteNioTcpOutputWriter.parseRelays(settings), is(Arrays.asList(new HostAndPort("graphite", 2003))));
+    }
+
+    private GraphiteNioTcpOutputWriter newWriter(String relays) {
+        GraphiteNioTcpOutputWriter writer = new GraphiteNioTcpOutputWriter();
+        Map<String, String> settings = new HashMap<>();
+        settings.put(GraphiteNioTcpOutputWriter.SETTING_RELAYS, relays);
+        settings.put(GraphiteOutputWriterCommonSettings.SETTING_NAME_PREFIX, "foo.");
+        writer.postConstruct(settings);
+        return writer;
+    }
+
+    private MetricBatch newBatch(int size, long timestampInMillis) {
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        for (int i = 0; i < size; i++) {
+            builder.add("metric." + i, null, (long) i, false);
+        }
+        return builder.build(timestampInMillis);
+    }
+
+    private static int closedPort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private List<String> allLines() {
+        List<String> result = new ArrayList<>(relay1.getReceivedLines());
+        result.addAll(relay2.getReceivedLines());
+        return result;
+    }
+
+    private static List<String> metricNames(List<String> lines) {
+        List<String> result = new ArrayList<>();
+        for (String line : lines) {
+            result.add(line.substring(0, line.indexOf(' ')));
+        }
+        return result;
+    }
+
+    private void assertEventuallyReceived(Matcher<Collection<? extends Object>> matcher) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            if (matcher.matches(allLines())) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        assertThat(allLines(), matcher);
+    }
+}
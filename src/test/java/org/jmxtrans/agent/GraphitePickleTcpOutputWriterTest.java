@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jmxtrans.agent.graphite.GraphiteOutputWriterCommonSettings;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class GraphitePickleTcpOutputWriterTest {
+
+    @Rule
+    public TcpPickleServer pickleServer = new TcpPickleServer();
+
+    private GraphitePickleTcpOutputWriter writer;
+
+    @After
+    public void destroyWriter() {
+        if (writer != null) {
+            writer.preDestroy();
+        }
+    }
+
+    @Test
+    public void batch_is_sent_in_frames_of_max_batch_size() throws Exception {
+        writer = newWriter(500);
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        for (int i = 0; i < 1200; i++) {
+            builder.add("metric." + i, null, i % 2 == 0 ? (Object) (long) i : (Object) (i + 0.5), false);
+        }
+        writer.writeBatch(builder.build(33000));
+
+        assertEventuallyReceived(1200);
+        assertThat(pickleServer.getReceivedFrameSizes(), contains(500, 500, 200));
+        List<TcpPickleServer.PickledMetric> metrics = pickleServer.getReceivedMetrics();
+        assertThat(metrics.get(0).toString(), is("(foo.metric.0, (33, 0))"));
+        assertThat(metrics.get(1).toString(), is("(foo.metric.1, (33, 1.5))"));
+        assertThat(metrics.get(1199).toString(), is("(foo.metric.1199, (33, 1199.5))"));
+    }
+
+    @Test
+    public void per_result_writes_and_value_types() throws Exception {
+        writer = newWriter(500);
+        writer.preCollect();
+        writer.writeQueryResult("int", null, 12);
+        writer.writeQueryResult("long", null, Long.MAX_VALUE);
+        writer.writeQueryResult("float", null, 0.5f);
+        writer.writeQueryResult("boolean", null, true);
+        writer.writeQueryResult("string", null, "not a number");
+        writer.writeInvocationResult("invocation", -3);
+        writer.postCollect();
+
+        assertEventuallyReceived(5);
+        List<String> received = new ArrayList<>();
+        for (TcpPickleServer.PickledMetric metric : pickleServer.getReceivedMetrics()) {
+            received.add(metric.path + "=" + metric.value);
+        }
+        assertThat(received, contains("foo.int=12", "foo.long=" + Long.MAX_VALUE, "foo.float=0.5", "foo.boolean=1", "foo.invocation=-3"));
+        assertThat(pickleServer.getReceivedFrameSizes(), contains(5));
+    }
+
+    @Test
+    public void reconnects_after_server_closes_connection() throws Exception {
+        writer = newWriter(500);
+        writer.writeBatch(new MetricBatch.Builder().add("metric", null, 1L, false).build(33000));
+        assertEventuallyReceived(1);
+
+        pickleServer.disconnectAllClients();
+        for (int i = 0; i < 10 && pickleServer.getReceivedMetrics().size() < 2; i++) {
+            try {
+                writer.writeBatch(new MetricBatch.Builder().add("metric", null, 2L, false).build(34000));
+            } catch (Exception e) {
+                // broken connection detected, the writer reconnects on the next batch
+            }
+            Thread.sleep(20);
+        }
+        assertEventuallyReceived(2);
+    }
+
+    private GraphitePickleTcpOutputWriter newWriter(int maxBatchSize) {
+        GraphitePickleTcpOutputWriter writer = new GraphitePickleTcpOutputWriter();
+        Map<String, String> settings = new HashMap<>();
+        settings.put(GraphiteOutputWriterCommonSettings.SETTING_HOST, "127.0.0.1");
+        settings.put(GraphiteOutputWriterCommonSettings.SETTING_PORT, "" + pickleServer.getPort());
+        settings.put(GraphiteOutputWriterCommonSettings.SETTING_NAME_PREFIX, "foo.");
+        settings.put(GraphitePickleTcpOutputWriter.SETTING_MAX_BATCH_SIZE, "" + maxBatchSize);
+        writer.postConstruct(settings);
+        return writer;
+    }
+
+    private void assertEventuallyReceived(int count) throws Exception {
+        for (int i = 0; i < 100 && pickleServer.getReceivedMetrics().size() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(pickleServer.getReceivedMetrics(), hasSize(count));
+    }
+}
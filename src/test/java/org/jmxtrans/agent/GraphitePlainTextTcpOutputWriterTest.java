@@ -63,6 +63,24 @@ public class GraphitePlainTextTcpOutputWriterTest {
 		assertEventuallyReceived(tcpLineServer, hasSize(greaterThan(1)));
 	}
 
+	@Test
+	public void writeBatch() throws Exception {
+		GraphitePlainTextTcpOutputWriter graphiteWriter = new GraphitePlainTextTcpOutputWriter();
+		Map<String, String> config = new HashMap<>();
+		config.put(GraphiteOutputWriterCommonSettings.SETTING_HOST, "127.0.0.1");
+		config.put(GraphiteOutputWriterCommonSettings.SETTING_PORT, "" + tcpLineServer.getPort());
+		config.put(GraphiteOutputWriterCommonSettings.SETTING_NAME_PREFIX, "foo.");
+		graphiteWriter.postConstruct(config);
+		MetricBatch.Builder builder = new MetricBatch.Builder();
+		for (int i = 0; i < 1000; i++) {
+			builder.add("metric." + i, null, i % 2 == 0 ? (Object) (long) i : (Object) (i + 0.5), false);
+		}
+		graphiteWriter.writeBatch(builder.build(33000));
+		assertEventuallyReceived(tcpLineServer, hasSize(1000));
+		assertThat(tcpLineServer.getReceivedLines(), hasItems("foo.metric.0 0 33", "foo.metric.1 1.5 33", "foo.metric.999 999.5 33"));
+		graphiteWriter.preDestroy();
+	}
+
 	private void waitForErrorToBeDetectedByGraphiteWriter(GraphitePlainTextTcpOutputWriter writer) {
 		for (int i = 0; i < 10; i++) {
 			try {
@@ -71,24 +71,65 @@ public class GraphiteUdpOutputWriterTest {
     @Test
     public void oneQueryResult() throws Exception {
         writer.writeQueryResult("metric", "type", 1);
+        writer.postCollect();
         assertEventuallyReceived(udpServer, contains("foo.metric 1 33\n"));
     }
 
     @Test
-    public void manyQueryResults() throws Exception {
+    public void manyQueryResultsArePackedInOneDatagram() throws Exception {
         writer.writeQueryResult("metric", "type", 1);
         writer.writeQueryResult("metric.2", "type", 2);
         writer.writeQueryResult("metric.3", "type", 3);
+        writer.postCollect();
         assertEventuallyReceived(udpServer,
-                containsInAnyOrder("foo.metric 1 33\n", "foo.metric.2 2 33\n", "foo.metric.3 3 33\n"));
+                contains("foo.metric 1 33\nfoo.metric.2 2 33\nfoo.metric.3 3 33\n"));
     }
 
     @Test
     public void oneInvocationResult() throws Exception {
         writer.writeInvocationResult("invoke", 123);
+        writer.postCollect();
         assertEventuallyReceived(udpServer, contains("foo.invoke 123 33\n"));
     }
 
+    @Test
+    public void datagramsDoNotExceedMaxPacketSize() throws Exception {
+        Map<String, String> settings = testSettings();
+        settings.put(GraphiteUdpOutputWriter.SETTING_MAX_PACKET_SIZE_IN_BYTES, "100");
+        writer.preDestroy();
+        writer = new GraphiteUdpOutputWriter();
+        writer.postConstruct(settings);
+        writer.setClock(clock);
+
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            builder.add("metric." + i, null, (long) i, false);
+            expected.append("foo.metric.").append(i).append(' ').append(i).append(" 33\n");
+        }
+        builder.add("a.very.long.metric.name.that.does.not.fit.in.a.datagram.of.one.hundred.bytes.with.its.value", null, 1.5, false);
+        expected.append("foo.a.very.long.metric.name.that.does.not.fit.in.a.datagram.of.one.hundred.bytes.with.its.value 1.5 33\n");
+        writer.writeBatch(builder.build(33000));
+
+        StringBuilder received = new StringBuilder();
+        for (int i = 0; i < 100 && received.length() < expected.length(); i++) {
+            udpServer.receiveAvailableDatagrams();
+            received.setLength(0);
+            for (String message : udpServer.getReceivedMessages()) {
+                received.append(message);
+            }
+            Thread.sleep(10);
+        }
+        assertThat(received.toString(), equalTo(expected.toString()));
+        assertThat(udpServer.getReceivedMessages().size(), greaterThan(3));
+        for (String message : udpServer.getReceivedMessages()) {
+            if (!message.contains("a.very.long.metric")) {
+                assertThat(message.length(), lessThanOrEqualTo(100));
+            }
+            assertThat(message, endsWith("\n"));
+        }
+    }
+
     @After
     public void destroyWriter() {
         writer.preDestroy();
@@ -145,7 +186,7 @@ public class GraphiteUdpOutputWriterTest {
 
         public void receiveAvailableDatagrams() throws IOException {
             while (true) {
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                ByteBuffer buffer = ByteBuffer.allocate(65536);
                 if (channel.receive(buffer) == null) {
                     break;
                 }
@@ -49,6 +49,7 @@ public class JmxTransConfigurationXmlLoaderTest {
         assertThat(config.collectInterval, is(11));
         assertThat(config.collectIntervalTimeUnit, is(TimeUnit.SECONDS));
         assertThat(config.getConfigReloadInterval(), equalTo(-1));
+        assertThat(config.getCollectorThreads(), equalTo(3));
 
         OutputWriter decoratedOutputWriter = config.outputWriter;
         // CircuitBreaker
@@ -101,6 +102,8 @@ public class JmxTransConfigurationXmlLoaderTest {
         OutputWritersChain outputWritersChain = (OutputWritersChain) config.outputWriter;
 
         assertThat(outputWritersChain.outputWriters.size(), is(2));
+        assertThat(outputWritersChain.isConcurrent(), is(false));
+        assertThat(outputWritersChain.getLanes().size(), is(0));
 
         {
             OutputWriter decoratedOutputWriter = outputWritersChain.outputWriters.get(0);
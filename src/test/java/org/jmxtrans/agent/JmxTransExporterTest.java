@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.jmxtrans.agent.influxdb.InfluxDbOutputWriter;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class JmxTransExporterTest {
+
+    RecordingOutputWriter outputWriter = new RecordingOutputWriter();
+    JmxTransExporter exporter;
+
+    @After
+    public void after() {
+        if (exporter != null) {
+            exporter.stop();
+        }
+    }
+
+    @Test
+    public void concurrent_collectors_deliver_results_in_declaration_order() throws Exception {
+        JmxTransExporterConfiguration configuration = newConfiguration().withCollectorThreads(4);
+        List<String> expectedNames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            configuration.withQuery("java.lang:type=Threading", Collections.singletonList("ThreadCount"), "query-" + i);
+            expectedNames.add("query-" + i);
+        }
+        exporter = newExporter(configuration);
+        exporter.start();
+
+        assertThat(outputWriter.awaitFirstCycle(), equalTo(expectedNames));
+        assertThat(outputWriter.writingThreads, everyItem(not(startsWith("jmxtrans-agent-collector-"))));
+    }
+
+    @Test
+    public void failing_collector_does_not_prevent_others_to_be_exported() throws Exception {
+        JmxTransExporterConfiguration configuration = newConfiguration().withCollectorThreads(2)
+                .withQuery("java.lang:type=Threading", Collections.singletonList("ThreadCount"), "a")
+                .withQuery("java.lang:type=Threading", Collections.singletonList("ThreadCount"), "b");
+        configuration.queries.add(1, new Query("java.lang:type=Threading", "ThreadCount", configuration.resultNameStrategy) {
+            @Override
+            public void collectAndExport(@Nonnull javax.management.MBeanServer mbeanServer, @Nonnull OutputWriter outputWriter) {
+                throw new IllegalStateException("test");
+            }
+        });
+        exporter = newExporter(configuration);
+        exporter.start();
+
+        assertThat(outputWriter.awaitFirstCycle(), equalTo(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void batch_output_writer_receives_one_batch_per_collection() throws Exception {
+        final List<MetricBatch> batches = Collections.synchronizedList(new ArrayList<MetricBatch>());
+        final CountDownLatch firstBatchLatch = new CountDownLatch(1);
+        JmxTransExporterConfiguration configuration = newConfiguration()
+                .withQuery("java.lang:type=Threading", Collections.singletonList("ThreadCount"), "a")
+                .withQuery("java.lang:type=Threading", Collections.singletonList("ThreadCount"), "b");
+        configuration.withOutputWriter(new OutputWritersChain(Arrays.<OutputWriter>asList(outputWriter, new RecordingBatchOutputWriter() {
+            @Override
+            public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+                batches.add(batch);
+                firstBatchLatch.countDown();
+            }
+        })));
+        exporter = newExporter(configuration);
+        exporter.start();
+
+        assertThat(outputWriter.awaitFirstCycle(), equalTo(Arrays.asList("a", "b")));
+        assertTrue("No batch written", firstBatchLatch.await(5, TimeUnit.SECONDS));
+        MetricBatch batch = batches.get(0);
+        assertThat(batch.size(), is(2));
+        assertThat(batch.getName(0), is("a"));
+        assertThat(batch.getName(1), is("b"));
+        assertThat(batch.isLongValue(0), is(true));
+    }
+
+    @Test
+    public void hung_collector_is_abandoned_after_its_timeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        JmxTransExporterConfiguration configuration = newConfiguration()
+                .withQuery("java.lang:type=Threading", Collections.singletonList("ThreadCount"), "a")
+                .withQuery("java.lang:type=Threading", Collections.singletonList("ThreadCount"), "b");
+        Query hungQuery = new Query("java.lang:type=Threading", "ThreadCount", configuration.resultNameStrategy) {
+            @Override
+            public void collectAndExport(@Nonnull javax.management.MBeanServer mbeanServer, @Nonnull OutputWriter outputWriter) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // ignore interruption like a collector blocked on a monitor
+                }
+            }
+        };
+        hungQuery.setCollectTimeoutInMillis(50);
+        configuration.queries.add(1, hungQuery);
+        exporter = newExporter(configuration);
+        try {
+            exporter.start();
+
+            assertThat(outputWriter.awaitFirstCycle(), equalTo(Arrays.asList("a", "b")));
+            assertThat(exporter.getAbandonedCollectionsCount(), is(1L));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void collector_still_running_is_skipped_and_counted() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        JmxTransExporterConfiguration configuration = newConfiguration()
+                .withAgentMetricsPrefix("agent.");
+        Query hungQuery = new Query("java.lang:type=Threading", "ThreadCount", configuration.resultNameStrategy) {
+            @Override
+            public void collectAndExport(@Nonnull javax.management.MBeanServer mbeanServer, @Nonnull OutputWriter outputWriter) {
+                long deadline = System.currentTimeMillis() + 10000;
+                while (release.getCount() > 0 && System.currentTimeMillis() < deadline) {
+                    try {
+                        release.await(10, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // keep running despite the interruption like a collector blocked on a monitor
+                    }
+                }
+            }
+        };
+        hungQuery.setCollectTimeoutInMillis(50);
+        configuration.queries.add(hungQuery);
+        exporter = newExporter(configuration);
+        try {
+            exporter.start();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (exporter.getSkippedCollectionsCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(exporter.getAbandonedCollectionsCount(), is(1L));
+            assertThat(exporter.getAgentMetrics().getSkippedCollectionsCount(), greaterThanOrEqualTo(1L));
+            assertThat(outputWriter.awaitFirstCycle(), hasItem("agent.skippedCollections"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void agent_metrics_are_registered_and_exported_with_the_results() throws Exception {
+        JmxTransExporterConfiguration configuration = newConfiguration()
+                .withAgentMetricsPrefix("agent.")
+                .withQuery("java.lang:type=Threading", Collections.singletonList("ThreadCount"), "a");
+        exporter = newExporter(configuration);
+        exporter.start();
+
+        List<String> names = outputWriter.awaitFirstCycle();
+        assertThat(names, hasItems("a", "agent.cycles", "agent.cycleDurationP99InMicros",
+                "agent.writers.JmxTransExporterTest$RecordingOutputWriter-0.bytesSent"));
+        javax.management.MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        assertThat(mbeanServer.isRegistered(AgentMetrics.OBJECT_NAME), is(true));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (exporter.getAgentMetrics().getCycleCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat((Long) mbeanServer.getAttribute(AgentMetrics.OBJECT_NAME, "CycleCount"), greaterThanOrEqualTo(1L));
+        assertThat((Long) mbeanServer.getAttribute(AgentMetrics.OBJECT_NAME, "ResultsCount"), greaterThanOrEqualTo(1L));
+
+        exporter.stop();
+        exporter = null;
+        assertThat(mbeanServer.isRegistered(AgentMetrics.OBJECT_NAME), is(false));
+    }
+
+    @Test
+    public void agent_metrics_include_the_influxdb_writer_metrics() throws Exception {
+        Map<String, String> settings = new HashMap<>();
+        settings.put("url", "http://localhost:8086");
+        settings.put("database", "test-db");
+        OutputWriterCircuitBreakerDecorator influxDbOutputWriter = new OutputWriterCircuitBreakerDecorator(new InfluxDbOutputWriter());
+        influxDbOutputWriter.postConstruct(settings);
+        JmxTransExporterConfiguration configuration = newConfiguration()
+                .withOutputWriter(new OutputWritersChain(Arrays.<OutputWriter>asList(outputWriter, influxDbOutputWriter)));
+        AgentMetrics agentMetrics = newExporter(configuration).getAgentMetrics();
+        try {
+            assertThat(agentMetrics.getWritersMetrics(), hasEntry("InfluxDbOutputWriter-1.requestRetries", 0L));
+            assertThat(agentMetrics.getWritersMetrics().keySet(), contains("InfluxDbOutputWriter-1.requests",
+                    "InfluxDbOutputWriter-1.requestRetries", "InfluxDbOutputWriter-1.rejectedRequests",
+                    "InfluxDbOutputWriter-1.failedRequests", "InfluxDbOutputWriter-1.meanRequestDurationInMicros",
+                    "InfluxDbOutputWriter-1.requestDurationP99InMicros"));
+
+            MetricBatch.Builder builder = new MetricBatch.Builder();
+            agentMetrics.writeTo(builder, "agent.");
+            List<String> names = new ArrayList<>();
+            MetricBatch batch = builder.build(0);
+            for (int i = 0; i < batch.size(); i++) {
+                names.add(batch.getName(i));
+            }
+            assertThat(names, hasItems("agent.writers.InfluxDbOutputWriter-1.requestDurationP99InMicros",
+                    "agent.writers.InfluxDbOutputWriter-1.requestRetries",
+                    "agent.writers.InfluxDbOutputWriter-1.rejectedRequests",
+                    "agent.writers.InfluxDbOutputWriter-1.failedRequests"));
+            assertThat(names, not(hasItem("agent.writers.JmxTransExporterTest$RecordingOutputWriter-0.requestRetries")));
+        } finally {
+            influxDbOutputWriter.preDestroy();
+        }
+    }
+
+    @Test
+    public void agent_metrics_include_the_statsd_writer_metrics() throws Exception {
+        Map<String, String> settings = new HashMap<>();
+        settings.put(StatsDOutputWriter.SETTING_HOST, "localhost");
+        settings.put(StatsDOutputWriter.SETTING_PORT, "8125");
+        OutputWriterCircuitBreakerDecorator statsDOutputWriter = new OutputWriterCircuitBreakerDecorator(new StatsDOutputWriter());
+        statsDOutputWriter.postConstruct(settings);
+        JmxTransExporterConfiguration configuration = newConfiguration()
+                .withOutputWriter(new OutputWritersChain(Arrays.<OutputWriter>asList(statsDOutputWriter, outputWriter)));
+        AgentMetrics agentMetrics = newExporter(configuration).getAgentMetrics();
+        try {
+            assertThat(agentMetrics.getWritersMetrics(), hasEntry("StatsDOutputWriter-0.rejectedLines", 0L));
+            assertThat(agentMetrics.getWritersMetrics().keySet(), contains("StatsDOutputWriter-0.packets",
+                    "StatsDOutputWriter-0.rejectedLines", "StatsDOutputWriter-0.lastFlushPackets",
+                    "StatsDOutputWriter-0.lastFlushBytes"));
+
+            MetricBatch.Builder builder = new MetricBatch.Builder();
+            agentMetrics.writeTo(builder, "agent.");
+            List<String> names = new ArrayList<>();
+            MetricBatch batch = builder.build(0);
+            for (int i = 0; i < batch.size(); i++) {
+                names.add(batch.getName(i));
+            }
+            assertThat(names, hasItems("agent.writers.StatsDOutputWriter-0.lastFlushPackets",
+                    "agent.writers.StatsDOutputWriter-0.lastFlushBytes",
+                    "agent.writers.StatsDOutputWriter-0.rejectedLines"));
+        } finally {
+            statsDOutputWriter.preDestroy();
+        }
+    }
+
+    private JmxTransExporterConfiguration newConfiguration() {
+        JmxTransExporterConfiguration configuration = new JmxTransExporterConfiguration(null);
+        configuration.resultNameStrategy = new ResultNameStrategyImpl();
+        // first collection after half of the collect interval
+        configuration.withCollectInterval(200, TimeUnit.MILLISECONDS);
+        configuration.withOutputWriter(outputWriter);
+        return configuration;
+    }
+
+    private JmxTransExporter newExporter(final JmxTransExporterConfiguration configuration) {
+        return new JmxTransExporter(new JmxTransConfigurationLoader() {
+            @Override
+            public JmxTransExporterConfiguration loadConfiguration() {
+                return configuration;
+            }
+
+            @Override
+            public long lastModified() {
+                return 0;
+            }
+        });
+    }
+
+    static class RecordingOutputWriter extends AbstractOutputWriter {
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> writingThreads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch firstCycleLatch = new CountDownLatch(1);
+        volatile List<String> firstCycleNames;
+
+        List<String> awaitFirstCycle() throws InterruptedException {
+            assertTrue("No collection cycle completed", firstCycleLatch.await(5, TimeUnit.SECONDS));
+            return firstCycleNames;
+        }
+
+        @Override
+        public void postCollect() throws IOException {
+            if (firstCycleNames == null) {
+                firstCycleNames = new ArrayList<>(names);
+                firstCycleLatch.countDown();
+            }
+        }
+
+        @Override
+        public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+            names.add(metricName);
+            writingThreads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+            writeQueryResult(invocationName, null, value);
+        }
+    }
+
+    abstract static class RecordingBatchOutputWriter extends AbstractOutputWriter implements BatchOutputWriter {
+        @Override
+        public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+            throw new AssertionError("batch expected");
+        }
+
+        @Override
+        public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+            throw new AssertionError("batch expected");
+        }
+    }
+}
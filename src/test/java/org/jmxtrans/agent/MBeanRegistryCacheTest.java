@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MBeanRegistryCacheTest {
+
+    MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+    AtomicInteger queryNamesCounter = new AtomicInteger();
+    AtomicInteger getMBeanInfoCounter = new AtomicInteger();
+    MBeanServer countingMBeanServer;
+    MBeanRegistryCache cache;
+
+    @Before
+    public void before() {
+        countingMBeanServer = (MBeanServer) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MBeanServer.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("queryNames")) {
+                    queryNamesCounter.incrementAndGet();
+                } else if (method.getName().equals("getMBeanInfo")) {
+                    getMBeanInfoCounter.incrementAndGet();
+                }
+                try {
+                    return method.invoke(mbeanServer, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+        cache = new MBeanRegistryCache(countingMBeanServer);
+        cache.start();
+    }
+
+    @After
+    public void after() {
+        cache.stop();
+    }
+
+    @Test
+    public void pattern_is_resolved_once_and_kept_up_to_date_by_notifications() throws Exception {
+        ObjectName pattern = new ObjectName("test:type=Mock,*");
+        ObjectName mock1 = new ObjectName("test:type=Mock,name=mock1");
+        ObjectName mock2 = new ObjectName("test:type=Mock,name=mock2");
+        mbeanServer.registerMBean(new Mock("mock1", 0), mock1);
+
+        assertThat(cache.queryNames(pattern), contains(mock1));
+
+        mbeanServer.registerMBean(new Mock("mock2", 0), mock2);
+        mbeanServer.registerMBean(new Mock("other", 0), new ObjectName("test:type=Other,name=other"));
+        assertThat(cache.queryNames(pattern), containsInAnyOrder(mock1, mock2));
+
+        mbeanServer.unregisterMBean(mock1);
+        assertThat(cache.queryNames(pattern), contains(mock2));
+
+        assertThat(queryNamesCounter.get(), is(1));
+    }
+
+    @Test
+    public void exact_object_name_is_cached() throws Exception {
+        ObjectName mock = new ObjectName("test:type=Mock,name=mock");
+
+        assertThat(cache.queryNames(mock), empty());
+        mbeanServer.registerMBean(new Mock("mock", 0), mock);
+        assertThat(cache.queryNames(mock), contains(mock));
+
+        assertThat(queryNamesCounter.get(), is(1));
+    }
+
+    @Test
+    public void stopped_cache_delegates_to_the_mbean_server() throws Exception {
+        cache.stop();
+        ObjectName mock = new ObjectName("test:type=Mock,name=mock");
+        mbeanServer.registerMBean(new Mock("mock", 0), mock);
+
+        assertThat(cache.queryNames(mock), contains(mock));
+        assertThat(cache.queryNames(mock), contains(mock));
+        assertThat(queryNamesCounter.get(), is(2));
+    }
+
+    @Test
+    public void query_uses_the_cache_of_its_mbean_server() throws Exception {
+        ObjectName mock = new ObjectName("test:type=Mock,name=mock");
+        mbeanServer.registerMBean(new Mock("mock", 0), mock);
+        Query query = new Query("test:type=Mock,*", "CollectionUsageThreshold", "threshold", new ResultNameStrategyImpl());
+        query.setMBeanRegistryCache(cache);
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter(false);
+
+        query.collectAndExport(countingMBeanServer, outputWriter);
+        query.collectAndExport(countingMBeanServer, outputWriter);
+
+        assertThat(outputWriter.resultsByName.get("threshold"), notNullValue());
+        assertThat(queryNamesCounter.get(), is(1));
+    }
+
+    @Test
+    public void attribute_names_are_cached_until_the_mbean_is_unregistered() throws Exception {
+        ObjectName mock = new ObjectName("test:type=Mock,name=mock");
+        mbeanServer.registerMBean(new Mock("mock", 0), mock);
+
+        assertThat(cache.getAttributeNames(mock), hasItem("CollectionUsageThreshold"));
+        assertThat(cache.getAttributeNames(mock), hasItem("CollectionUsageThreshold"));
+        assertThat(getMBeanInfoCounter.get(), is(1));
+        assertThat(cache.getAttributeNamesCacheHits(), is(1L));
+        assertThat(cache.getAttributeNamesCacheMisses(), is(1L));
+
+        mbeanServer.unregisterMBean(mock);
+        mbeanServer.registerMBean(new Mock("mock", 0), mock);
+        assertThat(cache.getAttributeNames(mock), hasItem("CollectionUsageThreshold"));
+        assertThat(getMBeanInfoCounter.get(), is(2));
+    }
+
+    @Test
+    public void attribute_names_expire_after_time_to_live() throws Exception {
+        cache.stop();
+        cache = new MBeanRegistryCache(countingMBeanServer, 1, TimeUnit.MILLISECONDS);
+        cache.start();
+        ObjectName mock = new ObjectName("test:type=Mock,name=mock");
+        mbeanServer.registerMBean(new Mock("mock", 0), mock);
+
+        cache.getAttributeNames(mock);
+        Thread.sleep(5);
+        cache.getAttributeNames(mock);
+
+        assertThat(getMBeanInfoCounter.get(), is(2));
+    }
+
+    @Test
+    public void query_without_attribute_reads_mbean_info_once() throws Exception {
+        ObjectName mock = new ObjectName("test:type=Mock,name=mock");
+        mbeanServer.registerMBean(new Mock("mock", 0), mock);
+        Query query = new Query("test:type=Mock,*", (String) null, "mock.#attribute#", new ResultNameStrategyImpl());
+        query.setMBeanRegistryCache(cache);
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter(false);
+
+        query.collectAndExport(countingMBeanServer, outputWriter);
+        query.collectAndExport(countingMBeanServer, outputWriter);
+
+        assertThat(outputWriter.resultsByName.get("mock.CollectionUsageThreshold"), notNullValue());
+        assertThat(getMBeanInfoCounter.get(), is(1));
+    }
+
+    @Test
+    public void unregistration_listeners_are_notified() throws Exception {
+        ObjectName mock = new ObjectName("test:type=Mock,name=mock");
+        final List<ObjectName> unregisteredObjectNames = new CopyOnWriteArrayList<>();
+        cache.addUnregistrationListener(new MBeanRegistryCache.UnregistrationListener() {
+            @Override
+            public void onMBeanUnregistered(@Nonnull ObjectName objectName) {
+                unregisteredObjectNames.add(objectName);
+            }
+        });
+        mbeanServer.registerMBean(new Mock("mock", 0), mock);
+        assertThat(unregisteredObjectNames, empty());
+
+        mbeanServer.unregisterMBean(mock);
+        assertThat(unregisteredObjectNames, contains(mock));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MetricBatchTest {
+
+    @Test
+    public void values_are_stored_in_primitive_and_side_columns() throws Exception {
+        MetricBatch.Builder builder = new MetricBatch.Builder(1);
+        builder.writeQueryResult("long", "counter", 12L);
+        builder.writeQueryResult("int", null, 3);
+        builder.writeQueryResult("double", null, 0.5d);
+        builder.writeQueryResult("float", null, 0.1f);
+        builder.writeQueryResult("decimal", null, new BigDecimal("1.25"));
+        builder.writeInvocationResult("invocation", null);
+
+        MetricBatch batch = builder.build(1000L);
+
+        assertThat(batch.size(), is(6));
+        assertThat(batch.getTimestampInMillis(), is(1000L));
+        assertThat(batch.getType(0), is("counter"));
+        assertThat(batch.getLongValue(0), is(12L));
+        assertThat(batch.getLongValue(1), is(3L));
+        assertThat(batch.getValue(1), is((Object) 3));
+        assertThat(batch.getDoubleValue(2), is(0.5d));
+        assertThat(batch.isLongValue(3) || batch.isDoubleValue(3), is(false));
+        assertThat(batch.getValue(3), is((Object) 0.1f));
+        assertThat(batch.getValue(4), is((Object) new BigDecimal("1.25")));
+        assertThat(batch.isInvocationResult(5), is(true));
+        assertThat(batch.getValue(5), nullValue());
+    }
+
+    @Test
+    public void batch_is_not_modified_by_its_builder() throws Exception {
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        builder.writeQueryResult("a", null, 1L);
+        MetricBatch batch = builder.build(0L);
+        builder.writeQueryResult("b", null, 2L);
+
+        assertThat(batch.size(), is(1));
+        assertThat(builder.build(0L).size(), is(2));
+    }
+
+    @Test
+    public void batch_is_replayed_on_output_writer() throws Exception {
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        builder.writeQueryResult("a", "gauge", 1L);
+        builder.writeInvocationResult("b", "value");
+        QueryTest.MockOutputWriter outputWriter = new QueryTest.MockOutputWriter(false);
+
+        builder.build(0L).writeTo(outputWriter);
+
+        assertThat(outputWriter.resultsByName.keySet(), containsInAnyOrder("a", "b"));
+        assertThat(outputWriter.resultsByName.get("a"), is((Object) 1L));
+        assertThat(outputWriter.resultsByName.get("b"), is((Object) "value"));
+    }
+
+    @Test
+    public void exceptions_writing_a_result_are_ignored_and_post_collect_is_invoked() throws Exception {
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        builder.writeQueryResult("a", null, 1L);
+        builder.writeQueryResult("fail", null, 2L);
+        builder.writeQueryResult("c", null, 3L);
+        final List<String> events = new ArrayList<>();
+        OutputWriter outputWriter = new AbstractOutputWriter() {
+            @Override
+            public void preCollect() throws IOException {
+                events.add("pre");
+            }
+
+            @Override
+            public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+                if ("fail".equals(metricName)) {
+                    throw new IOException("Failure");
+                }
+                events.add(metricName);
+            }
+
+            @Override
+            public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+                writeQueryResult(invocationName, null, value);
+            }
+
+            @Override
+            public void postCollect() throws IOException {
+                events.add("post");
+            }
+        };
+
+        builder.build(0L).writeTo(outputWriter);
+
+        assertThat(events, contains("pre", "a", "c", "post"));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class OutputWriterCircuitBreakerDecoratorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void circuit_is_opened_after_max_failures_and_closed_by_a_successful_probe() throws Exception {
+        ControllableOutputWriter delegate = new ControllableOutputWriter();
+        OutputWriterCircuitBreakerDecorator circuitBreaker = newCircuitBreaker(delegate, "0");
+
+        delegate.failing = true;
+        for (int i = 0; i < 3; i++) {
+            writeCycleIgnoringFailure(circuitBreaker);
+        }
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.OPEN));
+        assertThat(circuitBreaker.getOpenedCount(), is(1L));
+        int writesWhenOpened = delegate.writes;
+        writeCycleIgnoringFailure(circuitBreaker);
+        assertThat(delegate.writes, is(writesWhenOpened));
+
+        delegate.failing = false;
+        Thread.sleep(60);
+        writeCycleIgnoringFailure(circuitBreaker);
+
+        assertThat(delegate.writes, is(writesWhenOpened + 1));
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.CLOSED));
+        assertThat(circuitBreaker.getHalfOpenedCount(), is(1L));
+        assertThat(circuitBreaker.getClosedCount(), is(1L));
+    }
+
+    @Test
+    public void failed_probe_reopens_the_circuit_with_a_longer_duration() throws Exception {
+        ControllableOutputWriter delegate = new ControllableOutputWriter();
+        OutputWriterCircuitBreakerDecorator circuitBreaker = newCircuitBreaker(delegate, "0");
+
+        delegate.failing = true;
+        for (int i = 0; i < 3; i++) {
+            writeCycleIgnoringFailure(circuitBreaker);
+        }
+        Thread.sleep(60);
+        // probe
+        writeCycleIgnoringFailure(circuitBreaker);
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.OPEN));
+        assertThat(circuitBreaker.getOpenedCount(), is(2L));
+
+        // second trip: disabled 100ms
+        Thread.sleep(30);
+        assertThat(circuitBreaker.isDisabled(), is(true));
+        Thread.sleep(100);
+        assertThat(circuitBreaker.isDisabled(), is(false));
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.HALF_OPEN));
+    }
+
+    @Test
+    public void circuit_is_opened_when_the_write_time_percentile_exceeds_the_threshold() throws Exception {
+        ControllableOutputWriter delegate = new ControllableOutputWriter();
+        OutputWriterCircuitBreakerDecorator circuitBreaker = newCircuitBreaker(delegate, "5");
+
+        for (int i = 0; i < 4; i++) {
+            writeCycleIgnoringFailure(circuitBreaker);
+        }
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.CLOSED));
+
+        delegate.writeDurationInMillis = 20;
+        writeCycleIgnoringFailure(circuitBreaker);
+
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.OPEN));
+        assertThat(circuitBreaker.getLatencyTripsCount(), is(1L));
+
+        // slow probe
+        Thread.sleep(60);
+        writeCycleIgnoringFailure(circuitBreaker);
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.OPEN));
+        assertThat(circuitBreaker.getLatencyTripsCount(), is(2L));
+    }
+
+    @Test
+    public void failing_result_does_not_prevent_the_following_results_and_the_post_collect() throws Exception {
+        AsyncOutputWriterDecoratorTest.RecordingOutputWriter delegate = new AsyncOutputWriterDecoratorTest.RecordingOutputWriter();
+        OutputWriterCircuitBreakerDecorator circuitBreaker = newCircuitBreaker(delegate, "0");
+
+        MetricBatch.Builder builder = new MetricBatch.Builder();
+        builder.add("a", null, 1, false);
+        builder.add("fail", null, 2, false);
+        builder.add("c", null, 3, false);
+        circuitBreaker.writeBatch(builder.build(0));
+
+        assertThat(delegate.events, contains("pre", "a=1", "fail=2", "c=3", "post"));
+        assertThat(circuitBreaker.getWrittenResultsCount(), is(2L));
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.CLOSED));
+    }
+
+    @Test
+    public void write_time_percentile_is_evaluated_once_the_min_samples_are_reached() throws Exception {
+        ControllableOutputWriter delegate = new ControllableOutputWriter();
+        Map<String, String> settings = newSettings("5");
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_LATENCY_WINDOW_SIZE, "100");
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_LATENCY_MIN_SAMPLES, "3");
+        OutputWriterCircuitBreakerDecorator circuitBreaker = newCircuitBreaker(delegate, settings);
+
+        delegate.writeDurationInMillis = 20;
+        writeCycleIgnoringFailure(circuitBreaker);
+        writeCycleIgnoringFailure(circuitBreaker);
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.CLOSED));
+
+        writeCycleIgnoringFailure(circuitBreaker);
+        assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.OPEN));
+        assertThat(circuitBreaker.getLatencyTripsCount(), is(1L));
+    }
+
+    @Test
+    public void results_are_spooled_while_the_circuit_is_open() throws Exception {
+        ControllableBatchOutputWriter delegate = new ControllableBatchOutputWriter();
+        Map<String, String> settings = newSettings("0");
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_SPOOL_DIRECTORY, temporaryFolder.getRoot().getAbsolutePath());
+        OutputWriterCircuitBreakerDecorator circuitBreaker = newCircuitBreaker(delegate, settings);
+        try {
+            delegate.failing = true;
+            for (int i = 0; i < 3; i++) {
+                writeCycleIgnoringFailure(circuitBreaker);
+            }
+            assertThat(circuitBreaker.getState(), is(OutputWriterCircuitBreakerDecorator.State.OPEN));
+            writeCycleIgnoringFailure(circuitBreaker);
+
+            assertThat(circuitBreaker.getSpool().getSpooledBatches(), is(1L));
+        } finally {
+            circuitBreaker.preDestroy();
+        }
+    }
+
+    @Test
+    public void results_are_not_spooled_when_the_writer_is_disabled() throws Exception {
+        ControllableBatchOutputWriter delegate = new ControllableBatchOutputWriter();
+        Map<String, String> settings = newSettings("0");
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_ENABLED, "false");
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_SPOOL_DIRECTORY, temporaryFolder.getRoot().getAbsolutePath());
+        OutputWriterCircuitBreakerDecorator circuitBreaker = newCircuitBreaker(delegate, settings);
+        try {
+            writeCycleIgnoringFailure(circuitBreaker);
+            circuitBreaker.preCollect();
+            circuitBreaker.writeQueryResult("metric", null, 1);
+            circuitBreaker.postCollect();
+
+            assertThat(delegate.writes, is(0));
+            assertThat(circuitBreaker.getSpool().getSpooledBatches(), is(0L));
+        } finally {
+            circuitBreaker.preDestroy();
+        }
+    }
+
+    private OutputWriterCircuitBreakerDecorator newCircuitBreaker(OutputWriter delegate, String latencyThresholdInMillis) {
+        return newCircuitBreaker(delegate, newSettings(latencyThresholdInMillis));
+    }
+
+    private OutputWriterCircuitBreakerDecorator newCircuitBreaker(OutputWriter delegate, Map<String, String> settings) {
+        OutputWriterCircuitBreakerDecorator circuitBreaker = new OutputWriterCircuitBreakerDecorator(delegate);
+        circuitBreaker.postConstruct(settings);
+        return circuitBreaker;
+    }
+
+    private Map<String, String> newSettings(String latencyThresholdInMillis) {
+        Map<String, String> settings = new HashMap<>();
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_MAX_FAILURES, "3");
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_DISABLE_DURATION_IN_MILLIS, "50");
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_LATENCY_THRESHOLD_IN_MILLIS, latencyThresholdInMillis);
+        // p90 of the last 5 cycles: a single slow cycle trips the circuit
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_LATENCY_PERCENTILE, "90");
+        settings.put(OutputWriterCircuitBreakerDecorator.SETTING_LATENCY_WINDOW_SIZE, "5");
+        return settings;
+    }
+
+    private void writeCycleIgnoringFailure(OutputWriter outputWriter) {
+        MetricBatch.Builder builder = new MetricBatch.Builder(1);
+        builder.add("metric", null, 1, false);
+        try {
+            ((BatchOutputWriter) outputWriter).writeBatch(builder.build(0));
+        } catch (IOException e) {
+            // expected for failing writes
+        }
+    }
+
+    static class ControllableOutputWriter extends AbstractOutputWriter {
+        volatile boolean failing;
+        volatile long writeDurationInMillis;
+        int writes;
+
+        @Override
+        public void writeQueryResult(@Nonnull String metricName, @Nullable String metricType, @Nullable Object value) throws IOException {
+            writes++;
+            if (writeDurationInMillis > 0) {
+                try {
+                    Thread.sleep(writeDurationInMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                throw new IOException("Failure");
+            }
+        }
+
+        @Override
+        public void writeInvocationResult(@Nonnull String invocationName, @Nullable Object value) throws IOException {
+            writeQueryResult(invocationName, null, value);
+        }
+    }
+
+    static class ControllableBatchOutputWriter extends ControllableOutputWriter implements BatchOutputWriter {
+        @Override
+        public void writeBatch(@Nonnull MetricBatch batch) throws IOException {
+            batch.writeResultsTo(this);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class OutputWritersChainTest {
+
+    private OutputWritersChain outputWritersChain;
+
+    @After
+    public void after() {
+        if (outputWritersChain != null) {
+            outputWritersChain.preDestroy();
+        }
+    }
+
+    @Test
+    public void synchronous_chain_writes_with_the_caller_thread() throws Exception {
+        AsyncOutputWriterDecoratorTest.RecordingOutputWriter first = new AsyncOutputWriterDecoratorTest.RecordingOutputWriter();
+        AsyncOutputWriterDecoratorTest.RecordingOutputWriter second = new AsyncOutputWriterDecoratorTest.RecordingOutputWriter();
+        outputWritersChain = new OutputWritersChain(Arrays.<OutputWriter>asList(first, second));
+
+        writeCycle(outputWritersChain, "a");
+
+        assertThat(outputWritersChain.isConcurrent(), is(false));
+        assertThat(first.events, contains("pre", "a=1", "post"));
+        assertThat(second.events, contains("pre", "a=1", "post"));
+        assertThat(first.ioThreads, contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void slow_writer_only_delays_itself() throws Exception {
+        AsyncOutputWriterDecoratorTest.RecordingOutputWriter slow = new AsyncOutputWriterDecoratorTest.RecordingOutputWriter();
+        final CountDownLatch fastCompleted = new CountDownLatch(2);
+        AsyncOutputWriterDecoratorTest.RecordingOutputWriter fast = new AsyncOutputWriterDecoratorTest.RecordingOutputWriter() {
+            @Override
+            public void postCollect() {
+                events.add("post");
+                fastCompleted.countDown();
+            }
+        };
+        fast.release.countDown();
+        outputWritersChain = new OutputWritersChain(Arrays.<OutputWriter>asList(slow, fast), 10);
+
+        writeCycle(outputWritersChain, "blocking");
+        writeCycle(outputWritersChain, "b");
+
+        assertTrue("fast writer delayed by the slow one", fastCompleted.await(5, TimeUnit.SECONDS));
+        assertThat(fast.events, contains("pre", "blocking=1", "post", "pre", "b=1", "post"));
+        assertThat(slow.blocking.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(slow.events, contains("pre", "blocking=1"));
+
+        slow.release.countDown();
+        outputWritersChain.preDestroy();
+        OutputWritersChain.Lane slowLane = outputWritersChain.getLanes().get(0);
+        outputWritersChain = null;
+
+        assertThat(slow.events, contains("pre", "blocking=1", "post", "pre", "b=1", "post"));
+        assertThat(slowLane.getDeliveredCycles(), is(2L));
+        assertThat(slowLane.getMaxDeliveryLatencyInNanos(), greaterThan(0L));
+        assertThat(slowLane.getTotalDeliveryLatencyInNanos(), greaterThanOrEqualTo(slowLane.getMaxDeliveryLatencyInNanos()));
+    }
+
+    @Test
+    public void cycles_submitted_to_a_full_lane_are_dropped() throws Exception {
+        AsyncOutputWriterDecoratorTest.RecordingOutputWriter slow = new AsyncOutputWriterDecoratorTest.RecordingOutputWriter();
+        outputWritersChain = new OutputWritersChain(Arrays.<OutputWriter>asList(slow), 2);
+
+        writeCycle(outputWritersChain, "blocking");
+        assertThat(slow.blocking.await(5, TimeUnit.SECONDS), is(true));
+        List<String> expectedEvents = new ArrayList<>(Arrays.asList("pre", "blocking=1", "post"));
+        for (int i = 0; i < 5; i++) {
+            writeCycle(outputWritersChain, "m" + i);
+        }
+        OutputWritersChain.Lane lane = outputWritersChain.getLanes().get(0);
+        assertThat(lane.getPendingCycles(), is(2));
+        assertThat(lane.getDroppedCycles(), is(3L));
+
+        slow.release.countDown();
+        outputWritersChain.preDestroy();
+        outputWritersChain = null;
+        expectedEvents.addAll(Arrays.asList("pre", "m0=1", "post", "pre", "m1=1", "post"));
+        assertThat(slow.events, is(expectedEvents));
+    }
+
+    private void writeCycle(OutputWriter outputWriter, String metricName) throws Exception {
+        outputWriter.preCollect();
+        outputWriter.writeQueryResult(metricName, null, 1);
+        outputWriter.postCollect();
+    }
+}
@@ -28,10 +28,15 @@ import org.junit.*;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.management.AttributeList;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -231,6 +236,54 @@ public class QueryTest {
         assertThat(mockOutputWriter.resultsByName.get("altTest.CollectionUsageThreshold"), notNullValue());
     }
 
+    @Test
+    public void attribute_list_is_fetched_with_a_single_mbean_server_call() throws Exception {
+        Map<String, Integer> invocationsCountByMethod = new HashMap<>();
+        MBeanServer countingMBeanServer = newCountingMBeanServer(invocationsCountByMethod, false);
+        Query query = new Query("test:type=Mock,name=mock", Arrays.asList("CollectionUsageThreshold", "Name", "IntegerList"), null,
+                null, null, "altTest.#attribute#_#position#", resultNameStrategy, null);
+        query.collectAndExport(countingMBeanServer, mockOutputWriter);
+        assertThat(mockOutputWriter.resultsByName.get("altTest.Name_"), notNullValue());
+        assertThat(mockOutputWriter.resultsByName.get("altTest.CollectionUsageThreshold_"), notNullValue());
+        assertThat(mockOutputWriter.resultsByName.get("altTest.IntegerList_5"), notNullValue());
+        assertThat(invocationsCountByMethod.get("getAttributes"), is(1));
+        assertThat(invocationsCountByMethod.get("getAttribute"), nullValue());
+    }
+
+    @Test
+    public void attributes_missing_from_bulk_fetch_are_fetched_individually() throws Exception {
+        Map<String, Integer> invocationsCountByMethod = new HashMap<>();
+        MBeanServer countingMBeanServer = newCountingMBeanServer(invocationsCountByMethod, true);
+        Query query = new Query("test:type=Mock,name=mock", Arrays.asList("CollectionUsageThreshold", "Name", "DoesNotExist"), null,
+                null, null, "altTest.#attribute#", resultNameStrategy, null);
+        query.collectAndExport(countingMBeanServer, mockOutputWriter);
+        assertThat(mockOutputWriter.resultsByName.get("altTest.Name"), notNullValue());
+        assertThat(mockOutputWriter.resultsByName.get("altTest.CollectionUsageThreshold"), notNullValue());
+        assertThat(mockOutputWriter.resultsByName.size(), is(2));
+        assertThat(invocationsCountByMethod.get("getAttribute"), is(3));
+    }
+
+    /**
+     * @param failBulkFetch make {@link MBeanServer#getAttributes(ObjectName, String[])} return no attribute
+     */
+    private static MBeanServer newCountingMBeanServer(final Map<String, Integer> invocationsCountByMethod, final boolean failBulkFetch) {
+        return (MBeanServer) Proxy.newProxyInstance(QueryTest.class.getClassLoader(), new Class[]{MBeanServer.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Integer count = invocationsCountByMethod.get(method.getName());
+                invocationsCountByMethod.put(method.getName(), count == null ? 1 : count + 1);
+                if (failBulkFetch && method.getName().equals("getAttributes")) {
+                    return new AttributeList();
+                }
+                try {
+                    return method.invoke(mbeanServer, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
     @Test
     public void attribute_list_attribute_does_not_return_not_specified_attribute() throws Exception {
         Query query = new Query("test:type=Mock,name=mock", Arrays.asList("CollectionUsageThreshold", "Name"), null,
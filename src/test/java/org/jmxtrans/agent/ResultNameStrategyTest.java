@@ -27,8 +27,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import javax.management.ObjectName;
+import java.util.Collections;
 
-import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -62,4 +63,76 @@ public class ResultNameStrategyTest {
         String actual = strategy.escapeObjectName(new ObjectName(objectName));
         assertThat(actual, is("Catalina.class__javax_sql_DataSource.host__localhost.name__jdbc_my-datasource.path___.resourcetype__Context.type__Resource"));
     }
+
+    @Test
+    public void result_name_is_cached() throws Exception {
+        ResultNameStrategyImpl strategy = new ResultNameStrategyImpl();
+        Query query = new Query("java.lang:type=GarbageCollector,*", "CollectionCount", strategy);
+        ObjectName objectName = new ObjectName("java.lang:type=GarbageCollector,name=PS Scavenge");
+
+        String first = strategy.getResultName(query, objectName, "CollectionCount", null, null);
+        String second = strategy.getResultName(query, new ObjectName("java.lang:type=GarbageCollector,name=PS Scavenge"), "CollectionCount", null, null);
+
+        assertThat(first, is("java_lang.name__PS_Scavenge.type__GarbageCollector.CollectionCount"));
+        assertThat(second, sameInstance(first));
+        assertThat(strategy.getResultName(query, objectName, "CollectionCount", null, 1), is("java_lang.name__PS_Scavenge.type__GarbageCollector.CollectionCount_1"));
+    }
+
+    @Test
+    public void result_alias_is_recompiled_when_an_expression_evaluator_is_registered() throws Exception {
+        ExpressionLanguageEngineImpl expressionLanguageEngine = new ExpressionLanguageEngineImpl();
+        expressionLanguageEngine.registerExpressionEvaluator("hostname", new ExpressionLanguageEngineImpl.StaticFunction("tomcat1"));
+        ResultNameStrategyImpl strategy = new ResultNameStrategyImpl(expressionLanguageEngine);
+        Query query = new Query("java.lang:type=GarbageCollector,*", "CollectionCount", "#hostname#.gc.%name%", strategy);
+        ObjectName objectName = new ObjectName("java.lang:type=GarbageCollector,name=PS Scavenge");
+
+        assertThat(strategy.getResultName(query, objectName, "CollectionCount", null, null), is("tomcat1.gc.PS_Scavenge"));
+
+        expressionLanguageEngine.registerExpressionEvaluator("hostname", new ExpressionLanguageEngineImpl.StaticFunction("tomcat2"));
+        assertThat(strategy.getResultName(query, objectName, "CollectionCount", null, null), is("tomcat2.gc.PS_Scavenge"));
+    }
+
+    @Test
+    public void result_names_of_unregistered_mbean_are_evicted() throws Exception {
+        ResultNameStrategyImpl strategy = new ResultNameStrategyImpl();
+        Query query = new Query("java.lang:type=GarbageCollector,*", "CollectionCount", strategy);
+        ObjectName objectName = new ObjectName("java.lang:type=GarbageCollector,name=PS Scavenge");
+
+        String first = strategy.getResultName(query, objectName, "CollectionCount", null, null);
+        strategy.onMBeanUnregistered(objectName);
+        String second = strategy.getResultName(query, objectName, "CollectionCount", null, null);
+
+        assertThat(second, is(first));
+        assertThat(second, not(sameInstance(first)));
+    }
+
+    @Test
+    public void result_name_cache_can_be_disabled() throws Exception {
+        ResultNameStrategyImpl strategy = new ResultNameStrategyImpl();
+        strategy.postConstruct(Collections.singletonMap(ResultNameStrategyImpl.SETTING_RESULT_NAME_CACHE_MAX_SIZE, "0"));
+        Query query = new Query("java.lang:type=GarbageCollector,*", "CollectionCount", strategy);
+        ObjectName objectName = new ObjectName("java.lang:type=GarbageCollector,name=PS Scavenge");
+
+        String first = strategy.getResultName(query, objectName, "CollectionCount", null, null);
+        String second = strategy.getResultName(query, objectName, "CollectionCount", null, null);
+
+        assertThat(second, is(first));
+        assertThat(second, not(sameInstance(first)));
+        assertThat(strategy.getResultNameCacheMaxSize(), is(0));
+    }
+
+    @Test
+    public void result_name_cache_is_bounded() throws Exception {
+        ResultNameCache cache = new ResultNameCache(2);
+        Query query = new Query("test:*", "Value", new ResultNameStrategyImpl());
+        for (int i = 0; i < 5; i++) {
+            cache.put(query, new ObjectName("test:name=mbean" + i), "Value", null, null, "mbean" + i);
+        }
+
+        // cleared when caching mbean2 and mbean4
+        assertThat(cache.size(), is(1));
+        assertThat(cache.getClearsCount(), is(2));
+        assertThat(cache.get(query, new ObjectName("test:name=mbean0"), "Value", null, null), nullValue());
+        assertThat(cache.get(query, new ObjectName("test:name=mbean4"), "Value", null, null), is("mbean4"));
+    }
 }
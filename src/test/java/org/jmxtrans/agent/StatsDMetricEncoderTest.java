@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.jmxtrans.agent.statsd.StatsDMetricEncoder;
+import org.junit.Test;
+
+public class StatsDMetricEncoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void plain() {
+        StatsDMetricEncoder encoder = new StatsDMetricEncoder("foo", "", "", 10);
+        assertThat(encode(encoder, "bar", "gauge", 12), equalTo("foo.bar:12|g\n"));
+        assertThat(encode(encoder, "bar", "counter", -3L), equalTo("foo.bar:-3|c\n"));
+        assertThat(encode(encoder, "bar", null, 0.8734), equalTo("foo.bar:0.8734|c\n"));
+        assertThat(encode(encoder, "bar", "G", 0.1f), equalTo("foo.bar:0.1|g\n"));
+        assertThat(encode(encoder, "bar", "g", "a string"), equalTo("foo.bar:a string|g\n"));
+        assertThat(encode(encoder, "température", "g", true), equalTo("foo.température:true|g\n"));
+    }
+
+    @Test
+    public void dataDogTags() {
+        StatsDMetricEncoder encoder = new StatsDMetricEncoder("foo", "", "|#tag1:ok,tag2:woff", 10);
+        assertThat(encode(encoder, "bar", "g", 12), equalTo("foo.bar:12|g|#tag1:ok,tag2:woff\n"));
+    }
+
+    @Test
+    public void sysdigTags() {
+        StatsDMetricEncoder encoder = new StatsDMetricEncoder("foo", "#tag1=ok,tag2=woff", "", 10);
+        assertThat(encode(encoder, "bar", "c", 12), equalTo("foo.bar#tag1=ok,tag2=woff:12|c\n"));
+    }
+
+    @Test
+    public void invalidValues() {
+        assertFalse(StatsDMetricEncoder.isValidValue(Double.NaN));
+        assertFalse(StatsDMetricEncoder.isValidValue(Float.NaN));
+        assertFalse(StatsDMetricEncoder.isValidValue("NaN"));
+        assertFalse(StatsDMetricEncoder.isValidValue("INF"));
+        assertTrue(StatsDMetricEncoder.isValidValue(1));
+        assertTrue(StatsDMetricEncoder.isValidValue(0.5));
+        assertTrue(StatsDMetricEncoder.isValidValue("12"));
+    }
+
+    @Test
+    public void batch() {
+        StatsDMetricEncoder encoder = new StatsDMetricEncoder("foo", "", "", 10);
+        MetricBatch batch = new MetricBatch.Builder()
+                .add("long", "gauge", 12L, false)
+                .add("double", "counter", 0.5, false)
+                .add("invocation", null, "x", true)
+                .build(33000);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        for (int i = 0; i < batch.size(); i++) {
+            assertTrue(encoder.encode(buffer, batch, i));
+        }
+        assertThat(toString(buffer), equalTo("foo.long:12|g\nfoo.double:0.5|c\nfoo.invocation:x|c\n"));
+    }
+
+    @Test
+    public void bufferIsLeftUnchangedWhenTooSmall() {
+        StatsDMetricEncoder encoder = new StatsDMetricEncoder("foo", "", "", 10);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(50);
+        assertTrue(encoder.encode(buffer, "bar", "g", 1));
+        int position = buffer.position();
+        assertFalse(encoder.encode(buffer, "bar", "g", 1));
+        assertThat(buffer.position(), is(position));
+    }
+
+    private String encode(StatsDMetricEncoder encoder, String metricName, String metricType, Object value) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        assertTrue(encoder.encode(buffer, metricName, metricType, value));
+        return toString(buffer);
+    }
+
+    private String toString(ByteBuffer buffer) {
+        buffer.flip();
+        return UTF_8.decode(buffer).toString();
+    }
+}
@@ -28,9 +28,15 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static org.hamcrest.Matchers.*;
 import static org.hamcrest.core.IsEqual.equalTo;
 
 public class StatsDOutputWriterTest {
@@ -129,6 +135,32 @@ public class StatsDOutputWriterTest {
         Assert.assertNull(writer.receivedStat);
     }
 
+    @Test
+    public void test_skip_NaN_values_of_a_batch() throws IOException {
+        final List<String> packets = new ArrayList<>();
+        StatsDOutputWriter writer = new StatsDOutputWriter() {
+            @Override
+            protected int send(ByteBuffer buffer, InetSocketAddress address) {
+                int length = buffer.remaining();
+                packets.add(StandardCharsets.UTF_8.decode(buffer).toString());
+                return length;
+            }
+        };
+        Map<String, String> settings = new HashMap<>();
+        settings.put(StatsDOutputWriter.SETTING_ROOT_PREFIX, "foo");
+        settings.put(StatsDOutputWriter.SETTING_HOST, "localhost");
+        settings.put(StatsDOutputWriter.SETTING_PORT, "8125");
+        writer.postConstruct(settings);
+
+        MetricBatch.Builder batch = new MetricBatch.Builder();
+        batch.add("double-nan", "gauge", Double.NaN, false);
+        batch.add("string-nan", "gauge", "NaN", false);
+        batch.add("valid", "gauge", 1.5, false);
+        writer.writeBatch(batch.build(0));
+
+        Assert.assertThat(packets, contains("foo.valid:1.5|g\n"));
+    }
+
     /**
      * https://github.com/jmxtrans/jmxtrans-agent/issues/98
      */
@@ -146,13 +178,62 @@ public class StatsDOutputWriterTest {
             writer.writeQueryResult("the.answer", "counter", i);
         }
     }
+    @Test
+    public void test_lines_are_packed_in_packets() throws IOException {
+        final List<String> packets = new ArrayList<>();
+        StatsDOutputWriter writer = new StatsDOutputWriter() {
+            @Override
+            protected int send(ByteBuffer buffer, InetSocketAddress address) {
+                int length = buffer.remaining();
+                packets.add(StandardCharsets.UTF_8.decode(buffer).toString());
+                return length;
+            }
+        };
+        Map<String, String> settings = new HashMap<>();
+        settings.put(StatsDOutputWriter.SETTING_ROOT_PREFIX, "foo");
+        settings.put(StatsDOutputWriter.SETTING_HOST, "localhost");
+        settings.put(StatsDOutputWriter.SETTING_PORT, "8125");
+        settings.put(StatsDOutputWriter.SETTING_MAX_PACKET_SIZE_IN_BYTES, "64");
+        writer.postConstruct(settings);
+
+        MetricBatch.Builder batch = new MetricBatch.Builder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            batch.add("metric-" + i, "gauge", i, false);
+            expected.append("foo.metric-").append(i).append(':').append(i).append("|g\n");
+        }
+        batch.add("a-metric-name-too-long-to-fit-in-a-packet-of-64-bytes", "gauge", 1, false);
+        writer.writeBatch(batch.build(0));
+
+        StringBuilder received = new StringBuilder();
+        for (String packet : packets) {
+            Assert.assertThat(packet.length(), lessThanOrEqualTo(64));
+            Assert.assertThat(packet, endsWith("\n"));
+            received.append(packet);
+        }
+        Assert.assertThat(received.toString(), equalTo(expected.toString()));
+        Assert.assertThat(packets.size(), greaterThan(1));
+        Assert.assertThat(writer.getLastFlushPacketsCount(), equalTo(packets.size()));
+        Assert.assertThat(writer.getLastFlushBytesCount(), equalTo((long) expected.length()));
+        Assert.assertThat(writer.getSentPacketsCount(), equalTo((long) packets.size()));
+        Assert.assertThat(writer.getRejectedLinesCount(), equalTo(1L));
+    }
+
     public class StatsDOutputWriterMock extends StatsDOutputWriter {
         public String receivedStat;
 
         @Override
-        protected synchronized boolean doSend(String stat) {
-            receivedStat = stat;
-            return true;
+        public synchronized void writeQueryResult(String metricName, String metricType, Object value) throws IOException {
+            receivedStat = null;
+            super.writeQueryResult(metricName, metricType, value);
+            flush();
+        }
+
+        @Override
+        protected int send(ByteBuffer buffer, InetSocketAddress address) {
+            int length = buffer.remaining();
+            receivedStat = StandardCharsets.UTF_8.decode(buffer).toString();
+            return length;
         }
     }
 
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.rules.ExternalResource;
+
+/**
+ * A server that listens on a TCP port and decodes the frames of the Graphite pickle protocol, suitable for testing
+ * {@link GraphitePickleTcpOutputWriter}. Only the opcodes used to pickle a list of
+ * {@code (path, (timestamp, value))} tuples with the protocol 2 are supported. Can be used as a JUnit rule:
+ *
+ * <pre>{@code @Rule
+ * public TcpPickleServer server = new TcpPickleServer();
+ * }</pre>
+ */
+public class TcpPickleServer extends ExternalResource {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket ss;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final List<PickledMetric> receivedMetrics = new CopyOnWriteArrayList<>();
+    private final List<Integer> receivedFrameSizes = new CopyOnWriteArrayList<>();
+
+    public TcpPickleServer() {
+        try {
+            ss = new ServerSocket(0);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getPort() {
+        return ss.getLocalPort();
+    }
+
+    public List<PickledMetric> getReceivedMetrics() {
+        return receivedMetrics;
+    }
+
+    /**
+     * @return number of metrics of each received frame
+     */
+    public List<Integer> getReceivedFrameSizes() {
+        return receivedFrameSizes;
+    }
+
+    public void disconnectAllClients() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        sockets.clear();
+    }
+
+    @Override
+    protected void before() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!ss.isClosed()) {
+                    try {
+                        final Socket socket = ss.accept();
+                        sockets.add(socket);
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                readFrames(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // server stopped
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void after() {
+        try {
+            disconnectAllClients();
+            ss.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        executor.shutdownNow();
+    }
+
+    private void readFrames(Socket socket) {
+        try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            while (true) {
+                int length = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                List<PickledMetric> metrics = unpickle(ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN));
+                receivedMetrics.addAll(metrics);
+                receivedFrameSizes.add(metrics.size());
+            }
+        } catch (EOFException e) {
+            // client disconnected
+        } catch (IOException e) {
+            // socket closed
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<PickledMetric> unpickle(ByteBuffer in) {
+        Deque<Object> stack = new ArrayDeque<>();
+        Deque<Integer> marks = new ArrayDeque<>();
+        final Object mark = new Object();
+        while (true) {
+            byte opcode = in.get();
+            switch (opcode) {
+                case (byte) 0x80: // PROTO
+                    in.get();
+                    break;
+                case ']': // EMPTY_LIST
+                    stack.push(new ArrayList<>());
+                    break;
+                case '(': // MARK
+                    stack.push(mark);
+                    break;
+                case 'X': { // BINUNICODE
+                    byte[] bytes = new byte[in.getInt()];
+                    in.get(bytes);
+                    stack.push(new String(bytes, UTF_8));
+                    break;
+                }
+                case 'J': // BININT
+                    stack.push((long) in.getInt());
+                    break;
+                case (byte) 0x8a: { // LONG1
+                    int size = in.get() & 0xFF;
+                    long value = 0;
+                    for (int i = 0; i < size; i++) {
+                        value |= (in.get() & 0xFFL) << (8 * i);
+                    }
+                    stack.push(value);
+                    break;
+                }
+                case 'G': // BINFLOAT, big endian
+                    stack.push(in.order(ByteOrder.BIG_ENDIAN).getDouble());
+                    in.order(ByteOrder.LITTLE_ENDIAN);
+                    break;
+                case (byte) 0x86: { // TUPLE2
+                    Object second = stack.pop();
+                    Object first = stack.pop();
+                    stack.push(new Object[]{first, second});
+                    break;
+                }
+                case 'e': { // APPENDS
+                    List<Object> items = new ArrayList<>();
+                    for (Object item = stack.pop(); item != mark; item = stack.pop()) {
+                        items.add(0, item);
+                    }
+                    ((List<Object>) stack.peek()).addAll(items);
+                    break;
+                }
+                case '.': { // STOP
+                    List<PickledMetric> result = new ArrayList<>();
+                    for (Object item : (List<Object>) stack.pop()) {
+                        Object[] tuple = (Object[]) item;
+                        Object[] datapoint = (Object[]) tuple[1];
+                        result.add(new PickledMetric((String) tuple[0], (Long) datapoint[0], (Number) datapoint[1]));
+                    }
+                    return result;
+                }
+                default:
+                    throw new IllegalStateException("Unsupported opcode 0x" + Integer.toHexString(opcode & 0xFF));
+            }
+        }
+    }
+
+    public static class PickledMetric {
+        public final String path;
+        public final long timestamp;
+        public final Number value;
+
+        PickledMetric(String path, long timestamp, Number value) {
+            this.path = path;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + path + ", (" + timestamp + ", " + value + "))";
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jmxtrans.agent.graphite.GraphiteOutputWriterCommonSettings;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Output writers connected to a {@code unix:///path/to/socket} target.
+ */
+public class UnixDomainSocketIntegrationTest {
+
+    @Rule
+    public UnixDomainSocketServer server = new UnixDomainSocketServer();
+
+    private final MetricBatch batch = new MetricBatch.Builder()
+            .add("a", "gauge", 1L, false)
+            .add("b", "counter", 2.5, false)
+            .build(33000);
+
+    @Test
+    public void graphitePlainText() throws Exception {
+        GraphitePlainTextTcpOutputWriter writer = new GraphitePlainTextTcpOutputWriter();
+        Map<String, String> settings = new HashMap<>();
+        settings.put(GraphiteOutputWriterCommonSettings.SETTING_HOST, server.getUri());
+        settings.put(GraphiteOutputWriterCommonSettings.SETTING_NAME_PREFIX, "foo.");
+        writer.postConstruct(settings);
+        writer.writeBatch(batch);
+        writer.writeQueryResult("c", null, 3);
+        writer.postCollect();
+        String expected = "foo.a 1 33\nfoo.b 2.5 33\nfoo.c 3 ";
+        assertThat(received(expected.length()), startsWith(expected));
+        writer.preDestroy();
+    }
+
+    @Test
+    public void graphiteNioRelay() throws Exception {
+        GraphiteNioTcpOutputWriter writer = new GraphiteNioTcpOutputWriter();
+        Map<String, String> settings = new HashMap<>();
+        settings.put(GraphiteNioTcpOutputWriter.SETTING_RELAYS, server.getUri());
+        settings.put(GraphiteOutputWriterCommonSettings.SETTING_NAME_PREFIX, "foo.");
+        writer.postConstruct(settings);
+        writer.writeBatch(batch);
+        String expected = "foo.a 1 33\nfoo.b 2.5 33\n";
+        assertThat(received(expected.length()), equalTo(expected));
+        writer.preDestroy();
+    }
+
+    @Test
+    public void statsD() throws Exception {
+        StatsDOutputWriter writer = new StatsDOutputWriter();
+        Map<String, String> settings = new HashMap<>();
+        settings.put(StatsDOutputWriter.SETTING_HOST, server.getUri());
+        settings.put(StatsDOutputWriter.SETTING_ROOT_PREFIX, "foo");
+        writer.postConstruct(settings);
+        writer.writeBatch(batch);
+        String expected = "foo.a:1|g\nfoo.b:2.5|c\n";
+        assertThat(received(expected.length()), equalTo(expected));
+        writer.preDestroy();
+    }
+
+    @Test
+    public void dogStatsDFramesArePrefixedByTheirLength() throws Exception {
+        StatsDOutputWriter writer = new StatsDOutputWriter();
+        Map<String, String> settings = new HashMap<>();
+        settings.put(StatsDOutputWriter.SETTING_HOST, server.getUri());
+        settings.put(StatsDOutputWriter.SETTING_ROOT_PREFIX, "foo");
+        settings.put(StatsDOutputWriter.SETTINGS_STATSD_TYPE, StatsDOutputWriter.STATSD_DATADOG);
+        settings.put(StatsDOutputWriter.SETTINGS_TAGS, "env:test");
+        writer.postConstruct(settings);
+        writer.writeBatch(batch);
+        String expected = "foo.a:1|g|#env:test\nfoo.b:2.5|c|#env:test\n";
+        ByteBuffer frame = ByteBuffer.wrap(server.awaitReceivedBytes(4 + expected.length())).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(frame.getInt(), is(expected.length()));
+        assertThat(StandardCharsets.UTF_8.decode(frame).toString(), equalTo(expected));
+        writer.preDestroy();
+    }
+
+    private String received(int length) throws InterruptedException {
+        return new String(server.awaitReceivedBytes(length), StandardCharsets.UTF_8);
+    }
+}
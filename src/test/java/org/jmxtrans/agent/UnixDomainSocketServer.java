@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jmxtrans.agent.util.net.UnixDomainSockets;
+import org.junit.Assume;
+import org.junit.rules.ExternalResource;
+
+/**
+ * A server that listens on a Unix domain socket in a temporary directory and remembers the received bytes. The tests
+ * using it are skipped on the JVMs that don't support Unix domain sockets (before Java 16).
+ *
+ * <pre>{@code @Rule
+ * public UnixDomainSocketServer server = new UnixDomainSocketServer();
+ * }</pre>
+ */
+public class UnixDomainSocketServer extends ExternalResource {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ByteArrayOutputStream receivedBytes = new ByteArrayOutputStream();
+    private Path directory;
+    private Path socketFile;
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Returns the {@code unix:///path/to/socket} URI of the server.
+     */
+    public String getUri() {
+        return UnixDomainSockets.URI_PREFIX + socketFile;
+    }
+
+    /**
+     * Returns all the bytes that this server has received.
+     */
+    public byte[] getReceivedBytes() {
+        synchronized (receivedBytes) {
+            return receivedBytes.toByteArray();
+        }
+    }
+
+    /**
+     * Waits until the server has received at least the given number of bytes.
+     */
+    public byte[] awaitReceivedBytes(int length) throws InterruptedException {
+        for (int i = 0; i < 100 && getReceivedBytes().length < length; i++) {
+            Thread.sleep(10);
+        }
+        return getReceivedBytes();
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        Assume.assumeTrue("Unix domain sockets require Java 16+", UnixDomainSockets.isSupported());
+        directory = Files.createTempDirectory("jmxtrans-agent");
+        socketFile = directory.resolve("agent.sock");
+        serverChannel = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        serverChannel.bind(UnixDomainSockets.newSocketAddress(socketFile.toString()));
+        executor.execute(acceptor);
+    }
+
+    @Override
+    protected void after() {
+        executor.shutdownNow();
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (directory != null) {
+                Files.deleteIfExists(socketFile);
+                Files.delete(directory);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Runnable acceptor = new Runnable() {
+        public void run() {
+            while (!Thread.interrupted()) {
+                try {
+                    executor.execute(new ChannelReader(serverChannel.accept()));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+    };
+
+    private class ChannelReader implements Runnable {
+
+        private final SocketChannel channel;
+
+        ChannelReader(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            try {
+                while (channel.read(buffer) != -1) {
+                    synchronized (receivedBytes) {
+                        receivedBytes.write(buffer.array(), 0, buffer.position());
+                    }
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // closed
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -24,16 +24,22 @@
 package org.jmxtrans.agent.influxdb;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.jmxtrans.agent.MetricBatch;
 import org.jmxtrans.agent.testutils.FixedTimeClock;
 import org.jmxtrans.agent.util.time.Clock;
 import org.junit.Rule;
 import org.junit.Test;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
 
 /**
  * @author Kristoffer Erlandsson
@@ -119,6 +125,166 @@ public class InfluxDbOutputWriterTest {
                 .withRequestBody(equalTo("foo value=1i 1234\nfoo2 value=2.0 1234")));
     }
 
+    @Test
+    public void gzipStreamedBody() throws Exception {
+        Map<String, String> s = new HashMap<>();
+        s.put("url", "http://localhost:" + wireMockRule.port());
+        s.put("database", "test-db");
+        stubFor(post(urlPathEqualTo("/write")).willReturn(aResponse().withStatus(204)));
+        InfluxDbOutputWriter writer = new InfluxDbOutputWriter(FAKE_CLOCK);
+        writer.postConstruct(s);
+        for (int collection = 0; collection < 2; collection++) {
+            writer.writeQueryResult("foo", null, 1);
+            writer.writeQueryResult("foo2", null, 2.0);
+            writer.postCollect();
+        }
+        verify(2, postRequestedFor(urlPathEqualTo("/write"))
+                .withHeader("Content-Encoding", equalTo("gzip"))
+                .withHeader("Transfer-Encoding", equalTo("chunked"))
+                .withRequestBody(equalTo("foo value=1i 1234\nfoo2 value=2.0 1234")));
+    }
+
+    @Test
+    public void gzipDisabled() throws Exception {
+        Map<String, String> s = new HashMap<>();
+        s.put("url", "http://localhost:" + wireMockRule.port());
+        s.put("database", "test-db");
+        s.put(InfluxDbOutputWriter.SETTING_GZIP, "false");
+        stubFor(post(urlPathEqualTo("/write")).willReturn(aResponse().withStatus(204)));
+        InfluxDbOutputWriter writer = new InfluxDbOutputWriter(FAKE_CLOCK);
+        writer.postConstruct(s);
+        writer.writeQueryResult("foo", null, 1);
+        writer.postCollect();
+        verify(postRequestedFor(urlPathEqualTo("/write"))
+                .withoutHeader("Content-Encoding")
+                .withRequestBody(equalTo("foo value=1i 1234")));
+    }
+
+    @Test
+    public void batchPointsKeepTheCollectionTimestamp() throws Exception {
+        Map<String, String> s = new HashMap<>();
+        s.put("url", "http://localhost:" + wireMockRule.port());
+        s.put("database", "test-db");
+        stubFor(post(urlPathEqualTo("/write")).willReturn(aResponse().withStatus(204)));
+        InfluxDbOutputWriter writer = new InfluxDbOutputWriter(FAKE_CLOCK);
+        writer.postConstruct(s);
+        MetricBatch batch = new MetricBatch.Builder()
+                .add("foo", null, 1, false)
+                .add("foo2", null, 2.0, false)
+                .build(5678L);
+        writer.writeBatch(batch);
+        verify(postRequestedFor(urlPathEqualTo("/write"))
+                .withRequestBody(equalTo("foo value=1i 5678\nfoo2 value=2.0 5678")));
+    }
+
+    @Test
+    public void pointsAreSentInConcurrentRequests() throws Exception {
+        Map<String, String> s = new HashMap<>();
+        s.put("url", "http://localhost:" + wireMockRule.port());
+        s.put("database", "test-db");
+        s.put(InfluxDbOutputWriter.SETTING_MAX_POINTS_PER_REQUEST, "2");
+        s.put(InfluxDbOutputWriter.SETTING_MAX_CONCURRENT_REQUESTS, "2");
+        stubFor(post(urlPathEqualTo("/write")).willReturn(aResponse().withStatus(204)));
+        InfluxDbOutputWriter writer = new InfluxDbOutputWriter(FAKE_CLOCK);
+        writer.postConstruct(s);
+        for (int i = 0; i < 5; i++) {
+            writer.writeQueryResult("foo" + i, null, i);
+        }
+        writer.postCollect();
+        verify(3, postRequestedFor(urlPathEqualTo("/write")));
+        verify(postRequestedFor(urlPathEqualTo("/write")).withRequestBody(equalTo("foo0 value=0i 1234\nfoo1 value=1i 1234")));
+        verify(postRequestedFor(urlPathEqualTo("/write")).withRequestBody(equalTo("foo2 value=2i 1234\nfoo3 value=3i 1234")));
+        verify(postRequestedFor(urlPathEqualTo("/write")).withRequestBody(equalTo("foo4 value=4i 1234")));
+        assertThat(writer.getSentRequestsCount(), is(3L));
+        assertThat(writer.getRequestsDuration().getCount(), is(3L));
+        writer.preDestroy();
+    }
+
+    @Test
+    public void serverErrorsAreRetried() throws Exception {
+        Map<String, String> s = new HashMap<>();
+        s.put("url", "http://localhost:" + wireMockRule.port());
+        s.put("database", "test-db");
+        s.put(InfluxDbOutputWriter.SETTING_RETRY_INITIAL_BACKOFF_MILLIS, "1");
+        stubFor(post(urlPathEqualTo("/write")).inScenario("retry").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(503)).willSetStateTo("available"));
+        stubFor(post(urlPathEqualTo("/write")).inScenario("retry").whenScenarioStateIs("available")
+                .willReturn(aResponse().withStatus(204)));
+        InfluxDbOutputWriter writer = new InfluxDbOutputWriter(FAKE_CLOCK);
+        writer.postConstruct(s);
+        writer.writeQueryResult("foo", null, 1);
+        writer.postCollect();
+        verify(2, postRequestedFor(urlPathEqualTo("/write")).withRequestBody(equalTo("foo value=1i 1234")));
+        assertThat(writer.getRetriesCount(), is(1L));
+        assertThat(writer.getSentRequestsCount(), is(1L));
+        assertThat(writer.getFailedRequestsCount(), is(0L));
+    }
+
+    @Test
+    public void throttledRequestsAreRetried() throws Exception {
+        Map<String, String> s = new HashMap<>();
+        s.put("url", "http://localhost:" + wireMockRule.port());
+        s.put("database", "test-db");
+        s.put(InfluxDbOutputWriter.SETTING_RETRY_INITIAL_BACKOFF_MILLIS, "1");
+        stubFor(post(urlPathEqualTo("/write")).inScenario("throttle").whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(429)).willSetStateTo("timeout"));
+        stubFor(post(urlPathEqualTo("/write")).inScenario("throttle").whenScenarioStateIs("timeout")
+                .willReturn(aResponse().withStatus(408)).willSetStateTo("available"));
+        stubFor(post(urlPathEqualTo("/write")).inScenario("throttle").whenScenarioStateIs("available")
+                .willReturn(aResponse().withStatus(204)));
+        InfluxDbOutputWriter writer = new InfluxDbOutputWriter(FAKE_CLOCK);
+        writer.postConstruct(s);
+        writer.writeQueryResult("foo", null, 1);
+        writer.postCollect();
+        verify(3, postRequestedFor(urlPathEqualTo("/write")));
+        assertThat(writer.getRetriesCount(), is(2L));
+        assertThat(writer.getRejectedRequestsCount(), is(0L));
+        assertThat(writer.getSentRequestsCount(), is(1L));
+    }
+
+    @Test
+    public void retriesAreBounded() throws Exception {
+        Map<String, String> s = new HashMap<>();
+        s.put("url", "http://localhost:" + wireMockRule.port());
+        s.put("database", "test-db");
+        s.put(InfluxDbOutputWriter.SETTING_MAX_RETRIES, "2");
+        s.put(InfluxDbOutputWriter.SETTING_RETRY_INITIAL_BACKOFF_MILLIS, "1");
+        stubFor(post(urlPathEqualTo("/write")).willReturn(aResponse().withStatus(500)));
+        InfluxDbOutputWriter writer = new InfluxDbOutputWriter(FAKE_CLOCK);
+        writer.postConstruct(s);
+        writer.writeQueryResult("foo", null, 1);
+        try {
+            writer.postCollect();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        verify(3, postRequestedFor(urlPathEqualTo("/write")));
+        assertThat(writer.getRetriesCount(), is(2L));
+        assertThat(writer.getFailedRequestsCount(), is(1L));
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() throws Exception {
+        Map<String, String> s = new HashMap<>();
+        s.put("url", "http://localhost:" + wireMockRule.port());
+        s.put("database", "test-db");
+        s.put(InfluxDbOutputWriter.SETTING_RETRY_INITIAL_BACKOFF_MILLIS, "1");
+        stubFor(post(urlPathEqualTo("/write")).willReturn(aResponse().withStatus(400)));
+        InfluxDbOutputWriter writer = new InfluxDbOutputWriter(FAKE_CLOCK);
+        writer.postConstruct(s);
+        writer.writeQueryResult("foo", null, 1);
+        try {
+            writer.postCollect();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        verify(1, postRequestedFor(urlPathEqualTo("/write")));
+        assertThat(writer.getRetriesCount(), is(0L));
+        assertThat(writer.getRejectedRequestsCount(), is(1L));
+    }
+
     @Test
     public void requestWhenDisabled() throws Exception {
         Map<String, String> s = new HashMap<>();
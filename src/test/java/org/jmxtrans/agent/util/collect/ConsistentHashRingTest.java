@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util.collect;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void keys_are_spread_across_nodes() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(Arrays.asList("relay-1:2003", "relay-2:2003", "relay-3:2003"), 128);
+        Map<String, Integer> keysByNode = new HashMap<>();
+        for (int i = 0; i < 30000; i++) {
+            String node = ring.getNode("servers.host-" + (i % 50) + ".metric." + i);
+            Integer count = keysByNode.get(node);
+            keysByNode.put(node, count == null ? 1 : count + 1);
+        }
+        assertThat(keysByNode.size(), is(3));
+        for (int count : keysByNode.values()) {
+            assertThat(count, allOf(greaterThan(7000), lessThan(13000)));
+        }
+    }
+
+    @Test
+    public void preference_list_contains_each_node_once() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(Arrays.asList("a", "b", "c", "d"), 16);
+        for (int i = 0; i < 1000; i++) {
+            int[] preferenceList = ring.getPreferenceList("metric." + i);
+            int[] sorted = preferenceList.clone();
+            Arrays.sort(sorted);
+            assertThat(Arrays.toString(sorted), is("[0, 1, 2, 3]"));
+            assertThat(ring.getNodes().get(preferenceList[0]), is(ring.getNode("metric." + i)));
+        }
+    }
+
+    @Test
+    public void removing_a_node_only_moves_its_keys_to_the_next_node() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(Arrays.asList("a", "b", "c"), 64);
+        ConsistentHashRing<String> ringWithoutC = new ConsistentHashRing<>(Arrays.asList("a", "b"), 64);
+        for (int i = 0; i < 10000; i++) {
+            String key = "metric." + i;
+            int[] preferenceList = ring.getPreferenceList(key);
+            String owner = ring.getNodes().get(preferenceList[0]);
+            String expected = owner.equals("c") ? ring.getNodes().get(preferenceList[1]) : owner;
+            assertThat(ringWithoutC.getNode(key), is(expected));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void empty_ring_fails() {
+        new ConsistentHashRing<>(Arrays.<String>asList(), 10);
+    }
+}
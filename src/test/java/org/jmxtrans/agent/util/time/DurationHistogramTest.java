@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2010-2013 the original author or authors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package org.jmxtrans.agent.util.time;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class DurationHistogramTest {
+
+    @Test
+    public void empty_histogram() {
+        DurationHistogram histogram = new DurationHistogram();
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getMeanNanos(), is(0L));
+        assertThat(histogram.getPercentileNanos(99), is(0L));
+        assertThat(histogram.getBucketCounts().isEmpty(), is(true));
+    }
+
+    @Test
+    public void percentiles_are_the_upper_bound_of_their_bucket() {
+        DurationHistogram histogram = new DurationHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1000000);
+
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getMaxNanos(), is(1000000L));
+        assertThat(histogram.getLastNanos(), is(1000000L));
+        assertThat(histogram.getMeanNanos(), is((99 * 1000L + 1000000L) / 100));
+        assertThat(histogram.getPercentileNanos(50), is(1024L));
+        assertThat(histogram.getPercentileNanos(99), is(1024L));
+        // capped to the max
+        assertThat(histogram.getPercentileNanos(100), is(1000000L));
+        assertThat(histogram.getBucketCounts().get(1024L), is(99L));
+        assertThat(histogram.getBucketCounts().get(1L << 20), is(1L));
+    }
+
+    @Test
+    public void powers_of_two_are_the_upper_bound_of_their_bucket() {
+        DurationHistogram histogram = new DurationHistogram();
+        histogram.record(1024);
+        histogram.record(1025);
+
+        assertThat(histogram.getBucketCounts().get(1024L), is(1L));
+        assertThat(histogram.getBucketCounts().get(2048L), is(1L));
+    }
+}